@@ -0,0 +1,373 @@
+package jx86.analysis;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import jx86.lang.Instruction;
+
+/**
+ * <p>
+ * Responsible for choosing the encoding of branch instructions in a sequence
+ * of instructions. Every <code>Instruction.Addr</code> branch which has a short
+ * (i.e. <code>rel8</code>) form is initially assumed to be short. Then, any
+ * short branch whose target lies out of range is relaxed to its near (i.e.
+ * <code>rel32</code>) form, until no further branches need relaxing.
+ * </p>
+ *
+ * <p>
+ * Since branches only ever grow, the process always terminates. Rather than
+ * repeatedly recomputing every offset and checking every branch, a worklist
+ * of branches is maintained. When a branch is relaxed, only those short
+ * branches whose displacement changes as a result (i.e. which span it, or
+ * span an aligned label whose padding changes) are checked again. The growth
+ * of each instruction is recorded in a binary indexed tree, such that the
+ * offset of any instruction can be determined in logarithmic time.
+ * </p>
+ *
+ * @author David J. Pearce
+ *
+ */
+public final class BranchRelaxation {
+
+	/**
+	 * The result of relaxation, which identifies the offset of every
+	 * instruction and which branches can use their short form.
+	 *
+	 * @author David J. Pearce
+	 *
+	 */
+	public static final class Layout {
+		private final List<Instruction> instructions;
+		private final int[] offsets;
+		private final int[] sizes;
+		private final boolean[] shortForm;
+		private final Map<String,Integer> labels;
+
+		private Layout(List<Instruction> instructions, int[] offsets,
+				int[] sizes, boolean[] shortForm, Map<String, Integer> labels) {
+			this.instructions = instructions;
+			this.offsets = offsets;
+			this.sizes = sizes;
+			this.shortForm = shortForm;
+			this.labels = labels;
+		}
+
+		/**
+		 * Return the offset (in bytes) of the ith instruction from the start of
+		 * the sequence.
+		 *
+		 * @param i
+		 * @return
+		 */
+		public int offsetOf(int i) {
+			return offsets[i];
+		}
+
+		/**
+		 * Return the offset (in bytes) of a given label from the start of the
+		 * sequence, or <code>-1</code> if no such label exists.
+		 *
+		 * @param label
+		 * @return
+		 */
+		public int offsetOf(String label) {
+			Integer index = labels.get(label);
+			return index == null ? -1 : offsets[index];
+		}
+
+		/**
+		 * Return the size (in bytes) of the ith instruction, excluding any
+		 * alignment padding which precedes it.
+		 *
+		 * @param i
+		 * @return
+		 */
+		public int sizeOf(int i) {
+			return sizes[i];
+		}
+
+		/**
+		 * Determine whether the ith instruction is a branch encoded using its
+		 * short form.
+		 *
+		 * @param i
+		 * @return
+		 */
+		public boolean isShort(int i) {
+			return shortForm[i];
+		}
+
+		/**
+		 * Return the total size (in bytes) of the instruction sequence.
+		 *
+		 * @return
+		 */
+		public int size() {
+			int n = instructions.size();
+			return n == 0 ? 0 : offsets[n - 1] + sizes[n - 1];
+		}
+	}
+
+	private final SizeModel model;
+
+	public BranchRelaxation(SizeModel model) {
+		this.model = model;
+	}
+
+	/**
+	 * Relax the branches in a given sequence of instructions. Branches whose
+	 * target is not found in the sequence are given their near form. If a
+	 * branch with no near form (e.g. <code>loop</code>) cannot reach its
+	 * target, or a branch cannot be encoded at all for the target (e.g.
+	 * <code>jcxz</code> on x86_64), then an exception is raised.
+	 *
+	 * @param instructions
+	 * @return
+	 */
+	public Layout relax(List<Instruction> instructions) {
+		int n = instructions.size();
+		Instruction[] insns = instructions.toArray(new Instruction[n]);
+		int[] offsets = new int[n];
+		int[] sizes = new int[n];
+		int[] targets = new int[n];
+		boolean[] shortForm = new boolean[n];
+		HashMap<String,Integer> labels = new HashMap<String,Integer>();
+
+		for(int i=0;i!=n;++i) {
+			Instruction insn = insns[i];
+			if(insn instanceof Instruction.Label) {
+				labels.put(((Instruction.Label) insn).label, i);
+			}
+		}
+		// Optimistically assume all branches are short.
+		ArrayList<Integer> branches = new ArrayList<Integer>();
+		for(int i=0;i!=n;++i) {
+			Instruction insn = insns[i];
+			targets[i] = -1;
+			if(insn instanceof Instruction.Addr) {
+				Instruction.Addr branch = (Instruction.Addr) insn;
+				Integer target = labels.get(branch.operand);
+				int size = model.shortBranchSize(branch.operation);
+				int near = model.nearBranchSize(branch.operation);
+				if(size < 0 && near < 0) {
+					throw new IllegalArgumentException("branch cannot be encoded for target: " + insn);
+				} else if(size < 0) {
+					sizes[i] = near;
+				} else if(target != null) {
+					targets[i] = target;
+					shortForm[i] = true;
+					sizes[i] = size;
+					branches.add(i);
+				} else if(near < 0) {
+					throw new IllegalArgumentException("branch target not found: " + insn);
+				} else {
+					sizes[i] = near;
+				}
+			} else {
+				sizes[i] = model.sizeOf(insn);
+			}
+		}
+		int[] padding = computeOffsets(insns,sizes,offsets);
+		// Identify labels whose padding may change as code before them grows
+		ArrayList<Integer> aligned = new ArrayList<Integer>();
+		if(model.isExact()) {
+			for(int i=0;i!=n;++i) {
+				if(insns[i] instanceof Instruction.Label && ((Instruction.Label) insns[i]).alignment > 1) {
+					aligned.add(i);
+				}
+			}
+		}
+		// Relax branches until none remain out of range.
+		Growth growth = new Growth(n);
+		ArrayDeque<Integer> worklist = new ArrayDeque<Integer>(branches);
+		boolean[] queued = new boolean[n];
+		for(int i : branches) {
+			queued[i] = true;
+		}
+		ArrayList<Integer> changes = new ArrayList<Integer>();
+		while(!worklist.isEmpty()) {
+			int i = worklist.remove();
+			queued[i] = false;
+			if(!shortForm[i]) {
+				continue;
+			}
+			int t = targets[i];
+			long displacement = (long) offsets[t] + growth.get(t)
+					- (offsets[i] + growth.get(i) + sizes[i]);
+			if(displacement >= Byte.MIN_VALUE && displacement <= Byte.MAX_VALUE) {
+				continue;
+			}
+			Instruction.Addr branch = (Instruction.Addr) insns[i];
+			int near = model.nearBranchSize(branch.operation);
+			if(near < 0) {
+				throw new IllegalArgumentException("branch target out of range: " + branch);
+			}
+			shortForm[i] = false;
+			// Everything after the branch moves by the growth in its size
+			changes.clear();
+			changes.add(i + 1);
+			growth.add(i + 1, near - sizes[i]);
+			if(!aligned.isEmpty()) {
+				realign(insns, aligned, i, near - sizes[i], offsets, padding, growth, changes);
+			}
+			sizes[i] = near;
+			// Check again every short branch whose displacement has changed
+			for(int j=0;j!=branches.size();++j) {
+				int b = branches.get(j);
+				if(shortForm[b] && !queued[b] && spans(b, targets[b], changes)) {
+					worklist.add(b);
+					queued[b] = true;
+				}
+			}
+		}
+		for(int i=0;i!=n;++i) {
+			offsets[i] += growth.get(i);
+		}
+
+		return new Layout(instructions,offsets,sizes,shortForm,labels);
+	}
+
+	/**
+	 * Recompute the padding of aligned labels following a branch which has
+	 * grown. Once the padding of some label absorbs the growth entirely,
+	 * nothing after it moves and the process stops. The position of each
+	 * label whose padding changes is recorded.
+	 *
+	 * @param insns
+	 * @param aligned
+	 *            Indices of aligned labels in increasing order.
+	 * @param branch
+	 *            Index of the branch which has grown.
+	 * @param shift
+	 *            Number of bytes by which the branch has grown.
+	 * @param offsets
+	 *            Offset of each instruction before any growth.
+	 * @param padding
+	 *            Current padding preceding each instruction.
+	 * @param growth
+	 * @param changes
+	 */
+	private static void realign(Instruction[] insns, List<Integer> aligned, int branch, int shift,
+			int[] offsets, int[] padding, Growth growth, List<Integer> changes) {
+		for(int l : aligned) {
+			if(l <= branch) {
+				continue;
+			}
+			int alignment = ((Instruction.Label) insns[l]).alignment;
+			int unpadded = offsets[l] + growth.get(l) - padding[l];
+			int delta = padding(unpadded, alignment) - padding[l];
+			if(delta != 0) {
+				padding[l] += delta;
+				growth.add(l, delta);
+				changes.add(l);
+				shift += delta;
+			}
+			if(shift == 0) {
+				break;
+			}
+		}
+	}
+
+	/**
+	 * Determine whether the displacement of a branch changes when everything
+	 * from any of a given set of positions onwards moves.
+	 *
+	 * @param branch
+	 * @param target
+	 * @param changes
+	 * @return
+	 */
+	private static boolean spans(int branch, int target, List<Integer> changes) {
+		int lo = Math.min(branch, target);
+		int hi = Math.max(branch, target);
+		for(int k : changes) {
+			if(lo < k && k <= hi) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Compute the offset of each instruction, accounting for any padding
+	 * required by aligned labels. When the size model is inexact, the worst
+	 * case padding is assumed to ensure branch displacements are never
+	 * underestimated.
+	 *
+	 * @param insns
+	 * @param sizes
+	 * @param offsets
+	 * @return The padding preceding each instruction.
+	 */
+	private int[] computeOffsets(Instruction[] insns, int[] sizes, int[] offsets) {
+		boolean exact = model.isExact();
+		int[] padding = new int[insns.length];
+		int offset = 0;
+		for(int i=0;i!=insns.length;++i) {
+			Instruction insn = insns[i];
+			if(insn instanceof Instruction.Label) {
+				int alignment = ((Instruction.Label) insn).alignment;
+				if(alignment > 1) {
+					padding[i] = exact ? padding(offset, alignment) : alignment - 1;
+					offset += padding[i];
+				}
+			}
+			offsets[i] = offset;
+			offset += sizes[i];
+		}
+		return padding;
+	}
+
+	private static int padding(int offset, int alignment) {
+		int remainder = offset % alignment;
+		return remainder == 0 ? 0 : alignment - remainder;
+	}
+
+	/**
+	 * Records how far each instruction has moved as branches before it grow.
+	 * This is a binary indexed (i.e. Fenwick) tree, such that moving every
+	 * instruction from a given position onwards and determining how far a
+	 * given instruction has moved both take logarithmic time.
+	 *
+	 * @author David J. Pearce
+	 *
+	 */
+	private static final class Growth {
+		private final int[] tree;
+
+		public Growth(int size) {
+			this.tree = new int[size + 2];
+		}
+
+		/**
+		 * Move every instruction from a given position onwards by a given
+		 * number of bytes.
+		 *
+		 * @param position
+		 * @param delta
+		 */
+		public void add(int position, int delta) {
+			for(int i=position+1;i<tree.length;i+=i&-i) {
+				tree[i] += delta;
+			}
+		}
+
+		/**
+		 * Return the number of bytes by which the instruction at a given
+		 * position has moved.
+		 *
+		 * @param position
+		 * @return
+		 */
+		public int get(int position) {
+			int total = 0;
+			for(int i=position+1;i>0;i-=i&-i) {
+				total += tree[i];
+			}
+			return total;
+		}
+	}
+}
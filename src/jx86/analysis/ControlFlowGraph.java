@@ -0,0 +1,342 @@
+package jx86.analysis;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+
+import jx86.lang.Instruction;
+
+/**
+ * Represents the control-flow graph of a sequence of instructions. The
+ * sequence is divided into basic blocks, where each block begins either at the
+ * start of the sequence, at a label or after a branch, and ends before the next
+ * block begins. Edges between blocks are determined by branch targets and
+ * fall-through.
+ *
+ * @author David J. Pearce
+ *
+ */
+public final class ControlFlowGraph {
+
+	/**
+	 * Represents a maximal sequence of instructions with a single entry point
+	 * and a single exit point.
+	 *
+	 * @author David J. Pearce
+	 *
+	 */
+	public static final class Block {
+		/**
+		 * Index of this block within the list of blocks.
+		 */
+		public final int index;
+
+		/**
+		 * Index of the first instruction in this block (inclusive).
+		 */
+		public final int start;
+
+		/**
+		 * Index of the last instruction in this block (exclusive).
+		 */
+		public final int end;
+
+		private final ArrayList<Block> successors = new ArrayList<Block>();
+		private final ArrayList<Block> predecessors = new ArrayList<Block>();
+
+		private Block(int index, int start, int end) {
+			this.index = index;
+			this.start = start;
+			this.end = end;
+		}
+
+		public List<Block> successors() {
+			return Collections.unmodifiableList(successors);
+		}
+
+		public List<Block> predecessors() {
+			return Collections.unmodifiableList(predecessors);
+		}
+
+		public String toString() {
+			return "#" + index + "[" + start + ".." + end + ")";
+		}
+	}
+
+	private final List<Instruction> instructions;
+	private final ArrayList<Block> blocks;
+	private final HashMap<String,Block> labels;
+
+	public ControlFlowGraph(List<Instruction> instructions) {
+		this.instructions = instructions;
+		this.blocks = new ArrayList<Block>();
+		this.labels = new HashMap<String,Block>();
+		buildBlocks();
+		buildEdges();
+	}
+
+	// ============================================
+	// Accessors
+	// ============================================
+
+	public List<Instruction> instructions() {
+		return instructions;
+	}
+
+	public List<Block> blocks() {
+		return Collections.unmodifiableList(blocks);
+	}
+
+	/**
+	 * Return the block which begins with a given label, or <code>null</code>
+	 * if no such block exists.
+	 *
+	 * @param label
+	 * @return
+	 */
+	public Block blockOf(String label) {
+		return labels.get(label);
+	}
+
+	/**
+	 * Return the first label associated with a given block, or
+	 * <code>null</code> if it has no label.
+	 *
+	 * @param block
+	 * @return
+	 */
+	public String labelOf(Block block) {
+		if(block.start < block.end) {
+			Instruction insn = instructions.get(block.start);
+			if(insn instanceof Instruction.Label) {
+				return ((Instruction.Label) insn).label;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Return the last instruction of a given block which is neither a label
+	 * nor a location, or <code>null</code> if it contains no such instruction.
+	 *
+	 * @param block
+	 * @return
+	 */
+	public Instruction lastOf(Block block) {
+		for(int i=block.end-1;i>=block.start;--i) {
+			Instruction insn = instructions.get(i);
+			if(!(insn instanceof Instruction.Label)
+					&& !(insn instanceof Instruction.Location)) {
+				return insn;
+			}
+		}
+		return null;
+	}
+
+	// ============================================
+	// Helpers
+	// ============================================
+
+	/**
+	 * Determine whether a given instruction is a branch which may transfer
+	 * control to a label (i.e. excluding <code>call</code>).
+	 *
+	 * @param insn
+	 * @return
+	 */
+	public static boolean isBranch(Instruction insn) {
+		return insn instanceof Instruction.Addr
+				&& ((Instruction.Addr) insn).operation != Instruction.AddrOp.call;
+	}
+
+	/**
+	 * Determine whether a given branch operation is conditional (i.e. may
+	 * fall through to the next instruction).
+	 *
+	 * @param op
+	 * @return
+	 */
+	public static boolean isConditional(Instruction.AddrOp op) {
+		return op != Instruction.AddrOp.jmp && op != Instruction.AddrOp.call;
+	}
+
+	/**
+	 * Return the conditional branch operation which branches exactly when a
+	 * given operation does not (e.g. <code>jne</code> for <code>je</code>), or
+	 * <code>null</code> if there is no such operation (e.g. for
+	 * <code>jrcxz</code> or <code>loop</code>).
+	 *
+	 * @param op
+	 * @return
+	 */
+	public static Instruction.AddrOp invert(Instruction.AddrOp op) {
+		switch(op) {
+		case ja:
+		case jnbe:
+			return Instruction.AddrOp.jbe;
+		case jae:
+		case jnb:
+		case jnc:
+			return Instruction.AddrOp.jb;
+		case jb:
+		case jnae:
+		case jc:
+			return Instruction.AddrOp.jae;
+		case jbe:
+		case jna:
+			return Instruction.AddrOp.ja;
+		case je:
+		case jz:
+			return Instruction.AddrOp.jne;
+		case jne:
+		case jnz:
+			return Instruction.AddrOp.je;
+		case jg:
+		case jnle:
+			return Instruction.AddrOp.jle;
+		case jge:
+		case jnl:
+			return Instruction.AddrOp.jl;
+		case jl:
+		case jnge:
+			return Instruction.AddrOp.jge;
+		case jle:
+		case jng:
+			return Instruction.AddrOp.jg;
+		case jo:
+			return Instruction.AddrOp.jno;
+		case jno:
+			return Instruction.AddrOp.jo;
+		case jp:
+		case jpe:
+			return Instruction.AddrOp.jnp;
+		case jnp:
+		case jpo:
+			return Instruction.AddrOp.jp;
+		case js:
+			return Instruction.AddrOp.jns;
+		case jns:
+			return Instruction.AddrOp.js;
+		default:
+			return null;
+		}
+	}
+
+	/**
+	 * Determine whether a given instruction is an indirect jump, whose
+	 * possible targets are unknown.
+	 *
+	 * @param insn
+	 * @return
+	 */
+	public static boolean isIndirectJump(Instruction insn) {
+		if(insn instanceof Instruction.IndReg) {
+			return ((Instruction.IndReg) insn).operation == Instruction.IndRegOp.jmp;
+		} else if(insn instanceof Instruction.ImmInd) {
+			return ((Instruction.ImmInd) insn).operation == Instruction.ImmIndOp.jmp;
+		} else if(insn instanceof Instruction.AddrInd) {
+			return ((Instruction.AddrInd) insn).operation == Instruction.AddrIndOp.jmp;
+		}
+		return false;
+	}
+
+	/**
+	 * Determine whether or not control can fall through a given instruction
+	 * to the next in sequence.
+	 *
+	 * @param insn
+	 * @return
+	 */
+	public static boolean fallsThrough(Instruction insn) {
+		if(insn instanceof Instruction.Addr) {
+			return ((Instruction.Addr) insn).operation != Instruction.AddrOp.jmp;
+		} else if(insn instanceof Instruction.IndReg) {
+			return ((Instruction.IndReg) insn).operation != Instruction.IndRegOp.jmp;
+		} else if(insn instanceof Instruction.ImmInd) {
+			return ((Instruction.ImmInd) insn).operation != Instruction.ImmIndOp.jmp;
+		} else if(insn instanceof Instruction.AddrInd) {
+			return ((Instruction.AddrInd) insn).operation != Instruction.AddrIndOp.jmp;
+		} else if(insn instanceof Instruction.Unit) {
+			switch(((Instruction.Unit) insn).operation) {
+			case ret:
+			case iret:
+			case iretd:
+			case hlt:
+				return false;
+			default:
+				return true;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Determine whether a given instruction terminates a basic block.
+	 *
+	 * @param insn
+	 * @return
+	 */
+	public static boolean isTerminator(Instruction insn) {
+		return isBranch(insn) || !fallsThrough(insn);
+	}
+
+	private void buildBlocks() {
+		int n = instructions.size();
+		int start = 0;
+		boolean empty = true;
+		for(int i=0;i!=n;++i) {
+			Instruction insn = instructions.get(i);
+			if(insn instanceof Instruction.Label) {
+				if(!empty) {
+					addBlock(start,i);
+					start = i;
+					empty = true;
+				}
+			} else if(isTerminator(insn)) {
+				addBlock(start,i+1);
+				start = i + 1;
+				empty = true;
+			} else {
+				empty = false;
+			}
+		}
+		if(start < n) {
+			addBlock(start,n);
+		}
+	}
+
+	private void addBlock(int start, int end) {
+		Block block = new Block(blocks.size(),start,end);
+		blocks.add(block);
+		for(int i=start;i!=end;++i) {
+			Instruction insn = instructions.get(i);
+			if(insn instanceof Instruction.Label) {
+				labels.put(((Instruction.Label) insn).label, block);
+			}
+		}
+	}
+
+	private void buildEdges() {
+		for(int i=0;i!=blocks.size();++i) {
+			Block block = blocks.get(i);
+			Instruction last = lastOf(block);
+			if(last != null && isBranch(last)) {
+				Block target = labels.get(((Instruction.Addr) last).operand);
+				if(target != null) {
+					addEdge(block,target);
+				}
+			}
+			if((last == null || fallsThrough(last)) && (i+1) < blocks.size()) {
+				addEdge(block,blocks.get(i+1));
+			}
+		}
+	}
+
+	private static void addEdge(Block from, Block to) {
+		if(!from.successors.contains(to)) {
+			from.successors.add(to);
+			to.predecessors.add(from);
+		}
+	}
+}
@@ -0,0 +1,518 @@
+package jx86.analysis;
+
+import java.util.HashMap;
+import java.util.List;
+
+import jx86.lang.Instruction;
+import jx86.lang.Register;
+
+/**
+ * <p>
+ * Provides a static estimate of the number of cycles taken per iteration of a
+ * basic block (typically a loop body) on a given microarchitecture. Every
+ * instruction is classified by the kind of operation it performs, which the
+ * model maps to a latency and a set of micro-operations (each of which can
+ * issue on some subset of execution ports). Memory operands add a load and/or
+ * store to this. The estimate is then the larger of two bounds:
+ * </p>
+ *
+ * <ul>
+ * <li><b>Throughput.</b> The pressure on the busiest execution port, assuming
+ * micro-operations are spread evenly across the ports available to them, or
+ * the number of micro-operations divided by the issue width (whichever is
+ * greater).</li>
+ * <li><b>Recurrence.</b> The length of the longest dependency chain carried
+ * from one iteration to the next, which is determined by simulating several
+ * iterations of the block using the registers (and flags) read and written by
+ * each instruction.</li>
+ * </ul>
+ *
+ * <p>
+ * The latency of a single iteration (i.e. its critical path) is also
+ * reported. The tables used are approximate, and memory dependencies and
+ * front-end effects are ignored. Hence, the estimates are suitable for
+ * comparing alternative code sequences against each other, rather than for
+ * predicting absolute performance.
+ * </p>
+ *
+ * @author David J. Pearce
+ *
+ */
+public final class CostModel {
+
+	/**
+	 * The kinds of operation distinguished by the model.
+	 *
+	 * @author David J. Pearce
+	 *
+	 */
+	public enum Kind {
+		NOP,     // no execution unit required
+		MOVE,    // register to register move
+		ALU,     // simple integer arithmetic and logic
+		LEA,     // address computation
+		SHIFT,   // shifts and rotates
+		MUL,     // integer multiplication
+		DIV,     // integer division
+		BRANCH,  // jumps and returns
+		CALL,    // calls
+		FP_ADD,  // floating point addition and comparison
+		FP_MUL,  // floating point multiplication
+		FP_DIV,  // floating point division
+		LOAD,    // load from memory
+		STORE    // store to memory (address and data)
+	}
+
+	/**
+	 * The cost of a given kind of operation.
+	 *
+	 * @author David J. Pearce
+	 *
+	 */
+	public static final class Cost {
+		/**
+		 * Cycles before the result of this operation is available.
+		 */
+		public final int latency;
+
+		/**
+		 * Cycles for which a port is occupied by each micro-operation (greater
+		 * than one for operations which are not fully pipelined).
+		 */
+		public final int occupancy;
+
+		/**
+		 * The ports available to each micro-operation, given as bitmasks.
+		 */
+		private final int[] uops;
+
+		public Cost(int latency, int occupancy, int... uops) {
+			this.latency = latency;
+			this.occupancy = occupancy;
+			this.uops = uops;
+		}
+	}
+
+	/**
+	 * The result of analysing a block.
+	 *
+	 * @author David J. Pearce
+	 *
+	 */
+	public static final class Estimate {
+		/**
+		 * Cycles per iteration as bounded by execution resources.
+		 */
+		public final double throughput;
+
+		/**
+		 * Cycles per iteration as bounded by loop-carried dependencies.
+		 */
+		public final double recurrence;
+
+		/**
+		 * Cycles for the critical path of a single iteration.
+		 */
+		public final int latency;
+
+		/**
+		 * Number of micro-operations per iteration.
+		 */
+		public final int uops;
+
+		private Estimate(double throughput, double recurrence, int latency, int uops) {
+			this.throughput = throughput;
+			this.recurrence = recurrence;
+			this.latency = latency;
+			this.uops = uops;
+		}
+
+		/**
+		 * Return the estimated number of cycles per iteration.
+		 *
+		 * @return
+		 */
+		public double cyclesPerIteration() {
+			return Math.max(throughput, recurrence);
+		}
+
+		public String toString() {
+			return String.format("%.2f cycles/iteration (throughput %.2f, recurrence %.2f, latency %d, uops %d)",
+					cyclesPerIteration(), throughput, recurrence, latency, uops);
+		}
+	}
+
+	// ============================================
+	// Microarchitectures
+	// ============================================
+
+	private static int ports(int... ports) {
+		int mask = 0;
+		for(int p : ports) {
+			mask |= 1 << p;
+		}
+		return mask;
+	}
+
+	/**
+	 * Intel Skylake (ports 0-7, 4-wide issue).
+	 */
+	public static final CostModel SKYLAKE;
+
+	/**
+	 * AMD Zen 2 (integer ports 0-3, address generation 4-5, floating point
+	 * 6-9, 5-wide issue).
+	 */
+	public static final CostModel ZEN2;
+
+	static {
+		HashMap<Kind,Cost> skl = new HashMap<Kind,Cost>();
+		skl.put(Kind.NOP, new Cost(0, 1));
+		skl.put(Kind.MOVE, new Cost(0, 1, ports(0, 1, 5, 6)));
+		skl.put(Kind.ALU, new Cost(1, 1, ports(0, 1, 5, 6)));
+		skl.put(Kind.LEA, new Cost(1, 1, ports(1, 5)));
+		skl.put(Kind.SHIFT, new Cost(1, 1, ports(0, 6)));
+		skl.put(Kind.MUL, new Cost(3, 1, ports(1)));
+		skl.put(Kind.DIV, new Cost(42, 24, ports(0), ports(1, 5), ports(0, 1, 5, 6)));
+		skl.put(Kind.BRANCH, new Cost(0, 1, ports(0, 6)));
+		skl.put(Kind.CALL, new Cost(0, 1, ports(6), ports(2, 3, 7), ports(4)));
+		skl.put(Kind.FP_ADD, new Cost(4, 1, ports(0, 1)));
+		skl.put(Kind.FP_MUL, new Cost(4, 1, ports(0, 1)));
+		skl.put(Kind.FP_DIV, new Cost(14, 4, ports(0)));
+		skl.put(Kind.LOAD, new Cost(5, 1, ports(2, 3)));
+		skl.put(Kind.STORE, new Cost(1, 1, ports(2, 3, 7), ports(4)));
+		SKYLAKE = new CostModel("skylake", 8, 4, skl);
+
+		HashMap<Kind,Cost> zen2 = new HashMap<Kind,Cost>();
+		zen2.put(Kind.NOP, new Cost(0, 1));
+		zen2.put(Kind.MOVE, new Cost(0, 1, ports(0, 1, 2, 3)));
+		zen2.put(Kind.ALU, new Cost(1, 1, ports(0, 1, 2, 3)));
+		zen2.put(Kind.LEA, new Cost(1, 1, ports(0, 1, 2, 3)));
+		zen2.put(Kind.SHIFT, new Cost(1, 1, ports(1, 2)));
+		zen2.put(Kind.MUL, new Cost(3, 1, ports(1)));
+		zen2.put(Kind.DIV, new Cost(45, 41, ports(2)));
+		zen2.put(Kind.BRANCH, new Cost(0, 1, ports(0, 3)));
+		zen2.put(Kind.CALL, new Cost(0, 1, ports(0, 3), ports(4, 5)));
+		zen2.put(Kind.FP_ADD, new Cost(3, 1, ports(8, 9)));
+		zen2.put(Kind.FP_MUL, new Cost(3, 1, ports(6, 7)));
+		zen2.put(Kind.FP_DIV, new Cost(13, 4, ports(9)));
+		zen2.put(Kind.LOAD, new Cost(4, 1, ports(4, 5)));
+		zen2.put(Kind.STORE, new Cost(1, 1, ports(4, 5)));
+		ZEN2 = new CostModel("zen2", 10, 5, zen2);
+	}
+
+	/**
+	 * Number of iterations simulated when determining the recurrence bound.
+	 */
+	private static final int ITERATIONS = 16;
+
+	private final String name;
+	private final int numberOfPorts;
+	private final int issueWidth;
+	private final HashMap<Kind,Cost> costs;
+
+	private CostModel(String name, int numberOfPorts, int issueWidth, HashMap<Kind,Cost> costs) {
+		this.name = name;
+		this.numberOfPorts = numberOfPorts;
+		this.issueWidth = issueWidth;
+		this.costs = costs;
+	}
+
+	public String name() {
+		return name;
+	}
+
+	/**
+	 * Return the number of micro-operations which can be issued per cycle.
+	 *
+	 * @return
+	 */
+	public int issueWidth() {
+		return issueWidth;
+	}
+
+	/**
+	 * Return the cost of a given kind of operation.
+	 *
+	 * @param kind
+	 * @return
+	 */
+	public Cost costOf(Kind kind) {
+		return costs.get(kind);
+	}
+
+	/**
+	 * Return the latency of a given instruction, which includes the latency of
+	 * any memory load it performs.
+	 *
+	 * @param insn
+	 * @return
+	 */
+	public int latencyOf(Instruction insn) {
+		int latency = costs.get(kindOf(insn)).latency;
+		if(loads(insn)) {
+			latency += costs.get(Kind.LOAD).latency;
+		}
+		return latency;
+	}
+
+	// ============================================
+	// Analysis
+	// ============================================
+
+	/**
+	 * Estimate the cost of a given basic block, which is assumed to be
+	 * executed repeatedly (e.g. as the body of a loop).
+	 *
+	 * @param block
+	 * @return
+	 */
+	public Estimate estimate(List<Instruction> block) {
+		double[] pressure = new double[numberOfPorts];
+		int uops = 0;
+		int n = block.size();
+		DefUse[] effects = new DefUse[n];
+		int[] latencies = new int[n];
+		for(int i=0;i!=n;++i) {
+			Instruction insn = block.get(i);
+			effects[i] = DefUse.of(insn);
+			latencies[i] = latencyOf(insn);
+			uops += issue(costs.get(kindOf(insn)), pressure);
+			if(loads(insn)) {
+				uops += issue(costs.get(Kind.LOAD), pressure);
+			}
+			if(stores(insn)) {
+				uops += issue(costs.get(Kind.STORE), pressure);
+			}
+		}
+		double throughput = (double) uops / issueWidth;
+		for(double p : pressure) {
+			throughput = Math.max(throughput, p);
+		}
+		// Simulate several iterations to determine dependency chains
+		HashMap<Register,Integer> ready = new HashMap<Register,Integer>();
+		int flags = 0;
+		int latency = 0;
+		int half = 0;
+		int last = 0;
+		for(int k=1;k<=ITERATIONS;++k) {
+			int end = 0;
+			for(int i=0;i!=n;++i) {
+				DefUse du = effects[i];
+				int start = du.readsFlags ? flags : 0;
+				for(Register r : du.uses) {
+					Integer t = ready.get(r);
+					if(t != null) {
+						start = Math.max(start, t);
+					}
+				}
+				int finish = start + latencies[i];
+				for(Register r : du.defs) {
+					ready.put(r, finish);
+				}
+				if(du.writesFlags) {
+					flags = finish;
+				}
+				end = Math.max(end, finish);
+			}
+			if(k == 1) {
+				latency = end;
+			} else if(k == ITERATIONS / 2) {
+				half = end;
+			}
+			last = end;
+		}
+		double recurrence = (double) (last - half) / (ITERATIONS / 2);
+		return new Estimate(throughput, recurrence, latency, uops);
+	}
+
+	/**
+	 * Estimate the cost of a given block in a control-flow graph.
+	 *
+	 * @param cfg
+	 * @param block
+	 * @return
+	 */
+	public Estimate estimate(ControlFlowGraph cfg, ControlFlowGraph.Block block) {
+		return estimate(cfg.instructions().subList(block.start, block.end));
+	}
+
+	/**
+	 * Account for the micro-operations of a given cost, returning how many
+	 * there were.
+	 *
+	 * @param cost
+	 * @param pressure
+	 * @return
+	 */
+	private int issue(Cost cost, double[] pressure) {
+		for(int mask : cost.uops) {
+			double share = (double) cost.occupancy / Integer.bitCount(mask);
+			for(int p=0;p!=numberOfPorts;++p) {
+				if((mask & (1 << p)) != 0) {
+					pressure[p] += share;
+				}
+			}
+		}
+		return cost.uops.length;
+	}
+
+	// ============================================
+	// Classification
+	// ============================================
+
+	/**
+	 * Determine the kind of operation performed by a given instruction,
+	 * ignoring any memory access it performs.
+	 *
+	 * @param insn
+	 * @return
+	 */
+	public static Kind kindOf(Instruction insn) {
+		if(insn instanceof Instruction.Unit) {
+			switch(((Instruction.Unit) insn).operation) {
+			case nop:
+				return Kind.NOP;
+			case ret:
+			case iret:
+			case iretd:
+				return Kind.BRANCH;
+			default:
+				return Kind.ALU;
+			}
+		} else if(insn instanceof Instruction.Reg) {
+			switch(((Instruction.Reg) insn).operation) {
+			case push:
+			case pop:
+				return Kind.NOP;
+			case mul:
+				return Kind.MUL;
+			case div:
+			case idiv:
+				return Kind.DIV;
+			case rcl:
+			case rcr:
+			case rol:
+			case ror:
+			case sal:
+			case sar:
+			case shl:
+			case shr:
+				return Kind.SHIFT;
+			default:
+				return Kind.ALU;
+			}
+		} else if(insn instanceof Instruction.RegReg) {
+			Instruction.RegReg i = (Instruction.RegReg) insn;
+			boolean fp = isSSE(i.leftOperand) || isSSE(i.rightOperand);
+			switch(i.operation) {
+			case mov:
+				return Kind.MOVE;
+			case mul:
+			case imul:
+				return fp ? Kind.FP_MUL : Kind.MUL;
+			case div:
+				return fp ? Kind.FP_DIV : Kind.DIV;
+			default:
+				return fp ? Kind.FP_ADD : Kind.ALU;
+			}
+		} else if(insn instanceof Instruction.ImmReg) {
+			switch(((Instruction.ImmReg) insn).operation) {
+			case mul:
+			case imul:
+				return Kind.MUL;
+			case shl:
+			case shr:
+			case sar:
+				return Kind.SHIFT;
+			default:
+				return Kind.ALU;
+			}
+		} else if(insn instanceof Instruction.ImmIndReg) {
+			return ((Instruction.ImmIndReg) insn).operation == Instruction.ImmIndRegOp.lea ? Kind.LEA
+					: Kind.NOP;
+		} else if(insn instanceof Instruction.IndRegImmReg) {
+			return ((Instruction.IndRegImmReg) insn).operation == Instruction.IndRegImmRegOp.lea ? Kind.LEA
+					: Kind.NOP;
+		} else if(insn instanceof Instruction.AddrReg) {
+			return ((Instruction.AddrReg) insn).operation == Instruction.AddrRegOp.lea ? Kind.LEA
+					: Kind.NOP;
+		} else if(insn instanceof Instruction.AddrRegReg) {
+			switch(((Instruction.AddrRegReg) insn).operation) {
+			case lea:
+				return Kind.LEA;
+			case mov:
+				return Kind.NOP;
+			default:
+				return Kind.ALU;
+			}
+		} else if(insn instanceof Instruction.Addr) {
+			return ((Instruction.Addr) insn).operation == Instruction.AddrOp.call ? Kind.CALL
+					: Kind.BRANCH;
+		} else if(insn instanceof Instruction.IndReg) {
+			return ((Instruction.IndReg) insn).operation == Instruction.IndRegOp.call ? Kind.CALL
+					: Kind.BRANCH;
+		} else if(insn instanceof Instruction.ImmInd) {
+			return ((Instruction.ImmInd) insn).operation == Instruction.ImmIndOp.call ? Kind.CALL
+					: Kind.BRANCH;
+		} else if(insn instanceof Instruction.AddrInd) {
+			return ((Instruction.AddrInd) insn).operation == Instruction.AddrIndOp.call ? Kind.CALL
+					: Kind.BRANCH;
+		} else if(insn instanceof Instruction.RegAddrReg) {
+			return ((Instruction.RegAddrReg) insn).operation == Instruction.RegAddrRegOp.mov ? Kind.NOP
+					: Kind.ALU;
+		}
+		// labels, locations and pure stores
+		return Kind.NOP;
+	}
+
+	/**
+	 * Determine whether a given instruction loads from memory.
+	 *
+	 * @param insn
+	 * @return
+	 */
+	public static boolean loads(Instruction insn) {
+		if(insn instanceof Instruction.Reg) {
+			return ((Instruction.Reg) insn).operation == Instruction.RegOp.pop;
+		} else if(insn instanceof Instruction.Unit) {
+			Instruction.UnitOp op = ((Instruction.Unit) insn).operation;
+			return op == Instruction.UnitOp.ret || op == Instruction.UnitOp.leave;
+		} else if(insn instanceof Instruction.ImmIndReg) {
+			return ((Instruction.ImmIndReg) insn).operation == Instruction.ImmIndRegOp.mov;
+		} else if(insn instanceof Instruction.AddrReg) {
+			return ((Instruction.AddrReg) insn).operation == Instruction.AddrRegOp.mov;
+		} else if(insn instanceof Instruction.AddrRegReg) {
+			return ((Instruction.AddrRegReg) insn).operation != Instruction.AddrRegRegOp.lea;
+		} else if(insn instanceof Instruction.IndRegImmReg) {
+			return ((Instruction.IndRegImmReg) insn).operation == Instruction.IndRegImmRegOp.mov;
+		} else if(insn instanceof Instruction.RegAddrReg) {
+			return ((Instruction.RegAddrReg) insn).operation != Instruction.RegAddrRegOp.mov;
+		}
+		return insn instanceof Instruction.ImmInd || insn instanceof Instruction.AddrInd;
+	}
+
+	/**
+	 * Determine whether a given instruction stores to memory (excluding the
+	 * return address pushed by a call).
+	 *
+	 * @param insn
+	 * @return
+	 */
+	public static boolean stores(Instruction insn) {
+		if(insn instanceof Instruction.Reg) {
+			return ((Instruction.Reg) insn).operation == Instruction.RegOp.push;
+		}
+		if(insn instanceof Instruction.RegAddrReg) {
+			return ((Instruction.RegAddrReg) insn).operation != Instruction.RegAddrRegOp.cmp;
+		}
+		return insn instanceof Instruction.RegImmInd
+				|| insn instanceof Instruction.RegIndRegImm;
+	}
+
+	private static boolean isSSE(Register operand) {
+		Register.Width width = operand.width();
+		return width == Register.Width.ScalarDouble
+				|| width == Register.Width.ScalarSingle;
+	}
+}
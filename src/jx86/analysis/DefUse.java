@@ -0,0 +1,449 @@
+package jx86.analysis;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import jx86.lang.CallingConvention;
+import jx86.lang.Instruction;
+import jx86.lang.Register;
+
+/**
+ * <p>
+ * Describes the registers, flags and memory read and written by a single
+ * instruction, including any implicit operands (e.g. <code>%rdx</code> for
+ * <code>idiv</code>, or <code>%rsp</code> for <code>push</code>). Registers are
+ * reported in canonical form, i.e. as the widest member of their family. Thus,
+ * a write to <code>%al</code> is reported as a write to <code>%rax</code>.
+ * This is conservative, since it treats partial writes as reading and writing
+ * the whole register.
+ * </p>
+ *
+ * <p>
+ * Calls are assumed to follow the System V calling convention, hence they
+ * read the argument registers and clobber all caller-saved registers.
+ * Instructions whose effects are not modelled precisely (e.g.
+ * <code>cpuid</code> or <code>int</code>) are marked as opaque, and should be
+ * treated as barriers by any transformation.
+ * </p>
+ *
+ * @author David J. Pearce
+ *
+ */
+public final class DefUse {
+	private static final CallingConvention CONVENTION = CallingConvention.SYSTEM_V;
+
+	/**
+	 * The instruction being described.
+	 */
+	public final Instruction instruction;
+
+	/**
+	 * The (canonical) registers read by this instruction.
+	 */
+	public final List<Register> uses;
+
+	/**
+	 * The (canonical) registers written by this instruction.
+	 */
+	public final List<Register> defs;
+
+	public final boolean readsFlags;
+	public final boolean writesFlags;
+	public final boolean readsMemory;
+	public final boolean writesMemory;
+
+	/**
+	 * Indicates the effects of this instruction are not modelled precisely.
+	 */
+	public final boolean opaque;
+
+	private DefUse(Instruction instruction, List<Register> uses,
+			List<Register> defs, int effects) {
+		this.instruction = instruction;
+		this.uses = Collections.unmodifiableList(uses);
+		this.defs = Collections.unmodifiableList(defs);
+		this.readsFlags = (effects & READS_FLAGS) != 0;
+		this.writesFlags = (effects & WRITES_FLAGS) != 0;
+		this.readsMemory = (effects & READS_MEMORY) != 0;
+		this.writesMemory = (effects & WRITES_MEMORY) != 0;
+		this.opaque = (effects & OPAQUE) != 0;
+	}
+
+	/**
+	 * Determine whether this instruction reads a given register (or any
+	 * member of its family).
+	 *
+	 * @param register
+	 * @return
+	 */
+	public boolean uses(Register register) {
+		return uses.contains(canonical(register));
+	}
+
+	/**
+	 * Determine whether this instruction writes a given register (or any
+	 * member of its family).
+	 *
+	 * @param register
+	 * @return
+	 */
+	public boolean defines(Register register) {
+		return defs.contains(canonical(register));
+	}
+
+	public String toString() {
+		return instruction + " uses " + uses + " defs " + defs;
+	}
+
+	// ============================================
+	// Construction
+	// ============================================
+
+	private static final int READS_FLAGS = 1;
+	private static final int WRITES_FLAGS = 2;
+	private static final int READS_MEMORY = 4;
+	private static final int WRITES_MEMORY = 8;
+	private static final int OPAQUE = 16;
+
+	/**
+	 * Describe a given instruction.
+	 *
+	 * @param insn
+	 * @return
+	 */
+	public static DefUse of(Instruction insn) {
+		Builder b = new Builder(insn);
+		if(insn instanceof Instruction.Label || insn instanceof Instruction.Location) {
+			// no effects
+		} else if(insn instanceof Instruction.Unit) {
+			describe((Instruction.Unit) insn, b);
+		} else if(insn instanceof Instruction.Reg) {
+			describe((Instruction.Reg) insn, b);
+		} else if(insn instanceof Instruction.RegReg) {
+			describe((Instruction.RegReg) insn, b);
+		} else if(insn instanceof Instruction.ImmReg) {
+			describe((Instruction.ImmReg) insn, b);
+		} else if(insn instanceof Instruction.ImmIndReg) {
+			Instruction.ImmIndReg i = (Instruction.ImmIndReg) insn;
+			b.use(i.baseOperand).def(i.targetOperand);
+			if(i.operation == Instruction.ImmIndRegOp.mov) {
+				b.effects |= READS_MEMORY;
+			}
+		} else if(insn instanceof Instruction.RegImmInd) {
+			Instruction.RegImmInd i = (Instruction.RegImmInd) insn;
+			b.use(i.sourceOperand).use(i.baseOperand).effects |= WRITES_MEMORY;
+		} else if(insn instanceof Instruction.IndRegImmReg) {
+			Instruction.IndRegImmReg i = (Instruction.IndRegImmReg) insn;
+			b.use(i.baseOperand).use(i.indexOperand).def(i.targetOperand);
+			if(i.operation == Instruction.IndRegImmRegOp.mov) {
+				b.effects |= READS_MEMORY;
+			}
+		} else if(insn instanceof Instruction.RegIndRegImm) {
+			Instruction.RegIndRegImm i = (Instruction.RegIndRegImm) insn;
+			b.use(i.sourceOperand).use(i.baseOperand).use(i.indexOperand).effects |= WRITES_MEMORY;
+		} else if(insn instanceof Instruction.Addr) {
+			describe((Instruction.Addr) insn, b);
+		} else if(insn instanceof Instruction.AddrReg) {
+			Instruction.AddrReg i = (Instruction.AddrReg) insn;
+			b.def(i.rightOperand);
+			if(i.operation == Instruction.AddrRegOp.mov) {
+				b.effects |= READS_MEMORY;
+			}
+		} else if(insn instanceof Instruction.AddrRegReg) {
+			describe((Instruction.AddrRegReg) insn, b);
+		} else if(insn instanceof Instruction.RegAddrReg) {
+			Instruction.RegAddrReg i = (Instruction.RegAddrReg) insn;
+			b.use(i.leftOperand).use(i.rightOperand_2);
+			if(i.operation == Instruction.RegAddrRegOp.mov) {
+				b.effects |= WRITES_MEMORY;
+			} else if(i.operation == Instruction.RegAddrRegOp.cmp) {
+				b.effects |= READS_MEMORY | WRITES_FLAGS;
+			} else {
+				b.effects |= READS_MEMORY | WRITES_MEMORY | WRITES_FLAGS;
+			}
+		} else if(insn instanceof Instruction.IndReg) {
+			Instruction.IndReg i = (Instruction.IndReg) insn;
+			b.use(i.operand);
+			if(i.operation == Instruction.IndRegOp.call) {
+				call(b);
+			}
+		} else if(insn instanceof Instruction.ImmInd) {
+			Instruction.ImmInd i = (Instruction.ImmInd) insn;
+			b.use(i.baseOperand).effects |= READS_MEMORY;
+			if(i.operation == Instruction.ImmIndOp.call) {
+				call(b);
+			}
+		} else if(insn instanceof Instruction.AddrInd) {
+			Instruction.AddrInd i = (Instruction.AddrInd) insn;
+			b.use(i.baseOperand).effects |= READS_MEMORY;
+			if(i.operation == Instruction.AddrIndOp.call) {
+				call(b);
+			}
+		} else {
+			throw new IllegalArgumentException("unknown instruction encountered: " + insn);
+		}
+		return b.build();
+	}
+
+	private static void describe(Instruction.Unit insn, Builder b) {
+		switch(insn.operation) {
+		case nop:
+			break;
+		case clc:
+		case cmc:
+			b.effects |= READS_FLAGS | WRITES_FLAGS;
+			break;
+		case cdc:
+			b.effects |= WRITES_FLAGS;
+			break;
+		case cltd:
+		case cqto:
+			b.use(Register.RAX).def(Register.RDX);
+			break;
+		case cbw:
+		case cwde:
+			b.use(Register.RAX).def(Register.RAX);
+			break;
+		case cwd:
+		case cwq:
+			b.use(Register.RAX).def(Register.RDX);
+			break;
+		case lahf:
+			b.use(Register.RAX).def(Register.RAX).effects |= READS_FLAGS;
+			break;
+		case leave:
+			b.use(Register.RBP).def(Register.RSP).def(Register.RBP).effects |= READS_MEMORY;
+			break;
+		case pushf:
+			b.use(Register.RSP).def(Register.RSP).effects |= READS_FLAGS | WRITES_MEMORY;
+			break;
+		case popf:
+			b.use(Register.RSP).def(Register.RSP).effects |= WRITES_FLAGS | READS_MEMORY;
+			break;
+		case ret:
+			for(Register r : CONVENTION.returns) {
+				b.use(r);
+			}
+			for(Register r : CONVENTION.calleeSaved) {
+				b.use(r);
+			}
+			b.use(Register.RSP);
+			b.def(Register.RSP).effects |= READS_MEMORY;
+			break;
+		case hlt:
+			break;
+		default:
+			b.effects |= OPAQUE | READS_FLAGS | WRITES_FLAGS | READS_MEMORY | WRITES_MEMORY;
+		}
+	}
+
+	private static void describe(Instruction.Reg insn, Builder b) {
+		Register operand = insn.operand;
+		switch(insn.operation) {
+		case dec:
+		case inc:
+		case neg:
+			b.use(operand).def(operand).effects |= WRITES_FLAGS;
+			break;
+		case not:
+			b.use(operand).def(operand);
+			break;
+		case push:
+			b.use(operand).use(Register.RSP).def(Register.RSP).effects |= WRITES_MEMORY;
+			break;
+		case pop:
+			b.use(Register.RSP).def(Register.RSP).def(operand).effects |= READS_MEMORY;
+			break;
+		case mul:
+			b.use(operand).use(Register.RAX);
+			b.def(Register.RAX).def(Register.RDX).effects |= WRITES_FLAGS;
+			break;
+		case div:
+		case idiv:
+			b.use(operand).use(Register.RAX).use(Register.RDX);
+			b.def(Register.RAX).def(Register.RDX).effects |= WRITES_FLAGS;
+			break;
+		case rcl:
+		case rcr:
+			b.use(operand).use(Register.RCX).def(operand).effects |= READS_FLAGS | WRITES_FLAGS;
+			break;
+		case rol:
+		case ror:
+		case sal:
+		case sar:
+		case shl:
+		case shr:
+			// shift count is held in %cl
+			b.use(operand).use(Register.RCX).def(operand).effects |= READS_FLAGS | WRITES_FLAGS;
+			break;
+		default:
+			b.use(operand).def(operand);
+			b.effects |= OPAQUE | READS_FLAGS | WRITES_FLAGS | READS_MEMORY | WRITES_MEMORY;
+		}
+	}
+
+	private static void describe(Instruction.RegReg insn, Builder b) {
+		Register left = insn.leftOperand;
+		Register right = insn.rightOperand;
+		switch(insn.operation) {
+		case mov:
+			b.use(left).def(right);
+			break;
+		case xor:
+		case sub:
+			if(canonical(left) == canonical(right)) {
+				// zeroing idiom, which does not depend on the register
+				b.def(right).effects |= WRITES_FLAGS;
+				break;
+			}
+			b.use(left).use(right).def(right).effects |= WRITES_FLAGS;
+			break;
+		case adc:
+			b.use(left).use(right).def(right).effects |= READS_FLAGS | WRITES_FLAGS;
+			break;
+		case cmp:
+		case comi:
+			b.use(left).use(right).effects |= WRITES_FLAGS;
+			break;
+		case xchg:
+			b.use(left).use(right).def(left).def(right);
+			break;
+		case cmpxchg:
+		case cmpxchg8b:
+			b.use(left).use(right).use(Register.RAX).def(right).def(Register.RAX);
+			b.effects |= WRITES_FLAGS;
+			break;
+		default:
+			b.use(left).use(right).def(right).effects |= WRITES_FLAGS;
+		}
+	}
+
+	private static void describe(Instruction.ImmReg insn, Builder b) {
+		Register right = insn.rightOperand;
+		switch(insn.operation) {
+		case mov:
+			b.def(right);
+			break;
+		case cmp:
+			b.use(right).effects |= WRITES_FLAGS;
+			break;
+		case adc:
+			b.use(right).def(right).effects |= READS_FLAGS | WRITES_FLAGS;
+			break;
+		case cmpxchg:
+		case cmpxchg8b:
+			b.use(right).use(Register.RAX).def(right).def(Register.RAX);
+			b.effects |= WRITES_FLAGS;
+			break;
+		default:
+			b.use(right).def(right).effects |= WRITES_FLAGS;
+		}
+	}
+
+	private static void describe(Instruction.Addr insn, Builder b) {
+		switch(insn.operation) {
+		case call:
+			call(b);
+			break;
+		case jmp:
+			break;
+		case jcxz:
+		case jecxz:
+		case jrcxz:
+			b.use(Register.RCX);
+			break;
+		case loop:
+			b.use(Register.RCX).def(Register.RCX);
+			break;
+		case loope:
+		case loopz:
+		case loopne:
+		case loopnz:
+			b.use(Register.RCX).def(Register.RCX).effects |= READS_FLAGS;
+			break;
+		default:
+			b.effects |= READS_FLAGS;
+		}
+	}
+
+	private static void describe(Instruction.AddrRegReg insn, Builder b) {
+		b.use(insn.leftOperand_2);
+		switch(insn.operation) {
+		case lea:
+			b.def(insn.rightOperand);
+			break;
+		case mov:
+			b.def(insn.rightOperand).effects |= READS_MEMORY;
+			break;
+		case cmp:
+			b.use(insn.rightOperand).effects |= READS_MEMORY | WRITES_FLAGS;
+			break;
+		default:
+			b.use(insn.rightOperand).def(insn.rightOperand);
+			b.effects |= READS_MEMORY | WRITES_FLAGS;
+		}
+	}
+
+	private static void call(Builder b) {
+		for(Register r : CONVENTION.integerArguments) {
+			b.use(r);
+		}
+		for(Register r : CONVENTION.floatArguments) {
+			b.use(r);
+		}
+		// number of vector registers used by variadic calls
+		b.use(Register.RAX).use(Register.RSP);
+		for(Register r : CONVENTION.callerSaved) {
+			b.def(r);
+		}
+		b.effects |= READS_MEMORY | WRITES_MEMORY | WRITES_FLAGS;
+	}
+
+	/**
+	 * Return the canonical form of a given register, which is the widest
+	 * member of its family.
+	 *
+	 * @param register
+	 * @return
+	 */
+	public static Register canonical(Register register) {
+		Register.Width width = register.width();
+		if(width == Register.Width.ScalarDouble || width == Register.Width.ScalarSingle) {
+			return register;
+		}
+		Register[] family = register.family();
+		return family[family.length - 1];
+	}
+
+	private static final class Builder {
+		private final Instruction insn;
+		private final ArrayList<Register> uses = new ArrayList<Register>();
+		private final ArrayList<Register> defs = new ArrayList<Register>();
+		private int effects;
+
+		public Builder(Instruction insn) {
+			this.insn = insn;
+		}
+
+		public Builder use(Register r) {
+			r = canonical(r);
+			if(r != Register.RIP && !uses.contains(r)) {
+				uses.add(r);
+			}
+			return this;
+		}
+
+		public Builder def(Register r) {
+			r = canonical(r);
+			if(!defs.contains(r)) {
+				defs.add(r);
+			}
+			return this;
+		}
+
+		public DefUse build() {
+			return new DefUse(insn, uses, defs, effects);
+		}
+	}
+}
@@ -0,0 +1,96 @@
+package jx86.analysis;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import jx86.lang.Instruction;
+
+/**
+ * Represents a function within a code section, which is identified as the
+ * sequence of instructions from one global label up to the next. Any
+ * instructions preceding the first global label of a section are treated as
+ * an anonymous function.
+ *
+ * @author David J. Pearce
+ *
+ */
+public final class Function {
+	/**
+	 * The name of this function (i.e. its global label), or
+	 * <code>null</code> if it is anonymous.
+	 */
+	public final String name;
+
+	/**
+	 * The instructions making up this function, including its labels.
+	 */
+	public final List<Instruction> instructions;
+
+	public Function(String name, List<Instruction> instructions) {
+		this.name = name;
+		this.instructions = instructions;
+	}
+
+	/**
+	 * Partition a sequence of instructions into functions. A new function
+	 * begins at the first of any consecutive run of labels which contains a
+	 * global label.
+	 *
+	 * @param instructions
+	 * @return
+	 */
+	public static List<Function> partition(List<Instruction> instructions) {
+		ArrayList<Function> functions = new ArrayList<Function>();
+		int n = instructions.size();
+		int start = 0;
+		String name = null;
+		int i = 0;
+		while(i < n) {
+			if(instructions.get(i) instanceof Instruction.Label) {
+				// Find the extent of this run of labels
+				int j = i;
+				String global = null;
+				while(j < n && instructions.get(j) instanceof Instruction.Label) {
+					Instruction.Label label = (Instruction.Label) instructions.get(j);
+					if(global == null && label.global) {
+						global = label.label;
+					}
+					j = j + 1;
+				}
+				if(global != null) {
+					if(i > start) {
+						functions.add(new Function(name, copy(instructions, start, i)));
+					}
+					start = i;
+					name = global;
+				}
+				i = j;
+			} else {
+				i = i + 1;
+			}
+		}
+		if(n > start) {
+			functions.add(new Function(name, copy(instructions, start, n)));
+		}
+		return functions;
+	}
+
+	/**
+	 * Join a sequence of functions back into a single sequence of
+	 * instructions.
+	 *
+	 * @param functions
+	 * @return
+	 */
+	public static List<Instruction> join(List<Function> functions) {
+		ArrayList<Instruction> instructions = new ArrayList<Instruction>();
+		for(Function f : functions) {
+			instructions.addAll(f.instructions);
+		}
+		return instructions;
+	}
+
+	private static List<Instruction> copy(List<Instruction> instructions, int start, int end) {
+		return new ArrayList<Instruction>(instructions.subList(start, end));
+	}
+}
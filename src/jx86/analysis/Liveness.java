@@ -0,0 +1,213 @@
+package jx86.analysis;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import jx86.analysis.ControlFlowGraph.Block;
+import jx86.lang.CallingConvention;
+import jx86.lang.Instruction;
+import jx86.lang.Register;
+
+/**
+ * <p>
+ * Determines which registers are live (i.e. may be read before being
+ * overwritten) at each point in a function. This is a standard backwards
+ * dataflow analysis over the control-flow graph, using <code>DefUse</code> to
+ * determine the registers read and written by each instruction. Registers are
+ * reported in canonical form.
+ * </p>
+ *
+ * <p>
+ * At a return, the registers used to return values and the callee-saved
+ * registers are live. Where control leaves the function in any other way
+ * (e.g. an indirect jump, a jump to another function, or falling off the end)
+ * every register is conservatively assumed to be live.
+ * </p>
+ *
+ * @author David J. Pearce
+ *
+ */
+public final class Liveness {
+	private static final Set<Register> ALL = new HashSet<Register>();
+
+	static {
+		for(Register[] family : Register.ALL_FAMILIES) {
+			Register r = family[family.length - 1];
+			if(r != Register.RIP) {
+				ALL.add(r);
+			}
+		}
+		Collections.addAll(ALL, Register.XMM_REGISTERS);
+	}
+
+	private final ControlFlowGraph cfg;
+	private final ArrayList<Set<Register>> liveIn;
+	private final ArrayList<Set<Register>> liveOut;
+
+	public Liveness(List<Instruction> instructions) {
+		this(new ControlFlowGraph(instructions));
+	}
+
+	public Liveness(ControlFlowGraph cfg) {
+		this.cfg = cfg;
+		this.liveIn = new ArrayList<Set<Register>>();
+		this.liveOut = new ArrayList<Set<Register>>();
+		for(int i=0;i!=cfg.blocks().size();++i) {
+			liveIn.add(new HashSet<Register>());
+			liveOut.add(new HashSet<Register>());
+		}
+		solve();
+	}
+
+	// ============================================
+	// Accessors
+	// ============================================
+
+	public ControlFlowGraph cfg() {
+		return cfg;
+	}
+
+	/**
+	 * Return the registers live on entry to a given block.
+	 *
+	 * @param block
+	 * @return
+	 */
+	public Set<Register> liveIn(Block block) {
+		return Collections.unmodifiableSet(liveIn.get(block.index));
+	}
+
+	/**
+	 * Return the registers live on exit from a given block.
+	 *
+	 * @param block
+	 * @return
+	 */
+	public Set<Register> liveOut(Block block) {
+		return Collections.unmodifiableSet(liveOut.get(block.index));
+	}
+
+	/**
+	 * Return the registers live immediately after the instruction at a given
+	 * index.
+	 *
+	 * @param index
+	 * @return
+	 */
+	public Set<Register> liveAfter(int index) {
+		Block block = blockOf(index);
+		HashSet<Register> live = new HashSet<Register>(liveOut.get(block.index));
+		List<Instruction> instructions = cfg.instructions();
+		for(int i=block.end-1;i>index;--i) {
+			transfer(instructions.get(i), live);
+		}
+		return live;
+	}
+
+	/**
+	 * Return the registers live immediately before the instruction at a given
+	 * index.
+	 *
+	 * @param index
+	 * @return
+	 */
+	public Set<Register> liveBefore(int index) {
+		Set<Register> live = liveAfter(index);
+		transfer(cfg.instructions().get(index), live);
+		return live;
+	}
+
+	/**
+	 * Return the registers whose values must be preserved across the call at
+	 * a given index, according to a given calling convention. That is, those
+	 * registers which are live after the call, and caller-saved, but not used
+	 * by the callee to return its results.
+	 *
+	 * @param index
+	 * @param convention
+	 * @param results
+	 *            Registers in which the callee returns its results.
+	 * @return
+	 */
+	public Set<Register> liveAcross(int index, CallingConvention convention,
+			Collection<Register> results) {
+		HashSet<Register> returned = new HashSet<Register>();
+		for(Register r : results) {
+			returned.add(DefUse.canonical(r));
+		}
+		HashSet<Register> result = new HashSet<Register>();
+		for(Register r : liveAfter(index)) {
+			if(convention.isCallerSaved(r) && !returned.contains(r)) {
+				result.add(r);
+			}
+		}
+		return result;
+	}
+
+	// ============================================
+	// Helpers
+	// ============================================
+
+	private void solve() {
+		List<Block> blocks = cfg.blocks();
+		List<Instruction> instructions = cfg.instructions();
+		boolean changed = true;
+		while(changed) {
+			changed = false;
+			for(int i=blocks.size()-1;i>=0;--i) {
+				Block block = blocks.get(i);
+				HashSet<Register> live = new HashSet<Register>();
+				for(Block succ : block.successors()) {
+					live.addAll(liveIn.get(succ.index));
+				}
+				if(leavesFunction(block)) {
+					live.addAll(ALL);
+				}
+				changed |= liveOut.get(i).addAll(live);
+				for(int j=block.end-1;j>=block.start;--j) {
+					transfer(instructions.get(j), live);
+				}
+				changed |= liveIn.get(i).addAll(live);
+			}
+		}
+	}
+
+	/**
+	 * Determine whether control may leave the function from the end of a
+	 * given block, other than by returning.
+	 *
+	 * @param block
+	 * @return
+	 */
+	private boolean leavesFunction(Block block) {
+		Instruction last = cfg.lastOf(block);
+		if(last == null) {
+			return block.successors().isEmpty();
+		} else if(ControlFlowGraph.isIndirectJump(last)) {
+			return true;
+		} else if(ControlFlowGraph.isBranch(last)
+				&& cfg.blockOf(((Instruction.Addr) last).operand) == null) {
+			return true;
+		}
+		return ControlFlowGraph.fallsThrough(last) && block.index + 1 == cfg.blocks().size();
+	}
+
+	private static void transfer(Instruction insn, Set<Register> live) {
+		DefUse du = DefUse.of(insn);
+		live.removeAll(du.defs);
+		live.addAll(du.uses);
+	}
+
+	private Block blockOf(int index) {
+		for(Block block : cfg.blocks()) {
+			if(block.start <= index && index < block.end) {
+				return block;
+			}
+		}
+		throw new IllegalArgumentException("invalid instruction index: " + index);
+	}
+}
@@ -0,0 +1,322 @@
+package jx86.analysis;
+
+import jx86.lang.Instruction;
+import jx86.lang.Register;
+import jx86.lang.Target;
+
+/**
+ * Provides an estimate of the number of bytes required to encode a given
+ * instruction for a given target. The default model gives a conservative upper
+ * bound on the length of the encoding chosen by the GNU Assembler, which is
+ * sufficient for layout decisions (e.g. branch relaxation and alignment). A
+ * binary encoder can subclass this to report exact sizes instead.
+ *
+ * @author David J. Pearce
+ *
+ */
+public class SizeModel {
+	protected final Target target;
+
+	public SizeModel(Target target) {
+		this.target = target;
+	}
+
+	/**
+	 * Determine whether or not the sizes returned by this model are exact, or
+	 * just upper bounds. This matters when accounting for alignment padding,
+	 * since padding computed from estimated offsets may be smaller than the
+	 * padding actually required.
+	 *
+	 * @return
+	 */
+	public boolean isExact() {
+		return false;
+	}
+
+	/**
+	 * Return the size (in bytes) of a given instruction. For branches, this
+	 * returns the size of the longest available encoding.
+	 *
+	 * @param insn
+	 * @return
+	 */
+	public int sizeOf(Instruction insn) {
+		if(insn instanceof Instruction.Label || insn instanceof Instruction.Location) {
+			return 0;
+		} else if(insn instanceof Instruction.Unit) {
+			return sizeOf((Instruction.Unit) insn);
+		} else if(insn instanceof Instruction.Reg) {
+			return sizeOf((Instruction.Reg) insn);
+		} else if(insn instanceof Instruction.RegReg) {
+			return sizeOf((Instruction.RegReg) insn);
+		} else if(insn instanceof Instruction.ImmReg) {
+			return sizeOf((Instruction.ImmReg) insn);
+		} else if(insn instanceof Instruction.Addr) {
+			return sizeOf((Instruction.Addr) insn);
+		} else if(insn instanceof Instruction.AddrReg) {
+			return sizeOf((Instruction.AddrReg) insn);
+		} else if(insn instanceof Instruction.AddrRegReg) {
+			return sizeOf((Instruction.AddrRegReg) insn);
+		} else if(insn instanceof Instruction.RegAddrReg) {
+			return sizeOf((Instruction.RegAddrReg) insn);
+		} else if(insn instanceof Instruction.IndReg) {
+			return 2 + rex(((Instruction.IndReg) insn).operand);
+		} else if(insn instanceof Instruction.ImmInd) {
+			Instruction.ImmInd ii = (Instruction.ImmInd) insn;
+			return 2 + indirect(ii.immediateOffset, ii.baseOperand) + rex(ii.baseOperand);
+		} else if(insn instanceof Instruction.AddrInd) {
+			Instruction.AddrInd ai = (Instruction.AddrInd) insn;
+			return 2 + 4 + sib(ai.baseOperand) + rex(ai.baseOperand);
+		} else if(insn instanceof Instruction.ImmIndReg) {
+			return sizeOf((Instruction.ImmIndReg) insn);
+		} else if(insn instanceof Instruction.RegImmInd) {
+			return sizeOf((Instruction.RegImmInd) insn);
+		} else if(insn instanceof Instruction.RegIndRegImm) {
+			return sizeOf((Instruction.RegIndRegImm) insn);
+		} else if(insn instanceof Instruction.IndRegImmReg) {
+			return sizeOf((Instruction.IndRegImmReg) insn);
+		} else {
+			throw new IllegalArgumentException("unknown instruction encountered: " + insn);
+		}
+	}
+
+	public int sizeOf(Instruction.Unit insn) {
+		switch(insn.operation) {
+		case cpuid:
+		case invd:
+		case cqto:
+		case lar:
+		case lfs:
+		case lgs:
+		case lss:
+			return 3;
+		case enter:
+			return 4;
+		default:
+			return 1;
+		}
+	}
+
+	public int sizeOf(Instruction.Reg insn) {
+		switch(insn.operation) {
+		case push:
+		case pop:
+			// no REX.W required for push / pop
+			return 1 + operandPrefix(insn.operand);
+		default:
+			return 2 + prefix(insn.operand);
+		}
+	}
+
+	public int sizeOf(Instruction.RegReg insn) {
+		if(isSSE(insn.leftOperand) || isSSE(insn.rightOperand)) {
+			// mandatory prefix + escape + opcode + modrm (+ REX.W for GPR moves)
+			return 4 + prefix(insn.leftOperand) + prefix(insn.rightOperand);
+		}
+		switch(insn.operation) {
+		case imul:
+		case cmpxchg:
+		case cmpxchg8b:
+			return 3 + prefix(insn.rightOperand);
+		default:
+			return 2 + prefix(insn.rightOperand);
+		}
+	}
+
+	public int sizeOf(Instruction.ImmReg insn) {
+		Register.Width width = insn.rightOperand.width();
+		int immediate;
+		if(width == Register.Width.Byte) {
+			immediate = 1;
+		} else if(insn.operation == Instruction.ImmRegOp.mov) {
+			if (width == Register.Width.Quad
+					&& (insn.leftOperand < Integer.MIN_VALUE || insn.leftOperand > Integer.MAX_VALUE)) {
+				// movabs
+				return 2 + 8;
+			}
+			immediate = width == Register.Width.Word ? 2 : 4;
+		} else if(fitsByte(insn.leftOperand)) {
+			immediate = 1;
+		} else {
+			immediate = width == Register.Width.Word ? 2 : 4;
+		}
+		return 2 + immediate + prefix(insn.rightOperand);
+	}
+
+	public int sizeOf(Instruction.ImmIndReg insn) {
+		return 2 + indirect(insn.immediateOffset, insn.baseOperand)
+				+ prefix(insn.targetOperand) + rex(insn.baseOperand);
+	}
+
+	public int sizeOf(Instruction.RegImmInd insn) {
+		return 2 + indirect(insn.immediateOffset, insn.baseOperand)
+				+ prefix(insn.sourceOperand) + rex(insn.baseOperand);
+	}
+
+	public int sizeOf(Instruction.IndRegImmReg insn) {
+		// opcode + modrm + sib (+ disp8 when base requires it)
+		return 3 + displacement(0, insn.baseOperand) + prefix(insn.targetOperand)
+				+ rex(insn.baseOperand) + rex(insn.indexOperand);
+	}
+
+	public int sizeOf(Instruction.RegIndRegImm insn) {
+		return 3 + displacement(0, insn.baseOperand) + prefix(insn.sourceOperand)
+				+ rex(insn.baseOperand) + rex(insn.indexOperand);
+	}
+
+	public int sizeOf(Instruction.Addr insn) {
+		int near = nearBranchSize(insn.operation);
+		int size = near > 0 ? near : shortBranchSize(insn.operation);
+		if(size < 0) {
+			throw new IllegalArgumentException("branch cannot be encoded for target: " + insn);
+		}
+		return size;
+	}
+
+	public int sizeOf(Instruction.AddrReg insn) {
+		// opcode + modrm + disp32, plus SIB for absolute addressing on x86_64
+		int sib = target.arch == Target.Arch.X86_64 ? 1 : 0;
+		return 2 + sib + 4 + prefix(insn.rightOperand);
+	}
+
+	public int sizeOf(Instruction.AddrRegReg insn) {
+		return 2 + 4 + sib(insn.leftOperand_2) + prefix(insn.rightOperand)
+				+ rex(insn.leftOperand_2);
+	}
+
+	public int sizeOf(Instruction.RegAddrReg insn) {
+		return 2 + 4 + sib(insn.rightOperand_2) + prefix(insn.leftOperand)
+				+ rex(insn.rightOperand_2);
+	}
+
+	/**
+	 * Return the size of the short (i.e. <code>rel8</code>) encoding of a
+	 * given branch, or <code>-1</code> if it has no such encoding. Note that
+	 * <code>jcxz</code> cannot be encoded on x86_64, and <code>jrcxz</code>
+	 * can only be encoded there.
+	 *
+	 * @param op
+	 * @return
+	 */
+	public int shortBranchSize(Instruction.AddrOp op) {
+		boolean x86_64 = target.arch == Target.Arch.X86_64;
+		switch(op) {
+		case call:
+			return -1;
+		case jcxz:
+			// requires address-size prefix
+			return x86_64 ? -1 : 3;
+		case jecxz:
+			// requires address-size prefix on x86_64
+			return x86_64 ? 3 : 2;
+		case jrcxz:
+			return x86_64 ? 2 : -1;
+		default:
+			return 2;
+		}
+	}
+
+	/**
+	 * Return the size of the near (i.e. <code>rel32</code>) encoding of a
+	 * given branch, or <code>-1</code> if it has no such encoding.
+	 *
+	 * @param op
+	 * @return
+	 */
+	public int nearBranchSize(Instruction.AddrOp op) {
+		switch(op) {
+		case call:
+		case jmp:
+			return 5;
+		case jcxz:
+		case jecxz:
+		case jrcxz:
+		case loop:
+		case loope:
+		case loopz:
+		case loopne:
+		case loopnz:
+			return -1;
+		default:
+			return 6;
+		}
+	}
+
+	// ============================================
+	// Helpers
+	// ============================================
+
+	/**
+	 * Determine the number of prefix bytes needed for a given register operand
+	 * (i.e. an operand-size prefix or a <code>REX</code> prefix).
+	 *
+	 * @param operand
+	 * @return
+	 */
+	protected int prefix(Register operand) {
+		int rex = operand.isExtended() ? 1 : 0;
+		switch(operand.width()) {
+		case Word:
+			return 1 + rex;
+		case Quad:
+			return target.arch == Target.Arch.X86_64 ? 1 : 0;
+		default:
+			return rex;
+		}
+	}
+
+	/**
+	 * Determine the number of prefix bytes needed for a register operand which
+	 * defaults to the natural width of the architecture (e.g. for
+	 * <code>push</code>).
+	 *
+	 * @param operand
+	 * @return
+	 */
+	protected int operandPrefix(Register operand) {
+		return (operand.width() == Register.Width.Word ? 1 : 0) + (operand.isExtended() ? 1 : 0);
+	}
+
+	/**
+	 * Determine the number of extra bytes needed for an extended register
+	 * (i.e. one requiring a REX prefix when used as a base or index). This
+	 * may overestimate when another operand already requires a REX prefix.
+	 *
+	 * @param operand
+	 * @return
+	 */
+	protected int rex(Register operand) {
+		return operand.isExtended() ? 1 : 0;
+	}
+
+	private int indirect(long offset, Register base) {
+		return sib(base) + displacement(offset, base);
+	}
+
+	private static int sib(Register base) {
+		String name = base.name();
+		return name.endsWith("sp") ? 1 : 0;
+	}
+
+	private static int displacement(long offset, Register base) {
+		if(base == Register.RIP || base == Register.EIP) {
+			return 4;
+		} else if(offset == 0 && !base.name().endsWith("bp")) {
+			return 0;
+		} else if(fitsByte(offset)) {
+			return 1;
+		} else {
+			return 4;
+		}
+	}
+
+	private static boolean fitsByte(long value) {
+		return value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE;
+	}
+
+	private static boolean isSSE(Register operand) {
+		Register.Width width = operand.width();
+		return width == Register.Width.ScalarDouble
+				|| width == Register.Width.ScalarSingle;
+	}
+}
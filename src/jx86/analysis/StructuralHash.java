@@ -0,0 +1,183 @@
+package jx86.analysis;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+import jx86.lang.Constant;
+import jx86.lang.Instruction;
+import jx86.lang.Register;
+import jx86.lang.Target;
+
+/**
+ * Computes a cryptographic hash over the structure of instructions and
+ * constants. Two sequences have the same hash if (with overwhelming
+ * probability) they consist of the same kinds of instruction with the same
+ * operands. The hash is computed from the public fields of each item, which
+ * means it covers every kind of instruction and constant without needing to be
+ * updated when new kinds are added. Fields are visited in order of name, so
+ * the hash is stable across runs.
+ *
+ * @author David J. Pearce
+ *
+ */
+public final class StructuralHash {
+	private static final ConcurrentHashMap<Class<?>,Field[]> FIELDS = new ConcurrentHashMap<Class<?>,Field[]>();
+
+	private final MessageDigest digest;
+	private final byte[] buffer = new byte[8];
+
+	public StructuralHash() {
+		try {
+			this.digest = MessageDigest.getInstance("SHA-256");
+		} catch(NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	public StructuralHash add(Target target) {
+		add(target.os.name());
+		add(target.arch.name());
+		return this;
+	}
+
+	public StructuralHash add(List<? extends Object> items) {
+		addLong(items.size());
+		for(Object item : items) {
+			addObject(item);
+		}
+		return this;
+	}
+
+	public StructuralHash add(Instruction insn) {
+		addObject(insn);
+		return this;
+	}
+
+	public StructuralHash add(Constant constant) {
+		addObject(constant);
+		return this;
+	}
+
+	/**
+	 * Return the hash of everything added so far, and reset this hash.
+	 *
+	 * @return
+	 */
+	public byte[] digest() {
+		return digest.digest();
+	}
+
+	/**
+	 * Return the hash of everything added so far as a hexadecimal string, and
+	 * reset this hash.
+	 *
+	 * @return
+	 */
+	public String toHexString() {
+		byte[] bytes = digest();
+		StringBuilder sb = new StringBuilder();
+		for(byte b : bytes) {
+			sb.append(Character.forDigit((b >> 4) & 0xF, 16));
+			sb.append(Character.forDigit(b & 0xF, 16));
+		}
+		return sb.toString();
+	}
+
+	// ============================================
+	// Helpers
+	// ============================================
+
+	private void addObject(Object item) {
+		if(item == null) {
+			digest.update((byte) 0);
+		} else if(item instanceof String) {
+			digest.update((byte) 1);
+			add((String) item);
+		} else if(item instanceof Enum) {
+			digest.update((byte) 2);
+			add(((Enum<?>) item).name());
+		} else if(item instanceof Register) {
+			digest.update((byte) 3);
+			add(((Register) item).name());
+		} else if(item instanceof Long || item instanceof Integer
+				|| item instanceof Short || item instanceof Byte) {
+			digest.update((byte) 4);
+			addLong(((Number) item).longValue());
+		} else if(item instanceof Boolean) {
+			digest.update((byte) (((Boolean) item) ? 5 : 6));
+		} else if(item instanceof byte[]) {
+			byte[] bytes = (byte[]) item;
+			digest.update((byte) 7);
+			addLong(bytes.length);
+			digest.update(bytes);
+		} else if(item instanceof long[]) {
+			long[] values = (long[]) item;
+			digest.update((byte) 8);
+			addLong(values.length);
+			for(long v : values) {
+				addLong(v);
+			}
+		} else if(item instanceof Object[]) {
+			digest.update((byte) 9);
+			add(Arrays.asList((Object[]) item));
+		} else if(item instanceof List) {
+			digest.update((byte) 10);
+			add((List<?>) item);
+		} else {
+			digest.update((byte) 11);
+			Class<?> kind = item.getClass();
+			add(kind.getName());
+			for(Field field : fieldsOf(kind)) {
+				try {
+					addObject(field.get(item));
+				} catch(IllegalAccessException e) {
+					throw new RuntimeException(e);
+				}
+			}
+		}
+	}
+
+	private void add(String s) {
+		try {
+			byte[] bytes = s.getBytes("UTF-8");
+			addLong(bytes.length);
+			digest.update(bytes);
+		} catch(java.io.UnsupportedEncodingException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	private void addLong(long value) {
+		for(int i=0;i!=8;++i) {
+			buffer[i] = (byte) (value >>> (i * 8));
+		}
+		digest.update(buffer);
+	}
+
+	private static Field[] fieldsOf(Class<?> kind) {
+		Field[] fields = FIELDS.get(kind);
+		if(fields == null) {
+			ArrayList<Field> instanceFields = new ArrayList<Field>();
+			for(Field field : kind.getFields()) {
+				if(!Modifier.isStatic(field.getModifiers())) {
+					instanceFields.add(field);
+				}
+			}
+			fields = instanceFields.toArray(new Field[instanceFields.size()]);
+			Arrays.sort(fields, new Comparator<Field>() {
+				public int compare(Field f1, Field f2) {
+					return f1.getName().compareTo(f2.getName());
+				}
+			});
+			FIELDS.put(kind, fields);
+		}
+		return fields;
+	}
+}
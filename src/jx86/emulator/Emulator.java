@@ -0,0 +1,1318 @@
+package jx86.emulator;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import jx86.lang.CallingConvention;
+import jx86.lang.Constant;
+import jx86.lang.Instruction;
+import jx86.lang.Register;
+import jx86.lang.Target;
+import jx86.lang.X86File;
+
+/**
+ * <p>
+ * Executes the code sections of an <code>X86File</code> directly, without
+ * assembling or linking it. This models the general purpose registers, the
+ * low 64 bits of the SSE registers, the carry, parity, zero, sign and
+ * overflow flags, the stack and the contents of any data and bss sections.
+ * It is intended for quickly checking that generated (or transformed) code
+ * computes the expected results, rather than for modelling the processor
+ * exactly. For example, flags which the architecture leaves undefined (e.g.
+ * after <code>mul</code>) may not match those of any particular processor.
+ * </p>
+ *
+ * <p>
+ * Data and bss sections are laid out in order from <code>DATA_BASE</code>,
+ * followed by the stack. Instructions are not held in memory. Instead, the
+ * instruction at index <i>i</i> of the code (i.e. of all code sections
+ * concatenated) has the address <code>CODE_BASE</code> + <i>i</i>, which is
+ * what a call pushes as its return address and what <code>lea</code> gives
+ * for a code label. Calls to labels which are not defined may be handled by
+ * <code>Native</code> implementations, which allows external functions to be
+ * modelled.
+ * </p>
+ *
+ * <p>
+ * Each run is limited to a budget of executed instructions, so that
+ * non-terminating code is detected. This, along with invalid memory accesses,
+ * division errors and invalid jumps, results in a <code>Fault</code>.
+ * Instructions which are not supported (e.g. <code>cpuid</code>) result in an
+ * <code>IllegalArgumentException</code>.
+ * </p>
+ *
+ * @author David J. Pearce
+ *
+ */
+public final class Emulator {
+
+	/**
+	 * Signals an error in the program being executed.
+	 *
+	 * @author David J. Pearce
+	 *
+	 */
+	public static final class Fault extends RuntimeException {
+		private static final long serialVersionUID = 1L;
+
+		public Fault(String message) {
+			super(message);
+		}
+	}
+
+	/**
+	 * Implements a function which is called, but not defined, by the code
+	 * being executed. An implementation accesses its arguments and sets its
+	 * results via the emulator, and returns normally to return from the call.
+	 *
+	 * @author David J. Pearce
+	 *
+	 */
+	public interface Native {
+		public void call(Emulator emulator);
+	}
+
+	/**
+	 * Address of the first data item.
+	 */
+	public static final long DATA_BASE = 0x10000;
+
+	/**
+	 * Address of the first instruction.
+	 */
+	public static final long CODE_BASE = 0x40000000;
+
+	/**
+	 * Return address which ends a run when returned to.
+	 */
+	private static final long EXIT = CODE_BASE - 16;
+
+	public static final int DEFAULT_STACK_SIZE = 1 << 20;
+
+	public static final long DEFAULT_BUDGET = 10000000;
+
+	private static final HashMap<Register,Integer> FAMILIES = new HashMap<Register,Integer>();
+	private static final HashMap<Register,Integer> XMM = new HashMap<Register,Integer>();
+
+	static {
+		for(int i=0;i!=Register.ALL_FAMILIES.length;++i) {
+			for(Register r : Register.ALL_FAMILIES[i]) {
+				FAMILIES.put(r, i);
+			}
+		}
+		for(int i=0;i!=Register.XMM_REGISTERS.length;++i) {
+			XMM.put(Register.XMM_REGISTERS[i], i);
+		}
+	}
+
+	private final Target target;
+	private final ArrayList<Instruction> code = new ArrayList<Instruction>();
+	private final HashMap<String,Long> labels = new HashMap<String,Long>();
+	private final HashMap<String,Native> natives = new HashMap<String,Native>();
+	private final Memory memory;
+	private final long stackTop;
+
+	// Machine state
+	private final long[] registers = new long[Register.ALL_FAMILIES.length];
+	private final long[] xmm = new long[Register.XMM_REGISTERS.length];
+	private boolean cf, pf, zf, sf, of;
+	private int pc;
+	private boolean running;
+	private long budget = DEFAULT_BUDGET;
+	private long executed;
+
+	// ============================================
+	// Constructors
+	// ============================================
+
+	public Emulator(X86File file, Target target) {
+		this(file, target, DEFAULT_STACK_SIZE);
+	}
+
+	/**
+	 * Construct an emulator for a given file and target.
+	 *
+	 * @param file
+	 *            File whose code is to be executed.
+	 * @param target
+	 *            Target for which the file was generated, which determines the
+	 *            width of the stack and the calling convention used by
+	 *            <code>call()</code>.
+	 * @param stackSize
+	 *            Size of the stack in bytes.
+	 */
+	public Emulator(X86File file, Target target, int stackSize) {
+		this.target = target;
+		target.callingConvention(); // check target is supported
+		long size = layout(file);
+		long data = (size + 15) & ~15L;
+		if(data + stackSize > CODE_BASE - DATA_BASE - 16) {
+			throw new IllegalArgumentException("data and stack too large");
+		}
+		this.memory = new Memory(DATA_BASE, (int) data + stackSize);
+		this.stackTop = (DATA_BASE + memory.size()) & ~15L;
+		initialise(file);
+		set(stackPointer(), stackTop);
+	}
+
+	// ============================================
+	// Accessors
+	// ============================================
+
+	public Memory memory() {
+		return memory;
+	}
+
+	/**
+	 * Set the maximum number of instructions executed by each run.
+	 *
+	 * @param budget
+	 */
+	public void setBudget(long budget) {
+		if(budget < 0) {
+			throw new IllegalArgumentException("invalid budget: " + budget);
+		}
+		this.budget = budget;
+	}
+
+	public long getBudget() {
+		return budget;
+	}
+
+	/**
+	 * Return the number of instructions executed by the most recent run
+	 * (excluding labels and source locations).
+	 *
+	 * @return
+	 */
+	public long executed() {
+		return executed;
+	}
+
+	/**
+	 * Define a native implementation for a given function, which will be used
+	 * in place of any code with that label.
+	 *
+	 * @param label
+	 * @param implementation
+	 */
+	public void define(String label, Native implementation) {
+		natives.put(label, implementation);
+	}
+
+	/**
+	 * Return the address of a given code or data label. The label may include
+	 * a constant offset (e.g. <code>table+16</code>), as produced by
+	 * <code>ConstantPool</code>.
+	 *
+	 * @param label
+	 * @return
+	 */
+	public long addressOf(String label) {
+		Long address = lookup(label);
+		if(address == null) {
+			throw new IllegalArgumentException("unknown label: " + label);
+		}
+		return address;
+	}
+
+	/**
+	 * Read the value of a given general purpose register, zero-extended, or
+	 * the low 64 bits of an SSE register.
+	 *
+	 * @param register
+	 * @return
+	 */
+	public long get(Register register) {
+		Integer x = XMM.get(register);
+		if(x != null) {
+			return xmm[x];
+		} else if(Register.isInstructionPointer(register)) {
+			return (CODE_BASE + pc) & mask(register.width());
+		}
+		long value = registers[familyOf(register)];
+		if(isHighByte(register)) {
+			return (value >>> 8) & 0xFF;
+		}
+		return value & mask(register.width());
+	}
+
+	/**
+	 * Write a given value to a register. As on <code>x86_64</code>, writing a
+	 * 32-bit register clears the upper half of its 64-bit register, whilst
+	 * writing an 8 or 16-bit register leaves the remaining bits unchanged.
+	 *
+	 * @param register
+	 * @param value
+	 */
+	public void set(Register register, long value) {
+		Integer x = XMM.get(register);
+		if(x != null) {
+			xmm[x] = value;
+			return;
+		} else if(Register.isInstructionPointer(register)) {
+			throw new IllegalArgumentException("cannot write instruction pointer");
+		}
+		int family = familyOf(register);
+		long old = registers[family];
+		switch(register.width()) {
+		case Byte:
+			if(isHighByte(register)) {
+				registers[family] = (old & ~0xFF00L) | ((value & 0xFF) << 8);
+			} else {
+				registers[family] = (old & ~0xFFL) | (value & 0xFF);
+			}
+			break;
+		case Word:
+			registers[family] = (old & ~0xFFFFL) | (value & 0xFFFF);
+			break;
+		case Long:
+			registers[family] = value & 0xFFFFFFFFL;
+			break;
+		default:
+			registers[family] = value;
+		}
+	}
+
+	public double getDouble(Register register) {
+		return Double.longBitsToDouble(get(register));
+	}
+
+	public void setDouble(Register register, double value) {
+		set(register, Double.doubleToRawLongBits(value));
+	}
+
+	// ============================================
+	// Execution
+	// ============================================
+
+	/**
+	 * Call a given function with some integer arguments, according to the
+	 * calling convention of the target, and return the (integer) result. The
+	 * stack is reset before the call. Floating point arguments can be set
+	 * beforehand using <code>setDouble()</code>, and a floating point result
+	 * obtained afterwards using <code>getDouble()</code>.
+	 *
+	 * @param function
+	 * @param arguments
+	 * @return
+	 */
+	public long call(String function, long... arguments) {
+		CallingConvention convention = target.callingConvention();
+		List<Register> registerArguments = convention.integerArguments;
+		int width = stackWidth();
+		int n = Math.max(0, arguments.length - registerArguments.size());
+		long sp = stackTop - (n * width);
+		sp = sp & ~(long) (convention.stackAlignment - 1);
+		set(stackPointer(), sp);
+		for(int i=0;i!=arguments.length;++i) {
+			if(i < registerArguments.size()) {
+				set(registerArguments.get(i), arguments[i]);
+			} else {
+				long offset = (long) (i - registerArguments.size()) * width;
+				memory.write(sp + offset, width, arguments[i]);
+			}
+		}
+		if(target.arch == Target.Arch.X86_64) {
+			// number of vector registers used by a variadic call
+			set(Register.RAX, 0);
+		}
+		run(function);
+		return get(convention.returns.get(0));
+	}
+
+	/**
+	 * Execute from a given label until it returns to its caller (i.e. the
+	 * return address on top of the stack), or executes <code>hlt</code>.
+	 *
+	 * @param label
+	 */
+	public void run(String label) {
+		executed = 0;
+		push(EXIT, stackWidth());
+		running = true;
+		jump(addressOf(label));
+		while(running) {
+			if(pc < 0 || pc >= code.size()) {
+				throw new Fault("execution reached end of code");
+			}
+			Instruction insn = code.get(pc++);
+			if(insn instanceof Instruction.Label || insn instanceof Instruction.Location) {
+				continue;
+			} else if(executed == budget) {
+				throw new Fault("instruction budget exhausted");
+			}
+			executed = executed + 1;
+			execute(insn);
+		}
+	}
+
+	private void execute(Instruction insn) {
+		if(insn instanceof Instruction.Unit) {
+			execute((Instruction.Unit) insn);
+		} else if(insn instanceof Instruction.Reg) {
+			execute((Instruction.Reg) insn);
+		} else if(insn instanceof Instruction.RegReg) {
+			execute((Instruction.RegReg) insn);
+		} else if(insn instanceof Instruction.ImmReg) {
+			execute((Instruction.ImmReg) insn);
+		} else if(insn instanceof Instruction.ImmIndReg) {
+			Instruction.ImmIndReg i = (Instruction.ImmIndReg) insn;
+			long address = get(i.baseOperand) + i.immediateOffset;
+			if(i.operation == Instruction.ImmIndRegOp.lea) {
+				set(i.targetOperand, address);
+			} else {
+				load(i.targetOperand, address);
+			}
+		} else if(insn instanceof Instruction.RegImmInd) {
+			Instruction.RegImmInd i = (Instruction.RegImmInd) insn;
+			store(i.sourceOperand, get(i.baseOperand) + i.immediateOffset);
+		} else if(insn instanceof Instruction.IndRegImmReg) {
+			Instruction.IndRegImmReg i = (Instruction.IndRegImmReg) insn;
+			long address = get(i.baseOperand) + get(i.indexOperand) * i.scaling;
+			if(i.operation == Instruction.IndRegImmRegOp.lea) {
+				set(i.targetOperand, address);
+			} else {
+				load(i.targetOperand, address);
+			}
+		} else if(insn instanceof Instruction.RegIndRegImm) {
+			Instruction.RegIndRegImm i = (Instruction.RegIndRegImm) insn;
+			store(i.sourceOperand, get(i.baseOperand) + get(i.indexOperand) * i.scaling);
+		} else if(insn instanceof Instruction.Addr) {
+			execute((Instruction.Addr) insn);
+		} else if(insn instanceof Instruction.AddrReg) {
+			Instruction.AddrReg i = (Instruction.AddrReg) insn;
+			if(i.operation == Instruction.AddrRegOp.lea) {
+				set(i.rightOperand, addressOf(i.leftOperand));
+			} else {
+				load(i.rightOperand, addressOf(i.leftOperand));
+			}
+		} else if(insn instanceof Instruction.AddrRegReg) {
+			execute((Instruction.AddrRegReg) insn);
+		} else if(insn instanceof Instruction.RegAddrReg) {
+			execute((Instruction.RegAddrReg) insn);
+		} else if(insn instanceof Instruction.IndReg) {
+			Instruction.IndReg i = (Instruction.IndReg) insn;
+			branch(i.operation == Instruction.IndRegOp.call, get(i.operand));
+		} else if(insn instanceof Instruction.ImmInd) {
+			Instruction.ImmInd i = (Instruction.ImmInd) insn;
+			long address = get(i.baseOperand) + i.immediateOffset;
+			branch(i.operation == Instruction.ImmIndOp.call, memory.read(address, stackWidth()));
+		} else if(insn instanceof Instruction.AddrInd) {
+			Instruction.AddrInd i = (Instruction.AddrInd) insn;
+			long address = addressOf(i.operand, i.baseOperand);
+			branch(i.operation == Instruction.AddrIndOp.call, memory.read(address, stackWidth()));
+		} else {
+			throw unsupported(insn);
+		}
+	}
+
+	private void execute(Instruction.Unit insn) {
+		switch(insn.operation) {
+		case clc:
+			cf = false;
+			break;
+		case cmc:
+			cf = !cf;
+			break;
+		case cdc:
+		case nop:
+			break;
+		case cbw:
+			set(Register.AX, signExtend(get(Register.AL), 8));
+			break;
+		case cwde:
+			set(Register.EAX, signExtend(get(Register.AX), 16));
+			break;
+		case cwd:
+			set(Register.DX, signExtend(get(Register.AX), 16) >> 16);
+			break;
+		case cltd:
+			set(Register.EDX, signExtend(get(Register.EAX), 32) >> 32);
+			break;
+		case cqto:
+			set(Register.RDX, get(Register.RAX) >> 63);
+			break;
+		case leave: {
+			Register bp = target.arch == Target.Arch.X86_64 ? Register.RBP : Register.EBP;
+			set(stackPointer(), get(bp));
+			set(bp, pop(stackWidth()));
+			break;
+		}
+		case pushf:
+			push(flags(), stackWidth());
+			break;
+		case popf:
+			setFlags(pop(stackWidth()));
+			break;
+		case ret:
+			jump(pop(stackWidth()));
+			break;
+		case hlt:
+			running = false;
+			break;
+		default:
+			throw unsupported(insn);
+		}
+	}
+
+	private void execute(Instruction.Reg insn) {
+		Register operand = insn.operand;
+		int bits = bits(operand.width());
+		long value = get(operand);
+		switch(insn.operation) {
+		case inc: {
+			boolean carry = cf;
+			set(operand, add(value, 1, false, bits));
+			cf = carry;
+			break;
+		}
+		case dec: {
+			boolean carry = cf;
+			set(operand, subtract(value, 1, false, bits));
+			cf = carry;
+			break;
+		}
+		case neg:
+			set(operand, subtract(0, value, false, bits));
+			break;
+		case not:
+			set(operand, ~value);
+			break;
+		case push:
+			push(value, bits / 8);
+			break;
+		case pop:
+			set(operand, pop(bits / 8));
+			break;
+		case sal:
+		case shl:
+			set(operand, shift(Instruction.ImmRegOp.shl, value, 1, bits));
+			break;
+		case shr:
+			set(operand, shift(Instruction.ImmRegOp.shr, value, 1, bits));
+			break;
+		case sar:
+			set(operand, shift(Instruction.ImmRegOp.sar, value, 1, bits));
+			break;
+		case rol:
+		case ror:
+		case rcl:
+		case rcr:
+			set(operand, rotate(insn.operation, value, bits));
+			break;
+		case mul:
+			multiply(value, bits);
+			break;
+		case div:
+			divide(value, bits, false);
+			break;
+		case idiv:
+			divide(value, bits, true);
+			break;
+		default:
+			throw unsupported(insn);
+		}
+	}
+
+	private void execute(Instruction.RegReg insn) {
+		Register left = insn.leftOperand;
+		Register right = insn.rightOperand;
+		if(isSSE(left) || isSSE(right)) {
+			executeSSE(insn);
+			return;
+		}
+		int bits = bits(right.width());
+		long l = get(left);
+		long r = get(right);
+		switch(insn.operation) {
+		case mov:
+			set(right, l);
+			break;
+		case xchg:
+			set(right, l);
+			set(left, r);
+			break;
+		case cmpxchg: {
+			Register accumulator = Register.AL.sibling(right.width());
+			long a = get(accumulator);
+			subtract(a, r, false, bits);
+			if(zf) {
+				set(right, l);
+			} else {
+				set(accumulator, r);
+			}
+			break;
+		}
+		case mul:
+		case imul:
+			set(right, multiply(r, l, bits));
+			break;
+		default:
+			set(right, arithmetic(insn.operation.name(), r, l, bits), insn.operation.name());
+		}
+	}
+
+	/**
+	 * Execute an instruction with an SSE register operand. Arithmetic is
+	 * performed on scalar doubles, whilst moves between general purpose and
+	 * SSE registers copy the bits unchanged.
+	 *
+	 * @param insn
+	 */
+	private void executeSSE(Instruction.RegReg insn) {
+		Register left = insn.leftOperand;
+		Register right = insn.rightOperand;
+		if(insn.operation == Instruction.RegRegOp.mov) {
+			set(right, get(left));
+			return;
+		} else if(!isSSE(left) || !isSSE(right)) {
+			throw unsupported(insn);
+		}
+		double l = getDouble(left);
+		double r = getDouble(right);
+		switch(insn.operation) {
+		case add:
+			setDouble(right, r + l);
+			break;
+		case sub:
+			setDouble(right, r - l);
+			break;
+		case mul:
+		case imul:
+			setDouble(right, r * l);
+			break;
+		case div:
+			setDouble(right, r / l);
+			break;
+		case comi: {
+			boolean unordered = Double.isNaN(l) || Double.isNaN(r);
+			zf = unordered || r == l;
+			pf = unordered;
+			cf = unordered || r < l;
+			of = false;
+			sf = false;
+			break;
+		}
+		default:
+			throw unsupported(insn);
+		}
+	}
+
+	private void execute(Instruction.ImmReg insn) {
+		Register right = insn.rightOperand;
+		int bits = bits(right.width());
+		long l = insn.leftOperand;
+		long r = get(right);
+		switch(insn.operation) {
+		case mov:
+			set(right, l);
+			break;
+		case mul:
+		case imul:
+			set(right, multiply(r, l, bits));
+			break;
+		case shl:
+		case shr:
+		case sar:
+			set(right, shift(insn.operation, r, l, bits));
+			break;
+		case cmpxchg:
+		case cmpxchg8b:
+			throw unsupported(insn);
+		default:
+			set(right, arithmetic(insn.operation.name(), r, l, bits), insn.operation.name());
+		}
+	}
+
+	private void execute(Instruction.AddrRegReg insn) {
+		Register right = insn.rightOperand;
+		long address = addressOf(insn.leftOperand_1, insn.leftOperand_2);
+		switch(insn.operation) {
+		case lea:
+			set(right, address);
+			break;
+		case mov:
+			load(right, address);
+			break;
+		default:
+			if(isSSE(right)) {
+				throw unsupported(insn);
+			}
+			int bits = bits(right.width());
+			long l = memory.read(address, bits / 8);
+			long r = get(right);
+			set(right, arithmetic(insn.operation.name(), r, l, bits), insn.operation.name());
+		}
+	}
+
+	private void execute(Instruction.RegAddrReg insn) {
+		Register left = insn.leftOperand;
+		long address = addressOf(insn.rightOperand_1, insn.rightOperand_2);
+		if(insn.operation == Instruction.RegAddrRegOp.mov) {
+			store(left, address);
+			return;
+		} else if(isSSE(left)) {
+			throw unsupported(insn);
+		}
+		int bits = bits(left.width());
+		long r = memory.read(address, bits / 8);
+		long value = arithmetic(insn.operation.name(), r, get(left), bits);
+		if(insn.operation != Instruction.RegAddrRegOp.cmp) {
+			memory.write(address, bits / 8, value);
+		}
+	}
+
+	private void execute(Instruction.Addr insn) {
+		Register counter = target.arch == Target.Arch.X86_64 ? Register.RCX : Register.ECX;
+		boolean taken;
+		switch(insn.operation) {
+		case call:
+			call(insn.operand);
+			return;
+		case jcxz:
+			taken = get(Register.CX) == 0;
+			break;
+		case jecxz:
+			taken = get(Register.ECX) == 0;
+			break;
+		case jrcxz:
+			taken = get(Register.RCX) == 0;
+			break;
+		case loop:
+		case loope:
+		case loopz:
+		case loopne:
+		case loopnz: {
+			long count = get(counter) - 1;
+			set(counter, count);
+			taken = count != 0;
+			if(insn.operation == Instruction.AddrOp.loope || insn.operation == Instruction.AddrOp.loopz) {
+				taken &= zf;
+			} else if(insn.operation != Instruction.AddrOp.loop) {
+				taken &= !zf;
+			}
+			break;
+		}
+		default:
+			taken = condition(insn.operation);
+		}
+		if(taken) {
+			Long address = lookup(insn.operand);
+			if(address == null) {
+				throw new Fault("jump to undefined label: " + insn.operand);
+			}
+			jump(address);
+		}
+	}
+
+	/**
+	 * Determine whether a given jump is taken, according to the flags.
+	 *
+	 * @param op
+	 * @return
+	 */
+	private boolean condition(Instruction.AddrOp op) {
+		switch(op) {
+		case jmp:
+			return true;
+		case ja:
+		case jnbe:
+			return !cf && !zf;
+		case jae:
+		case jnb:
+		case jnc:
+			return !cf;
+		case jb:
+		case jnae:
+		case jc:
+			return cf;
+		case jbe:
+		case jna:
+			return cf || zf;
+		case je:
+		case jz:
+			return zf;
+		case jne:
+		case jnz:
+			return !zf;
+		case jg:
+		case jnle:
+			return !zf && sf == of;
+		case jge:
+		case jnl:
+			return sf == of;
+		case jl:
+		case jnge:
+			return sf != of;
+		case jle:
+		case jng:
+			return zf || sf != of;
+		case jo:
+			return of;
+		case jno:
+			return !of;
+		case jp:
+		case jpe:
+			return pf;
+		case jnp:
+		case jpo:
+			return !pf;
+		case js:
+			return sf;
+		case jns:
+			return !sf;
+		default:
+			throw new IllegalArgumentException("unknown branch: " + op);
+		}
+	}
+
+	// ============================================
+	// Control Flow
+	// ============================================
+
+	private void call(String label) {
+		Native implementation = natives.get(label);
+		Long address = lookup(label);
+		if(implementation != null) {
+			implementation.call(this);
+		} else if(address == null) {
+			throw new Fault("call to undefined function: " + label);
+		} else {
+			branch(true, address);
+		}
+	}
+
+	private void branch(boolean call, long address) {
+		if(call) {
+			push(CODE_BASE + pc, stackWidth());
+		}
+		jump(address);
+	}
+
+	private void jump(long address) {
+		if(address == EXIT) {
+			running = false;
+			return;
+		}
+		long index = address - CODE_BASE;
+		if(index < 0 || index >= code.size()) {
+			throw new Fault("invalid jump target: 0x" + Long.toHexString(address));
+		}
+		pc = (int) index;
+	}
+
+	// ============================================
+	// Arithmetic
+	// ============================================
+
+	/**
+	 * Perform a binary operation which sets the flags, and whose name is
+	 * shared between the various instruction forms.
+	 *
+	 * @param name
+	 * @param r
+	 *            Value of the target operand.
+	 * @param l
+	 *            Value of the source operand.
+	 * @param bits
+	 * @return
+	 */
+	private long arithmetic(String name, long r, long l, int bits) {
+		if(name.equals("add")) {
+			return add(r, l, false, bits);
+		} else if(name.equals("adc")) {
+			return add(r, l, cf, bits);
+		} else if(name.equals("sub") || name.equals("cmp")) {
+			return subtract(r, l, false, bits);
+		} else if(name.equals("and")) {
+			return logical(r & l, bits);
+		} else if(name.equals("or")) {
+			return logical(r | l, bits);
+		} else if(name.equals("xor")) {
+			return logical(r ^ l, bits);
+		}
+		throw new IllegalArgumentException("unsupported operation: " + name);
+	}
+
+	/**
+	 * Write the result of a given operation to its target, unless it is a
+	 * comparison.
+	 *
+	 * @param register
+	 * @param value
+	 * @param name
+	 */
+	private void set(Register register, long value, String name) {
+		if(!name.equals("cmp")) {
+			set(register, value);
+		}
+	}
+
+	private long add(long a, long b, boolean carry, int bits) {
+		long mask = mask(bits);
+		a = a & mask;
+		b = b & mask;
+		long c = carry ? 1 : 0;
+		long r = (a + b + c) & mask;
+		if(bits == 64) {
+			cf = carry ? !lessThan(a, r) : lessThan(r, a);
+		} else {
+			cf = ((a + b + c) >>> bits) != 0;
+		}
+		of = (((a ^ r) & (b ^ r)) >>> (bits - 1) & 1) != 0;
+		return result(r, bits);
+	}
+
+	private long subtract(long a, long b, boolean borrow, int bits) {
+		long mask = mask(bits);
+		a = a & mask;
+		b = b & mask;
+		long r = (a - b - (borrow ? 1 : 0)) & mask;
+		cf = borrow ? !lessThan(b, a) : lessThan(a, b);
+		of = (((a ^ b) & (a ^ r)) >>> (bits - 1) & 1) != 0;
+		return result(r, bits);
+	}
+
+	private long logical(long r, int bits) {
+		cf = false;
+		of = false;
+		return result(r & mask(bits), bits);
+	}
+
+	/**
+	 * Set the zero, sign and parity flags according to a given result.
+	 *
+	 * @param r
+	 * @param bits
+	 * @return
+	 */
+	private long result(long r, int bits) {
+		zf = r == 0;
+		sf = ((r >>> (bits - 1)) & 1) != 0;
+		pf = (Long.bitCount(r & 0xFF) & 1) == 0;
+		return r;
+	}
+
+	private long shift(Instruction.ImmRegOp op, long value, long count, int bits) {
+		count = count & (bits == 64 ? 63 : 31);
+		long v = value & mask(bits);
+		if(count == 0) {
+			return v;
+		}
+		int n = (int) count;
+		long r;
+		switch(op) {
+		case shl:
+			r = (v << n) & mask(bits);
+			cf = n <= bits && ((v >>> (bits - n)) & 1) != 0;
+			of = (((r >>> (bits - 1)) & 1) != 0) != cf;
+			break;
+		case shr:
+			r = n < bits ? v >>> n : 0;
+			cf = ((v >>> (n - 1)) & 1) != 0;
+			of = ((v >>> (bits - 1)) & 1) != 0;
+			break;
+		default: {
+			long s = signExtend(v, bits);
+			r = (s >> n) & mask(bits);
+			cf = ((s >> (n - 1)) & 1) != 0;
+			of = false;
+		}
+		}
+		return result(r, bits);
+	}
+
+	/**
+	 * Rotate a value by one bit, which only affects the carry and overflow
+	 * flags.
+	 *
+	 * @param op
+	 * @param v
+	 * @param bits
+	 * @return
+	 */
+	private long rotate(Instruction.RegOp op, long v, int bits) {
+		long mask = mask(bits);
+		long top = 1L << (bits - 1);
+		v = v & mask;
+		long r;
+		switch(op) {
+		case rol:
+			r = ((v << 1) | (v >>> (bits - 1))) & mask;
+			cf = (r & 1) != 0;
+			of = ((r & top) != 0) != cf;
+			break;
+		case ror:
+			r = ((v >>> 1) | (v << (bits - 1))) & mask;
+			cf = (r & top) != 0;
+			of = ((r & top) != 0) != ((r & (top >>> 1)) != 0);
+			break;
+		case rcl:
+			r = ((v << 1) | (cf ? 1 : 0)) & mask;
+			cf = (v & top) != 0;
+			of = ((r & top) != 0) != cf;
+			break;
+		default:
+			r = (v >>> 1) | (cf ? top : 0);
+			cf = (v & 1) != 0;
+			of = ((r & top) != 0) != ((r & (top >>> 1)) != 0);
+		}
+		return r;
+	}
+
+	/**
+	 * Perform a truncating signed multiplication, setting the carry and
+	 * overflow flags if the result did not fit.
+	 *
+	 * @param a
+	 * @param b
+	 * @param bits
+	 * @return
+	 */
+	private long multiply(long a, long b, int bits) {
+		BigInteger product = BigInteger.valueOf(signExtend(a, bits)).multiply(
+				BigInteger.valueOf(signExtend(b, bits)));
+		long r = product.longValue() & mask(bits);
+		cf = of = !product.equals(BigInteger.valueOf(signExtend(r, bits)));
+		return result(r, bits);
+	}
+
+	/**
+	 * Perform an unsigned multiplication of the accumulator by a given value,
+	 * whose result is written to the accumulator and the data register.
+	 *
+	 * @param value
+	 * @param bits
+	 */
+	private void multiply(long value, int bits) {
+		Register.Width width = widthOf(bits);
+		BigInteger product = unsigned(get(Register.AL.sibling(width)), bits).multiply(
+				unsigned(value, bits));
+		BigInteger high = product.shiftRight(bits);
+		if(bits == 8) {
+			set(Register.AX, product.longValue());
+		} else {
+			set(Register.AL.sibling(width), product.longValue());
+			set(Register.DL.sibling(width), high.longValue());
+		}
+		cf = of = high.signum() != 0;
+	}
+
+	/**
+	 * Divide the data register and accumulator (i.e. <code>%rdx:%rax</code>,
+	 * or just <code>%ax</code> for 8-bit operands) by a given value, giving
+	 * the quotient in the accumulator and the remainder in the data register.
+	 *
+	 * @param value
+	 * @param bits
+	 * @param signed
+	 */
+	private void divide(long value, int bits, boolean signed) {
+		Register.Width width = widthOf(bits);
+		BigInteger dividend;
+		if(bits == 8) {
+			long ax = get(Register.AX);
+			dividend = signed ? BigInteger.valueOf(signExtend(ax, 16)) : BigInteger.valueOf(ax);
+		} else {
+			BigInteger high = BigInteger.valueOf(get(Register.DL.sibling(width)));
+			BigInteger low = unsigned(get(Register.AL.sibling(width)), bits);
+			if(signed) {
+				high = BigInteger.valueOf(signExtend(high.longValue(), bits));
+			}
+			dividend = high.shiftLeft(bits).or(low);
+		}
+		BigInteger divisor = signed ? BigInteger.valueOf(signExtend(value, bits)) : unsigned(value, bits);
+		if(divisor.signum() == 0) {
+			throw new Fault("division by zero");
+		}
+		BigInteger[] qr = dividend.divideAndRemainder(divisor);
+		BigInteger min = signed ? BigInteger.ONE.shiftLeft(bits - 1).negate() : BigInteger.ZERO;
+		BigInteger max = BigInteger.ONE.shiftLeft(signed ? bits - 1 : bits);
+		if(qr[0].compareTo(min) < 0 || qr[0].compareTo(max) >= 0) {
+			throw new Fault("division overflow");
+		}
+		if(bits == 8) {
+			set(Register.AL, qr[0].longValue());
+			set(Register.AH, qr[1].longValue());
+		} else {
+			set(Register.AL.sibling(width), qr[0].longValue());
+			set(Register.DL.sibling(width), qr[1].longValue());
+		}
+	}
+
+	private long flags() {
+		return 0x2 | (cf ? 0x1 : 0) | (pf ? 0x4 : 0) | (zf ? 0x40 : 0) | (sf ? 0x80 : 0)
+				| (of ? 0x800 : 0);
+	}
+
+	private void setFlags(long flags) {
+		cf = (flags & 0x1) != 0;
+		pf = (flags & 0x4) != 0;
+		zf = (flags & 0x40) != 0;
+		sf = (flags & 0x80) != 0;
+		of = (flags & 0x800) != 0;
+	}
+
+	// ============================================
+	// Memory
+	// ============================================
+
+	private void load(Register target, long address) {
+		set(target, memory.read(address, bits(target.width()) / 8));
+	}
+
+	private void store(Register source, long address) {
+		memory.write(address, bits(source.width()) / 8, get(source));
+	}
+
+	private void push(long value, int size) {
+		Register sp = stackPointer();
+		long address = get(sp) - size;
+		memory.write(address, size, value);
+		set(sp, address);
+	}
+
+	private long pop(int size) {
+		Register sp = stackPointer();
+		long address = get(sp);
+		long value = memory.read(address, size);
+		set(sp, address + size);
+		return value;
+	}
+
+	/**
+	 * Determine the address of a label, which may be followed by a constant
+	 * offset (e.g. <code>table+16</code> or <code>table-8</code>). This
+	 * returns <code>null</code> if the label is not defined.
+	 *
+	 * @param label
+	 * @return
+	 */
+	private Long lookup(String label) {
+		Long address = labels.get(label);
+		int split = Math.max(label.lastIndexOf('+'), label.lastIndexOf('-'));
+		if(address == null && split > 0) {
+			Long base = labels.get(label.substring(0, split));
+			String offset = label.substring(split + 1);
+			if(base != null && !offset.isEmpty() && isDigits(offset)) {
+				long n = Long.parseLong(offset);
+				address = label.charAt(split) == '+' ? base + n : base - n;
+			}
+		}
+		return address;
+	}
+
+	private static boolean isDigits(String s) {
+		for(int i=0;i!=s.length();++i) {
+			if(!Character.isDigit(s.charAt(i))) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Determine the address given by a label and register, where the
+	 * instruction pointer denotes a RIP-relative (i.e. absolute) access.
+	 *
+	 * @param label
+	 * @param register
+	 * @return
+	 */
+	private long addressOf(String label, Register register) {
+		long address = addressOf(label);
+		if(!Register.isInstructionPointer(register)) {
+			address += get(register);
+		}
+		return address;
+	}
+
+	// ============================================
+	// Layout
+	// ============================================
+
+	/**
+	 * Collect the code and assign addresses to every label, returning the
+	 * number of bytes required for data.
+	 *
+	 * @param file
+	 * @return
+	 */
+	private long layout(X86File file) {
+		long offset = 0;
+		for(X86File.Section section : file.sections()) {
+			if(section instanceof X86File.Code) {
+				for(Instruction insn : ((X86File.Code) section).instructions) {
+					if(insn instanceof Instruction.Label) {
+						define(((Instruction.Label) insn).label, CODE_BASE + code.size());
+					}
+					code.add(insn);
+				}
+			} else {
+				for(Constant constant : constants(section)) {
+					offset = align(offset, constant.alignment);
+					if(constant.label != null) {
+						define(constant.label, DATA_BASE + offset);
+					}
+					offset += constant.sizeInBytes();
+				}
+			}
+		}
+		return offset;
+	}
+
+	/**
+	 * Write the initial contents of every data section to memory.
+	 *
+	 * @param file
+	 */
+	private void initialise(X86File file) {
+		long address = DATA_BASE;
+		for(X86File.Section section : file.sections()) {
+			for(Constant constant : constants(section)) {
+				address = DATA_BASE + align(address - DATA_BASE, constant.alignment);
+				if(constant instanceof Constant.String) {
+					try {
+						memory.writeBytes(address, ((Constant.String) constant).value.getBytes("UTF-8"));
+					} catch(java.io.UnsupportedEncodingException e) {
+						throw new RuntimeException(e);
+					}
+				} else if(constant instanceof Constant.Word) {
+					memory.write(address, 2, ((Constant.Word) constant).value);
+				} else if(constant instanceof Constant.Long) {
+					memory.write(address, 4, ((Constant.Long) constant).value);
+				} else if(constant instanceof Constant.Quad) {
+					memory.write(address, 8, ((Constant.Quad) constant).value);
+				} else if(constant instanceof Constant.ByteArray) {
+					memory.writeBytes(address, ((Constant.ByteArray) constant).values);
+				} else if(constant instanceof Constant.QuadArray) {
+					long[] values = ((Constant.QuadArray) constant).values;
+					for(int i=0;i!=values.length;++i) {
+						memory.write(address + (i * 8L), 8, values[i]);
+					}
+				} else if(constant instanceof Constant.AddressTable) {
+					String[] targets = ((Constant.AddressTable) constant).targets;
+					for(int i=0;i!=targets.length;++i) {
+						memory.write(address + (i * 8L), 8, addressOf(targets[i]));
+					}
+				}
+				address += constant.sizeInBytes();
+			}
+		}
+	}
+
+	private static List<? extends Constant> constants(X86File.Section section) {
+		if(section instanceof X86File.Data) {
+			return ((X86File.Data) section).constants;
+		} else if(section instanceof X86File.Bss) {
+			return ((X86File.Bss) section).constants;
+		} else {
+			return new ArrayList<Constant>();
+		}
+	}
+
+	private void define(String label, long address) {
+		if(labels.put(label, address) != null) {
+			throw new IllegalArgumentException("duplicate label: " + label);
+		}
+	}
+
+	// ============================================
+	// Helpers
+	// ============================================
+
+	private Register stackPointer() {
+		return target.arch == Target.Arch.X86_64 ? Register.RSP : Register.ESP;
+	}
+
+	private int stackWidth() {
+		return target.arch == Target.Arch.X86_64 ? 8 : 4;
+	}
+
+	private static int familyOf(Register register) {
+		Integer family = FAMILIES.get(register);
+		if(family == null) {
+			throw new IllegalArgumentException("unknown register: " + register);
+		}
+		return family;
+	}
+
+	private static boolean isHighByte(Register register) {
+		return register == Register.AH || register == Register.BH || register == Register.CH
+				|| register == Register.DH;
+	}
+
+	private static boolean isSSE(Register register) {
+		Register.Width width = register.width();
+		return width == Register.Width.ScalarDouble || width == Register.Width.ScalarSingle;
+	}
+
+	private static int bits(Register.Width width) {
+		switch(width) {
+		case Byte:
+			return 8;
+		case Word:
+			return 16;
+		case Long:
+		case ScalarSingle:
+			return 32;
+		default:
+			return 64;
+		}
+	}
+
+	private static Register.Width widthOf(int bits) {
+		switch(bits) {
+		case 8:
+			return Register.Width.Byte;
+		case 16:
+			return Register.Width.Word;
+		case 32:
+			return Register.Width.Long;
+		default:
+			return Register.Width.Quad;
+		}
+	}
+
+	private static long mask(Register.Width width) {
+		return mask(bits(width));
+	}
+
+	private static long mask(int bits) {
+		return bits == 64 ? -1L : (1L << bits) - 1;
+	}
+
+	private static long signExtend(long value, int bits) {
+		return bits == 64 ? value : (value << (64 - bits)) >> (64 - bits);
+	}
+
+	private static BigInteger unsigned(long value, int bits) {
+		BigInteger result = BigInteger.valueOf(value & mask(bits));
+		if(bits == 64 && value < 0) {
+			result = result.add(BigInteger.ONE.shiftLeft(64));
+		}
+		return result;
+	}
+
+	/**
+	 * Unsigned comparison of two 64-bit values.
+	 *
+	 * @param a
+	 * @param b
+	 * @return
+	 */
+	private static boolean lessThan(long a, long b) {
+		return (a ^ Long.MIN_VALUE) < (b ^ Long.MIN_VALUE);
+	}
+
+	private static long align(long offset, int alignment) {
+		return alignment <= 1 ? offset : ((offset + alignment - 1) / alignment) * alignment;
+	}
+
+	private static IllegalArgumentException unsupported(Instruction insn) {
+		return new IllegalArgumentException("unsupported instruction: " + insn);
+	}
+}
@@ -0,0 +1,110 @@
+package jx86.emulator;
+
+/**
+ * Represents a contiguous region of byte-addressable memory, beginning at a
+ * given base address. Values are stored in little-endian order, and any
+ * access which falls (even partially) outside the region results in a
+ * <code>Fault</code>.
+ *
+ * @author David J. Pearce
+ *
+ */
+public final class Memory {
+	private final long base;
+	private final byte[] bytes;
+
+	public Memory(long base, int size) {
+		if(base < 0 || size < 0) {
+			throw new IllegalArgumentException("invalid memory region");
+		}
+		this.base = base;
+		this.bytes = new byte[size];
+	}
+
+	/**
+	 * Return the lowest address in this region.
+	 *
+	 * @return
+	 */
+	public long base() {
+		return base;
+	}
+
+	/**
+	 * Return the number of bytes in this region.
+	 *
+	 * @return
+	 */
+	public int size() {
+		return bytes.length;
+	}
+
+	/**
+	 * Read an unsigned value of a given size (in bytes, at most eight) from a
+	 * given address.
+	 *
+	 * @param address
+	 * @param size
+	 * @return
+	 */
+	public long read(long address, int size) {
+		int offset = offsetOf(address, size);
+		long value = 0;
+		for(int i=size-1;i>=0;--i) {
+			value = (value << 8) | (bytes[offset + i] & 0xFF);
+		}
+		return value;
+	}
+
+	/**
+	 * Write the low bytes of a given value, up to a given size (in bytes, at
+	 * most eight), to a given address.
+	 *
+	 * @param address
+	 * @param size
+	 * @param value
+	 */
+	public void write(long address, int size, long value) {
+		int offset = offsetOf(address, size);
+		for(int i=0;i!=size;++i) {
+			bytes[offset + i] = (byte) value;
+			value = value >>> 8;
+		}
+	}
+
+	/**
+	 * Read a sequence of bytes from a given address.
+	 *
+	 * @param address
+	 * @param length
+	 * @return
+	 */
+	public byte[] readBytes(long address, int length) {
+		int offset = offsetOf(address, length);
+		byte[] result = new byte[length];
+		System.arraycopy(bytes, offset, result, 0, length);
+		return result;
+	}
+
+	/**
+	 * Write a sequence of bytes to a given address.
+	 *
+	 * @param address
+	 * @param values
+	 */
+	public void writeBytes(long address, byte[] values) {
+		int offset = offsetOf(address, values.length);
+		System.arraycopy(values, 0, bytes, offset, values.length);
+	}
+
+	// ============================================
+	// Helpers
+	// ============================================
+
+	private int offsetOf(long address, int size) {
+		if(address < base || address - base > bytes.length - size) {
+			throw new Emulator.Fault("invalid memory access at 0x" + Long.toHexString(address));
+		}
+		return (int) (address - base);
+	}
+}
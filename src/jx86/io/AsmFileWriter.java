@@ -1,11 +1,18 @@
 package jx86.io;
 
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.PrintStream;
+import java.io.UnsupportedEncodingException;
+import java.util.HashMap;
+import java.util.List;
 
+import jx86.analysis.Function;
 import jx86.lang.Constant;
 import jx86.lang.Instruction;
 import jx86.lang.Register;
@@ -20,27 +27,85 @@ import jx86.lang.X86File;
  * 
  */
 public class AsmFileWriter {
+	/**
+	 * Identifies the format of the text produced by this writer. This is
+	 * included in the keys of cached functions, and must be incremented
+	 * whenever the text produced for any instruction changes, so that stale
+	 * entries are not reused.
+	 */
+	public static final int FORMAT_VERSION = 2;
+	
+	private static final int BYTES_PER_LINE = 32;
+	private static final int QUADS_PER_LINE = 8;
+	private static final int ZERO_RUN = 16;
+	
+	private final CountingOutputStream counter;
 	private PrintStream out;
+	private WriterStatistics statistics;
+	private final HashMap<String,Integer> files = new HashMap<String,Integer>();
 
 	public AsmFileWriter(File file) throws IOException {
-		this.out = new PrintStream(new FileOutputStream(file));
+		this(new BufferedOutputStream(new FileOutputStream(file)));
 	}
 
 	public AsmFileWriter(OutputStream output) throws IOException {
-		this.out = new PrintStream(output);
+		this.counter = new CountingOutputStream(output);
+		this.out = new PrintStream(counter, false, "UTF-8");
+	}
+	
+	/**
+	 * Enable the recording of statistics by this writer. Statistics are
+	 * accumulated into the given object, allowing it to be shared across
+	 * several (non-concurrent) writers. Passing <code>null</code> disables
+	 * recording.
+	 * 
+	 * @param statistics
+	 */
+	public void setStatistics(WriterStatistics statistics) {
+		this.statistics = statistics;
+	}
+	
+	/**
+	 * Return the statistics being recorded by this writer, or
+	 * <code>null</code> if recording is disabled.
+	 * 
+	 * @return
+	 */
+	public WriterStatistics getStatistics() {
+		return statistics;
 	}
 	
 	public void close() {
 		out.close();
 	}
 
+	/**
+	 * Write a given file. The output is flushed once the file is written, so
+	 * that it is complete even if this writer is never closed.
+	 * 
+	 * @param file
+	 */
 	public void write(X86File file) {
 		for (X86File.Section s : file.sections()) {
 			write(s);
 		}
+		out.flush();
 	}
 
-	public void write(X86File.Section section) {		
+	public void write(X86File.Section section) {
+		if(statistics == null) {
+			writeSection(section);
+		} else {
+			statistics.beginSection();
+			long bytes = counter.count;
+			long start = System.nanoTime();
+			writeSection(section);
+			statistics.recordSection(section, counter.count - bytes,
+					System.nanoTime() - start);
+		}
+	}
+	
+	private void writeSection(X86File.Section section) {		
 		if (section instanceof X86File.Code) {
 			X86File.Code code = (X86File.Code) section;
 			out.println();
@@ -55,14 +120,94 @@ public class AsmFileWriter {
 			for(Constant constant : code.constants) {
 				write(constant);
 			}
+		} else if (section instanceof X86File.Bss) {
+			X86File.Bss bss = (X86File.Bss) section;
+			out.println();
+			out.println("\t.bss");
+			for(Constant constant : bss.constants) {
+				write(constant);
+			}
 		} else {
 			throw new IllegalArgumentException("unknown section encountered");
 		}
 	}
 	
+	/**
+	 * Write a given file, using a cache of previously rendered functions.
+	 * Functions found in the cache are copied directly from it, whilst all
+	 * others are rendered and then added to it. Functions containing source
+	 * locations are always rendered directly, since the file numbers they use
+	 * are specific to the file being written.
+	 * 
+	 * @param file
+	 * @param cache
+	 * @throws IOException
+	 */
+	public void write(X86File file, FunctionCache cache) throws IOException {
+		for (X86File.Section s : file.sections()) {
+			if(s instanceof X86File.Code) {
+				write((X86File.Code) s, cache);
+			} else {
+				write(s);
+			}
+		}
+		out.flush();
+	}
+	
+	public void write(X86File.Code code, FunctionCache cache) throws IOException {
+		if(statistics != null) {
+			statistics.beginSection();
+		}
+		long bytes = counter.count;
+		long start = System.nanoTime();
+		writeCode(code, cache);
+		if(statistics != null) {
+			statistics.recordSection(code, counter.count - bytes,
+					System.nanoTime() - start);
+		}
+	}
+	
+	private void writeCode(X86File.Code code, FunctionCache cache) throws IOException {
+		out.println();
+		out.println("\t.text");
+		for(Function f : Function.partition(code.instructions)) {
+			if(hasLocations(f.instructions)) {
+				// File numbers are allocated per output file, so functions
+				// carrying source locations cannot be reused across files.
+				for(Instruction insn : f.instructions) {
+					write(insn);
+				}
+				continue;
+			}
+			String key = cache.keyOf(f.instructions);
+			String text = cache.get(key);
+			if(text == null) {
+				ByteArrayOutputStream bout = new ByteArrayOutputStream();
+				AsmFileWriter writer = new AsmFileWriter(bout);
+				for(Instruction insn : f.instructions) {
+					writer.write(insn);
+				}
+				writer.close();
+				text = bout.toString("UTF-8");
+				cache.put(key, text);
+			}
+			if(statistics != null) {
+				for(Instruction insn : f.instructions) {
+					statistics.record(insn);
+				}
+			}
+			out.print(text);
+		}
+	}
+	
 	public void write(Instruction insn) {
+		if(statistics != null) {
+			statistics.record(insn);
+		}
 		if(insn instanceof Instruction.Label) {
 			write((Instruction.Label) insn);
+		} else if(insn instanceof Instruction.Location) {
+			write((Instruction.Location) insn);
 		} else if(insn instanceof Instruction.Unit) {
 			write((Instruction.Unit) insn);
 		} else if(insn instanceof Instruction.Reg) {
@@ -77,6 +222,14 @@ public class AsmFileWriter {
 			write((Instruction.AddrReg) insn);
 		} else if(insn instanceof Instruction.AddrRegReg) {
 			write((Instruction.AddrRegReg) insn);
+		} else if(insn instanceof Instruction.RegAddrReg) {
+			write((Instruction.RegAddrReg) insn);
+		} else if(insn instanceof Instruction.IndReg) {
+			write((Instruction.IndReg) insn);
+		} else if(insn instanceof Instruction.ImmInd) {
+			write((Instruction.ImmInd) insn);
+		} else if(insn instanceof Instruction.AddrInd) {
+			write((Instruction.AddrInd) insn);
 		} else if(insn instanceof Instruction.ImmIndReg) {
 			write((Instruction.ImmIndReg) insn);
 		} else if(insn instanceof Instruction.RegImmInd) {
@@ -95,11 +248,27 @@ public class AsmFileWriter {
 			out.println("\t.globl " + insn.label);
 		}
 		if(insn.alignment != 1) {
-			out.println("\t.align " + insn.alignment);
+			out.println("\t.balign " + insn.alignment);
 		}
 		out.println(insn.label + ":");		
 	}
 	
+	/**
+	 * Write a source location as a DWARF line directive. The first location
+	 * referring to a given file also allocates a file number for it.
+	 * 
+	 * @param insn
+	 */
+	public void write(Instruction.Location insn) {
+		Integer number = files.get(insn.file);
+		if(number == null) {
+			number = files.size() + 1;
+			files.put(insn.file, number);
+			out.println("\t.file " + number + " " + quote(insn.file));
+		}
+		out.println("\t.loc " + number + " " + insn.line + " " + insn.column);
+	}
+	
 	public void write(Instruction.Unit insn) {
 		out.println("\t" + insn.operation);
 	}
@@ -159,12 +328,36 @@ public class AsmFileWriter {
 				+ insn.rightOperand);
 	}
 	
+	public void write(Instruction.RegAddrReg insn) {
+		out.println("\t" + insn.operation
+				+ Register.suffix(insn.leftOperand.width()) + " %"
+				+ insn.leftOperand + ", " + insn.rightOperand_1 + "(%"
+				+ insn.rightOperand_2 + ")");
+	}
+	
+	public void write(Instruction.IndReg insn) {
+		out.println("\t" + insn.operation + " *%" + insn.operand);
+	}
+	
+	public void write(Instruction.ImmInd insn) {
+		out.println("\t" + insn.operation + " *" + insn.immediateOffset
+				+ "(%" + insn.baseOperand + ")");
+	}
+	
+	public void write(Instruction.AddrInd insn) {
+		out.println("\t" + insn.operation + " *" + insn.operand
+				+ "(%" + insn.baseOperand + ")");
+	}
+	
 	public void write(Constant constant) {
+		if(statistics != null) {
+			statistics.recordConstant();
+		}
 		if(constant.global) {
 			out.println("\t.globl " + constant.label);
 		}
 		if(constant.alignment != 1) {
-			out.println("\t.align " + constant.alignment);
+			out.println("\t.balign " + constant.alignment);
 		}
 		if(constant.label != null) {
 			out.println(constant.label + ":");
@@ -172,7 +365,7 @@ public class AsmFileWriter {
 		if(constant instanceof Constant.String) {
 			Constant.String cs = (Constant.String) constant;
 			// FIXME: probably should be doing some kind of escaping here.
-			out.println("\t.asciz \"" + cs.value + "\"");
+			out.println("\t.asciz " + quote(cs.value));
 		} else if(constant instanceof Constant.Word) {
 			Constant.Word cw = (Constant.Word) constant;
 			out.println("\t.word " + cw.value);
@@ -182,6 +375,176 @@ public class AsmFileWriter {
 		} else if(constant instanceof Constant.Quad) {
 			Constant.Quad cw = (Constant.Quad) constant;
 			out.println("\t.quad " + cw.value);
+		} else if(constant instanceof Constant.ByteArray) {
+			write((Constant.ByteArray) constant);
+		} else if(constant instanceof Constant.QuadArray) {
+			write((Constant.QuadArray) constant);
+		} else if(constant instanceof Constant.AddressTable) {
+			write((Constant.AddressTable) constant);
+		} else if(constant instanceof Constant.Zero) {
+			Constant.Zero cz = (Constant.Zero) constant;
+			out.println("\t.zero " + cz.size);
+		}
+	}
+	
+	/**
+	 * Write an array of bytes as a sequence of dense <code>.byte</code> lines.
+	 * Runs of zeros are collapsed into a single <code>.zero</code> directive.
+	 * 
+	 * @param constant
+	 */
+	private void write(Constant.ByteArray constant) {
+		byte[] values = constant.values;
+		StringBuilder line = new StringBuilder();
+		int i = 0;
+		while(i < values.length) {
+			int j = i;
+			while(j < values.length && values[j] == 0) {
+				j = j + 1;
+			}
+			if((j - i) >= ZERO_RUN) {
+				out.println("\t.zero " + (j - i));
+				i = j;
+				continue;
+			}
+			int end = Math.min(values.length, i + BYTES_PER_LINE);
+			line.setLength(0);
+			line.append("\t.byte ");
+			for(int k=i;k<end;++k) {
+				if(k > j && values[k] == 0 && zeroRun(values, k) >= ZERO_RUN) {
+					// stop early so the run can be collapsed
+					end = k;
+					break;
+				}
+				if(k != i) {
+					line.append(',');
+				}
+				line.append(values[k] & 0xFF);
+			}
+			out.println(line);
+			i = end;
+		}
+	}
+	
+	private static int zeroRun(byte[] values, int start) {
+		int end = start;
+		while(end < values.length && values[end] == 0 && (end - start) < ZERO_RUN) {
+			end = end + 1;
+		}
+		return end - start;
+	}
+	
+	/**
+	 * Write a table of addresses as a sequence of dense <code>.quad</code>
+	 * lines.
+	 * 
+	 * @param constant
+	 */
+	private void write(Constant.AddressTable constant) {
+		String[] targets = constant.targets;
+		StringBuilder line = new StringBuilder();
+		for(int i=0;i<targets.length;i+=QUADS_PER_LINE) {
+			int end = Math.min(targets.length, i + QUADS_PER_LINE);
+			line.setLength(0);
+			line.append("\t.quad ");
+			for(int k=i;k<end;++k) {
+				if(k != i) {
+					line.append(',');
+				}
+				line.append(targets[k]);
+			}
+			out.println(line);
+		}
+	}
+	
+	/**
+	 * Write an array of quad words as a sequence of dense <code>.quad</code>
+	 * lines.
+	 * 
+	 * @param constant
+	 */
+	private void write(Constant.QuadArray constant) {
+		long[] values = constant.values;
+		StringBuilder line = new StringBuilder();
+		for(int i=0;i<values.length;i+=QUADS_PER_LINE) {
+			int end = Math.min(values.length, i + QUADS_PER_LINE);
+			line.setLength(0);
+			line.append("\t.quad ");
+			for(int k=i;k<end;++k) {
+				if(k != i) {
+					line.append(',');
+				}
+				line.append(values[k]);
+			}
+			out.println(line);
+		}
+	}
+	
+	private static boolean hasLocations(List<Instruction> instructions) {
+		for(Instruction insn : instructions) {
+			if(insn instanceof Instruction.Location) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Quote a given string for use as the operand of a directive, escaping
+	 * any characters which the assembler would otherwise interpret. The
+	 * string is encoded as UTF-8, and any byte outside of printable ASCII is
+	 * given as an octal escape. Hence, the assembler emits exactly the bytes
+	 * counted by <code>Constant.String.sizeInBytes()</code>, regardless of
+	 * the encoding of the file.
+	 *
+	 * @param s
+	 * @return
+	 */
+	private static String quote(String s) {
+		byte[] bytes;
+		try {
+			bytes = s.getBytes("UTF-8");
+		} catch(UnsupportedEncodingException e) {
+			throw new RuntimeException(e);
+		}
+		StringBuilder sb = new StringBuilder("\"");
+		for(byte b : bytes) {
+			int c = b & 0xFF;
+			if(c == '"' || c == '\\') {
+				sb.append('\\').append((char) c);
+			} else if(c == '\n') {
+				sb.append("\\n");
+			} else if(c == '\t') {
+				sb.append("\\t");
+			} else if(c < 0x20 || c >= 0x7F) {
+				sb.append('\\').append(Character.forDigit(c >> 6, 8))
+						.append(Character.forDigit((c >> 3) & 7, 8))
+						.append(Character.forDigit(c & 7, 8));
+			} else {
+				sb.append((char) c);
+			}
+		}
+		return sb.append('"').toString();
+	}
+
+	/**
+	 * Counts the number of bytes written to an underlying stream.
+	 */
+	private static final class CountingOutputStream extends FilterOutputStream {
+		private long count;
+		
+		public CountingOutputStream(OutputStream out) {
+			super(out);
+		}
+		
+		public void write(int b) throws IOException {
+			out.write(b);
+			count++;
+		}
+		
+		public void write(byte[] b, int off, int len) throws IOException {
+			out.write(b, off, len);
+			count += len;
 		}
 	}
 }
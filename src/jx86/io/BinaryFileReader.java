@@ -0,0 +1,331 @@
+package jx86.io;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+import jx86.lang.Constant;
+import jx86.lang.Instruction;
+import jx86.lang.Register;
+import jx86.lang.X86File;
+
+import static jx86.io.BinaryFormat.*;
+
+/**
+ * Responsible for reading <code>X86File</code>s written by
+ * <code>BinaryFileWriter</code>. Files are memory-mapped, and only the header
+ * and label table are decoded eagerly. Each section is decoded only when it is
+ * requested, so that tools interested in only part of a file do not pay for
+ * decoding all of it.
+ *
+ * @author David J. Pearce
+ *
+ */
+public class BinaryFileReader {
+	private final ByteBuffer buffer;
+	private final String[] labels;
+	private final int[] kinds;
+	private final int[] offsets;
+	private final int[] lengths;
+
+	public BinaryFileReader(File file) throws IOException {
+		this(map(file));
+	}
+
+	public BinaryFileReader(ByteBuffer buffer) throws IOException {
+		this.buffer = buffer.duplicate();
+		ByteBuffer in = this.buffer;
+		for(int i=0;i!=MAGIC.length;++i) {
+			if(in.remaining() == 0 || in.get() != MAGIC[i]) {
+				throw new IOException("invalid binary file (bad magic)");
+			}
+		}
+		long version = readUV(in);
+		if(version < 1 || version > VERSION) {
+			throw new IOException("unsupported binary file version: " + version);
+		}
+		labels = new String[(int) readUV(in)];
+		for(int i=0;i!=labels.length;++i) {
+			byte[] bytes = new byte[(int) readUV(in)];
+			in.get(bytes);
+			labels[i] = new String(bytes, "UTF-8");
+		}
+		int count = (int) readUV(in);
+		kinds = new int[count];
+		offsets = new int[count];
+		lengths = new int[count];
+		for(int i=0;i!=count;++i) {
+			kinds[i] = in.get();
+			lengths[i] = (int) readUV(in);
+			offsets[i] = in.position();
+			if(lengths[i] < 0 || lengths[i] > in.remaining()) {
+				throw new IOException("invalid binary file (truncated section)");
+			}
+			in.position(offsets[i] + lengths[i]);
+		}
+	}
+
+	/**
+	 * Return the number of sections in this file.
+	 *
+	 * @return
+	 */
+	public int size() {
+		return kinds.length;
+	}
+
+	/**
+	 * Decode the ith section of this file.
+	 *
+	 * @param i
+	 * @return
+	 */
+	public X86File.Section section(int i) {
+		ByteBuffer in = buffer.duplicate();
+		in.position(offsets[i]);
+		in.limit(offsets[i] + lengths[i]);
+		int count = (int) readUV(in);
+		switch(kinds[i]) {
+		case SECTION_CODE: {
+			ArrayList<Instruction> instructions = new ArrayList<Instruction>(count);
+			for(int j=0;j!=count;++j) {
+				instructions.add(readInstruction(in));
+			}
+			return new X86File.Code(instructions);
+		}
+		case SECTION_DATA: {
+			ArrayList<Constant> constants = new ArrayList<Constant>(count);
+			for(int j=0;j!=count;++j) {
+				constants.add(readConstant(in));
+			}
+			return new X86File.Data(constants);
+		}
+		case SECTION_BSS: {
+			ArrayList<Constant.Zero> constants = new ArrayList<Constant.Zero>(count);
+			for(int j=0;j!=count;++j) {
+				constants.add((Constant.Zero) readConstant(in));
+			}
+			return new X86File.Bss(constants);
+		}
+		default:
+			throw new IllegalArgumentException("unknown section kind encountered: " + kinds[i]);
+		}
+	}
+
+	/**
+	 * Decode every section of this file.
+	 *
+	 * @return
+	 */
+	public X86File read() {
+		List<X86File.Section> sections = new ArrayList<X86File.Section>();
+		for(int i=0;i!=kinds.length;++i) {
+			sections.add(section(i));
+		}
+		return new X86File(sections);
+	}
+
+	// ============================================
+	// Instructions
+	// ============================================
+
+	private Instruction readInstruction(ByteBuffer in) {
+		int tag = in.get();
+		switch(tag) {
+		case INSN_LABEL: {
+			String label = readLabel(in);
+			int alignment = (int) readUV(in);
+			boolean global = in.get() != 0;
+			return new Instruction.Label(label, alignment, global);
+		}
+		case INSN_LOCATION: {
+			String file = readLabel(in);
+			int line = (int) readUV(in);
+			return new Instruction.Location(file, line, (int) readUV(in));
+		}
+		case INSN_UNIT:
+			return new Instruction.Unit(Instruction.UnitOp.values()[readOp(in)]);
+		case INSN_REG: {
+			Instruction.RegOp op = Instruction.RegOp.values()[readOp(in)];
+			return new Instruction.Reg(op, readRegister(in));
+		}
+		case INSN_REGREG: {
+			Instruction.RegRegOp op = Instruction.RegRegOp.values()[readOp(in)];
+			Register left = readRegister(in);
+			return new Instruction.RegReg(op, left, readRegister(in));
+		}
+		case INSN_IMMREG: {
+			Instruction.ImmRegOp op = Instruction.ImmRegOp.values()[readOp(in)];
+			long imm = readSV(in);
+			return new Instruction.ImmReg(op, imm, readRegister(in));
+		}
+		case INSN_IMMINDREG: {
+			Instruction.ImmIndRegOp op = Instruction.ImmIndRegOp.values()[readOp(in)];
+			long imm = readSV(in);
+			Register base = readRegister(in);
+			return new Instruction.ImmIndReg(op, imm, base, readRegister(in));
+		}
+		case INSN_REGIMMIND: {
+			Instruction.RegImmIndOp op = Instruction.RegImmIndOp.values()[readOp(in)];
+			Register source = readRegister(in);
+			long imm = readSV(in);
+			return new Instruction.RegImmInd(op, source, imm, readRegister(in));
+		}
+		case INSN_INDREGIMMREG: {
+			Instruction.IndRegImmRegOp op = Instruction.IndRegImmRegOp.values()[readOp(in)];
+			Register base = readRegister(in);
+			Register index = readRegister(in);
+			long scaling = readSV(in);
+			return new Instruction.IndRegImmReg(op, base, index, scaling, readRegister(in));
+		}
+		case INSN_REGINDREGIMM: {
+			Instruction.RegIndRegImmOp op = Instruction.RegIndRegImmOp.values()[readOp(in)];
+			Register source = readRegister(in);
+			Register base = readRegister(in);
+			Register index = readRegister(in);
+			return new Instruction.RegIndRegImm(op, source, base, index, readSV(in));
+		}
+		case INSN_ADDR: {
+			Instruction.AddrOp op = Instruction.AddrOp.values()[readOp(in)];
+			return new Instruction.Addr(op, readLabel(in));
+		}
+		case INSN_ADDRREG: {
+			Instruction.AddrRegOp op = Instruction.AddrRegOp.values()[readOp(in)];
+			String label = readLabel(in);
+			return new Instruction.AddrReg(op, label, readRegister(in));
+		}
+		case INSN_ADDRREGREG: {
+			Instruction.AddrRegRegOp op = Instruction.AddrRegRegOp.values()[readOp(in)];
+			String label = readLabel(in);
+			Register base = readRegister(in);
+			return new Instruction.AddrRegReg(op, label, base, readRegister(in));
+		}
+		case INSN_REGADDRREG: {
+			Instruction.RegAddrRegOp op = Instruction.RegAddrRegOp.values()[readOp(in)];
+			Register source = readRegister(in);
+			String label = readLabel(in);
+			return new Instruction.RegAddrReg(op, source, label, readRegister(in));
+		}
+		case INSN_INDREG: {
+			Instruction.IndRegOp op = Instruction.IndRegOp.values()[readOp(in)];
+			return new Instruction.IndReg(op, readRegister(in));
+		}
+		case INSN_IMMIND: {
+			Instruction.ImmIndOp op = Instruction.ImmIndOp.values()[readOp(in)];
+			long imm = readSV(in);
+			return new Instruction.ImmInd(op, imm, readRegister(in));
+		}
+		case INSN_ADDRIND: {
+			Instruction.AddrIndOp op = Instruction.AddrIndOp.values()[readOp(in)];
+			String label = readLabel(in);
+			return new Instruction.AddrInd(op, label, readRegister(in));
+		}
+		default:
+			throw new IllegalArgumentException("unknown instruction tag encountered: " + tag);
+		}
+	}
+
+	// ============================================
+	// Constants
+	// ============================================
+
+	private Constant readConstant(ByteBuffer in) {
+		int tag = in.get();
+		int index = (int) readUV(in);
+		String label = index == 0 ? null : labels[index - 1];
+		int alignment = (int) readUV(in);
+		boolean global = in.get() != 0;
+		switch(tag) {
+		case CONST_STRING: {
+			byte[] bytes = new byte[(int) readUV(in)];
+			in.get(bytes);
+			return new Constant.String(label, alignment, global, utf8(bytes));
+		}
+		case CONST_WORD:
+			return new Constant.Word(label, alignment, global, (int) readSV(in));
+		case CONST_LONG:
+			return new Constant.Long(label, alignment, global, readSV(in));
+		case CONST_QUAD:
+			return new Constant.Quad(label, alignment, global, readSV(in));
+		case CONST_BYTEARRAY: {
+			byte[] bytes = new byte[(int) readUV(in)];
+			in.get(bytes);
+			return new Constant.ByteArray(label, alignment, global, bytes);
+		}
+		case CONST_QUADARRAY: {
+			long[] values = new long[(int) readUV(in)];
+			for(int i=0;i!=values.length;++i) {
+				values[i] = readSV(in);
+			}
+			return new Constant.QuadArray(label, alignment, global, values);
+		}
+		case CONST_ZERO:
+			return new Constant.Zero(label, alignment, global, readUV(in));
+		case CONST_ADDRESSTABLE: {
+			String[] targets = new String[(int) readUV(in)];
+			for(int i=0;i!=targets.length;++i) {
+				targets[i] = readLabel(in);
+			}
+			return new Constant.AddressTable(label, alignment, global, targets);
+		}
+		default:
+			throw new IllegalArgumentException("unknown constant tag encountered: " + tag);
+		}
+	}
+
+	// ============================================
+	// Helpers
+	// ============================================
+
+	private String readLabel(ByteBuffer in) {
+		return labels[(int) readUV(in)];
+	}
+
+	private static int readOp(ByteBuffer in) {
+		return (int) readUV(in);
+	}
+
+	private static Register readRegister(ByteBuffer in) {
+		return REGISTERS[(int) readUV(in)];
+	}
+
+	private static long readUV(ByteBuffer in) {
+		long value = 0;
+		int shift = 0;
+		byte b;
+		do {
+			b = in.get();
+			value |= (long) (b & 0x7F) << shift;
+			shift += 7;
+		} while((b & 0x80) != 0);
+		return value;
+	}
+
+	private static long readSV(ByteBuffer in) {
+		long value = readUV(in);
+		return (value >>> 1) ^ -(value & 1);
+	}
+
+	private static String utf8(byte[] bytes) {
+		try {
+			return new String(bytes, "UTF-8");
+		} catch(UnsupportedEncodingException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	private static ByteBuffer map(File file) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = raf.getChannel();
+			return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		} finally {
+			raf.close();
+		}
+	}
+}
@@ -0,0 +1,396 @@
+package jx86.io;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import jx86.lang.Constant;
+import jx86.lang.Instruction;
+import jx86.lang.Register;
+import jx86.lang.X86File;
+
+import static jx86.io.BinaryFormat.*;
+
+/**
+ * Responsible for writing <code>X86File</code>s in a compact binary format,
+ * which can be read back using <code>BinaryFileReader</code>. This is both
+ * smaller and faster to produce than the textual format generated by
+ * <code>AsmFileWriter</code>. See <code>BinaryFormat</code> for a description
+ * of the format.
+ *
+ * @author David J. Pearce
+ *
+ */
+public class BinaryFileWriter {
+	private final FileChannel channel;
+	private final HashMap<String,Integer> labels = new HashMap<String,Integer>();
+	private final ArrayList<String> labelTable = new ArrayList<String>();
+
+	public BinaryFileWriter(File file) throws IOException {
+		this(new FileOutputStream(file).getChannel());
+	}
+
+	public BinaryFileWriter(FileChannel channel) {
+		this.channel = channel;
+	}
+
+	public void close() throws IOException {
+		channel.close();
+	}
+
+	public void write(X86File file) throws IOException {
+		labels.clear();
+		labelTable.clear();
+		// Encode sections first, so as to build the label table.
+		ArrayList<Output> sections = new ArrayList<Output>();
+		for(X86File.Section section : file.sections()) {
+			sections.add(encode(section));
+		}
+		Output header = new Output();
+		header.write(MAGIC, 0, MAGIC.length);
+		header.writeUV(VERSION);
+		header.writeUV(labelTable.size());
+		for(String label : labelTable) {
+			byte[] bytes = utf8(label);
+			header.writeUV(bytes.length);
+			header.write(bytes, 0, bytes.length);
+		}
+		header.writeUV(sections.size());
+		write(header.toByteBuffer());
+		for(Output section : sections) {
+			write(section.toByteBuffer());
+		}
+	}
+
+	private void write(ByteBuffer buffer) throws IOException {
+		while(buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+	}
+
+	// ============================================
+	// Sections
+	// ============================================
+
+	private Output encode(X86File.Section section) {
+		Output payload = new Output();
+		int kind;
+		if(section instanceof X86File.Code) {
+			X86File.Code code = (X86File.Code) section;
+			kind = SECTION_CODE;
+			payload.writeUV(code.instructions.size());
+			for(Instruction insn : code.instructions) {
+				encode(insn, payload);
+			}
+		} else if(section instanceof X86File.Data) {
+			X86File.Data data = (X86File.Data) section;
+			kind = SECTION_DATA;
+			payload.writeUV(data.constants.size());
+			for(Constant constant : data.constants) {
+				encode(constant, payload);
+			}
+		} else if(section instanceof X86File.Bss) {
+			X86File.Bss bss = (X86File.Bss) section;
+			kind = SECTION_BSS;
+			payload.writeUV(bss.constants.size());
+			for(Constant constant : bss.constants) {
+				encode(constant, payload);
+			}
+		} else {
+			throw new IllegalArgumentException("unknown section encountered");
+		}
+		Output out = new Output();
+		out.write(kind);
+		out.writeUV(payload.size());
+		out.write(payload);
+		return out;
+	}
+
+	// ============================================
+	// Instructions
+	// ============================================
+
+	private void encode(Instruction insn, Output out) {
+		if(insn instanceof Instruction.Label) {
+			Instruction.Label i = (Instruction.Label) insn;
+			out.write(INSN_LABEL);
+			writeLabel(i.label, out);
+			out.writeUV(i.alignment);
+			out.write(i.global ? 1 : 0);
+		} else if(insn instanceof Instruction.Location) {
+			Instruction.Location i = (Instruction.Location) insn;
+			out.write(INSN_LOCATION);
+			writeLabel(i.file, out);
+			out.writeUV(i.line);
+			out.writeUV(i.column);
+		} else if(insn instanceof Instruction.Unit) {
+			Instruction.Unit i = (Instruction.Unit) insn;
+			out.write(INSN_UNIT);
+			out.writeUV(i.operation.ordinal());
+		} else if(insn instanceof Instruction.Reg) {
+			Instruction.Reg i = (Instruction.Reg) insn;
+			out.write(INSN_REG);
+			out.writeUV(i.operation.ordinal());
+			writeRegister(i.operand, out);
+		} else if(insn instanceof Instruction.RegReg) {
+			Instruction.RegReg i = (Instruction.RegReg) insn;
+			out.write(INSN_REGREG);
+			out.writeUV(i.operation.ordinal());
+			writeRegister(i.leftOperand, out);
+			writeRegister(i.rightOperand, out);
+		} else if(insn instanceof Instruction.ImmReg) {
+			Instruction.ImmReg i = (Instruction.ImmReg) insn;
+			out.write(INSN_IMMREG);
+			out.writeUV(i.operation.ordinal());
+			out.writeSV(i.leftOperand);
+			writeRegister(i.rightOperand, out);
+		} else if(insn instanceof Instruction.ImmIndReg) {
+			Instruction.ImmIndReg i = (Instruction.ImmIndReg) insn;
+			out.write(INSN_IMMINDREG);
+			out.writeUV(i.operation.ordinal());
+			out.writeSV(i.immediateOffset);
+			writeRegister(i.baseOperand, out);
+			writeRegister(i.targetOperand, out);
+		} else if(insn instanceof Instruction.RegImmInd) {
+			Instruction.RegImmInd i = (Instruction.RegImmInd) insn;
+			out.write(INSN_REGIMMIND);
+			out.writeUV(i.operation.ordinal());
+			writeRegister(i.sourceOperand, out);
+			out.writeSV(i.immediateOffset);
+			writeRegister(i.baseOperand, out);
+		} else if(insn instanceof Instruction.IndRegImmReg) {
+			Instruction.IndRegImmReg i = (Instruction.IndRegImmReg) insn;
+			out.write(INSN_INDREGIMMREG);
+			out.writeUV(i.operation.ordinal());
+			writeRegister(i.baseOperand, out);
+			writeRegister(i.indexOperand, out);
+			out.writeSV(i.scaling);
+			writeRegister(i.targetOperand, out);
+		} else if(insn instanceof Instruction.RegIndRegImm) {
+			Instruction.RegIndRegImm i = (Instruction.RegIndRegImm) insn;
+			out.write(INSN_REGINDREGIMM);
+			out.writeUV(i.operation.ordinal());
+			writeRegister(i.sourceOperand, out);
+			writeRegister(i.baseOperand, out);
+			writeRegister(i.indexOperand, out);
+			out.writeSV(i.scaling);
+		} else if(insn instanceof Instruction.Addr) {
+			Instruction.Addr i = (Instruction.Addr) insn;
+			out.write(INSN_ADDR);
+			out.writeUV(i.operation.ordinal());
+			writeLabel(i.operand, out);
+		} else if(insn instanceof Instruction.AddrReg) {
+			Instruction.AddrReg i = (Instruction.AddrReg) insn;
+			out.write(INSN_ADDRREG);
+			out.writeUV(i.operation.ordinal());
+			writeLabel(i.leftOperand, out);
+			writeRegister(i.rightOperand, out);
+		} else if(insn instanceof Instruction.AddrRegReg) {
+			Instruction.AddrRegReg i = (Instruction.AddrRegReg) insn;
+			out.write(INSN_ADDRREGREG);
+			out.writeUV(i.operation.ordinal());
+			writeLabel(i.leftOperand_1, out);
+			writeRegister(i.leftOperand_2, out);
+			writeRegister(i.rightOperand, out);
+		} else if(insn instanceof Instruction.RegAddrReg) {
+			Instruction.RegAddrReg i = (Instruction.RegAddrReg) insn;
+			out.write(INSN_REGADDRREG);
+			out.writeUV(i.operation.ordinal());
+			writeRegister(i.leftOperand, out);
+			writeLabel(i.rightOperand_1, out);
+			writeRegister(i.rightOperand_2, out);
+		} else if(insn instanceof Instruction.IndReg) {
+			Instruction.IndReg i = (Instruction.IndReg) insn;
+			out.write(INSN_INDREG);
+			out.writeUV(i.operation.ordinal());
+			writeRegister(i.operand, out);
+		} else if(insn instanceof Instruction.ImmInd) {
+			Instruction.ImmInd i = (Instruction.ImmInd) insn;
+			out.write(INSN_IMMIND);
+			out.writeUV(i.operation.ordinal());
+			out.writeSV(i.immediateOffset);
+			writeRegister(i.baseOperand, out);
+		} else if(insn instanceof Instruction.AddrInd) {
+			Instruction.AddrInd i = (Instruction.AddrInd) insn;
+			out.write(INSN_ADDRIND);
+			out.writeUV(i.operation.ordinal());
+			writeLabel(i.operand, out);
+			writeRegister(i.baseOperand, out);
+		} else {
+			throw new IllegalArgumentException("unknown instruction encountered: " + insn);
+		}
+	}
+
+	// ============================================
+	// Constants
+	// ============================================
+
+	private void encode(Constant constant, Output out) {
+		int tag;
+		if(constant instanceof Constant.String) {
+			tag = CONST_STRING;
+		} else if(constant instanceof Constant.Word) {
+			tag = CONST_WORD;
+		} else if(constant instanceof Constant.Long) {
+			tag = CONST_LONG;
+		} else if(constant instanceof Constant.Quad) {
+			tag = CONST_QUAD;
+		} else if(constant instanceof Constant.ByteArray) {
+			tag = CONST_BYTEARRAY;
+		} else if(constant instanceof Constant.QuadArray) {
+			tag = CONST_QUADARRAY;
+		} else if(constant instanceof Constant.Zero) {
+			tag = CONST_ZERO;
+		} else if(constant instanceof Constant.AddressTable) {
+			tag = CONST_ADDRESSTABLE;
+		} else {
+			throw new IllegalArgumentException("unknown constant encountered: " + constant);
+		}
+		out.write(tag);
+		// Write common header (label index is offset by one to allow null)
+		out.writeUV(constant.label == null ? 0 : labelOf(constant.label) + 1);
+		out.writeUV(constant.alignment);
+		out.write(constant.global ? 1 : 0);
+		switch(tag) {
+		case CONST_STRING: {
+			byte[] bytes = utf8(((Constant.String) constant).value);
+			out.writeUV(bytes.length);
+			out.write(bytes, 0, bytes.length);
+			break;
+		}
+		case CONST_WORD:
+			out.writeSV(((Constant.Word) constant).value);
+			break;
+		case CONST_LONG:
+			out.writeSV(((Constant.Long) constant).value);
+			break;
+		case CONST_QUAD:
+			out.writeSV(((Constant.Quad) constant).value);
+			break;
+		case CONST_BYTEARRAY: {
+			byte[] bytes = ((Constant.ByteArray) constant).values;
+			out.writeUV(bytes.length);
+			out.write(bytes, 0, bytes.length);
+			break;
+		}
+		case CONST_QUADARRAY: {
+			long[] values = ((Constant.QuadArray) constant).values;
+			out.writeUV(values.length);
+			for(long v : values) {
+				out.writeSV(v);
+			}
+			break;
+		}
+		case CONST_ZERO:
+			out.writeUV(((Constant.Zero) constant).size);
+			break;
+		case CONST_ADDRESSTABLE: {
+			String[] targets = ((Constant.AddressTable) constant).targets;
+			out.writeUV(targets.length);
+			for(String target : targets) {
+				writeLabel(target, out);
+			}
+			break;
+		}
+		}
+	}
+
+	// ============================================
+	// Helpers
+	// ============================================
+
+	private void writeLabel(String label, Output out) {
+		out.writeUV(labelOf(label));
+	}
+
+	private int labelOf(String label) {
+		Integer index = labels.get(label);
+		if(index == null) {
+			index = labelTable.size();
+			labels.put(label, index);
+			labelTable.add(label);
+		}
+		return index;
+	}
+
+	private static void writeRegister(Register register, Output out) {
+		out.writeUV(idOf(register));
+	}
+
+	private static byte[] utf8(String s) {
+		try {
+			return s.getBytes("UTF-8");
+		} catch(UnsupportedEncodingException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * A growable byte buffer with support for variable-length integers.
+	 */
+	private static final class Output {
+		private byte[] bytes = new byte[256];
+		private int length;
+
+		public int size() {
+			return length;
+		}
+
+		public void write(int b) {
+			ensure(1);
+			bytes[length++] = (byte) b;
+		}
+
+		public void write(byte[] data, int offset, int count) {
+			ensure(count);
+			System.arraycopy(data, offset, bytes, length, count);
+			length += count;
+		}
+
+		public void write(Output other) {
+			write(other.bytes, 0, other.length);
+		}
+
+		/**
+		 * Write an unsigned variable-length integer, using seven bits per
+		 * byte with the high bit indicating continuation.
+		 *
+		 * @param value
+		 */
+		public void writeUV(long value) {
+			ensure(10);
+			while((value & ~0x7FL) != 0) {
+				bytes[length++] = (byte) ((value & 0x7F) | 0x80);
+				value >>>= 7;
+			}
+			bytes[length++] = (byte) value;
+		}
+
+		/**
+		 * Write a signed variable-length integer using zig-zag encoding, so
+		 * that small negative values are also compact.
+		 *
+		 * @param value
+		 */
+		public void writeSV(long value) {
+			writeUV((value << 1) ^ (value >> 63));
+		}
+
+		public ByteBuffer toByteBuffer() {
+			return ByteBuffer.wrap(bytes, 0, length);
+		}
+
+		private void ensure(int count) {
+			if(length + count > bytes.length) {
+				byte[] nbytes = new byte[Math.max(bytes.length * 2, length + count)];
+				System.arraycopy(bytes, 0, nbytes, 0, length);
+				bytes = nbytes;
+			}
+		}
+	}
+}
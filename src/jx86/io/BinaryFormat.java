@@ -0,0 +1,113 @@
+package jx86.io;
+
+import java.util.HashMap;
+
+import jx86.lang.Register;
+
+/**
+ * Defines the constants shared by <code>BinaryFileWriter</code> and
+ * <code>BinaryFileReader</code>. The binary format is laid out as follows:
+ *
+ * <pre>
+ * magic    : "JX86"
+ * version  : uv
+ * labels   : uv count, then (uv length, UTF-8 bytes) per label
+ * sections : uv count, then (u1 kind, uv length, payload) per section
+ * </pre>
+ *
+ * Here, <code>uv</code> denotes an unsigned variable-length integer, whilst
+ * signed integers are zig-zag encoded first. Labels are referenced by their
+ * index in the label table, which also holds the file names of source
+ * locations. Every instruction and constant begins with a tag
+ * identifying its kind. Tags, operations and register ids must never be changed
+ * once assigned, although new ones may be appended (in which case the version
+ * should be incremented).
+ *
+ * @author David J. Pearce
+ *
+ */
+final class BinaryFormat {
+	static final byte[] MAGIC = { 'J', 'X', '8', '6' };
+	static final int VERSION = 5;
+
+	// Sections
+	static final int SECTION_CODE = 0;
+	static final int SECTION_DATA = 1;
+	static final int SECTION_BSS = 2;
+
+	// Instructions
+	static final int INSN_LABEL = 0;
+	static final int INSN_UNIT = 1;
+	static final int INSN_REG = 2;
+	static final int INSN_REGREG = 3;
+	static final int INSN_IMMREG = 4;
+	static final int INSN_IMMINDREG = 5;
+	static final int INSN_REGIMMIND = 6;
+	static final int INSN_INDREGIMMREG = 7;
+	static final int INSN_REGINDREGIMM = 8;
+	static final int INSN_ADDR = 9;
+	static final int INSN_ADDRREG = 10;
+	static final int INSN_ADDRREGREG = 11;
+	static final int INSN_REGADDRREG = 12;
+	static final int INSN_INDREG = 13;
+	static final int INSN_IMMIND = 14;
+	static final int INSN_LOCATION = 15;
+	static final int INSN_ADDRIND = 16;
+
+	// Constants
+	static final int CONST_STRING = 0;
+	static final int CONST_WORD = 1;
+	static final int CONST_LONG = 2;
+	static final int CONST_QUAD = 3;
+	static final int CONST_BYTEARRAY = 4;
+	static final int CONST_QUADARRAY = 5;
+	static final int CONST_ZERO = 6;
+	static final int CONST_ADDRESSTABLE = 7;
+
+	/**
+	 * Maps register ids to registers. The id of a register is its index in
+	 * this array.
+	 */
+	static final Register[] REGISTERS = {
+		Register.AL, Register.AH, Register.BL, Register.BH,
+		Register.CL, Register.CH, Register.DL, Register.DH,
+		Register.AX, Register.BX, Register.CX, Register.DX,
+		Register.DI, Register.SI, Register.BP, Register.SP, Register.IP,
+		Register.EAX, Register.EBX, Register.ECX, Register.EDX,
+		Register.EDI, Register.ESI, Register.EBP, Register.ESP, Register.EIP,
+		Register.RAX, Register.RBX, Register.RCX, Register.RDX,
+		Register.RDI, Register.RSI, Register.RBP, Register.RSP, Register.RIP,
+		Register.XMM0, Register.XMM1, Register.XMM2, Register.XMM3,
+		Register.XMM4, Register.XMM5, Register.XMM6, Register.XMM7,
+		// x86_64 (extended)
+		Register.R8B, Register.R9B, Register.R10B, Register.R11B,
+		Register.R12B, Register.R13B, Register.R14B, Register.R15B,
+		Register.R8W, Register.R9W, Register.R10W, Register.R11W,
+		Register.R12W, Register.R13W, Register.R14W, Register.R15W,
+		Register.R8D, Register.R9D, Register.R10D, Register.R11D,
+		Register.R12D, Register.R13D, Register.R14D, Register.R15D,
+		Register.R8, Register.R9, Register.R10, Register.R11,
+		Register.R12, Register.R13, Register.R14, Register.R15,
+		Register.XMM8, Register.XMM9, Register.XMM10, Register.XMM11,
+		Register.XMM12, Register.XMM13, Register.XMM14, Register.XMM15
+	};
+
+	private static final HashMap<Register,Integer> REGISTER_IDS = new HashMap<Register,Integer>();
+
+	static {
+		for(int i=0;i!=REGISTERS.length;++i) {
+			REGISTER_IDS.put(REGISTERS[i], i);
+		}
+	}
+
+	static int idOf(Register register) {
+		Integer id = REGISTER_IDS.get(register);
+		if(id == null) {
+			throw new IllegalArgumentException("unknown register encountered: " + register);
+		}
+		return id;
+	}
+
+	private BinaryFormat() {
+	}
+}
@@ -0,0 +1,206 @@
+package jx86.io;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import jx86.analysis.StructuralHash;
+import jx86.lang.Instruction;
+import jx86.lang.Target;
+
+/**
+ * <p>
+ * An on-disk cache of rendered functions, keyed by a structural hash of their
+ * instructions and the compilation target. This allows functions which have
+ * not changed between builds to be copied directly from the cache, rather than
+ * being rendered again. Each entry is stored as a separate file within the
+ * cache directory, named after its key.
+ * </p>
+ *
+ * <p>
+ * The cache is bounded in size. When an entry is added which takes the total
+ * size beyond this bound, the least recently used entries are evicted. Recency
+ * is recorded using file modification times, so that it persists across
+ * builds.
+ * </p>
+ *
+ * @author David J. Pearce
+ *
+ */
+public class FunctionCache {
+	private static final String SUFFIX = ".s";
+
+	private final File directory;
+	private final Target target;
+	private final long maxBytes;
+	private final LinkedHashMap<String,Long> entries;
+	private long totalBytes;
+
+	/**
+	 * Open (or create) a cache in a given directory.
+	 *
+	 * @param directory
+	 *            Directory in which entries are stored.
+	 * @param target
+	 *            Target for which functions are compiled.
+	 * @param maxBytes
+	 *            Maximum total size of all entries.
+	 * @throws IOException
+	 */
+	public FunctionCache(File directory, Target target, long maxBytes) throws IOException {
+		if(!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("unable to create cache directory: " + directory);
+		}
+		this.directory = directory;
+		this.target = target;
+		this.maxBytes = maxBytes;
+		this.entries = new LinkedHashMap<String,Long>(16, 0.75f, true);
+		load();
+	}
+
+	/**
+	 * Compute the key for a given function body. This includes the format
+	 * version of <code>AsmFileWriter</code>, so that entries rendered by an
+	 * older writer are never reused (and are eventually evicted).
+	 *
+	 * @param instructions
+	 * @return
+	 */
+	public String keyOf(List<Instruction> instructions) {
+		return "v" + AsmFileWriter.FORMAT_VERSION + "-"
+				+ new StructuralHash().add(target).add(instructions).toHexString();
+	}
+
+	/**
+	 * Return the cached text for a given key, or <code>null</code> if there is
+	 * no such entry.
+	 *
+	 * @param key
+	 * @return
+	 * @throws IOException
+	 */
+	public synchronized String get(String key) throws IOException {
+		if(!entries.containsKey(key)) {
+			return null;
+		}
+		File file = fileOf(key);
+		if(!file.exists()) {
+			// removed externally
+			totalBytes -= entries.remove(key);
+			return null;
+		}
+		file.setLastModified(System.currentTimeMillis());
+		return new String(read(file), "UTF-8");
+	}
+
+	/**
+	 * Add an entry to the cache, evicting least recently used entries as
+	 * necessary.
+	 *
+	 * @param key
+	 * @param text
+	 * @throws IOException
+	 */
+	public synchronized void put(String key, String text) throws IOException {
+		byte[] bytes = text.getBytes("UTF-8");
+		// Use a unique temporary file, since other processes may be writing
+		// the same entry into a shared cache directory.
+		File tmp = File.createTempFile(key, ".tmp", directory);
+		try {
+			OutputStream out = new FileOutputStream(tmp);
+			try {
+				out.write(bytes);
+			} finally {
+				out.close();
+			}
+		} catch(IOException e) {
+			tmp.delete();
+			throw e;
+		}
+		File file = fileOf(key);
+		if((file.exists() && !file.delete()) || !tmp.renameTo(file)) {
+			tmp.delete();
+			throw new IOException("unable to write cache entry: " + file);
+		}
+		Long old = entries.put(key, (long) bytes.length);
+		totalBytes += bytes.length - (old == null ? 0 : old);
+		evict();
+	}
+
+	/**
+	 * Return the total number of bytes held in this cache.
+	 *
+	 * @return
+	 */
+	public synchronized long size() {
+		return totalBytes;
+	}
+
+	// ============================================
+	// Helpers
+	// ============================================
+
+	/**
+	 * Load existing entries, ordered from least to most recently used.
+	 */
+	private void load() {
+		File[] files = directory.listFiles();
+		if(files == null) {
+			return;
+		}
+		Arrays.sort(files, new Comparator<File>() {
+			public int compare(File f1, File f2) {
+				long t1 = f1.lastModified();
+				long t2 = f2.lastModified();
+				return t1 < t2 ? -1 : (t1 == t2 ? 0 : 1);
+			}
+		});
+		for(File file : files) {
+			String name = file.getName();
+			if(name.endsWith(SUFFIX)) {
+				entries.put(name.substring(0, name.length() - SUFFIX.length()), file.length());
+				totalBytes += file.length();
+			}
+		}
+		evict();
+	}
+
+	private void evict() {
+		Iterator<Map.Entry<String,Long>> iterator = entries.entrySet().iterator();
+		while(totalBytes > maxBytes && iterator.hasNext()) {
+			Map.Entry<String,Long> eldest = iterator.next();
+			fileOf(eldest.getKey()).delete();
+			totalBytes -= eldest.getValue();
+			iterator.remove();
+		}
+	}
+
+	private File fileOf(String key) {
+		return new File(directory, key + SUFFIX);
+	}
+
+	private static byte[] read(File file) throws IOException {
+		InputStream in = new FileInputStream(file);
+		try {
+			ByteArrayOutputStream bout = new ByteArrayOutputStream((int) file.length());
+			byte[] buffer = new byte[8192];
+			int n;
+			while((n = in.read(buffer)) >= 0) {
+				bout.write(buffer, 0, n);
+			}
+			return bout.toByteArray();
+		} finally {
+			in.close();
+		}
+	}
+}
@@ -0,0 +1,119 @@
+package jx86.io;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * <p>
+ * Responsible for writing symbol maps in the format understood by the Linux
+ * <code>perf</code> tool. This allows samples taken in code generated at
+ * runtime (i.e. by a JIT) to be attributed to the function they belong to.
+ * Each line of the map has the form:
+ * </p>
+ *
+ * <pre>
+ * START SIZE name
+ * </pre>
+ *
+ * <p>
+ * where <code>START</code> and <code>SIZE</code> are given in hexadecimal.
+ * The extent of each symbol must be supplied by the caller, and should be
+ * taken from the machine code actually produced (e.g. the symbol table of the
+ * assembled object). Extents estimated from instructions are deliberately not
+ * supported, since a map which is slightly wrong attributes samples to the
+ * wrong function without any indication.
+ * </p>
+ *
+ * @author David J. Pearce
+ *
+ */
+public class PerfMapWriter {
+	private final PrintStream out;
+
+	/**
+	 * Open a perf map for appending, as is expected by <code>perf</code> when
+	 * code is generated incrementally.
+	 *
+	 * @param file
+	 * @throws IOException
+	 */
+	public PerfMapWriter(File file) throws IOException {
+		this(new FileOutputStream(file, true));
+	}
+
+	public PerfMapWriter(OutputStream output) {
+		this.out = new PrintStream(output);
+	}
+
+	/**
+	 * Return the location where <code>perf</code> looks for the map of a given
+	 * process.
+	 *
+	 * @param pid
+	 * @return
+	 */
+	public static File fileFor(long pid) {
+		return new File("/tmp/perf-" + pid + ".map");
+	}
+
+	public void close() {
+		out.close();
+	}
+
+	/**
+	 * Write an entry for a single symbol.
+	 *
+	 * @param name
+	 *            Name of the symbol.
+	 * @param address
+	 *            Address at which the symbol is loaded.
+	 * @param size
+	 *            Size of the symbol in bytes.
+	 */
+	public void write(String name, long address, long size) {
+		if(size < 0) {
+			throw new IllegalArgumentException("negative symbol size: " + name);
+		}
+		out.println(Long.toHexString(address) + " " + Long.toHexString(size) + " " + name);
+		out.flush();
+	}
+
+	/**
+	 * Write entries for every symbol in a block of code loaded at a given
+	 * address. Each symbol is taken to extend up to the next symbol, or to
+	 * the end of the block for the last.
+	 *
+	 * @param offsets
+	 *            Exact offset of each symbol from the start of the block.
+	 * @param size
+	 *            Size of the block in bytes.
+	 * @param baseAddress
+	 *            Address at which the block is loaded.
+	 */
+	public void write(Map<String,Long> offsets, long size, long baseAddress) {
+		List<Map.Entry<String,Long>> symbols = new ArrayList<Map.Entry<String,Long>>(offsets.entrySet());
+		Collections.sort(symbols, new Comparator<Map.Entry<String,Long>>() {
+			public int compare(Map.Entry<String,Long> e1, Map.Entry<String,Long> e2) {
+				return e1.getValue().compareTo(e2.getValue());
+			}
+		});
+		for(int i=0;i!=symbols.size();++i) {
+			long begin = symbols.get(i).getValue();
+			long end = i + 1 < symbols.size() ? symbols.get(i + 1).getValue() : size;
+			if(begin < 0 || end > size) {
+				throw new IllegalArgumentException("symbol outside block: " + symbols.get(i).getKey());
+			}
+			out.println(Long.toHexString(baseAddress + begin) + " "
+					+ Long.toHexString(end - begin) + " " + symbols.get(i).getKey());
+		}
+		out.flush();
+	}
+}
@@ -0,0 +1,327 @@
+package jx86.io;
+
+import java.util.HashMap;
+
+import jx86.lang.Instruction;
+import jx86.lang.X86File;
+
+/**
+ * Records statistics about the output produced by an
+ * <code>AsmFileWriter</code>, such as the number of instructions of each kind
+ * written, and the number of bytes and time spent on each kind of section.
+ * The same figures are also kept for each individual section, in the order
+ * written, so that pathological sections can be identified. Statistics are
+ * maintained using simple counters, and recording them performs no
+ * allocation beyond occasionally growing the per-section arrays. Hence, they
+ * are cheap enough to leave enabled in production. Statistics are not
+ * thread-safe, and should not be shared between writers used concurrently.
+ *
+ * @author David J. Pearce
+ *
+ */
+public final class WriterStatistics {
+	private static final Class<?>[] INSTRUCTION_KINDS = {
+		Instruction.Label.class,
+		Instruction.Location.class,
+		Instruction.Unit.class,
+		Instruction.Reg.class,
+		Instruction.RegReg.class,
+		Instruction.ImmReg.class,
+		Instruction.ImmIndReg.class,
+		Instruction.RegImmInd.class,
+		Instruction.IndRegImmReg.class,
+		Instruction.RegIndRegImm.class,
+		Instruction.Addr.class,
+		Instruction.AddrReg.class,
+		Instruction.AddrRegReg.class,
+		Instruction.RegAddrReg.class,
+		Instruction.IndReg.class,
+		Instruction.ImmInd.class,
+		Instruction.AddrInd.class
+	};
+
+	private static final Class<?>[] SECTION_KINDS = {
+		X86File.Code.class,
+		X86File.Data.class,
+		X86File.Bss.class
+	};
+
+	private static final HashMap<Class<?>,Integer> INDICES = new HashMap<Class<?>,Integer>();
+
+	static {
+		for(int i=0;i!=INSTRUCTION_KINDS.length;++i) {
+			INDICES.put(INSTRUCTION_KINDS[i], i);
+		}
+		for(int i=0;i!=SECTION_KINDS.length;++i) {
+			INDICES.put(SECTION_KINDS[i], i);
+		}
+	}
+
+	private final long[] instructions = new long[INSTRUCTION_KINDS.length];
+	private final long[] sections = new long[SECTION_KINDS.length];
+	private final long[] sectionBytes = new long[SECTION_KINDS.length];
+	private final long[] sectionNanos = new long[SECTION_KINDS.length];
+	private long constants;
+	private long instructionTotal;
+
+	// Per-section figures, in the order sections were written
+	private int written;
+	private int[] writtenKinds = new int[4];
+	private long[] writtenBytes = new long[4];
+	private long[] writtenNanos = new long[4];
+	private long[] writtenInstructions = new long[4];
+	private long[] writtenConstants = new long[4];
+	// Totals at the start of the section being written
+	private long startInstructions;
+	private long startConstants;
+
+	// ============================================
+	// Accessors
+	// ============================================
+
+	/**
+	 * Return the number of instructions of a given kind written.
+	 *
+	 * @param kind
+	 * @return
+	 */
+	public long getInstructionCount(Class<? extends Instruction> kind) {
+		Integer index = INDICES.get(kind);
+		return index == null ? 0 : instructions[index];
+	}
+
+	/**
+	 * Return the total number of instructions written.
+	 *
+	 * @return
+	 */
+	public long getInstructionCount() {
+		long total = 0;
+		for(long count : instructions) {
+			total += count;
+		}
+		return total;
+	}
+
+	/**
+	 * Return the total number of constants written.
+	 *
+	 * @return
+	 */
+	public long getConstantCount() {
+		return constants;
+	}
+
+	/**
+	 * Return the number of sections of a given kind written.
+	 *
+	 * @param kind
+	 * @return
+	 */
+	public long getSectionCount(Class<? extends X86File.Section> kind) {
+		Integer index = INDICES.get(kind);
+		return index == null ? 0 : sections[index];
+	}
+
+	/**
+	 * Return the number of bytes written for sections of a given kind.
+	 *
+	 * @param kind
+	 * @return
+	 */
+	public long getBytesWritten(Class<? extends X86File.Section> kind) {
+		Integer index = INDICES.get(kind);
+		return index == null ? 0 : sectionBytes[index];
+	}
+
+	/**
+	 * Return the total number of bytes written for all sections.
+	 *
+	 * @return
+	 */
+	public long getBytesWritten() {
+		long total = 0;
+		for(long count : sectionBytes) {
+			total += count;
+		}
+		return total;
+	}
+
+	/**
+	 * Return the wall-clock time (in nanoseconds) spent writing sections of a
+	 * given kind.
+	 *
+	 * @param kind
+	 * @return
+	 */
+	public long getNanos(Class<? extends X86File.Section> kind) {
+		Integer index = INDICES.get(kind);
+		return index == null ? 0 : sectionNanos[index];
+	}
+
+	/**
+	 * Return the total number of sections written.
+	 *
+	 * @return
+	 */
+	public int getSectionCount() {
+		return written;
+	}
+
+	/**
+	 * Return the kind of the ith section written.
+	 *
+	 * @param i
+	 * @return
+	 */
+	public Class<?> getSectionKind(int i) {
+		return SECTION_KINDS[writtenKinds[checkSection(i)]];
+	}
+
+	/**
+	 * Return the number of bytes written for the ith section.
+	 *
+	 * @param i
+	 * @return
+	 */
+	public long getSectionBytes(int i) {
+		return writtenBytes[checkSection(i)];
+	}
+
+	/**
+	 * Return the wall-clock time (in nanoseconds) spent writing the ith
+	 * section.
+	 *
+	 * @param i
+	 * @return
+	 */
+	public long getSectionNanos(int i) {
+		return writtenNanos[checkSection(i)];
+	}
+
+	/**
+	 * Return the number of instructions written in the ith section.
+	 *
+	 * @param i
+	 * @return
+	 */
+	public long getSectionInstructions(int i) {
+		return writtenInstructions[checkSection(i)];
+	}
+
+	/**
+	 * Return the number of constants written in the ith section.
+	 *
+	 * @param i
+	 * @return
+	 */
+	public long getSectionConstants(int i) {
+		return writtenConstants[checkSection(i)];
+	}
+
+	/**
+	 * Reset all counters to zero.
+	 */
+	public void reset() {
+		java.util.Arrays.fill(instructions, 0);
+		java.util.Arrays.fill(sections, 0);
+		java.util.Arrays.fill(sectionBytes, 0);
+		java.util.Arrays.fill(sectionNanos, 0);
+		constants = 0;
+		instructionTotal = 0;
+		written = 0;
+		startInstructions = 0;
+		startConstants = 0;
+	}
+
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		for(int i=0;i!=SECTION_KINDS.length;++i) {
+			sb.append(SECTION_KINDS[i].getSimpleName()).append(": ")
+					.append(sections[i]).append(" sections, ")
+					.append(sectionBytes[i]).append(" bytes, ")
+					.append(sectionNanos[i] / 1000).append("us\n");
+		}
+		for(int i=0;i!=INSTRUCTION_KINDS.length;++i) {
+			if(instructions[i] != 0) {
+				sb.append(INSTRUCTION_KINDS[i].getSimpleName()).append(": ")
+						.append(instructions[i]).append('\n');
+			}
+		}
+		sb.append("Constants: ").append(constants).append('\n');
+		for(int i=0;i!=written;++i) {
+			sb.append("Section ").append(i).append(" (")
+					.append(SECTION_KINDS[writtenKinds[i]].getSimpleName()).append("): ")
+					.append(writtenInstructions[i]).append(" instructions, ")
+					.append(writtenConstants[i]).append(" constants, ")
+					.append(writtenBytes[i]).append(" bytes, ")
+					.append(writtenNanos[i] / 1000).append("us\n");
+		}
+		return sb.toString();
+	}
+
+	// ============================================
+	// Recording
+	// ============================================
+
+	void record(Instruction insn) {
+		Integer index = INDICES.get(insn.getClass());
+		if(index != null) {
+			instructions[index]++;
+		}
+		instructionTotal++;
+	}
+
+	void recordConstant() {
+		constants++;
+	}
+
+	/**
+	 * Mark the start of a section, whose figures are then recorded by
+	 * <code>recordSection()</code>.
+	 */
+	void beginSection() {
+		startInstructions = instructionTotal;
+		startConstants = constants;
+	}
+
+	void recordSection(X86File.Section section, long bytes, long nanos) {
+		Class<?> kind = section.getClass();
+		Integer index = INDICES.get(kind);
+		while(index == null && kind.getSuperclass() != null) {
+			// subclass of a known section kind
+			kind = kind.getSuperclass();
+			index = INDICES.get(kind);
+		}
+		if(index != null) {
+			sections[index]++;
+			sectionBytes[index] += bytes;
+			sectionNanos[index] += nanos;
+			if(written == writtenKinds.length) {
+				grow();
+			}
+			writtenKinds[written] = index;
+			writtenBytes[written] = bytes;
+			writtenNanos[written] = nanos;
+			writtenInstructions[written] = instructionTotal - startInstructions;
+			writtenConstants[written] = constants - startConstants;
+			written++;
+		}
+	}
+
+	private void grow() {
+		int n = written * 2;
+		writtenKinds = java.util.Arrays.copyOf(writtenKinds, n);
+		writtenBytes = java.util.Arrays.copyOf(writtenBytes, n);
+		writtenNanos = java.util.Arrays.copyOf(writtenNanos, n);
+		writtenInstructions = java.util.Arrays.copyOf(writtenInstructions, n);
+		writtenConstants = java.util.Arrays.copyOf(writtenConstants, n);
+	}
+
+	private int checkSection(int i) {
+		if(i < 0 || i >= written) {
+			throw new IllegalArgumentException("invalid section index: " + i);
+		}
+		return i;
+	}
+}
@@ -0,0 +1,302 @@
+package jx86.lang;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * <p>
+ * Describes how functions are called on a given target. That is, which
+ * registers pass arguments and return values, which registers a callee may
+ * clobber (caller-saved) or must preserve (callee-saved), and the alignment
+ * required of the stack at a call.
+ * </p>
+ *
+ * <p>
+ * Registers are identified by family, hence asking whether
+ * <code>%eax</code> is caller-saved gives the same answer as for
+ * <code>%rax</code>.
+ * </p>
+ *
+ * @author David J. Pearce
+ *
+ */
+public final class CallingConvention {
+
+	// ============================================
+	// Conventions
+	// ============================================
+
+	/**
+	 * The System V AMD64 calling convention, as used on Linux and Mac OS X.
+	 * Integer arguments are passed in <code>%rdi</code>, <code>%rsi</code>,
+	 * <code>%rdx</code>, <code>%rcx</code>, <code>%r8</code> and
+	 * <code>%r9</code>, whilst floating point arguments are passed in
+	 * <code>%xmm0</code>-<code>%xmm7</code>. Leaf functions may use the 128
+	 * bytes below the stack pointer (the "red zone").
+	 */
+	public static final CallingConvention SYSTEM_V = new CallingConvention(
+			"System V",
+			new Register[] {
+				Register.RDI, Register.RSI, Register.RDX, Register.RCX, Register.R8, Register.R9
+			},
+			new Register[] {
+				Register.XMM0, Register.XMM1, Register.XMM2, Register.XMM3,
+				Register.XMM4, Register.XMM5, Register.XMM6, Register.XMM7
+			},
+			new Register[] {
+				Register.RAX, Register.RDX, Register.XMM0, Register.XMM1
+			},
+			new Register[] {
+				Register.RAX, Register.RCX, Register.RDX, Register.RSI, Register.RDI,
+				Register.R8, Register.R9, Register.R10, Register.R11,
+				Register.XMM0, Register.XMM1, Register.XMM2, Register.XMM3,
+				Register.XMM4, Register.XMM5, Register.XMM6, Register.XMM7,
+				Register.XMM8, Register.XMM9, Register.XMM10, Register.XMM11,
+				Register.XMM12, Register.XMM13, Register.XMM14, Register.XMM15
+			},
+			new Register[] {
+				Register.RBX, Register.RBP, Register.R12, Register.R13, Register.R14, Register.R15
+			},
+			Register.RSP, 16, 128);
+
+	/**
+	 * The <code>cdecl</code> calling convention, as used on 32-bit Linux.
+	 * All arguments are passed on the stack, and integer values are returned
+	 * in <code>%eax</code> (and <code>%edx</code>). The stack is assumed to be
+	 * 16-byte aligned at calls, as required by current versions of the i386
+	 * System V ABI.
+	 */
+	public static final CallingConvention CDECL = new CallingConvention(
+			"cdecl",
+			new Register[0],
+			new Register[0],
+			new Register[] {
+				Register.EAX, Register.EDX
+			},
+			new Register[] {
+				Register.EAX, Register.ECX, Register.EDX,
+				Register.XMM0, Register.XMM1, Register.XMM2, Register.XMM3,
+				Register.XMM4, Register.XMM5, Register.XMM6, Register.XMM7
+			},
+			new Register[] {
+				Register.EBX, Register.ESI, Register.EDI, Register.EBP
+			},
+			Register.ESP, 16, 0);
+
+	// ============================================
+	// Fields
+	// ============================================
+
+	public final String name;
+
+	/**
+	 * Registers used to pass integer (and pointer) arguments, in order.
+	 */
+	public final List<Register> integerArguments;
+
+	/**
+	 * Registers used to pass floating point arguments, in order.
+	 */
+	public final List<Register> floatArguments;
+
+	/**
+	 * Registers used to return values.
+	 */
+	public final List<Register> returns;
+
+	/**
+	 * Registers which a callee may overwrite without restoring.
+	 */
+	public final List<Register> callerSaved;
+
+	/**
+	 * Registers which a callee must restore before returning.
+	 */
+	public final List<Register> calleeSaved;
+
+	/**
+	 * The stack pointer, which determines the width of a stack slot.
+	 */
+	public final Register stackPointer;
+
+	/**
+	 * Alignment (in bytes) of the stack pointer required at a call.
+	 */
+	public final int stackAlignment;
+
+	/**
+	 * Number of bytes below the stack pointer which are reserved for the
+	 * current function, and not clobbered by signal handlers.
+	 */
+	public final int redZone;
+
+	// ============================================
+	// Constructors
+	// ============================================
+
+	private CallingConvention(String name, Register[] integerArguments,
+			Register[] floatArguments, Register[] returns, Register[] callerSaved,
+			Register[] calleeSaved, Register stackPointer, int stackAlignment, int redZone) {
+		this.name = name;
+		this.integerArguments = list(integerArguments);
+		this.floatArguments = list(floatArguments);
+		this.returns = list(returns);
+		this.callerSaved = list(callerSaved);
+		this.calleeSaved = list(calleeSaved);
+		this.stackPointer = stackPointer;
+		this.stackAlignment = stackAlignment;
+		this.redZone = redZone;
+	}
+
+	// ============================================
+	// Accessors
+	// ============================================
+
+	public boolean isCallerSaved(Register register) {
+		return contains(callerSaved, register);
+	}
+
+	public boolean isCalleeSaved(Register register) {
+		return contains(calleeSaved, register);
+	}
+
+	public boolean isReturn(Register register) {
+		return contains(returns, register);
+	}
+
+	public boolean isArgument(Register register) {
+		return contains(integerArguments, register) || contains(floatArguments, register);
+	}
+
+	/**
+	 * <p>
+	 * Generate the sequence for calling a given function, which preserves a
+	 * given set of registers whose values are live across the call. Only
+	 * those registers which are caller-saved, and are not used by the callee
+	 * to return its results, are actually saved. Thus, a return register
+	 * which the callee does not use (e.g. <code>%rdx</code> for a function
+	 * returning a single integer) is preserved like any other. The stack
+	 * pointer is adjusted so that
+	 * its alignment at the call matches that before the sequence. General
+	 * purpose registers are saved using <code>push</code>, whilst the low 64
+	 * bits of SSE registers are saved to stack slots. For example, preserving
+	 * <code>%rdi</code>, <code>%rbx</code> and <code>%xmm2</code> gives:
+	 * </p>
+	 *
+	 * <pre>
+	 * pushq %rdi
+	 * leaq -8(%rsp), %rsp
+	 * movsd %xmm2, 0(%rsp)
+	 * call f
+	 * movsd 0(%rsp), %xmm2
+	 * leaq 8(%rsp), %rsp
+	 * popq %rdi
+	 * </pre>
+	 *
+	 * <p>
+	 * The sequence does not affect the flags, other than through the call
+	 * itself. Since it changes the stack pointer before the call, it cannot
+	 * be used for calls which pass arguments on the stack.
+	 * </p>
+	 *
+	 * @param callee
+	 *            Label of function being called.
+	 * @param live
+	 *            Registers whose values must be preserved across the call.
+	 * @param results
+	 *            Registers in which the callee returns its results, which
+	 *            must be return registers of this convention.
+	 * @return
+	 */
+	public List<Instruction> call(String callee, Collection<Register> live,
+			Collection<Register> results) {
+		for(Register r : results) {
+			if(!contains(returns, r)) {
+				throw new IllegalArgumentException("not a return register: " + r);
+			}
+		}
+		Register sp = stackPointer;
+		int width = sp.width() == Register.Width.Quad ? 8 : 4;
+		ArrayList<Register> pushed = new ArrayList<Register>();
+		ArrayList<Register> spilled = new ArrayList<Register>();
+		for(Register r : callerSaved) {
+			if(!contains(results, r) && contains(live, r)) {
+				if(r.width() == Register.Width.ScalarDouble) {
+					spilled.add(r);
+				} else {
+					pushed.add(r);
+				}
+			}
+		}
+		int size = (width * pushed.size()) + (8 * spilled.size());
+		int padding = (stackAlignment - (size % stackAlignment)) % stackAlignment;
+		int slots = (8 * spilled.size()) + padding;
+		ArrayList<Instruction> result = new ArrayList<Instruction>();
+		for(Register r : pushed) {
+			result.add(new Instruction.Reg(Instruction.RegOp.push, r));
+		}
+		if(slots != 0) {
+			result.add(new Instruction.ImmIndReg(Instruction.ImmIndRegOp.lea, -slots, sp, sp));
+		}
+		for(int i=0;i!=spilled.size();++i) {
+			result.add(new Instruction.RegImmInd(Instruction.RegImmIndOp.mov, spilled.get(i), 8 * i, sp));
+		}
+		result.add(new Instruction.Addr(Instruction.AddrOp.call, callee));
+		for(int i=0;i!=spilled.size();++i) {
+			result.add(new Instruction.ImmIndReg(Instruction.ImmIndRegOp.mov, 8 * i, sp, spilled.get(i)));
+		}
+		if(slots != 0) {
+			result.add(new Instruction.ImmIndReg(Instruction.ImmIndRegOp.lea, slots, sp, sp));
+		}
+		for(int i=pushed.size()-1;i>=0;--i) {
+			result.add(new Instruction.Reg(Instruction.RegOp.pop, pushed.get(i)));
+		}
+		return result;
+	}
+
+	public String toString() {
+		return name;
+	}
+
+	// ============================================
+	// Helpers
+	// ============================================
+
+	private static List<Register> list(Register[] registers) {
+		return Collections.unmodifiableList(Arrays.asList(registers));
+	}
+
+	/**
+	 * Determine whether a given collection contains a register from the same
+	 * family as a given register.
+	 *
+	 * @param registers
+	 * @param register
+	 * @return
+	 */
+	private static boolean contains(Collection<Register> registers, Register register) {
+		for(Register r : registers) {
+			if(sameFamily(r, register)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static boolean sameFamily(Register r1, Register r2) {
+		if(r1 == r2) {
+			return true;
+		} else if(isSSE(r1) || isSSE(r2)) {
+			return false;
+		}
+		return r1.family() == r2.family();
+	}
+
+	private static boolean isSSE(Register register) {
+		Register.Width width = register.width();
+		return width == Register.Width.ScalarDouble || width == Register.Width.ScalarSingle;
+	}
+}
@@ -17,6 +17,14 @@ public abstract class Constant {
 		this.global = global;
 	}
 	
+	/**
+	 * Return the number of bytes occupied by this constant in the data
+	 * segment, excluding any alignment padding.
+	 * 
+	 * @return
+	 */
+	public abstract long sizeInBytes();
+	
 	/**
 	 * Construct a string constant.
 	 * 
@@ -35,6 +43,14 @@ public abstract class Constant {
 			super(label,alignment,global);
 			this.value = value;
 		}
+		
+		public long sizeInBytes() {
+			try {
+				return value.getBytes("UTF-8").length + 1; // null terminated
+			} catch(java.io.UnsupportedEncodingException e) {
+				throw new RuntimeException(e);
+			}
+		}
 	}
 	
 	/**
@@ -55,6 +71,10 @@ public abstract class Constant {
 			super(label,alignment,global);
 			this.value = value;
 		}
+		
+		public long sizeInBytes() {
+			return 2;
+		}
 	}
 	
 	/**
@@ -75,6 +95,10 @@ public abstract class Constant {
 			super(label,alignment,global);
 			this.value = value;
 		}
+		
+		public long sizeInBytes() {
+			return 4;
+		}
 	}
 	
 	/**
@@ -95,5 +119,122 @@ public abstract class Constant {
 			super(label,alignment,global);
 			this.value = value;
 		}
+		
+		public long sizeInBytes() {
+			return 8;
+		}
+	}
+	
+	/**
+	 * Construct a constant from an array of bytes. This allows large tables to
+	 * be represented compactly, rather than as one constant per element.
+	 * 
+	 * @author David J. Pearce
+	 *
+	 */
+	public static final class ByteArray extends Constant {
+		public final byte[] values;
+		
+		public ByteArray(java.lang.String label, byte[] values) {
+			super(label,1,false);
+			this.values = values;
+		}
+		
+		public ByteArray(java.lang.String label, int alignment, boolean global, byte[] values) {
+			super(label,alignment,global);
+			this.values = values;
+		}
+		
+		/**
+		 * Construct a byte array constant from the remaining bytes of a given
+		 * buffer. The buffer's position is not changed.
+		 */
+		public ByteArray(java.lang.String label, int alignment, boolean global, java.nio.ByteBuffer buffer) {
+			super(label,alignment,global);
+			this.values = new byte[buffer.remaining()];
+			buffer.duplicate().get(values);
+		}
+		
+		public long sizeInBytes() {
+			return values.length;
+		}
+	}
+	
+	/**
+	 * Construct a constant from an array of quad words. This allows large
+	 * tables to be represented compactly, rather than as one constant per
+	 * element.
+	 * 
+	 * @author David J. Pearce
+	 *
+	 */
+	public static final class QuadArray extends Constant {
+		public final long[] values;
+		
+		public QuadArray(java.lang.String label, long[] values) {
+			super(label,1,false);
+			this.values = values;
+		}
+		
+		public QuadArray(java.lang.String label, int alignment, boolean global, long[] values) {
+			super(label,alignment,global);
+			this.values = values;
+		}
+		
+		public long sizeInBytes() {
+			return values.length * 8L;
+		}
+	}
+	
+	/**
+	 * Construct a zero-initialised block of a given number of bytes. This is
+	 * the only kind of constant permitted in a <code>Bss</code> section.
+	 * 
+	 * @author David J. Pearce
+	 *
+	 */
+	public static final class Zero extends Constant {
+		public final long size;
+		
+		public Zero(java.lang.String label, long size) {
+			super(label,1,false);
+			this.size = size;
+		}
+		
+		public Zero(java.lang.String label, int alignment, boolean global, long size) {
+			super(label,alignment,global);
+			this.size = size;
+		}
+		
+		public long sizeInBytes() {
+			return size;
+		}
+	}
+	
+	/**
+	 * Construct a table of (64-bit) label addresses, such as used for
+	 * implementing a jump table. On x86_64, absolute addresses in the data
+	 * segment remain valid in position-independent code, since the dynamic
+	 * linker relocates them on loading.
+	 * 
+	 * @author David J. Pearce
+	 *
+	 */
+	public static final class AddressTable extends Constant {
+		public final java.lang.String[] targets;
+		
+		public AddressTable(java.lang.String label, java.lang.String[] targets) {
+			super(label,8,false);
+			this.targets = targets;
+		}
+		
+		public AddressTable(java.lang.String label, int alignment, boolean global, java.lang.String[] targets) {
+			super(label,alignment,global);
+			this.targets = targets;
+		}
+		
+		public long sizeInBytes() {
+			return targets.length * 8L;
+		}
 	}
 }
@@ -37,6 +37,41 @@ public interface Instruction {
 		}
 	}
 
+	/**
+	 * Represents the source location from which the following instructions
+	 * were generated. This is a pseudo-instruction which generates no machine
+	 * code, but allows debuggers and profilers to attribute code back to the
+	 * original source. A location remains in effect until the next location is
+	 * encountered.
+	 * 
+	 * @author David J. Pearce
+	 * 
+	 */
+	public final class Location implements Instruction {
+		public final String file;
+		public final int line;
+		public final int column;
+		
+		public Location(String file, int line) {
+			this(file, line, 0);
+		}
+		
+		public Location(String file, int line, int column) {
+			if(line < 1) {
+				throw new IllegalArgumentException("invalid line number: " + line);
+			} else if(column < 0) {
+				throw new IllegalArgumentException("invalid column number: " + column);
+			}
+			this.file = file;
+			this.line = line;
+			this.column = column;
+		}
+		
+		public String toString() {
+			return "# " + file + ":" + line + ":" + column;
+		}
+	}
+
 	// ============================================================
 	// Unit Operationrs
 	// ============================================================	
@@ -126,6 +161,7 @@ public interface Instruction {
 		sar,     // Shift Arithmetic Right
 		shl,     // Shift Left
 		shr,     // Shift Right
+		mul,     // Unsigned multiply (rdx:rax = rax * operand)
 	}
 	
 	/**
@@ -245,6 +281,9 @@ public interface Instruction {
 		or,      // Logical Inclusive OR
 		and,      // Logical AND				
 		xor,	// Logical Exclusive OR
+		shl,     // Shift Left
+		shr,     // Shift Right (unsigned)
+		sar,     // Shift Arithmetic Right (signed)
 	}
 	
 	/**
@@ -315,7 +354,8 @@ public interface Instruction {
 	// ============================================================
 	
 	public enum ImmIndRegOp {
-		mov				
+		mov,
+		lea   // Load effective address
 	}
 	
 	/**
@@ -459,7 +499,8 @@ public interface Instruction {
 	// ============================================================
 
 	public enum IndRegImmRegOp {
-		mov
+		mov,
+		lea   // Load effective address
 	}
 	
 	/**
@@ -486,6 +527,9 @@ public interface Instruction {
 		public final Register targetOperand;
 		
 		public IndRegImmReg(IndRegImmRegOp op, Register baseOperand, Register indexOperand, long scaling, Register targetOperand) {
+			if(Register.isInstructionPointer(baseOperand) || Register.isInstructionPointer(indexOperand)) {
+				throw new IllegalArgumentException("instruction pointer cannot be indexed");
+			}
 			this.operation = op;
 			this.baseOperand = baseOperand;
 			this.indexOperand = indexOperand;
@@ -527,6 +571,9 @@ public interface Instruction {
 		public final long scaling;
 		
 		public RegIndRegImm(RegIndRegImmOp op, Register sourceOperand, Register baseOperand, Register indexOperand, long scaling) {
+			if(Register.isInstructionPointer(baseOperand) || Register.isInstructionPointer(indexOperand)) {
+				throw new IllegalArgumentException("instruction pointer cannot be indexed");
+			}
 			this.operation = op;
 			this.sourceOperand = sourceOperand;
 			this.baseOperand = baseOperand;
@@ -584,6 +631,7 @@ public interface Instruction {
 		loopz,  // Loop according r/e/cx
 		loopne,  // Loop according r/e/cx
 		loopnz,  // Loop according r/e/cx
+		jrcxz, // Jump if rcx == 0 (x86_64 only)
 	}
 	
 	/**
@@ -641,7 +689,10 @@ public interface Instruction {
 	 * </pre>
 	 * 
 	 * This loads the address of the given label into the <code>eax</code>
-	 * register.
+	 * register. Note that the label is used as an absolute address, which is
+	 * not permitted in position-independent code on x86_64. In such case,
+	 * <code>AddrRegReg</code> should be used with the <code>%rip</code>
+	 * register instead.
 	 * 
 	 * @author David J. Pearce
 	 * 
@@ -672,7 +723,13 @@ public interface Instruction {
 	
 	public enum AddrRegRegOp {
 		lea,  // Load effective address
-		mov
+		mov,
+		add,
+		sub,
+		cmp,
+		and,  // Logical AND
+		or,   // Logical Inclusive OR
+		xor   // Logical Exclusive OR
 	}
 	
 	/**
@@ -687,6 +744,18 @@ public interface Instruction {
 	 * This loads the address of the given label into the <code>eax</code>
 	 * register.
 	 * 
+	 * <p>
+	 * A label relative to the instruction pointer (i.e. <code>label(%rip)</code>)
+	 * is supported by every form whose memory operand is determined from a
+	 * register and a displacement: as the source operand of this form, as the
+	 * target operand of <code>RegAddrReg</code>, and as the target address of
+	 * an indirect branch using <code>AddrInd</code>. These are the label
+	 * counterparts of <code>ImmIndReg</code>, <code>RegImmInd</code> and
+	 * <code>ImmInd</code> respectively, which take numeric displacements
+	 * only. Indexed forms cannot use the instruction pointer at all, since
+	 * the processor has no such encoding.
+	 * </p>
+	 * 
 	 * @author David J. Pearce
 	 * 
 	 */
@@ -713,9 +782,260 @@ public interface Instruction {
 			this.rightOperand = rightOperand;
 		}
 
+		/**
+		 * Create a ternary instruction whose source operand is a label
+		 * relative to the instruction pointer (e.g.
+		 * <code>movq label(%rip), %rax</code>). This is the preferred way to
+		 * access data on x86_64, since it requires only a 32-bit displacement
+		 * and works in position-independent code.
+		 * 
+		 * @param operation
+		 *            Operation to perform
+		 * @param leftOperand
+		 *            Label of the source operand
+		 * @param rightOperand
+		 *            Register operand
+		 */
+		public AddrRegReg(AddrRegRegOp operation, String leftOperand,
+				Register rightOperand) {
+			this(operation, leftOperand, Register.RIP, rightOperand);
+		}
+
 		public String toString() {
 			return operation.toString() + " " + leftOperand_1 + "(%"
 					+ leftOperand_2 + "), %" + rightOperand;
 		}
 	}
+	
+	public enum RegAddrRegOp {
+		mov,
+		add,
+		sub,
+		cmp,
+		and,  // Logical AND
+		or,   // Logical Inclusive OR
+		xor   // Logical Exclusive OR
+	}
+	
+	/**
+	 * Represents a ternary instruction which uses a register source operand
+	 * and a target operand constructed from a constant address and a register.
+	 * For example, storing to a global variable relative to the instruction
+	 * pointer is implemented in this way:
+	 * 
+	 * <pre>
+	 * movq %rax, label(%rip)
+	 * </pre>
+	 * 
+	 * This stores the contents of the <code>rax</code> register into the
+	 * location given by <code>label</code>. Other operations combine the
+	 * register with the location, writing the result back to it (except for
+	 * <code>cmp</code>, which only sets the flags).
+	 * 
+	 * @author David J. Pearce
+	 * 
+	 */
+	public final class RegAddrReg implements Instruction {
+		public final RegAddrRegOp operation;
+		public final Register leftOperand;
+		public final String rightOperand_1;
+		public final Register rightOperand_2;
+
+		/**
+		 * Create a ternary instruction with a register source operand, and a
+		 * composite address/register target operand.
+		 * 
+		 * @param operation
+		 *            Operation to perform
+		 * @param leftOperand
+		 *            Register operand
+		 * @param rightOperand_1
+		 *            Label of target operand
+		 * @param rightOperand_2
+		 *            Register of target operand
+		 */
+		public RegAddrReg(RegAddrRegOp operation, Register leftOperand,
+				String rightOperand_1, Register rightOperand_2) {
+			this.operation = operation;
+			this.leftOperand = leftOperand;
+			this.rightOperand_1 = rightOperand_1;
+			this.rightOperand_2 = rightOperand_2;
+		}
+		
+		/**
+		 * Create a ternary instruction whose target operand is a label
+		 * relative to the instruction pointer (e.g.
+		 * <code>movq %rax, label(%rip)</code>).
+		 * 
+		 * @param operation
+		 *            Operation to perform
+		 * @param leftOperand
+		 *            Register operand
+		 * @param rightOperand
+		 *            Label of target operand
+		 */
+		public RegAddrReg(RegAddrRegOp operation, Register leftOperand,
+				String rightOperand) {
+			this(operation, leftOperand, rightOperand, Register.RIP);
+		}
+
+		public String toString() {
+			return operation.toString() + " %" + leftOperand + ", "
+					+ rightOperand_1 + "(%" + rightOperand_2 + ")";
+		}
+	}
+	
+	// ============================================================
+	// Indirect Branch Operations
+	// ============================================================
+	
+	public enum IndRegOp {
+		call, // Call procedure
+		jmp   // Unconditional Jump
+	}
+	
+	/**
+	 * Represents an indirect branch whose target address is held in a
+	 * register. For example:
+	 * 
+	 * <pre>
+	 * jmp *%rax
+	 * </pre>
+	 * 
+	 * This transfers control to the address held in the <code>rax</code>
+	 * register.
+	 * 
+	 * @author David J. Pearce
+	 * 
+	 */
+	public final class IndReg implements Instruction {
+		public final IndRegOp operation;
+		public final Register operand;
+
+		/**
+		 * Create an indirect branch through a register operand.
+		 * 
+		 * @param operation
+		 *            Operation to perform
+		 * @param operand
+		 *            Register holding target address
+		 */
+		public IndReg(IndRegOp operation, Register operand) {
+			this.operation = operation;
+			this.operand = operand;
+		}
+
+		public String toString() {
+			return operation.toString() + " *%" + operand;
+		}
+	}
+	
+	public enum ImmIndOp {
+		call, // Call procedure
+		jmp   // Unconditional Jump
+	}
+	
+	/**
+	 * Represents an indirect branch whose target address is loaded from an
+	 * indirect location (determined from a register and an immediate offset).
+	 * For example:
+	 * 
+	 * <pre>
+	 * call *8(%rax)
+	 * </pre>
+	 * 
+	 * This calls the address held in the location 8 bytes above where the
+	 * <code>rax</code> register currently points.
+	 * 
+	 * @author David J. Pearce
+	 * 
+	 */
+	public final class ImmInd implements Instruction {
+		public final ImmIndOp operation;
+		public final long immediateOffset;
+		public final Register baseOperand;
+
+		/**
+		 * Create an indirect branch through a memory operand.
+		 * 
+		 * @param operation
+		 *            Operation to perform
+		 * @param immediateOffset
+		 *            Offset from base operand, which must fit within 32 bits.
+		 * @param baseOperand
+		 *            Register holding base address
+		 */
+		public ImmInd(ImmIndOp operation, long immediateOffset, Register baseOperand) {
+			if(immediateOffset < Integer.MIN_VALUE || immediateOffset > Integer.MAX_VALUE) {
+				throw new IllegalArgumentException("immediate operand does not fit into double word");
+			}
+			this.operation = operation;
+			this.immediateOffset = immediateOffset;
+			this.baseOperand = baseOperand;
+		}
+
+		public String toString() {
+			return operation.toString() + " *" + immediateOffset + "(%" + baseOperand + ")";
+		}
+	}
+	
+	public enum AddrIndOp {
+		call, // Call procedure
+		jmp   // Unconditional Jump
+	}
+	
+	/**
+	 * Represents an indirect branch whose target address is loaded from a
+	 * location determined from a label and a register. For example:
+	 * 
+	 * <pre>
+	 * jmp *table(%rip)
+	 * </pre>
+	 * 
+	 * This transfers control to the address held in the location given by
+	 * <code>table</code>, which is addressed relative to the instruction
+	 * pointer.
+	 * 
+	 * @author David J. Pearce
+	 * 
+	 */
+	public final class AddrInd implements Instruction {
+		public final AddrIndOp operation;
+		public final String operand;
+		public final Register baseOperand;
+
+		/**
+		 * Create an indirect branch through a composite address/register
+		 * operand.
+		 * 
+		 * @param operation
+		 *            Operation to perform
+		 * @param operand
+		 *            Label of location holding target address
+		 * @param baseOperand
+		 *            Register added to label
+		 */
+		public AddrInd(AddrIndOp operation, String operand, Register baseOperand) {
+			this.operation = operation;
+			this.operand = operand;
+			this.baseOperand = baseOperand;
+		}
+
+		/**
+		 * Create an indirect branch through a label relative to the
+		 * instruction pointer (e.g. <code>call *label(%rip)</code>).
+		 * 
+		 * @param operation
+		 *            Operation to perform
+		 * @param operand
+		 *            Label of location holding target address
+		 */
+		public AddrInd(AddrIndOp operation, String operand) {
+			this(operation, operand, Register.RIP);
+		}
+
+		public String toString() {
+			return operation.toString() + " *" + operand + "(%" + baseOperand + ")";
+		}
+	}
 }
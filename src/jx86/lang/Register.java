@@ -75,6 +75,17 @@ public class Register {
 		return suffix(join(lhs,rhs));		
 	}
 	
+	/**
+	 * Determine whether a given register is the instruction pointer (of any
+	 * width).
+	 * 
+	 * @param register
+	 * @return
+	 */
+	public static boolean isInstructionPointer(Register register) {
+		return register == RIP || register == EIP || register == IP;
+	}
+	
 	/**
 	 * Return the suffix associated with a given register width.
 	 * 
@@ -143,6 +154,40 @@ public class Register {
 	public static final Register RSP = new Register("rsp", Width.Quad);
 	public static final Register RIP = new Register("rip", Width.Quad);
 	
+	// x86_64 (extended)
+	public static final Register R8B = new Register("r8b", Width.Byte);
+	public static final Register R9B = new Register("r9b", Width.Byte);
+	public static final Register R10B = new Register("r10b", Width.Byte);
+	public static final Register R11B = new Register("r11b", Width.Byte);
+	public static final Register R12B = new Register("r12b", Width.Byte);
+	public static final Register R13B = new Register("r13b", Width.Byte);
+	public static final Register R14B = new Register("r14b", Width.Byte);
+	public static final Register R15B = new Register("r15b", Width.Byte);
+	public static final Register R8W = new Register("r8w", Width.Word);
+	public static final Register R9W = new Register("r9w", Width.Word);
+	public static final Register R10W = new Register("r10w", Width.Word);
+	public static final Register R11W = new Register("r11w", Width.Word);
+	public static final Register R12W = new Register("r12w", Width.Word);
+	public static final Register R13W = new Register("r13w", Width.Word);
+	public static final Register R14W = new Register("r14w", Width.Word);
+	public static final Register R15W = new Register("r15w", Width.Word);
+	public static final Register R8D = new Register("r8d", Width.Long);
+	public static final Register R9D = new Register("r9d", Width.Long);
+	public static final Register R10D = new Register("r10d", Width.Long);
+	public static final Register R11D = new Register("r11d", Width.Long);
+	public static final Register R12D = new Register("r12d", Width.Long);
+	public static final Register R13D = new Register("r13d", Width.Long);
+	public static final Register R14D = new Register("r14d", Width.Long);
+	public static final Register R15D = new Register("r15d", Width.Long);
+	public static final Register R8 = new Register("r8", Width.Quad);
+	public static final Register R9 = new Register("r9", Width.Quad);
+	public static final Register R10 = new Register("r10", Width.Quad);
+	public static final Register R11 = new Register("r11", Width.Quad);
+	public static final Register R12 = new Register("r12", Width.Quad);
+	public static final Register R13 = new Register("r13", Width.Quad);
+	public static final Register R14 = new Register("r14", Width.Quad);
+	public static final Register R15 = new Register("r15", Width.Quad);
+	
 	// Streaming SIMD Extensions (SSE)
 	public static final Register XMM0 = new Register("xmm0", Width.ScalarDouble);
 	public static final Register XMM1 = new Register("xmm1", Width.ScalarDouble);
@@ -152,6 +197,21 @@ public class Register {
 	public static final Register XMM5 = new Register("xmm5", Width.ScalarDouble);
 	public static final Register XMM6 = new Register("xmm6", Width.ScalarDouble);
 	public static final Register XMM7 = new Register("xmm7", Width.ScalarDouble);
+	public static final Register XMM8 = new Register("xmm8", Width.ScalarDouble);
+	public static final Register XMM9 = new Register("xmm9", Width.ScalarDouble);
+	public static final Register XMM10 = new Register("xmm10", Width.ScalarDouble);
+	public static final Register XMM11 = new Register("xmm11", Width.ScalarDouble);
+	public static final Register XMM12 = new Register("xmm12", Width.ScalarDouble);
+	public static final Register XMM13 = new Register("xmm13", Width.ScalarDouble);
+	public static final Register XMM14 = new Register("xmm14", Width.ScalarDouble);
+	public static final Register XMM15 = new Register("xmm15", Width.ScalarDouble);
+	
+	public static final Register[] XMM_REGISTERS = {
+		Register.XMM0, Register.XMM1, Register.XMM2, Register.XMM3,
+		Register.XMM4, Register.XMM5, Register.XMM6, Register.XMM7,
+		Register.XMM8, Register.XMM9, Register.XMM10, Register.XMM11,
+		Register.XMM12, Register.XMM13, Register.XMM14, Register.XMM15
+	};
 	
 	// Families	
 	public static final Register[] AX_FAMILY = {
@@ -181,6 +241,30 @@ public class Register {
 	public static final Register[] IP_FAMILY = {
 		Register.IP,Register.EIP,Register.RIP
 	};
+	public static final Register[] R8_FAMILY = {
+		Register.R8B,Register.R8W,Register.R8D,Register.R8
+	};
+	public static final Register[] R9_FAMILY = {
+		Register.R9B,Register.R9W,Register.R9D,Register.R9
+	};
+	public static final Register[] R10_FAMILY = {
+		Register.R10B,Register.R10W,Register.R10D,Register.R10
+	};
+	public static final Register[] R11_FAMILY = {
+		Register.R11B,Register.R11W,Register.R11D,Register.R11
+	};
+	public static final Register[] R12_FAMILY = {
+		Register.R12B,Register.R12W,Register.R12D,Register.R12
+	};
+	public static final Register[] R13_FAMILY = {
+		Register.R13B,Register.R13W,Register.R13D,Register.R13
+	};
+	public static final Register[] R14_FAMILY = {
+		Register.R14B,Register.R14W,Register.R14D,Register.R14
+	};
+	public static final Register[] R15_FAMILY = {
+		Register.R15B,Register.R15W,Register.R15D,Register.R15
+	};
 	
 	public static final Register[][] ALL_FAMILIES = {
 		AX_FAMILY,
@@ -191,7 +275,15 @@ public class Register {
 		SI_FAMILY,
 		BP_FAMILY,
 		SP_FAMILY,
-		IP_FAMILY
+		IP_FAMILY,
+		R8_FAMILY,
+		R9_FAMILY,
+		R10_FAMILY,
+		R11_FAMILY,
+		R12_FAMILY,
+		R13_FAMILY,
+		R14_FAMILY,
+		R15_FAMILY
 	};
 	
 	// ============================================
@@ -235,6 +327,20 @@ public class Register {
 		return name;
 	}
 	
+	/**
+	 * Determine whether this register is only available on
+	 * <code>x86_64</code> (e.g. <code>%r8</code> or <code>%xmm8</code>), and
+	 * hence requires a <code>REX</code> prefix to be encoded.
+	 * 
+	 * @return
+	 */
+	public boolean isExtended() {
+		if(name.startsWith("xmm")) {
+			return Integer.parseInt(name.substring(3)) >= 8;
+		}
+		return name.length() > 1 && name.charAt(0) == 'r' && Character.isDigit(name.charAt(1));
+	}
+	
 	/**
 	 * Return the family this register is associated with.
 	 * 
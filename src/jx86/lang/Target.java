@@ -18,6 +18,8 @@ public final class Target {
 	
 	public static final Target LINUX_X86_64 = new Target(OS.LINUX,Arch.X86_64); 
 	
+	public static final Target LINUX_X86_32 = new Target(OS.LINUX,Arch.X86_32); 
+	
 	
 	/**
 	 * The set of supported operating systems.
@@ -70,4 +72,47 @@ public final class Target {
 		throw new IllegalArgumentException("Unknown architecture encountered: "
 				+ arch);
 	}
+	
+	/**
+	 * Return the calling convention used by functions on this target.
+	 * 
+	 * @return
+	 */
+	public CallingConvention callingConvention() {
+		switch (arch) {
+		case X86_32:
+			return CallingConvention.CDECL;
+		case X86_64:
+			return CallingConvention.SYSTEM_V;
+		}
+		throw new IllegalArgumentException("Unknown architecture encountered: "
+				+ arch);
+	}
+	
+	/**
+	 * Return the preferred alignment (in bytes) for the entry point of a
+	 * function on this target.
+	 * 
+	 * @return
+	 */
+	public int functionAlignment() {
+		return 16;
+	}
+	
+	/**
+	 * Return the preferred alignment (in bytes) for the head of a loop on this
+	 * target. This typically matches the size of an instruction fetch block.
+	 * 
+	 * @return
+	 */
+	public int loopAlignment() {
+		switch (arch) {
+		case X86_32:
+			return 16;
+		case X86_64:
+			return 32;
+		}
+		throw new IllegalArgumentException("Unknown architecture encountered: "
+				+ arch);
+	}
 }
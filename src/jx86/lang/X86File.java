@@ -44,6 +44,26 @@ public class X86File {
 		}
 	}
 	
+	/**
+	 * Represents a section of zero-initialised storage. This occupies no space
+	 * in the file itself, and may only contain <code>Constant.Zero</code>
+	 * items.
+	 * 
+	 * @author David J. Pearce
+	 * 
+	 */
+	public static class Bss implements Section {
+		public final List<Constant.Zero> constants;
+
+		public Bss() {
+			this.constants = new ArrayList<Constant.Zero>();
+		}
+
+		public Bss(List<Constant.Zero> constants) {
+			this.constants = new ArrayList<Constant.Zero>(constants);
+		}
+	}
+	
 	// ============================================
 	// Fields
 	// ============================================
@@ -0,0 +1,98 @@
+package jx86.transforms;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import jx86.analysis.BranchRelaxation;
+import jx86.analysis.ControlFlowGraph;
+import jx86.analysis.SizeModel;
+import jx86.lang.Instruction;
+import jx86.lang.Target;
+
+/**
+ * Assigns alignments to labels based on the shape of the code. Specifically,
+ * function entries (i.e. global labels) are aligned to the target's preferred
+ * function alignment, whilst the heads of loops (i.e. the targets of backward
+ * branches) are aligned to the target's preferred loop alignment. Only loops
+ * whose size does not exceed a given limit are aligned, since the padding
+ * required is unlikely to pay off for large loops.
+ *
+ * @author David J. Pearce
+ *
+ */
+public class Alignment implements Transform {
+	private final Target target;
+	private final int maxLoopSize;
+
+	/**
+	 * Construct an alignment pass for a given target.
+	 *
+	 * @param target
+	 *            Target which determines the alignments used.
+	 * @param maxLoopSize
+	 *            Maximum size (in bytes) of a loop whose head will be aligned.
+	 */
+	public Alignment(Target target, int maxLoopSize) {
+		this.target = target;
+		this.maxLoopSize = maxLoopSize;
+	}
+
+	public List<Instruction> apply(List<Instruction> instructions) {
+		int[] alignments = new int[instructions.size()];
+		BranchRelaxation.Layout layout = new BranchRelaxation(new SizeModel(
+				target)).relax(instructions);
+		ControlFlowGraph cfg = new ControlFlowGraph(instructions);
+		// First, identify function entries
+		for(int i=0;i!=instructions.size();++i) {
+			Instruction insn = instructions.get(i);
+			if(insn instanceof Instruction.Label && ((Instruction.Label) insn).global) {
+				align(instructions, alignments, i, target.functionAlignment());
+			}
+		}
+		// Second, identify loop heads
+		for(ControlFlowGraph.Block block : cfg.blocks()) {
+			for(ControlFlowGraph.Block succ : block.successors()) {
+				if(succ.start <= block.start) {
+					// this is a back edge
+					int size = layout.offsetOf(block.end - 1)
+							+ layout.sizeOf(block.end - 1)
+							- layout.offsetOf(succ.start);
+					if(size <= maxLoopSize) {
+						align(instructions, alignments, succ.start, target.loopAlignment());
+					}
+				}
+			}
+		}
+		// Finally, update the labels
+		ArrayList<Instruction> result = new ArrayList<Instruction>();
+		for(int i=0;i!=instructions.size();++i) {
+			Instruction insn = instructions.get(i);
+			if(alignments[i] != 0) {
+				Instruction.Label label = (Instruction.Label) insn;
+				insn = new Instruction.Label(label.label, alignments[i], label.global);
+			}
+			result.add(insn);
+		}
+		return result;
+	}
+
+	/**
+	 * Align the first of a run of consecutive labels containing the given
+	 * index, such that any padding precedes all of them. The alignment of a
+	 * label is never reduced.
+	 *
+	 * @param instructions
+	 * @param alignments
+	 * @param index
+	 * @param alignment
+	 */
+	private static void align(List<Instruction> instructions, int[] alignments,
+			int index, int alignment) {
+		while (index > 0 && instructions.get(index - 1) instanceof Instruction.Label) {
+			index = index - 1;
+		}
+		Instruction.Label label = (Instruction.Label) instructions.get(index);
+		int current = Math.max(label.alignment, alignments[index]);
+		alignments[index] = Math.max(current, alignment);
+	}
+}
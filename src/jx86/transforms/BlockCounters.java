@@ -0,0 +1,264 @@
+package jx86.transforms;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import jx86.analysis.ControlFlowGraph;
+import jx86.lang.Constant;
+import jx86.lang.Instruction;
+import jx86.lang.Register;
+import jx86.lang.Target;
+import jx86.lang.X86File;
+
+/**
+ * <p>
+ * Instruments code sections with a 64-bit execution counter for every basic
+ * block. The counters are held in a single array, which is added to the file
+ * as a <code>.bss</code> section under a given (global) symbol. The counter
+ * for a block is incremented on entry to that block as follows:
+ * </p>
+ *
+ * <pre>
+ * leaq -128(%rsp), %rsp
+ * pushq %rax
+ * movq counters+8(%rip), %rax
+ * leaq 1(%rax), %rax
+ * movq %rax, counters+8(%rip)
+ * popq %rax
+ * leaq 128(%rsp), %rsp
+ * </pre>
+ *
+ * <p>
+ * This preserves all registers and, since <code>lea</code> does not affect
+ * them, all flags as well. The stack pointer is first moved beyond the red
+ * zone so that any values the function keeps there are not overwritten.
+ * Counters are not updated atomically, hence counts from multi-threaded code
+ * are approximate.
+ * </p>
+ *
+ * <p>
+ * Blocks which do not begin with a label are given a fresh one, so that every
+ * counter can be mapped back to a label. Instrumenting a file returns these
+ * labels along with the instrumented file, and once the instrumented code has
+ * run, the counter array can be read back into a <code>Profile</code>.
+ * </p>
+ *
+ * @author David J. Pearce
+ *
+ */
+public final class BlockCounters {
+	private static final int RED_ZONE = 128;
+
+	private final String symbol;
+
+	/**
+	 * Construct a pass which places its counters under a given symbol.
+	 *
+	 * @param target
+	 *            Target being compiled for, which must be 64-bit.
+	 * @param symbol
+	 *            Symbol of the counter array.
+	 */
+	public BlockCounters(Target target, String symbol) {
+		if(target.arch != Target.Arch.X86_64) {
+			throw new IllegalArgumentException("block counters require a 64-bit target");
+		}
+		this.symbol = symbol;
+	}
+
+	/**
+	 * Instrument every code section in a given file, and add the counter
+	 * array to it. Counters are allocated consecutively across all sections.
+	 * The pass itself holds no state, so it may be applied to several files
+	 * concurrently.
+	 *
+	 * @param file
+	 * @return The instrumented file, along with the label of each counter.
+	 */
+	public Instrumented apply(X86File file) {
+		ArrayList<String> labels = new ArrayList<String>();
+		ArrayList<X86File.Section> sections = new ArrayList<X86File.Section>();
+		for(X86File.Section section : file.sections()) {
+			if(section instanceof X86File.Code) {
+				X86File.Code code = (X86File.Code) section;
+				sections.add(new X86File.Code(instrument(code.instructions, labels)));
+			} else {
+				sections.add(section);
+			}
+		}
+		ArrayList<Constant.Zero> counters = new ArrayList<Constant.Zero>();
+		counters.add(new Constant.Zero(symbol, 8, true, 8L * Math.max(1, labels.size())));
+		sections.add(new X86File.Bss(counters));
+		return new Instrumented(new X86File(sections), labels.toArray(new String[labels.size()]));
+	}
+
+	/**
+	 * Instrument a given sequence of instructions, allocating counters after
+	 * those whose labels are given.
+	 *
+	 * @param instructions
+	 * @param labels
+	 * @return
+	 */
+	private List<Instruction> instrument(List<Instruction> instructions, List<String> labels) {
+		ControlFlowGraph cfg = new ControlFlowGraph(instructions);
+		ArrayList<Instruction> result = new ArrayList<Instruction>();
+		for(ControlFlowGraph.Block block : cfg.blocks()) {
+			String label = cfg.labelOf(block);
+			if(label == null) {
+				label = symbol + "." + labels.size();
+				result.add(new Instruction.Label(label));
+			}
+			int i = block.start;
+			while(i < block.end && instructions.get(i) instanceof Instruction.Label) {
+				result.add(instructions.get(i++));
+			}
+			int offset = 8 * labels.size();
+			increment(offset == 0 ? symbol : symbol + "+" + offset, result);
+			labels.add(label);
+			while(i < block.end) {
+				result.add(instructions.get(i++));
+			}
+		}
+		return result;
+	}
+
+	private static void increment(String counter, List<Instruction> result) {
+		result.add(new Instruction.ImmIndReg(Instruction.ImmIndRegOp.lea,
+				-RED_ZONE, Register.RSP, Register.RSP));
+		result.add(new Instruction.Reg(Instruction.RegOp.push, Register.RAX));
+		result.add(new Instruction.AddrRegReg(Instruction.AddrRegRegOp.mov,
+				counter, Register.RAX));
+		result.add(new Instruction.ImmIndReg(Instruction.ImmIndRegOp.lea, 1,
+				Register.RAX, Register.RAX));
+		result.add(new Instruction.RegAddrReg(Instruction.RegAddrRegOp.mov,
+				Register.RAX, counter));
+		result.add(new Instruction.Reg(Instruction.RegOp.pop, Register.RAX));
+		result.add(new Instruction.ImmIndReg(Instruction.ImmIndRegOp.lea,
+				RED_ZONE, Register.RSP, Register.RSP));
+	}
+
+	/**
+	 * The result of instrumenting a file, which records the label of the
+	 * block each counter belongs to.
+	 *
+	 * @author David J. Pearce
+	 *
+	 */
+	public static final class Instrumented {
+		public final X86File file;
+		private final String[] labels;
+
+		private Instrumented(X86File file, String[] labels) {
+			this.file = file;
+			this.labels = labels;
+		}
+
+		/**
+		 * Return the number of counters allocated.
+		 *
+		 * @return
+		 */
+		public int size() {
+			return labels.length;
+		}
+
+		/**
+		 * Construct a profile from the values of the counters.
+		 *
+		 * @param counts
+		 * @return
+		 */
+		public Profile read(long[] counts) {
+			if(counts.length < labels.length) {
+				throw new IllegalArgumentException("insufficient counters (expected "
+						+ labels.length + ", got " + counts.length + ")");
+			}
+			long[] copy = new long[labels.length];
+			System.arraycopy(counts, 0, copy, 0, copy.length);
+			return new Profile(labels, copy);
+		}
+
+		/**
+		 * Construct a profile from a buffer holding the counter array, as
+		 * laid out in memory (i.e. little endian). Counters are read from the
+		 * buffer's current position, which is left unchanged.
+		 *
+		 * @param buffer
+		 * @return
+		 */
+		public Profile read(ByteBuffer buffer) {
+			ByteBuffer in = buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+			if(in.remaining() < 8 * labels.length) {
+				throw new IllegalArgumentException("insufficient counters in buffer");
+			}
+			long[] counts = new long[labels.length];
+			for(int i=0;i!=counts.length;++i) {
+				counts[i] = in.getLong();
+			}
+			return new Profile(labels, counts);
+		}
+	}
+
+	/**
+	 * The execution counts of each instrumented block, identified by the
+	 * label which begins it.
+	 *
+	 * @author David J. Pearce
+	 *
+	 */
+	public static final class Profile {
+		private final String[] labels;
+		private final long[] counts;
+
+		private Profile(String[] labels, long[] counts) {
+			this.labels = labels;
+			this.counts = counts;
+		}
+
+		public int size() {
+			return labels.length;
+		}
+
+		public String labelOf(int i) {
+			return labels[i];
+		}
+
+		public long countOf(int i) {
+			return counts[i];
+		}
+
+		/**
+		 * Return the execution count of the block beginning with a given
+		 * label, or <code>-1</code> if no such block was instrumented.
+		 *
+		 * @param label
+		 * @return
+		 */
+		public long countOf(String label) {
+			for(int i=0;i!=labels.length;++i) {
+				if(labels[i].equals(label)) {
+					return counts[i];
+				}
+			}
+			return -1;
+		}
+
+		/**
+		 * Return a map from block labels to execution counts.
+		 *
+		 * @return
+		 */
+		public Map<String,Long> toMap() {
+			HashMap<String,Long> map = new HashMap<String,Long>();
+			for(int i=0;i!=labels.length;++i) {
+				map.put(labels[i], counts[i]);
+			}
+			return map;
+		}
+	}
+}
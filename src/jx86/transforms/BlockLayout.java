@@ -0,0 +1,273 @@
+package jx86.transforms;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import jx86.analysis.ControlFlowGraph;
+import jx86.analysis.ControlFlowGraph.Block;
+import jx86.analysis.Function;
+import jx86.lang.Instruction;
+
+/**
+ * <p>
+ * Reorders the basic blocks of each function using block execution
+ * frequencies (e.g. as collected by <code>BlockCounters</code>). Starting from
+ * the entry block, blocks are chained together by repeatedly placing the
+ * hottest successor of the last block placed. When a chain ends, the next
+ * chain begins with the hottest block remaining in the same function. Blocks
+ * which were never executed are moved to the end of their function, in their
+ * original order.
+ * </p>
+ *
+ * <p>
+ * The instructions given are first partitioned into functions (see
+ * <code>Function.partition()</code>), each of which is laid out separately.
+ * Hence, blocks are never moved from one function into another, and the order
+ * of functions is unchanged.
+ * </p>
+ *
+ * <p>
+ * Branches are then repaired to preserve the original control flow.
+ * Conditional branches whose target is placed immediately after them are
+ * inverted, so that the hot path falls through. Jumps to the block placed
+ * immediately after them are removed, whilst blocks which no longer fall
+ * through to their original successor are given an explicit jump to it.
+ * Blocks without labels are given a fresh one when necessary.
+ * </p>
+ *
+ * <p>
+ * Frequencies are identified by label. A block for which no frequency is
+ * given is inferred from the block which falls through to it (less any
+ * executions of that block which must have taken its branch), or is otherwise
+ * treated as unknown. Blocks with unknown frequency are never considered cold.
+ * </p>
+ *
+ * @author David J. Pearce
+ *
+ */
+public class BlockLayout implements Transform {
+	private final Map<String,Long> frequencies;
+
+	/**
+	 * Construct a layout pass from a map of block labels to execution counts.
+	 *
+	 * @param frequencies
+	 */
+	public BlockLayout(Map<String,Long> frequencies) {
+		this.frequencies = frequencies;
+	}
+
+	public List<Instruction> apply(List<Instruction> instructions) {
+		ArrayList<Function> functions = new ArrayList<Function>();
+		for(Function f : Function.partition(instructions)) {
+			functions.add(new Function(f.name, layout(f.instructions)));
+		}
+		return Function.join(functions);
+	}
+
+	/**
+	 * Reorder the blocks of a single function.
+	 *
+	 * @param instructions
+	 * @return
+	 */
+	private List<Instruction> layout(List<Instruction> instructions) {
+		ControlFlowGraph cfg = new ControlFlowGraph(instructions);
+		List<Block> blocks = cfg.blocks();
+		int n = blocks.size();
+		String base = firstLabel(instructions);
+		if(n <= 1 || base == null || fallsThrough(cfg, blocks.get(n - 1))) {
+			// Nothing to do, or the final block falls out of the function
+			return new ArrayList<Instruction>(instructions);
+		}
+		long[] freqs = frequencies(cfg);
+		int[] order = order(cfg, freqs);
+		if(order == null) {
+			// No profile information for this function
+			return new ArrayList<Instruction>(instructions);
+		}
+		// Determine labels for every block
+		String[] labels = new String[n];
+		boolean[] fresh = new boolean[n];
+		for(int i=0;i!=n;++i) {
+			labels[i] = cfg.labelOf(blocks.get(i));
+			if(labels[i] == null) {
+				labels[i] = base + ".bb" + i;
+				fresh[i] = true;
+			}
+		}
+		// Emit blocks in order, repairing branches as necessary
+		ArrayList<List<Instruction>> bodies = new ArrayList<List<Instruction>>();
+		boolean[] used = new boolean[n];
+		for(int k=0;k!=n;++k) {
+			Block block = blocks.get(order[k]);
+			Block next = (k + 1) < n ? blocks.get(order[k + 1]) : null;
+			Block follow = fallsThrough(cfg, block) ? blocks.get(block.index + 1) : null;
+			int last = lastIndexOf(instructions, block);
+			ArrayList<Instruction> body = new ArrayList<Instruction>();
+			for(int i=block.start;i!=block.end;++i) {
+				Instruction insn = instructions.get(i);
+				if(i == last && ControlFlowGraph.isBranch(insn)) {
+					Instruction.Addr branch = (Instruction.Addr) insn;
+					Block target = cfg.blockOf(branch.operand);
+					Instruction.AddrOp inverse = ControlFlowGraph.invert(branch.operation);
+					if(target == null || target != next) {
+						body.add(insn);
+					} else if(branch.operation == Instruction.AddrOp.jmp) {
+						// jump to next block is redundant
+					} else if(follow != null && follow != next && inverse != null) {
+						// invert so the next block is reached by falling through
+						body.add(new Instruction.Addr(inverse, labels[follow.index]));
+						used[follow.index] = true;
+						follow = next;
+					} else {
+						body.add(insn);
+					}
+				} else {
+					body.add(insn);
+				}
+			}
+			if(follow != null && follow != next) {
+				body.add(new Instruction.Addr(Instruction.AddrOp.jmp, labels[follow.index]));
+				used[follow.index] = true;
+			}
+			bodies.add(body);
+		}
+		ArrayList<Instruction> result = new ArrayList<Instruction>();
+		for(int k=0;k!=n;++k) {
+			int index = order[k];
+			if(fresh[index] && used[index]) {
+				result.add(new Instruction.Label(labels[index]));
+			}
+			result.addAll(bodies.get(k));
+		}
+		return result;
+	}
+
+	// ============================================
+	// Helpers
+	// ============================================
+
+	/**
+	 * Determine the frequency of each block. Blocks whose frequency is not
+	 * known are assigned <code>-1</code>.
+	 *
+	 * @param cfg
+	 * @return
+	 */
+	private long[] frequencies(ControlFlowGraph cfg) {
+		List<Block> blocks = cfg.blocks();
+		List<Instruction> instructions = cfg.instructions();
+		long[] freqs = new long[blocks.size()];
+		for(int i=0;i!=freqs.length;++i) {
+			Block block = blocks.get(i);
+			freqs[i] = -1;
+			for(int j=block.start;j!=block.end;++j) {
+				Instruction insn = instructions.get(j);
+				if(insn instanceof Instruction.Label) {
+					Long f = frequencies.get(((Instruction.Label) insn).label);
+					if(f != null) {
+						freqs[i] = Math.max(freqs[i], f);
+					}
+				}
+			}
+		}
+		for(int i=1;i<freqs.length;++i) {
+			Block pred = blocks.get(i - 1);
+			if(freqs[i] >= 0 || freqs[i - 1] < 0 || !fallsThrough(cfg, pred)) {
+				continue;
+			}
+			// Infer from the block which falls through to this one
+			freqs[i] = freqs[i - 1];
+			Instruction last = cfg.lastOf(pred);
+			if(ControlFlowGraph.isBranch(last)) {
+				Block target = cfg.blockOf(((Instruction.Addr) last).operand);
+				if(target != null && target != blocks.get(i)
+						&& target.predecessors().size() == 1 && freqs[target.index] >= 0) {
+					// all other executions of the predecessor took the branch
+					freqs[i] = Math.max(0, freqs[i - 1] - freqs[target.index]);
+				}
+			}
+		}
+		return freqs;
+	}
+
+	/**
+	 * Determine the order in which blocks should be placed, or
+	 * <code>null</code> if there is no profile information.
+	 *
+	 * @param cfg
+	 * @param freqs
+	 * @return
+	 */
+	private static int[] order(ControlFlowGraph cfg, long[] freqs) {
+		List<Block> blocks = cfg.blocks();
+		int n = blocks.size();
+		boolean known = false;
+		for(long f : freqs) {
+			known |= f > 0;
+		}
+		if(!known) {
+			return null;
+		}
+		int[] order = new int[n];
+		boolean[] placed = new boolean[n];
+		int count = 0;
+		Block current = blocks.get(0);
+		while(current != null) {
+			order[count++] = current.index;
+			placed[current.index] = true;
+			// Extend the chain with the hottest successor
+			Block next = null;
+			for(Block succ : current.successors()) {
+				if(!placed[succ.index] && freqs[succ.index] != 0
+						&& (next == null || freqs[succ.index] > freqs[next.index])) {
+					next = succ;
+				}
+			}
+			if(next == null) {
+				// Start a new chain with the hottest remaining block
+				for(int i=0;i!=n;++i) {
+					if(!placed[i] && freqs[i] != 0
+							&& (next == null || freqs[i] > freqs[next.index])) {
+						next = blocks.get(i);
+					}
+				}
+			}
+			current = next;
+		}
+		// Finally, place the cold blocks
+		for(int i=0;i!=n;++i) {
+			if(!placed[i]) {
+				order[count++] = i;
+			}
+		}
+		return order;
+	}
+
+	private static boolean fallsThrough(ControlFlowGraph cfg, Block block) {
+		Instruction last = cfg.lastOf(block);
+		return last == null || ControlFlowGraph.fallsThrough(last);
+	}
+
+	private static int lastIndexOf(List<Instruction> instructions, Block block) {
+		for(int i=block.end-1;i>=block.start;--i) {
+			Instruction insn = instructions.get(i);
+			if(!(insn instanceof Instruction.Label)
+					&& !(insn instanceof Instruction.Location)) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	private static String firstLabel(List<Instruction> instructions) {
+		for(Instruction insn : instructions) {
+			if(insn instanceof Instruction.Label) {
+				return ((Instruction.Label) insn).label;
+			}
+		}
+		return null;
+	}
+}
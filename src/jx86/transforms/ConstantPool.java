@@ -0,0 +1,317 @@
+package jx86.transforms;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+
+import jx86.lang.Constant;
+import jx86.lang.Instruction;
+import jx86.lang.X86File;
+
+/**
+ * <p>
+ * Responsible for constructing a data section in which identical constants
+ * are shared. Constants are hash-consed by kind, value and alignment, such that
+ * adding a constant equivalent to one already in the pool returns the label of
+ * the existing constant. Furthermore, when the data section is finally
+ * constructed, any string which is a suffix of another is placed within it
+ * (i.e. its label becomes an offset from that of the other).
+ * </p>
+ *
+ * <p>
+ * Global constants are never merged, since their labels must be preserved.
+ * Likewise, a labelled constant which is followed by one or more unlabelled
+ * constants is treated as an aggregate and added verbatim.
+ * </p>
+ *
+ * @author David J. Pearce
+ *
+ */
+public class ConstantPool {
+
+	/**
+	 * An entry in the pool, which is either a single pooled constant or a
+	 * verbatim group of constants.
+	 */
+	private static final class Entry {
+		private final List<Constant> constants;
+		private final Key key;
+		private Entry container;
+		private int offset;
+
+		private Entry(Key key, List<Constant> constants) {
+			this.key = key;
+			this.constants = constants;
+		}
+
+		private java.lang.String label() {
+			return constants.get(0).label;
+		}
+	}
+
+	/**
+	 * Identifies a constant by its kind, value and alignment, but not its
+	 * label.
+	 */
+	private static final class Key {
+		private final Class<?> kind;
+		private final Object value;
+		private final int alignment;
+
+		private Key(Class<?> kind, Object value, int alignment) {
+			this.kind = kind;
+			this.value = value;
+			this.alignment = alignment;
+		}
+
+		public boolean equals(Object o) {
+			if(o instanceof Key) {
+				Key k = (Key) o;
+				return kind == k.kind && alignment == k.alignment
+						&& value.equals(k.value);
+			}
+			return false;
+		}
+
+		public int hashCode() {
+			return kind.hashCode() ^ value.hashCode() ^ alignment;
+		}
+	}
+
+	private final ArrayList<Entry> entries = new ArrayList<Entry>();
+	private final HashMap<Key,Entry> pool = new HashMap<Key,Entry>();
+	private final HashMap<java.lang.String,Entry> labels = new HashMap<java.lang.String,Entry>();
+
+	/**
+	 * Add a constant to this pool, returning the label by which it should be
+	 * referenced. This is the label of an identical constant added previously,
+	 * or the constant's own label otherwise.
+	 *
+	 * @param constant
+	 * @return
+	 */
+	public java.lang.String add(Constant constant) {
+		if(constant.label == null) {
+			throw new IllegalArgumentException("cannot pool unlabelled constant");
+		}
+		Key key = keyOf(constant);
+		if(key == null || constant.global) {
+			entries.add(new Entry(null,Collections.singletonList(constant)));
+			return constant.label;
+		}
+		Entry entry = pool.get(key);
+		if(entry == null) {
+			entry = new Entry(key,Collections.singletonList(constant));
+			pool.put(key,entry);
+			entries.add(entry);
+		}
+		labels.put(constant.label, entry);
+		return entry.label();
+	}
+
+	/**
+	 * Add every constant from a given data section to this pool.
+	 *
+	 * @param data
+	 */
+	public void add(X86File.Data data) {
+		List<Constant> constants = data.constants;
+		int i = 0;
+		while(i < constants.size()) {
+			int j = i + 1;
+			while(j < constants.size() && constants.get(j).label == null) {
+				j = j + 1;
+			}
+			if(j == i + 1 && constants.get(i).label != null) {
+				add(constants.get(i));
+			} else {
+				// aggregate (or unlabelled) constants are added verbatim
+				entries.add(new Entry(null,new ArrayList<Constant>(constants.subList(i, j))));
+			}
+			i = j;
+		}
+	}
+
+	/**
+	 * Return the label by which a constant with a given label should now be
+	 * referenced. This may be an offset from another label (e.g.
+	 * <code>str+3</code>). Sharing of string suffixes is only reflected after
+	 * <code>toData()</code> has been called.
+	 *
+	 * @param label
+	 * @return
+	 */
+	public java.lang.String resolve(java.lang.String label) {
+		Entry entry = labels.get(label);
+		if(entry == null) {
+			return label;
+		} else if(entry.container != null) {
+			return entry.container.label() + "+" + entry.offset;
+		} else {
+			return entry.label();
+		}
+	}
+
+	/**
+	 * Construct the data section containing every constant in the pool.
+	 *
+	 * @return
+	 */
+	public X86File.Data toData() {
+		shareSuffixes();
+		X86File.Data data = new X86File.Data();
+		for(Entry entry : entries) {
+			if(entry.container == null) {
+				data.constants.addAll(entry.constants);
+			}
+		}
+		return data;
+	}
+
+	/**
+	 * Rewrite all references to constants in a given code section, such that
+	 * they use the labels determined by this pool.
+	 *
+	 * @param code
+	 * @return
+	 */
+	public X86File.Code rewrite(X86File.Code code) {
+		X86File.Code result = new X86File.Code();
+		for(Instruction insn : code.instructions) {
+			if(insn instanceof Instruction.AddrReg) {
+				Instruction.AddrReg ar = (Instruction.AddrReg) insn;
+				insn = new Instruction.AddrReg(ar.operation,
+						resolve(ar.leftOperand), ar.rightOperand);
+			} else if(insn instanceof Instruction.AddrRegReg) {
+				Instruction.AddrRegReg arr = (Instruction.AddrRegReg) insn;
+				insn = new Instruction.AddrRegReg(arr.operation,
+						resolve(arr.leftOperand_1), arr.leftOperand_2,
+						arr.rightOperand);
+			} else if(insn instanceof Instruction.RegAddrReg) {
+				Instruction.RegAddrReg rar = (Instruction.RegAddrReg) insn;
+				insn = new Instruction.RegAddrReg(rar.operation,
+						rar.leftOperand, resolve(rar.rightOperand_1),
+						rar.rightOperand_2);
+			} else if(insn instanceof Instruction.AddrInd) {
+				Instruction.AddrInd ai = (Instruction.AddrInd) insn;
+				insn = new Instruction.AddrInd(ai.operation,
+						resolve(ai.operand), ai.baseOperand);
+			}
+			result.instructions.add(insn);
+		}
+		return result;
+	}
+
+	// ============================================
+	// Helpers
+	// ============================================
+
+	/**
+	 * Place every pooled string which is a suffix of another within it. This
+	 * is done by sorting the strings by their reverse, so that any string which
+	 * is a suffix of another immediately precedes a string ending with it.
+	 * Strings are compared using their encoded (i.e. UTF-8) bytes, since these
+	 * determine the offsets within the containing string.
+	 */
+	private void shareSuffixes() {
+		ArrayList<Entry> strings = new ArrayList<Entry>();
+		for(Entry entry : entries) {
+			if(entry.key != null && entry.key.kind == Constant.String.class
+					&& entry.container == null) {
+				strings.add(entry);
+			}
+		}
+		final HashMap<Entry,byte[]> reversed = new HashMap<Entry,byte[]>();
+		for(Entry entry : strings) {
+			reversed.put(entry, reverse(encode((java.lang.String) entry.key.value)));
+		}
+		Collections.sort(strings, new Comparator<Entry>() {
+			public int compare(Entry e1, Entry e2) {
+				int c = compareBytes(reversed.get(e1), reversed.get(e2));
+				return c != 0 ? c : e1.key.alignment - e2.key.alignment;
+			}
+		});
+		for(int i=strings.size()-2;i>=0;--i) {
+			Entry entry = strings.get(i);
+			Entry next = strings.get(i+1);
+			if(startsWith(reversed.get(next), reversed.get(entry))) {
+				Entry root = next.container == null ? next : next.container;
+				int offset = next.offset + sizeOf(next) - sizeOf(entry);
+				int alignment = entry.key.alignment;
+				if((root.key.alignment % alignment) == 0 && (offset % alignment) == 0) {
+					entry.container = root;
+					entry.offset = offset;
+				}
+			}
+		}
+	}
+
+	private static byte[] encode(java.lang.String s) {
+		try {
+			return s.getBytes("UTF-8");
+		} catch(java.io.UnsupportedEncodingException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	private static byte[] reverse(byte[] bytes) {
+		byte[] result = new byte[bytes.length];
+		for(int i=0;i!=bytes.length;++i) {
+			result[i] = bytes[bytes.length - i - 1];
+		}
+		return result;
+	}
+
+	/**
+	 * Compare two byte sequences lexicographically, treating each byte as
+	 * unsigned.
+	 *
+	 * @param b1
+	 * @param b2
+	 * @return
+	 */
+	private static int compareBytes(byte[] b1, byte[] b2) {
+		int n = Math.min(b1.length, b2.length);
+		for(int i=0;i!=n;++i) {
+			int c = (b1[i] & 0xFF) - (b2[i] & 0xFF);
+			if(c != 0) {
+				return c;
+			}
+		}
+		return b1.length - b2.length;
+	}
+
+	private static boolean startsWith(byte[] bytes, byte[] prefix) {
+		if(prefix.length > bytes.length) {
+			return false;
+		}
+		for(int i=0;i!=prefix.length;++i) {
+			if(bytes[i] != prefix[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static int sizeOf(Entry entry) {
+		return (int) entry.constants.get(0).sizeInBytes();
+	}
+
+	private static Key keyOf(Constant constant) {
+		Object value;
+		if(constant instanceof Constant.String) {
+			value = ((Constant.String) constant).value;
+		} else if(constant instanceof Constant.Word) {
+			value = ((Constant.Word) constant).value;
+		} else if(constant instanceof Constant.Long) {
+			value = ((Constant.Long) constant).value;
+		} else if(constant instanceof Constant.Quad) {
+			value = ((Constant.Quad) constant).value;
+		} else {
+			return null;
+		}
+		return new Key(constant.getClass(), value, constant.alignment);
+	}
+}
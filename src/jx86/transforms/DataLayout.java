@@ -0,0 +1,223 @@
+package jx86.transforms;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+
+import jx86.lang.Constant;
+import jx86.lang.X86File;
+
+/**
+ * <p>
+ * Reorders the constants of a data section to reduce alignment padding and to
+ * keep frequently accessed constants within as few cache lines as possible.
+ * Constants are moved as groups, where a group consists of a labelled constant
+ * and any unlabelled constants which follow it. Since labels move with their
+ * constants, all label references remain valid.
+ * </p>
+ *
+ * <p>
+ * When a hotness hint is given, hot groups are placed first and packed into
+ * cache lines using a first-fit strategy, such that no group smaller than a
+ * cache line straddles a line boundary. The first group of each line is
+ * aligned to the line size. All remaining groups are then ordered by
+ * decreasing alignment and size, which minimises the padding between them.
+ * </p>
+ *
+ * @author David J. Pearce
+ *
+ */
+public class DataLayout {
+	public static final int CACHE_LINE_SIZE = 64;
+
+	/**
+	 * A labelled constant and the unlabelled constants which follow it.
+	 */
+	private static final class Group {
+		private final int index;
+		private final List<Constant> constants;
+		private final int alignment;
+		private final long size;
+		private final long hotness;
+
+		private Group(int index, List<Constant> constants, long hotness) {
+			this.index = index;
+			this.constants = constants;
+			this.hotness = hotness;
+			int alignment = 1;
+			long size = 0;
+			for(Constant c : constants) {
+				alignment = Math.max(alignment, c.alignment);
+				size = align(size,c.alignment) + c.sizeInBytes();
+			}
+			this.alignment = alignment;
+			this.size = size;
+		}
+	}
+
+	private final Map<String,Long> hotness;
+
+	public DataLayout() {
+		this.hotness = Collections.emptyMap();
+	}
+
+	/**
+	 * Construct a layout pass with a given hotness hint.
+	 *
+	 * @param hotness
+	 *            Maps the label of a constant to an estimate of how frequently
+	 *            it is accessed. Constants with a positive hotness are
+	 *            considered hot.
+	 */
+	public DataLayout(Map<String,Long> hotness) {
+		this.hotness = hotness;
+	}
+
+	public X86File.Data apply(X86File.Data data) {
+		ArrayList<Constant> fixed = new ArrayList<Constant>();
+		ArrayList<Group> hot = new ArrayList<Group>();
+		ArrayList<Group> cold = new ArrayList<Group>();
+		List<Constant> constants = data.constants;
+		int i = 0;
+		// Unlabelled constants at the start cannot be moved
+		while(i < constants.size() && constants.get(i).label == null) {
+			fixed.add(constants.get(i++));
+		}
+		while(i < constants.size()) {
+			int j = i + 1;
+			while(j < constants.size() && constants.get(j).label == null) {
+				j = j + 1;
+			}
+			List<Constant> members = constants.subList(i, j);
+			Long h = hotness.get(members.get(0).label);
+			Group group = new Group(i, members, h == null ? 0 : h);
+			if(group.hotness > 0) {
+				hot.add(group);
+			} else {
+				cold.add(group);
+			}
+			i = j;
+		}
+		X86File.Data result = new X86File.Data(fixed);
+		layoutHot(hot,result.constants);
+		layoutCold(cold,result.constants);
+		return result;
+	}
+
+	/**
+	 * Pack hot groups into cache lines, hottest first.
+	 *
+	 * @param groups
+	 * @param output
+	 */
+	private static void layoutHot(List<Group> groups, List<Constant> output) {
+		Collections.sort(groups, new Comparator<Group>() {
+			public int compare(Group g1, Group g2) {
+				if(g1.hotness != g2.hotness) {
+					return g1.hotness > g2.hotness ? -1 : 1;
+				}
+				return g1.index - g2.index;
+			}
+		});
+		ArrayList<ArrayList<Group>> lines = new ArrayList<ArrayList<Group>>();
+		ArrayList<Long> used = new ArrayList<Long>();
+		ArrayList<Group> large = new ArrayList<Group>();
+		for(Group group : groups) {
+			if(group.size > CACHE_LINE_SIZE || group.alignment > CACHE_LINE_SIZE) {
+				large.add(group);
+				continue;
+			}
+			int line = 0;
+			for(;line!=lines.size();++line) {
+				long end = align(used.get(line),group.alignment) + group.size;
+				if(end <= CACHE_LINE_SIZE) {
+					break;
+				}
+			}
+			if(line == lines.size()) {
+				lines.add(new ArrayList<Group>());
+				used.add(0L);
+			}
+			lines.get(line).add(group);
+			used.set(line, align(used.get(line),group.alignment) + group.size);
+		}
+		for(ArrayList<Group> line : lines) {
+			for(int i=0;i!=line.size();++i) {
+				emit(line.get(i), i == 0 ? CACHE_LINE_SIZE : 0, output);
+			}
+		}
+		for(Group group : large) {
+			emit(group, CACHE_LINE_SIZE, output);
+		}
+	}
+
+	/**
+	 * Order cold groups by decreasing alignment and then decreasing size. The
+	 * original order is retained for groups which are otherwise equal.
+	 *
+	 * @param groups
+	 * @param output
+	 */
+	private static void layoutCold(List<Group> groups, List<Constant> output) {
+		Collections.sort(groups, new Comparator<Group>() {
+			public int compare(Group g1, Group g2) {
+				if(g1.alignment != g2.alignment) {
+					return g2.alignment - g1.alignment;
+				} else if(g1.size != g2.size) {
+					return g1.size > g2.size ? -1 : 1;
+				}
+				return g1.index - g2.index;
+			}
+		});
+		for(Group group : groups) {
+			emit(group, 0, output);
+		}
+	}
+
+	private static void emit(Group group, int alignment, List<Constant> output) {
+		Constant first = group.constants.get(0);
+		// Ensure the group is aligned as assumed when computing its size
+		alignment = Math.max(alignment, group.alignment);
+		if(alignment > first.alignment) {
+			first = realign(first, alignment);
+		}
+		output.add(first);
+		output.addAll(group.constants.subList(1, group.constants.size()));
+	}
+
+	private static long align(long offset, int alignment) {
+		long remainder = offset % alignment;
+		return remainder == 0 ? offset : offset + (alignment - remainder);
+	}
+
+	/**
+	 * Construct a copy of a given constant with a different alignment.
+	 *
+	 * @param c
+	 * @param alignment
+	 * @return
+	 */
+	private static Constant realign(Constant c, int alignment) {
+		if(c instanceof Constant.String) {
+			return new Constant.String(c.label, alignment, c.global, ((Constant.String) c).value);
+		} else if(c instanceof Constant.Word) {
+			return new Constant.Word(c.label, alignment, c.global, ((Constant.Word) c).value);
+		} else if(c instanceof Constant.Long) {
+			return new Constant.Long(c.label, alignment, c.global, ((Constant.Long) c).value);
+		} else if(c instanceof Constant.Quad) {
+			return new Constant.Quad(c.label, alignment, c.global, ((Constant.Quad) c).value);
+		} else if(c instanceof Constant.ByteArray) {
+			return new Constant.ByteArray(c.label, alignment, c.global, ((Constant.ByteArray) c).values);
+		} else if(c instanceof Constant.QuadArray) {
+			return new Constant.QuadArray(c.label, alignment, c.global, ((Constant.QuadArray) c).values);
+		} else if(c instanceof Constant.AddressTable) {
+			return new Constant.AddressTable(c.label, alignment, c.global, ((Constant.AddressTable) c).targets);
+		} else if(c instanceof Constant.Zero) {
+			return new Constant.Zero(c.label, alignment, c.global, ((Constant.Zero) c).size);
+		} else {
+			throw new IllegalArgumentException("unknown constant encountered: " + c);
+		}
+	}
+}
@@ -0,0 +1,317 @@
+package jx86.transforms;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import jx86.analysis.ControlFlowGraph;
+import jx86.analysis.ControlFlowGraph.Block;
+import jx86.analysis.DefUse;
+import jx86.lang.Instruction;
+import jx86.lang.Register;
+import jx86.lang.Target;
+
+/**
+ * <p>
+ * Removes the frame pointer from functions whose frame size is known
+ * statically at every point. Such a function begins with the usual prologue
+ * (i.e. <code>push %rbp</code> followed by <code>mov %rsp, %rbp</code>) and
+ * otherwise only uses <code>%rbp</code> as the base of
+ * <code>ImmIndReg</code> and <code>RegImmInd</code> accesses, or to tear down
+ * the frame. Every such access is rewritten to use an offset from
+ * <code>%rsp</code> instead, which frees <code>%rbp</code> for other uses.
+ * </p>
+ *
+ * <p>
+ * The stack pointer must only be changed by pushing, popping, adding or
+ * subtracting a constant, or tearing down the frame, so that its distance from
+ * the (original) frame pointer can be determined for every instruction. This
+ * distance must agree wherever control-flow paths meet. The slot which held
+ * the saved frame pointer is still reserved, so that the stack pointer has
+ * exactly the same value throughout the function as before. Thus, accesses
+ * relative to <code>%rsp</code> and the alignment of the stack at calls are
+ * unaffected. The prologue and epilogue are replaced with <code>lea</code>
+ * instructions, which do not affect the flags. Functions containing an
+ * indirect jump (e.g. through a <code>JumpTable</code>) are left unchanged,
+ * since the blocks it reaches cannot be determined.
+ * </p>
+ *
+ * @author David J. Pearce
+ *
+ */
+public class FramePointerOmission implements Transform {
+
+	/**
+	 * Construct a pass for a given target, which must be 64-bit.
+	 *
+	 * @param target
+	 */
+	public FramePointerOmission(Target target) {
+		if(target.arch != Target.Arch.X86_64) {
+			throw new IllegalArgumentException("frame pointer omission requires a 64-bit target");
+		}
+	}
+
+	public List<Instruction> apply(List<Instruction> instructions) {
+		int entry = prologueOf(instructions);
+		if(entry < 0) {
+			return new ArrayList<Instruction>(instructions);
+		}
+		Integer[] depths = depths(instructions, entry);
+		if(depths == null || !isComplete(instructions, depths)) {
+			return new ArrayList<Instruction>(instructions);
+		}
+		ArrayList<Instruction> result = new ArrayList<Instruction>();
+		for(int i=0;i!=instructions.size();++i) {
+			Instruction insn = instructions.get(i);
+			Integer depth = depths[i];
+			if(i == entry) {
+				// reserve the slot of the saved frame pointer
+				result.add(adjust(-8));
+			} else if(i == entry + 1) {
+				// frame pointer is no longer set up
+			} else if(depth == null) {
+				// unreachable, and does not use the frame pointer
+				result.add(insn);
+			} else if(insn instanceof Instruction.ImmIndReg && isFrameBase(insn)) {
+				Instruction.ImmIndReg iir = (Instruction.ImmIndReg) insn;
+				result.add(new Instruction.ImmIndReg(iir.operation, iir.immediateOffset + depth,
+						Register.RSP, iir.targetOperand));
+			} else if(insn instanceof Instruction.RegImmInd && isFrameBase(insn)) {
+				Instruction.RegImmInd rii = (Instruction.RegImmInd) insn;
+				result.add(new Instruction.RegImmInd(rii.operation, rii.sourceOperand,
+						rii.immediateOffset + depth, Register.RSP));
+			} else if(isMove(insn, Register.RBP, Register.RSP)) {
+				if(depth != 0) {
+					result.add(adjust(depth));
+				}
+			} else if(isReg(insn, Instruction.RegOp.pop, Register.RBP)) {
+				result.add(adjust(8));
+			} else if(isUnit(insn, Instruction.UnitOp.leave)) {
+				result.add(adjust(depth + 8));
+			} else {
+				result.add(insn);
+			}
+		}
+		return result;
+	}
+
+	// ============================================
+	// Frame Depths
+	// ============================================
+
+	/**
+	 * Determine the distance from the stack pointer to the frame pointer
+	 * before each instruction, or return <code>null</code> if this cannot be
+	 * determined or the frame pointer is used in an unsupported way. The
+	 * distance is measured from the location of the saved frame pointer, hence
+	 * is <code>-8</code> on entry. Unreachable instructions have no distance.
+	 *
+	 * @param instructions
+	 * @param entry
+	 * @return
+	 */
+	private static Integer[] depths(List<Instruction> instructions, int entry) {
+		ControlFlowGraph cfg = new ControlFlowGraph(instructions);
+		List<Block> blocks = cfg.blocks();
+		Integer[] depths = new Integer[instructions.size()];
+		Integer[] entries = new Integer[blocks.size()];
+		ArrayList<Block> worklist = new ArrayList<Block>();
+		entries[0] = -8;
+		worklist.add(blocks.get(0));
+		while(!worklist.isEmpty()) {
+			Block block = worklist.remove(worklist.size() - 1);
+			Integer depth = entries[block.index];
+			for(int i=block.start;i!=block.end;++i) {
+				depths[i] = depth;
+				if(i == entry) {
+					depth = depth + 8;
+				} else if(i != entry + 1) {
+					depth = step(instructions.get(i), depth);
+				}
+				if(depth == null) {
+					return null;
+				}
+			}
+			for(Block succ : block.successors()) {
+				if(entries[succ.index] == null) {
+					entries[succ.index] = depth;
+					worklist.add(succ);
+				} else if(!entries[succ.index].equals(depth)) {
+					// frame size is not static
+					return null;
+				}
+			}
+		}
+		return depths;
+	}
+
+	/**
+	 * Determine whether the depths found cover every instruction which may
+	 * execute with the frame pointer set up. Since the targets of an indirect
+	 * jump (e.g. the labels of a jump table) are not known, the blocks
+	 * reached through it have no depth. Likewise, any instruction without a
+	 * depth which nevertheless uses the frame pointer may be reached in some
+	 * way not visible here.
+	 *
+	 * @param instructions
+	 * @param depths
+	 * @return
+	 */
+	private static boolean isComplete(List<Instruction> instructions, Integer[] depths) {
+		for(int i=0;i!=instructions.size();++i) {
+			Instruction insn = instructions.get(i);
+			if(ControlFlowGraph.isIndirectJump(insn)) {
+				return false;
+			} else if(depths[i] == null) {
+				DefUse du = DefUse.of(insn);
+				if(du.opaque || du.uses(Register.RBP) || du.defines(Register.RBP)) {
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Determine the distance to the frame pointer after a given instruction,
+	 * given the distance before it. This returns <code>null</code> if the
+	 * instruction changes the stack pointer in an unknown way, or uses the
+	 * frame pointer other than as supported.
+	 *
+	 * @param insn
+	 * @param depth
+	 * @return
+	 */
+	private static Integer step(Instruction insn, int depth) {
+		DefUse du = DefUse.of(insn);
+		if(du.opaque) {
+			return null;
+		} else if(insn instanceof Instruction.ImmIndReg || insn instanceof Instruction.RegImmInd) {
+			if(isFrameBase(insn) && !usesOperand(insn, Register.RBP) && depth >= 0) {
+				return du.defines(Register.RSP) ? null : depth;
+			} else if(insn instanceof Instruction.ImmIndReg) {
+				Instruction.ImmIndReg iir = (Instruction.ImmIndReg) insn;
+				if(iir.operation == Instruction.ImmIndRegOp.lea && iir.baseOperand == Register.RSP
+						&& iir.targetOperand == Register.RSP) {
+					return (int) (depth - iir.immediateOffset);
+				}
+			}
+		} else if(insn instanceof Instruction.Reg) {
+			Instruction.Reg r = (Instruction.Reg) insn;
+			if(r.operation == Instruction.RegOp.push && r.operand.width() == Register.Width.Quad
+					&& r.operand != Register.RBP) {
+				return depth + 8;
+			} else if(r.operation == Instruction.RegOp.pop && r.operand == Register.RBP) {
+				// frame pointer only restored once frame is torn down
+				return depth == 0 ? Integer.valueOf(-8) : null;
+			} else if(r.operation == Instruction.RegOp.pop && r.operand.width() == Register.Width.Quad) {
+				return depth - 8;
+			}
+		} else if(insn instanceof Instruction.ImmReg) {
+			Instruction.ImmReg ir = (Instruction.ImmReg) insn;
+			if(ir.rightOperand == Register.RSP && ir.operation == Instruction.ImmRegOp.sub) {
+				return (int) (depth + ir.leftOperand);
+			} else if(ir.rightOperand == Register.RSP && ir.operation == Instruction.ImmRegOp.add) {
+				return (int) (depth - ir.leftOperand);
+			}
+		} else if(isMove(insn, Register.RBP, Register.RSP)) {
+			return depth >= 0 ? Integer.valueOf(0) : null;
+		} else if(isUnit(insn, Instruction.UnitOp.leave)) {
+			return depth >= 0 ? Integer.valueOf(-8) : null;
+		} else if(isUnit(insn, Instruction.UnitOp.ret)) {
+			// frame must have been torn down
+			return depth == -8 ? Integer.valueOf(depth) : null;
+		} else if(isUnit(insn, Instruction.UnitOp.pushf)) {
+			return depth + 8;
+		} else if(isUnit(insn, Instruction.UnitOp.popf)) {
+			return depth - 8;
+		}
+		if(du.uses(Register.RBP) || du.defines(Register.RBP) || du.defines(Register.RSP)) {
+			return null;
+		}
+		return depth;
+	}
+
+	// ============================================
+	// Helpers
+	// ============================================
+
+	/**
+	 * Determine the index of the <code>push %rbp</code> which begins a
+	 * function, or <code>-1</code> if it does not begin with the usual
+	 * prologue. The labels preceding the prologue must not be the targets of
+	 * branches, since the prologue would then be executed more than once.
+	 *
+	 * @param instructions
+	 * @return
+	 */
+	private static int prologueOf(List<Instruction> instructions) {
+		int n = instructions.size();
+		int entry = 0;
+		ArrayList<String> labels = new ArrayList<String>();
+		while(entry < n && instructions.get(entry) instanceof Instruction.Label) {
+			labels.add(((Instruction.Label) instructions.get(entry++)).label);
+		}
+		if(entry + 1 >= n || !isReg(instructions.get(entry), Instruction.RegOp.push, Register.RBP)
+				|| !isMove(instructions.get(entry + 1), Register.RSP, Register.RBP)) {
+			return -1;
+		}
+		for(Instruction insn : instructions) {
+			if(ControlFlowGraph.isBranch(insn) && labels.contains(((Instruction.Addr) insn).operand)) {
+				return -1;
+			}
+		}
+		return entry;
+	}
+
+	private static Instruction adjust(int offset) {
+		return new Instruction.ImmIndReg(Instruction.ImmIndRegOp.lea, offset, Register.RSP,
+				Register.RSP);
+	}
+
+	private static boolean isFrameBase(Instruction insn) {
+		if(insn instanceof Instruction.ImmIndReg) {
+			return ((Instruction.ImmIndReg) insn).baseOperand == Register.RBP;
+		} else if(insn instanceof Instruction.RegImmInd) {
+			return ((Instruction.RegImmInd) insn).baseOperand == Register.RBP;
+		}
+		return false;
+	}
+
+	/**
+	 * Determine whether the register operand (i.e. other than the base) of an
+	 * <code>ImmIndReg</code> or <code>RegImmInd</code> instruction belongs to a
+	 * given family.
+	 *
+	 * @param insn
+	 * @param register
+	 * @return
+	 */
+	private static boolean usesOperand(Instruction insn, Register register) {
+		Register operand;
+		if(insn instanceof Instruction.ImmIndReg) {
+			operand = ((Instruction.ImmIndReg) insn).targetOperand;
+		} else {
+			operand = ((Instruction.RegImmInd) insn).sourceOperand;
+		}
+		return DefUse.canonical(operand) == register;
+	}
+
+	private static boolean isMove(Instruction insn, Register from, Register to) {
+		if(insn instanceof Instruction.RegReg) {
+			Instruction.RegReg rr = (Instruction.RegReg) insn;
+			return rr.operation == Instruction.RegRegOp.mov && rr.leftOperand == from
+					&& rr.rightOperand == to;
+		}
+		return false;
+	}
+
+	private static boolean isReg(Instruction insn, Instruction.RegOp op, Register register) {
+		return insn instanceof Instruction.Reg && ((Instruction.Reg) insn).operation == op
+				&& ((Instruction.Reg) insn).operand == register;
+	}
+
+	private static boolean isUnit(Instruction insn, Instruction.UnitOp op) {
+		return insn instanceof Instruction.Unit && ((Instruction.Unit) insn).operation == op;
+	}
+}
@@ -0,0 +1,255 @@
+package jx86.transforms;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import jx86.analysis.ControlFlowGraph;
+import jx86.analysis.Function;
+import jx86.lang.Instruction;
+import jx86.lang.X86File;
+
+/**
+ * <p>
+ * Merges functions which are identical up to the names of their labels, such
+ * that only one copy of each body remains. Each function is first put into a
+ * canonical form, where every label it defines is replaced by its position
+ * amongst those labels. References to labels defined elsewhere (e.g. callees
+ * or constants) are left unchanged. Functions with the same canonical form are
+ * then identical, and all but the first are removed.
+ * </p>
+ *
+ * <p>
+ * The labels of a removed function are kept as aliases, by placing each
+ * alongside the corresponding label of the function it was merged with. Thus,
+ * global symbols are preserved and any references to the removed function
+ * (including from other sections) continue to work.
+ * </p>
+ *
+ * <p>
+ * Source locations are ignored when comparing functions, hence those of a
+ * removed function are lost. Functions which may fall through to whatever
+ * follows them, along with any instructions preceding the first global label
+ * of a section, are never merged.
+ * </p>
+ *
+ * @author David J. Pearce
+ *
+ */
+public final class IdenticalCodeFolding {
+
+	/**
+	 * Merge identical functions across every code section of a given file.
+	 *
+	 * @param file
+	 * @return
+	 */
+	public X86File apply(X86File file) {
+		// Maps canonical form to the first function with that form
+		HashMap<String,Function> canonicals = new HashMap<String,Function>();
+		// Maps each retained function to the label aliases of those merged into it
+		HashMap<Function,List<List<Instruction.Label>>> aliases = new HashMap<Function,List<List<Instruction.Label>>>();
+		ArrayList<List<Function>> sections = new ArrayList<List<Function>>();
+		for(X86File.Section section : file.sections()) {
+			if(section instanceof X86File.Code) {
+				List<Function> functions = Function.partition(((X86File.Code) section).instructions);
+				ArrayList<Function> retained = new ArrayList<Function>();
+				for(Function f : functions) {
+					String key = canonicalise(f);
+					Function canonical = key == null ? null : canonicals.get(key);
+					if(canonical == null) {
+						if(key != null) {
+							canonicals.put(key, f);
+						}
+						retained.add(f);
+					} else {
+						addAliases(labelsOf(f), aliases, canonical);
+					}
+				}
+				sections.add(retained);
+			}
+		}
+		ArrayList<X86File.Section> result = new ArrayList<X86File.Section>();
+		int index = 0;
+		for(X86File.Section section : file.sections()) {
+			if(section instanceof X86File.Code) {
+				ArrayList<Function> functions = new ArrayList<Function>();
+				for(Function f : sections.get(index++)) {
+					List<List<Instruction.Label>> extra = aliases.get(f);
+					functions.add(extra == null ? f : new Function(f.name, addLabels(f, extra)));
+				}
+				result.add(new X86File.Code(Function.join(functions)));
+			} else {
+				result.add(section);
+			}
+		}
+		return new X86File(result);
+	}
+
+	// ============================================
+	// Canonical Form
+	// ============================================
+
+	/**
+	 * Compute the canonical form of a given function, or <code>null</code> if
+	 * it should not be merged with any other.
+	 *
+	 * @param f
+	 * @return
+	 */
+	private static String canonicalise(Function f) {
+		if(f.name == null || fallsThrough(f.instructions)) {
+			return null;
+		}
+		HashMap<String,String> labels = new HashMap<String,String>();
+		for(Instruction insn : f.instructions) {
+			if(insn instanceof Instruction.Label) {
+				String label = ((Instruction.Label) insn).label;
+				labels.put(label, "#" + labels.size());
+			}
+		}
+		StringBuilder key = new StringBuilder();
+		for(Instruction insn : f.instructions) {
+			if(insn instanceof Instruction.Location) {
+				continue;
+			} else if(insn instanceof Instruction.Label) {
+				key.append(labels.get(((Instruction.Label) insn).label)).append(':');
+			} else {
+				key.append(insn.getClass().getSimpleName()).append(' ');
+				key.append(relabel(insn, labels));
+			}
+			key.append('\n');
+		}
+		return key.toString();
+	}
+
+	/**
+	 * Rename any labels referenced by a given instruction according to a
+	 * given mapping, and return the result as a string.
+	 *
+	 * @param insn
+	 * @param labels
+	 * @return
+	 */
+	private static String relabel(Instruction insn, HashMap<String,String> labels) {
+		if(insn instanceof Instruction.Addr) {
+			Instruction.Addr a = (Instruction.Addr) insn;
+			insn = new Instruction.Addr(a.operation, rename(a.operand, labels));
+		} else if(insn instanceof Instruction.AddrReg) {
+			Instruction.AddrReg ar = (Instruction.AddrReg) insn;
+			insn = new Instruction.AddrReg(ar.operation, rename(ar.leftOperand, labels),
+					ar.rightOperand);
+		} else if(insn instanceof Instruction.AddrRegReg) {
+			Instruction.AddrRegReg arr = (Instruction.AddrRegReg) insn;
+			insn = new Instruction.AddrRegReg(arr.operation, rename(arr.leftOperand_1, labels),
+					arr.leftOperand_2, arr.rightOperand);
+		} else if(insn instanceof Instruction.RegAddrReg) {
+			Instruction.RegAddrReg rar = (Instruction.RegAddrReg) insn;
+			insn = new Instruction.RegAddrReg(rar.operation, rar.leftOperand,
+					rename(rar.rightOperand_1, labels), rar.rightOperand_2);
+		} else if(insn instanceof Instruction.AddrInd) {
+			Instruction.AddrInd ai = (Instruction.AddrInd) insn;
+			insn = new Instruction.AddrInd(ai.operation, rename(ai.operand, labels),
+					ai.baseOperand);
+		}
+		return insn.toString();
+	}
+
+	/**
+	 * Rename a label operand, which may include an offset (e.g.
+	 * <code>label+8</code> or <code>label-8</code>).
+	 *
+	 * @param operand
+	 * @param labels
+	 * @return
+	 */
+	private static String rename(String operand, HashMap<String,String> labels) {
+		int index = Math.max(operand.lastIndexOf('+'), operand.lastIndexOf('-'));
+		String label = index < 0 ? operand : operand.substring(0, index);
+		String canonical = labels.get(label);
+		if(canonical == null) {
+			return operand;
+		}
+		return index < 0 ? canonical : canonical + operand.substring(index);
+	}
+
+	// ============================================
+	// Helpers
+	// ============================================
+
+	private static boolean fallsThrough(List<Instruction> instructions) {
+		for(int i=instructions.size()-1;i>=0;--i) {
+			Instruction insn = instructions.get(i);
+			if(!(insn instanceof Instruction.Label)
+					&& !(insn instanceof Instruction.Location)) {
+				return ControlFlowGraph.fallsThrough(insn);
+			}
+		}
+		return true;
+	}
+
+	private static List<Instruction.Label> labelsOf(Function f) {
+		ArrayList<Instruction.Label> labels = new ArrayList<Instruction.Label>();
+		for(Instruction insn : f.instructions) {
+			if(insn instanceof Instruction.Label) {
+				labels.add((Instruction.Label) insn);
+			}
+		}
+		return labels;
+	}
+
+	/**
+	 * Record the labels of a removed function as aliases of the corresponding
+	 * labels of the function it was merged with. Since both have the same
+	 * canonical form, their labels correspond by position.
+	 *
+	 * @param labels
+	 * @param aliases
+	 * @param canonical
+	 */
+	private static void addAliases(List<Instruction.Label> labels,
+			HashMap<Function,List<List<Instruction.Label>>> aliases, Function canonical) {
+		List<List<Instruction.Label>> extra = aliases.get(canonical);
+		if(extra == null) {
+			extra = new ArrayList<List<Instruction.Label>>();
+			for(int i=0;i!=labels.size();++i) {
+				extra.add(new ArrayList<Instruction.Label>());
+			}
+			aliases.put(canonical, extra);
+		}
+		for(int i=0;i!=labels.size();++i) {
+			extra.get(i).add(labels.get(i));
+		}
+	}
+
+	/**
+	 * Place the aliases of each label of a function immediately before it.
+	 * The strictest alignment of the group is given to its first label, so
+	 * that no padding separates an alias from the label it stands for.
+	 *
+	 * @param f
+	 * @param extra
+	 * @return
+	 */
+	private static List<Instruction> addLabels(Function f, List<List<Instruction.Label>> extra) {
+		ArrayList<Instruction> instructions = new ArrayList<Instruction>();
+		int index = 0;
+		for(Instruction insn : f.instructions) {
+			if(insn instanceof Instruction.Label) {
+				Instruction.Label label = (Instruction.Label) insn;
+				List<Instruction.Label> group = extra.get(index++);
+				int alignment = label.alignment;
+				for(Instruction.Label alias : group) {
+					alignment = Math.max(alignment, alias.alignment);
+				}
+				for(Instruction.Label alias : group) {
+					instructions.add(new Instruction.Label(alias.label, alignment, alias.global));
+					alignment = 1;
+				}
+				insn = new Instruction.Label(label.label, alignment, label.global);
+			}
+			instructions.add(insn);
+		}
+		return instructions;
+	}
+}
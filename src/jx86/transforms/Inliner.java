@@ -0,0 +1,651 @@
+package jx86.transforms;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+
+import jx86.analysis.ControlFlowGraph;
+import jx86.analysis.DefUse;
+import jx86.analysis.Function;
+import jx86.analysis.SizeModel;
+import jx86.lang.Instruction;
+import jx86.lang.Register;
+import jx86.lang.Target;
+import jx86.lang.X86File;
+
+/**
+ * <p>
+ * Replaces calls to small functions defined in the same file with a copy of
+ * their body. Within the copy, labels are renamed uniquely and each
+ * <code>ret</code> becomes a jump to a continuation label placed after it.
+ * Only functions whose body (after removing any frame pointer prologue and
+ * epilogue) is no larger than a given budget are inlined.
+ * </p>
+ *
+ * <p>
+ * Since the body is copied unchanged, it preserves exactly those registers
+ * which the target's calling convention requires a callee to preserve, and
+ * clobbers only those which the caller must already assume a call clobbers.
+ * The only difference is that no return address is pushed. Therefore, if the
+ * body uses the stack at all, it is bracketed by instructions which reserve
+ * (and release) a slot in place of the return address. This keeps stack
+ * arguments, the red zone and stack alignment where the callee expects them
+ * to be. Neither instruction affects the flags.
+ * </p>
+ *
+ * <p>
+ * A function is only inlined if it is a leaf (i.e. makes no calls), has no
+ * indirect jumps, only branches to its own labels, and does not take the
+ * address of any of its local labels. Furthermore, a function which uses the
+ * stack must not access its return address, since the reserved slot does not
+ * hold one. Functions are identified by their global label, and remain in
+ * the file after being inlined.
+ * </p>
+ *
+ * @author David J. Pearce
+ *
+ */
+public final class Inliner {
+	private final Target target;
+	private final SizeModel model;
+	private final int budget;
+
+	/**
+	 * Construct an inliner for a given target.
+	 *
+	 * @param target
+	 *            Target being compiled for.
+	 * @param budget
+	 *            Maximum size (in bytes) of a function body to be inlined.
+	 */
+	public Inliner(Target target, int budget) {
+		if(budget < 0) {
+			throw new IllegalArgumentException("invalid inlining budget: " + budget);
+		}
+		this.target = target;
+		this.model = new SizeModel(target);
+		this.budget = budget;
+	}
+
+	/**
+	 * Inline calls in every code section of a given file.
+	 *
+	 * @param file
+	 * @return
+	 */
+	public X86File apply(X86File file) {
+		HashSet<String> labels = new HashSet<String>();
+		HashMap<String,Callee> callees = new HashMap<String,Callee>();
+		for(X86File.Section section : file.sections()) {
+			if(section instanceof X86File.Code) {
+				List<Instruction> instructions = ((X86File.Code) section).instructions;
+				for(Instruction insn : instructions) {
+					if(insn instanceof Instruction.Label) {
+						labels.add(((Instruction.Label) insn).label);
+					}
+				}
+				for(Function f : Function.partition(instructions)) {
+					Callee callee = candidate(f);
+					if(callee != null) {
+						callees.put(f.name, callee);
+					}
+				}
+			}
+		}
+		Renamer renamer = new Renamer(labels);
+		ArrayList<X86File.Section> sections = new ArrayList<X86File.Section>();
+		for(X86File.Section section : file.sections()) {
+			if(section instanceof X86File.Code) {
+				List<Instruction> instructions = ((X86File.Code) section).instructions;
+				sections.add(new X86File.Code(inline(instructions, callees, renamer)));
+			} else {
+				sections.add(section);
+			}
+		}
+		return new X86File(sections);
+	}
+
+	// ============================================
+	// Call Sites
+	// ============================================
+
+	private List<Instruction> inline(List<Instruction> instructions,
+			HashMap<String,Callee> callees, Renamer renamer) {
+		ArrayList<Instruction> result = new ArrayList<Instruction>();
+		for(Instruction insn : instructions) {
+			Callee callee = null;
+			if(insn instanceof Instruction.Addr) {
+				Instruction.Addr a = (Instruction.Addr) insn;
+				if(a.operation == Instruction.AddrOp.call) {
+					callee = callees.get(a.operand);
+				}
+			}
+			if(callee == null) {
+				result.add(insn);
+			} else {
+				inline(callee, renamer, result);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Append a copy of a given callee's body to a sequence of instructions.
+	 *
+	 * @param callee
+	 * @param renamer
+	 * @param result
+	 */
+	private void inline(Callee callee, Renamer renamer, List<Instruction> result) {
+		Register sp = stackPointer();
+		int slot = target.widthInBytes();
+		HashMap<String,String> renaming = new HashMap<String,String>();
+		for(Instruction insn : callee.body) {
+			if(insn instanceof Instruction.Label) {
+				String label = ((Instruction.Label) insn).label;
+				renaming.put(label, renamer.fresh(callee.name));
+			}
+		}
+		String continuation = renamer.fresh(callee.name);
+		boolean used = false;
+		if(callee.usesStack) {
+			// reserve the return address slot
+			result.add(new Instruction.ImmIndReg(Instruction.ImmIndRegOp.lea, -slot, sp, sp));
+		}
+		int last = lastIndexOf(callee.body);
+		for(int i=0;i!=callee.body.size();++i) {
+			Instruction insn = callee.body.get(i);
+			if(insn instanceof Instruction.Label) {
+				Instruction.Label l = (Instruction.Label) insn;
+				if(callee.targets.contains(l.label)) {
+					int alignment = l.global ? 1 : l.alignment;
+					result.add(new Instruction.Label(renaming.get(l.label), alignment, false));
+				}
+			} else if(isReturn(insn)) {
+				if(i != last) {
+					result.add(new Instruction.Addr(Instruction.AddrOp.jmp, continuation));
+					used = true;
+				}
+			} else if(ControlFlowGraph.isBranch(insn)) {
+				Instruction.Addr a = (Instruction.Addr) insn;
+				result.add(new Instruction.Addr(a.operation, renaming.get(a.operand)));
+			} else {
+				result.add(insn);
+			}
+		}
+		if(used) {
+			result.add(new Instruction.Label(continuation));
+		}
+		if(callee.usesStack) {
+			// release the return address slot
+			result.add(new Instruction.ImmIndReg(Instruction.ImmIndRegOp.lea, slot, sp, sp));
+		}
+	}
+
+	// ============================================
+	// Candidates
+	// ============================================
+
+	/**
+	 * Represents a function which is suitable for inlining.
+	 *
+	 * @author David J. Pearce
+	 *
+	 */
+	private static final class Callee {
+		public final String name;
+		public final List<Instruction> body;
+		public final HashSet<String> targets;
+		public final boolean usesStack;
+
+		public Callee(String name, List<Instruction> body, HashSet<String> targets,
+				boolean usesStack) {
+			this.name = name;
+			this.body = body;
+			this.targets = targets;
+			this.usesStack = usesStack;
+		}
+	}
+
+	/**
+	 * Determine whether a given function can be inlined and, if so, return
+	 * its body. Otherwise, return <code>null</code>.
+	 *
+	 * @param f
+	 * @return
+	 */
+	private Callee candidate(Function f) {
+		if(f.name == null) {
+			return null;
+		}
+		HashSet<String> locals = new HashSet<String>();
+		for(Instruction insn : f.instructions) {
+			if(insn instanceof Instruction.Label && !((Instruction.Label) insn).global) {
+				locals.add(((Instruction.Label) insn).label);
+			}
+		}
+		HashSet<String> own = new HashSet<String>(locals);
+		own.add(f.name);
+		HashSet<String> targets = new HashSet<String>();
+		boolean returns = false;
+		for(Instruction insn : f.instructions) {
+			if(insn instanceof Instruction.Addr) {
+				Instruction.Addr a = (Instruction.Addr) insn;
+				if(a.operation == Instruction.AddrOp.call || !own.contains(a.operand)) {
+					// not a leaf, or a jump to another function
+					return null;
+				}
+				targets.add(a.operand);
+			} else if(ControlFlowGraph.isIndirectJump(insn) || isInterruptReturn(insn)
+					|| locals.contains(referenceOf(insn))) {
+				return null;
+			}
+			returns |= isReturn(insn);
+		}
+		int last = lastIndexOf(f.instructions);
+		if(!returns || ControlFlowGraph.fallsThrough(f.instructions.get(last))) {
+			return null;
+		}
+		List<Instruction> body = stripFrame(f.instructions, targets);
+		if(body == null) {
+			body = f.instructions;
+		}
+		int size = 0;
+		boolean usesStack = false;
+		for(Instruction insn : body) {
+			size += model.sizeOf(insn);
+			usesStack |= !isReturn(insn) && usesStack(insn);
+		}
+		if(size > budget || (usesStack && mayAccessReturnAddress(body, targets))) {
+			return null;
+		}
+		return new Callee(f.name, body, targets, usesStack);
+	}
+
+	/**
+	 * Determine whether a given function body may access its return address
+	 * (e.g. <code>movl (%esp), %ebx</code> in a position-independent code
+	 * thunk). Since no return address is pushed when the body is inlined, the
+	 * slot reserved in its place holds an arbitrary value. This tracks the
+	 * offset of the stack pointer (and of any frame pointer set from it) from
+	 * its value on entry, and conservatively returns <code>true</code> where
+	 * this offset cannot be determined, or where the address of a stack slot
+	 * is copied into some other register.
+	 *
+	 * @param body
+	 * @param targets
+	 * @return
+	 */
+	private boolean mayAccessReturnAddress(List<Instruction> body, HashSet<String> targets) {
+		Register sp = DefUse.canonical(stackPointer());
+		Register bp = DefUse.canonical(framePointer());
+		int width = target.widthInBytes();
+		// the number of bytes below its entry value of the stack pointer
+		// and, if known, the frame pointer
+		int depth = 0;
+		Integer frame = null;
+		boolean reachable = true;
+		HashMap<String,Integer> depths = new HashMap<String,Integer>();
+		HashMap<String,Integer> frames = new HashMap<String,Integer>();
+		HashSet<String> visited = new HashSet<String>();
+		for(Instruction insn : body) {
+			if(insn instanceof Instruction.Label) {
+				String label = ((Instruction.Label) insn).label;
+				if(targets.contains(label) && depths.containsKey(label)) {
+					if(reachable && depths.get(label) != depth) {
+						return true;
+					}
+					depth = depths.get(label);
+					frame = reachable && !equals(frame, frames.get(label)) ? null : frames.get(label);
+					reachable = true;
+				}
+				depths.put(label, depth);
+				frames.put(label, frame);
+				visited.add(label);
+				continue;
+			} else if(!reachable || insn instanceof Instruction.Location) {
+				continue;
+			} else if(ControlFlowGraph.isBranch(insn)) {
+				String label = ((Instruction.Addr) insn).operand;
+				if(depths.containsKey(label)) {
+					if(depths.get(label) != depth) {
+						return true;
+					} else if(!equals(frames.get(label), frame)) {
+						if(visited.contains(label)) {
+							return true;
+						}
+						frames.put(label, null);
+					}
+				} else {
+					depths.put(label, depth);
+					frames.put(label, frame);
+				}
+				reachable = ControlFlowGraph.fallsThrough(insn);
+				continue;
+			} else if(isReturn(insn)) {
+				reachable = false;
+				continue;
+			}
+			DefUse du = DefUse.of(insn);
+			if(du.opaque) {
+				return true;
+			} else if(insn instanceof Instruction.Reg && isStackOp(((Instruction.Reg) insn).operation)) {
+				Instruction.Reg r = (Instruction.Reg) insn;
+				int size = bytesOf(r.operand);
+				depth += r.operation == Instruction.RegOp.push ? size : -size;
+				if(r.operation == Instruction.RegOp.pop && DefUse.canonical(r.operand) == bp) {
+					frame = null;
+				} else if(DefUse.canonical(r.operand) == sp) {
+					return true;
+				}
+				continue;
+			} else if(insn instanceof Instruction.Unit) {
+				Instruction.UnitOp op = ((Instruction.Unit) insn).operation;
+				if(op == Instruction.UnitOp.pushf || op == Instruction.UnitOp.popf) {
+					depth += op == Instruction.UnitOp.pushf ? width : -width;
+					continue;
+				} else if(op == Instruction.UnitOp.leave) {
+					if(frame == null) {
+						return true;
+					}
+					depth = frame - width;
+					frame = null;
+					continue;
+				}
+			} else if(insn instanceof Instruction.ImmReg) {
+				Instruction.ImmReg ir = (Instruction.ImmReg) insn;
+				if(DefUse.canonical(ir.rightOperand) == sp) {
+					if(ir.operation == Instruction.ImmRegOp.sub) {
+						depth += (int) ir.leftOperand;
+					} else if(ir.operation == Instruction.ImmRegOp.add) {
+						depth -= (int) ir.leftOperand;
+					} else {
+						return true;
+					}
+					continue;
+				}
+			} else if(insn instanceof Instruction.RegReg) {
+				Instruction.RegReg rr = (Instruction.RegReg) insn;
+				Register from = DefUse.canonical(rr.leftOperand);
+				Register to = DefUse.canonical(rr.rightOperand);
+				if(rr.operation == Instruction.RegRegOp.mov && from == sp && to == bp) {
+					frame = depth;
+					continue;
+				} else if(rr.operation == Instruction.RegRegOp.mov && from == bp && to == sp) {
+					if(frame == null) {
+						return true;
+					}
+					depth = frame;
+					continue;
+				} else if(rr.operation == Instruction.RegRegOp.mov && (from == sp || from == bp)) {
+					// address of a stack slot escapes
+					return true;
+				}
+			} else if(insn instanceof Instruction.ImmIndReg) {
+				Instruction.ImmIndReg iir = (Instruction.ImmIndReg) insn;
+				Register base = DefUse.canonical(iir.baseOperand);
+				Register to = DefUse.canonical(iir.targetOperand);
+				Integer offset = base == sp ? (Integer) depth : base == bp ? frame : null;
+				if(iir.operation == Instruction.ImmIndRegOp.lea) {
+					if(base != sp && base != bp) {
+						// no stack address involved
+					} else if(offset == null || (to != sp && to != bp)) {
+						return true;
+					} else if(to == sp) {
+						depth = offset - (int) iir.immediateOffset;
+						continue;
+					} else {
+						frame = offset - (int) iir.immediateOffset;
+						continue;
+					}
+				} else if(overlaps(base, offset, iir.immediateOffset, bytesOf(iir.targetOperand), sp, bp)) {
+					return true;
+				}
+			} else if(insn instanceof Instruction.RegImmInd) {
+				Instruction.RegImmInd rii = (Instruction.RegImmInd) insn;
+				Register base = DefUse.canonical(rii.baseOperand);
+				Integer offset = base == sp ? (Integer) depth : base == bp ? frame : null;
+				if(overlaps(base, offset, rii.immediateOffset, bytesOf(rii.sourceOperand), sp, bp)) {
+					return true;
+				}
+			} else if(insn instanceof Instruction.ImmInd) {
+				Instruction.ImmInd ii = (Instruction.ImmInd) insn;
+				Register base = DefUse.canonical(ii.baseOperand);
+				Integer offset = base == sp ? (Integer) depth : base == bp ? frame : null;
+				if(overlaps(base, offset, ii.immediateOffset, width, sp, bp)) {
+					return true;
+				}
+			} else if(insn instanceof Instruction.IndRegImmReg) {
+				Instruction.IndRegImmReg irr = (Instruction.IndRegImmReg) insn;
+				if(isStackRegister(irr.baseOperand, sp, bp) || isStackRegister(irr.indexOperand, sp, bp)) {
+					return true;
+				}
+			} else if(insn instanceof Instruction.RegIndRegImm) {
+				Instruction.RegIndRegImm rir = (Instruction.RegIndRegImm) insn;
+				if(isStackRegister(rir.baseOperand, sp, bp) || isStackRegister(rir.indexOperand, sp, bp)) {
+					return true;
+				}
+			}
+			if(du.defines(sp)) {
+				return true;
+			} else if(du.defines(bp)) {
+				frame = null;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Determine whether an access of a given size, at a given offset from a
+	 * base register, may overlap the return address. Here, the base offset is
+	 * the number of bytes the base register lies below the stack pointer's
+	 * value on entry, or <code>null</code> if this is unknown.
+	 *
+	 * @param base
+	 * @param offset
+	 * @param immediate
+	 * @param size
+	 * @param sp
+	 * @param bp
+	 * @return
+	 */
+	private boolean overlaps(Register base, Integer offset, long immediate, int size,
+			Register sp, Register bp) {
+		if(base != sp && base != bp) {
+			return false;
+		} else if(offset == null) {
+			return true;
+		}
+		long start = immediate - offset;
+		return start < target.widthInBytes() && start + size > 0;
+	}
+
+	/**
+	 * Remove the frame pointer prologue (i.e. <code>push %rbp</code> followed
+	 * by <code>mov %rsp, %rbp</code>) and the epilogue before every return
+	 * (i.e. <code>pop %rbp</code> or <code>leave</code>) from a function which
+	 * otherwise makes no use of the stack. If this is not possible, then
+	 * <code>null</code> is returned.
+	 *
+	 * @param instructions
+	 * @param targets
+	 * @return
+	 */
+	private List<Instruction> stripFrame(List<Instruction> instructions, HashSet<String> targets) {
+		Register sp = stackPointer();
+		Register bp = framePointer();
+		int n = instructions.size();
+		int entry = 0;
+		while(entry < n && instructions.get(entry) instanceof Instruction.Label) {
+			if(targets.contains(((Instruction.Label) instructions.get(entry)).label)) {
+				// prologue may be executed more than once
+				return null;
+			}
+			entry = entry + 1;
+		}
+		if(entry + 1 >= n || !isReg(instructions.get(entry), Instruction.RegOp.push, bp)
+				|| !isMove(instructions.get(entry + 1), sp, bp)) {
+			return null;
+		}
+		boolean[] removed = new boolean[n];
+		removed[entry] = true;
+		removed[entry + 1] = true;
+		for(int i=entry+2;i<n;++i) {
+			Instruction insn = instructions.get(i);
+			if(isReturn(insn)) {
+				Instruction prev = instructions.get(i - 1);
+				if(!isReg(prev, Instruction.RegOp.pop, bp) && !isLeave(prev)) {
+					return null;
+				}
+				removed[i - 1] = true;
+			}
+		}
+		ArrayList<Instruction> body = new ArrayList<Instruction>();
+		for(int i=0;i!=n;++i) {
+			Instruction insn = instructions.get(i);
+			if(!removed[i]) {
+				if(!isReturn(insn) && usesStack(insn)) {
+					return null;
+				}
+				body.add(insn);
+			}
+		}
+		return body;
+	}
+
+	// ============================================
+	// Helpers
+	// ============================================
+
+	/**
+	 * Responsible for generating labels which are unique within the file.
+	 *
+	 * @author David J. Pearce
+	 *
+	 */
+	private static final class Renamer {
+		private final HashSet<String> labels;
+		private int count;
+
+		public Renamer(HashSet<String> labels) {
+			this.labels = labels;
+		}
+
+		public String fresh(String name) {
+			String label;
+			do {
+				label = ".Linline." + name + "." + (count++);
+			} while(!labels.add(label));
+			return label;
+		}
+	}
+
+	private Register stackPointer() {
+		return target.arch == Target.Arch.X86_64 ? Register.RSP : Register.ESP;
+	}
+
+	private Register framePointer() {
+		return target.arch == Target.Arch.X86_64 ? Register.RBP : Register.EBP;
+	}
+
+	/**
+	 * Determine whether an instruction may access the stack, or depend upon
+	 * the value of the stack or frame pointer.
+	 *
+	 * @param insn
+	 * @return
+	 */
+	private static boolean usesStack(Instruction insn) {
+		DefUse du = DefUse.of(insn);
+		return du.opaque || du.uses(Register.RSP) || du.defines(Register.RSP)
+				|| du.uses(Register.RBP) || du.defines(Register.RBP);
+	}
+
+	private static String referenceOf(Instruction insn) {
+		String operand = null;
+		if(insn instanceof Instruction.AddrReg) {
+			operand = ((Instruction.AddrReg) insn).leftOperand;
+		} else if(insn instanceof Instruction.AddrRegReg) {
+			operand = ((Instruction.AddrRegReg) insn).leftOperand_1;
+		} else if(insn instanceof Instruction.RegAddrReg) {
+			operand = ((Instruction.RegAddrReg) insn).rightOperand_1;
+		} else if(insn instanceof Instruction.AddrInd) {
+			operand = ((Instruction.AddrInd) insn).operand;
+		}
+		if(operand != null && operand.indexOf('+') >= 0) {
+			operand = operand.substring(0, operand.indexOf('+'));
+		}
+		return operand;
+	}
+
+	private static boolean isStackOp(Instruction.RegOp op) {
+		return op == Instruction.RegOp.push || op == Instruction.RegOp.pop;
+	}
+
+	private static boolean isStackRegister(Register register, Register sp, Register bp) {
+		Register r = DefUse.canonical(register);
+		return r == sp || r == bp;
+	}
+
+	private static boolean equals(Integer i1, Integer i2) {
+		return i1 == null ? i2 == null : i1.equals(i2);
+	}
+
+	private static int bytesOf(Register register) {
+		switch(register.width()) {
+		case Byte:
+			return 1;
+		case Word:
+			return 2;
+		case Long:
+		case ScalarSingle:
+			return 4;
+		default:
+			return 8;
+		}
+	}
+
+	private static int lastIndexOf(List<Instruction> instructions) {
+		for(int i=instructions.size()-1;i>=0;--i) {
+			Instruction insn = instructions.get(i);
+			if(!(insn instanceof Instruction.Label)
+					&& !(insn instanceof Instruction.Location)) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	private static boolean isReg(Instruction insn, Instruction.RegOp op, Register register) {
+		return insn instanceof Instruction.Reg && ((Instruction.Reg) insn).operation == op
+				&& ((Instruction.Reg) insn).operand == register;
+	}
+
+	private static boolean isMove(Instruction insn, Register from, Register to) {
+		if(insn instanceof Instruction.RegReg) {
+			Instruction.RegReg rr = (Instruction.RegReg) insn;
+			return rr.operation == Instruction.RegRegOp.mov && rr.leftOperand == from
+					&& rr.rightOperand == to;
+		}
+		return false;
+	}
+
+	private static boolean isLeave(Instruction insn) {
+		return insn instanceof Instruction.Unit
+				&& ((Instruction.Unit) insn).operation == Instruction.UnitOp.leave;
+	}
+
+	private static boolean isReturn(Instruction insn) {
+		return insn instanceof Instruction.Unit
+				&& ((Instruction.Unit) insn).operation == Instruction.UnitOp.ret;
+	}
+
+	private static boolean isInterruptReturn(Instruction insn) {
+		if(insn instanceof Instruction.Unit) {
+			Instruction.UnitOp op = ((Instruction.Unit) insn).operation;
+			return op == Instruction.UnitOp.iret || op == Instruction.UnitOp.iretd;
+		}
+		return false;
+	}
+}
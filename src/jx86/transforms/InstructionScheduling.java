@@ -0,0 +1,386 @@
+package jx86.transforms;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import jx86.analysis.ControlFlowGraph;
+import jx86.analysis.CostModel;
+import jx86.analysis.DefUse;
+import jx86.lang.Instruction;
+import jx86.lang.Register;
+
+/**
+ * <p>
+ * Reorders the instructions within each basic block to hide the latency of
+ * loads and other long-running operations. This is a standard list scheduler,
+ * which first builds a graph of the dependencies between instructions in a
+ * block, and then emits them by simulating their issue on a given
+ * microarchitecture. At each cycle, the instruction chosen is the one which
+ * heads the longest chain of dependent latencies to the end of the block.
+ * Ties are broken by the original order. For example, on a machine with a
+ * five cycle load latency:
+ * </p>
+ *
+ * <pre>
+ * movq 0(%rdi), %rax         movq 0(%rdi), %rax
+ * addq %rax, %rcx     ==>    movq 8(%rdi), %rdx
+ * movq 8(%rdi), %rdx         addq %rax, %rcx
+ * addq %rdx, %rcx            addq %rdx, %rcx
+ * </pre>
+ *
+ * <p>
+ * Dependencies arise from the registers (see <code>DefUse</code>), flags and
+ * memory read and written by each instruction. Two memory accesses are only
+ * known to be independent when both are constant offsets from the same,
+ * unchanged base register and at least eight bytes apart. A write to the
+ * flags which is never read may be moved freely, provided it does not come
+ * between another write and its readers. Labels, instructions with unknown
+ * effects and terminators are never moved, and delimit the blocks being
+ * scheduled. Source locations move with the instruction which follows them.
+ * Finally, where a block ends with a conditional branch immediately preceded
+ * by the instruction setting its flags, that instruction is kept immediately
+ * before the branch so the pair can be fused by the processor.
+ * </p>
+ *
+ * @author David J. Pearce
+ *
+ */
+public class InstructionScheduling implements Transform {
+	private final CostModel model;
+
+	/**
+	 * Construct a pass which schedules for a given microarchitecture.
+	 *
+	 * @param model
+	 */
+	public InstructionScheduling(CostModel model) {
+		this.model = model;
+	}
+
+	public List<Instruction> apply(List<Instruction> instructions) {
+		ArrayList<Instruction> result = new ArrayList<Instruction>();
+		ArrayList<Instruction> region = new ArrayList<Instruction>();
+		for(Instruction insn : instructions) {
+			if(insn instanceof Instruction.Label || DefUse.of(insn).opaque) {
+				result.addAll(schedule(region));
+				region.clear();
+				result.add(insn);
+			} else if(ControlFlowGraph.isTerminator(insn)) {
+				region.add(insn);
+				result.addAll(schedule(region));
+				region.clear();
+			} else {
+				region.add(insn);
+			}
+		}
+		result.addAll(schedule(region));
+		return result;
+	}
+
+	// ============================================
+	// Dependence Graph
+	// ============================================
+
+	/**
+	 * Represents an instruction being scheduled, along with any source
+	 * locations preceding it.
+	 *
+	 * @author David J. Pearce
+	 *
+	 */
+	private static final class Node {
+		public final int index;
+		public final List<Instruction> instructions;
+		public final Instruction instruction;
+		public final DefUse effects;
+		public final int latency;
+		public final ArrayList<Node> successors = new ArrayList<Node>();
+		public final ArrayList<Integer> delays = new ArrayList<Integer>();
+		public int predecessors;
+		/**
+		 * Length of the longest chain of latencies from this node to the end
+		 * of the block.
+		 */
+		public int height;
+		/**
+		 * Earliest cycle at which this node can issue.
+		 */
+		public int ready;
+		public boolean scheduled;
+
+		public Node(int index, List<Instruction> instructions, int latency) {
+			this.index = index;
+			this.instructions = instructions;
+			this.instruction = instructions.get(instructions.size() - 1);
+			this.effects = DefUse.of(instruction);
+			this.latency = latency;
+		}
+
+		public void addSuccessor(Node succ, int delay) {
+			int i = successors.indexOf(succ);
+			if(i < 0) {
+				successors.add(succ);
+				delays.add(delay);
+				succ.predecessors++;
+			} else if(delays.get(i) < delay) {
+				delays.set(i, delay);
+			}
+		}
+	}
+
+	/**
+	 * Build the dependence graph for a given block, whose instructions are
+	 * grouped into nodes.
+	 *
+	 * @param nodes
+	 */
+	private static void build(List<Node> nodes) {
+		int n = nodes.size();
+		for(int j=0;j!=n;++j) {
+			Node nj = nodes.get(j);
+			for(int i=0;i!=j;++i) {
+				Node ni = nodes.get(i);
+				int delay = dependence(nodes, i, j);
+				if(delay >= 0) {
+					ni.addSuccessor(nj, delay);
+				}
+			}
+		}
+		addFlagDependences(nodes);
+		Node last = nodes.get(n - 1);
+		if(ControlFlowGraph.isTerminator(last.instruction)) {
+			for(int i=0;i!=n-1;++i) {
+				nodes.get(i).addSuccessor(last, 0);
+			}
+			// keep a fusible flag producer next to its branch
+			Node prev = n > 1 ? nodes.get(n - 2) : null;
+			if(last.effects.readsFlags && last.instruction instanceof Instruction.Addr
+					&& prev.effects.writesFlags) {
+				for(int i=0;i!=n-2;++i) {
+					nodes.get(i).addSuccessor(prev, 0);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Determine the delay required between two nodes, due to the registers or
+	 * memory they access, or return <code>-1</code> if the second node does not
+	 * depend on the first.
+	 *
+	 * @param nodes
+	 * @param i
+	 * @param j
+	 * @return
+	 */
+	private static int dependence(List<Node> nodes, int i, int j) {
+		Node ni = nodes.get(i);
+		Node nj = nodes.get(j);
+		DefUse di = ni.effects;
+		DefUse dj = nj.effects;
+		int delay = -1;
+		for(Register r : dj.uses) {
+			if(di.defs.contains(r)) {
+				delay = ni.latency;
+			}
+		}
+		for(Register r : dj.defs) {
+			if(di.uses.contains(r) || di.defs.contains(r)) {
+				delay = Math.max(delay, 0);
+			}
+		}
+		if(di.writesMemory && dj.readsMemory && mayAlias(nodes, i, j)) {
+			delay = ni.latency;
+		} else if((di.writesMemory && dj.writesMemory) || (di.readsMemory && dj.writesMemory)) {
+			if(mayAlias(nodes, i, j)) {
+				delay = Math.max(delay, 0);
+			}
+		}
+		return delay;
+	}
+
+	/**
+	 * Add the dependences arising from the flags. Every write to the flags
+	 * which is read (or may be read after the block) must remain before its
+	 * readers, and every other write must come either before it or after all
+	 * of its readers (whichever was originally the case). Flags entering the
+	 * block are treated as having been written before it.
+	 *
+	 * @param nodes
+	 */
+	private static void addFlagDependences(List<Node> nodes) {
+		int n = nodes.size();
+		// readers[i+1] holds the readers of the write at i (or entry at -1)
+		ArrayList<ArrayList<Node>> readers = new ArrayList<ArrayList<Node>>();
+		for(int i=0;i<=n;++i) {
+			readers.add(new ArrayList<Node>());
+		}
+		int writer = -1;
+		for(int i=0;i!=n;++i) {
+			DefUse du = nodes.get(i).effects;
+			if(du.readsFlags) {
+				readers.get(writer + 1).add(nodes.get(i));
+			}
+			if(du.writesFlags) {
+				writer = i;
+			}
+		}
+		for(int p=-1;p!=n;++p) {
+			List<Node> rs = readers.get(p + 1);
+			if(p >= 0 && !nodes.get(p).effects.writesFlags) {
+				continue;
+			} else if(rs.isEmpty() && p != writer) {
+				// never read, so may be moved freely
+				continue;
+			}
+			Node producer = p >= 0 ? nodes.get(p) : null;
+			for(Node r : rs) {
+				if(producer != null) {
+					producer.addSuccessor(r, producer.latency);
+				}
+			}
+			for(int w=0;w!=n;++w) {
+				Node nw = nodes.get(w);
+				if(w == p || !nw.effects.writesFlags) {
+					continue;
+				} else if(w < p) {
+					nw.addSuccessor(producer, 0);
+				} else {
+					for(Node r : rs) {
+						if(r != nw) {
+							r.addSuccessor(nw, 0);
+						}
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Determine whether the memory accessed by two nodes may overlap.
+	 *
+	 * @param nodes
+	 * @param i
+	 * @param j
+	 * @return
+	 */
+	private static boolean mayAlias(List<Node> nodes, int i, int j) {
+		Register bi = baseOf(nodes.get(i).instruction);
+		Register bj = baseOf(nodes.get(j).instruction);
+		if(bi == null || bi != bj) {
+			return true;
+		}
+		for(int k=i;k!=j;++k) {
+			if(nodes.get(k).effects.defines(bi)) {
+				// base register has changed
+				return true;
+			}
+		}
+		long offset = offsetOf(nodes.get(i).instruction) - offsetOf(nodes.get(j).instruction);
+		return Math.abs(offset) < 8;
+	}
+
+	private static Register baseOf(Instruction insn) {
+		if(insn instanceof Instruction.ImmIndReg
+				&& ((Instruction.ImmIndReg) insn).operation == Instruction.ImmIndRegOp.mov) {
+			return ((Instruction.ImmIndReg) insn).baseOperand;
+		} else if(insn instanceof Instruction.RegImmInd) {
+			return ((Instruction.RegImmInd) insn).baseOperand;
+		}
+		return null;
+	}
+
+	private static long offsetOf(Instruction insn) {
+		if(insn instanceof Instruction.ImmIndReg) {
+			return ((Instruction.ImmIndReg) insn).immediateOffset;
+		} else {
+			return ((Instruction.RegImmInd) insn).immediateOffset;
+		}
+	}
+
+	// ============================================
+	// Scheduling
+	// ============================================
+
+	/**
+	 * Schedule the instructions of a given block.
+	 *
+	 * @param block
+	 * @return
+	 */
+	private List<Instruction> schedule(List<Instruction> block) {
+		ArrayList<Node> nodes = new ArrayList<Node>();
+		ArrayList<Instruction> pending = new ArrayList<Instruction>();
+		for(Instruction insn : block) {
+			pending.add(insn);
+			if(!(insn instanceof Instruction.Location)) {
+				nodes.add(new Node(nodes.size(), pending, model.latencyOf(insn)));
+				pending = new ArrayList<Instruction>();
+			}
+		}
+		if(nodes.size() < 2) {
+			return block;
+		}
+		build(nodes);
+		for(int i=nodes.size()-1;i>=0;--i) {
+			Node node = nodes.get(i);
+			node.height = node.latency;
+			for(int k=0;k!=node.successors.size();++k) {
+				node.height = Math.max(node.height,
+						node.delays.get(k) + node.successors.get(k).height);
+			}
+		}
+		ArrayList<Instruction> result = new ArrayList<Instruction>();
+		int width = model.issueWidth();
+		int cycle = 0;
+		int issued = 0;
+		for(int remaining=nodes.size();remaining!=0;--remaining) {
+			Node next = select(nodes, cycle);
+			if(next.ready > cycle) {
+				// stall until something is ready
+				cycle = next.ready;
+				issued = 0;
+			}
+			next.scheduled = true;
+			result.addAll(next.instructions);
+			for(int k=0;k!=next.successors.size();++k) {
+				Node succ = next.successors.get(k);
+				succ.ready = Math.max(succ.ready, cycle + next.delays.get(k));
+				succ.predecessors--;
+			}
+			if(++issued == width) {
+				cycle = cycle + 1;
+				issued = 0;
+			}
+		}
+		result.addAll(pending);
+		return result;
+	}
+
+	/**
+	 * Select the next node to schedule at a given cycle. This is the node
+	 * with the greatest height amongst those ready to issue or, if there are
+	 * none, the one which becomes ready first.
+	 *
+	 * @param nodes
+	 * @param cycle
+	 * @return
+	 */
+	private static Node select(List<Node> nodes, int cycle) {
+		Node best = null;
+		for(Node node : nodes) {
+			if(node.scheduled || node.predecessors != 0) {
+				continue;
+			} else if(best == null) {
+				best = node;
+			} else if(Math.max(node.ready, cycle) != Math.max(best.ready, cycle)) {
+				if(node.ready < best.ready) {
+					best = node;
+				}
+			} else if(node.height > best.height) {
+				best = node;
+			}
+		}
+		return best;
+	}
+}
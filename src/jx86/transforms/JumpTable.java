@@ -0,0 +1,139 @@
+package jx86.transforms;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import jx86.lang.Constant;
+import jx86.lang.Instruction;
+import jx86.lang.Register;
+
+/**
+ * <p>
+ * Represents a jump table for dispatching on an integer value in constant
+ * time, which is useful for lowering <code>switch</code> statements with dense
+ * cases. A jump table consists of an address table in the data segment and a
+ * dispatch sequence. For example, a table covering the cases <code>3</code> to
+ * <code>7</code> is dispatched as follows:
+ * </p>
+ *
+ * <pre>
+ * subq $3, %rax
+ * cmpq $4, %rax
+ * ja default
+ * leaq table(%rip), %rdx
+ * movq (%rdx,%rax,8), %rdx
+ * jmp *%rdx
+ * </pre>
+ *
+ * <p>
+ * Here, the unsigned comparison ensures values below the first case are also
+ * sent to the default label. Gaps between cases are filled with the default
+ * label. Since the table has an entry for every value in the range of its
+ * cases, it is only built when the cases are dense (see
+ * <code>isDense()</code>); otherwise, a chain of comparisons should be used
+ * instead.
+ * </p>
+ *
+ * @author David J. Pearce
+ *
+ */
+public final class JumpTable {
+	/**
+	 * The maximum number of table entries permitted per case.
+	 */
+	public static final int MAX_ENTRIES_PER_CASE = 4;
+
+	/**
+	 * The instructions which dispatch on the index register.
+	 */
+	public final List<Instruction> dispatch;
+
+	/**
+	 * The table of branch targets, which should be added to a data section.
+	 */
+	public final Constant.AddressTable table;
+
+	private JumpTable(List<Instruction> dispatch, Constant.AddressTable table) {
+		this.dispatch = Collections.unmodifiableList(dispatch);
+		this.table = table;
+	}
+
+	/**
+	 * Determine whether a given case map is dense enough to be dispatched
+	 * using a jump table. That is, whether the table would have at most
+	 * <code>MAX_ENTRIES_PER_CASE</code> entries for each case.
+	 *
+	 * @param cases
+	 * @return
+	 */
+	public static boolean isDense(Map<Long,String> cases) {
+		if(cases.isEmpty()) {
+			return false;
+		}
+		long min = Long.MAX_VALUE;
+		long max = Long.MIN_VALUE;
+		for(Long value : cases.keySet()) {
+			min = Math.min(min, value);
+			max = Math.max(max, value);
+		}
+		long range = max - min;
+		// range is negative on overflow
+		return range >= 0 && range < (long) MAX_ENTRIES_PER_CASE * cases.size();
+	}
+
+	/**
+	 * Construct a bounds-checked jump table from a given case map, which must
+	 * be dense.
+	 *
+	 * @param label
+	 *            Label to use for the table of branch targets
+	 * @param cases
+	 *            Maps each case value to the label of its target.
+	 * @param defaultLabel
+	 *            Label to branch to for values without a case.
+	 * @param index
+	 *            (64-bit) register holding the value to dispatch on, which is
+	 *            clobbered by the dispatch sequence.
+	 * @param scratch
+	 *            (64-bit) register which is clobbered by the dispatch
+	 *            sequence.
+	 * @return
+	 */
+	public static JumpTable build(String label, Map<Long,String> cases,
+			String defaultLabel, Register index, Register scratch) {
+		if(cases.isEmpty()) {
+			throw new IllegalArgumentException("jump table requires at least one case");
+		} else if(index.width() != Register.Width.Quad || scratch.width() != Register.Width.Quad) {
+			throw new IllegalArgumentException("jump table requires quad width registers");
+		}
+		long min = Long.MAX_VALUE;
+		long max = Long.MIN_VALUE;
+		for(Long value : cases.keySet()) {
+			min = Math.min(min, value);
+			max = Math.max(max, value);
+		}
+		long range = max - min;
+		if(!isDense(cases)) {
+			throw new IllegalArgumentException("jump table cases too sparse");
+		} else if(range >= Integer.MAX_VALUE || min < Integer.MIN_VALUE || min > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException("jump table range too large");
+		}
+		String[] targets = new String[(int) range + 1];
+		for(int i=0;i!=targets.length;++i) {
+			String target = cases.get(min + i);
+			targets[i] = target == null ? defaultLabel : target;
+		}
+		ArrayList<Instruction> dispatch = new ArrayList<Instruction>();
+		if(min != 0) {
+			dispatch.add(new Instruction.ImmReg(Instruction.ImmRegOp.sub, min, index));
+		}
+		dispatch.add(new Instruction.ImmReg(Instruction.ImmRegOp.cmp, range, index));
+		dispatch.add(new Instruction.Addr(Instruction.AddrOp.ja, defaultLabel));
+		dispatch.add(new Instruction.AddrRegReg(Instruction.AddrRegRegOp.lea, label, scratch));
+		dispatch.add(new Instruction.IndRegImmReg(Instruction.IndRegImmRegOp.mov, scratch, index, 8, scratch));
+		dispatch.add(new Instruction.IndReg(Instruction.IndRegOp.jmp, scratch));
+		return new JumpTable(dispatch, new Constant.AddressTable(label, targets));
+	}
+}
@@ -0,0 +1,298 @@
+package jx86.transforms;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+
+import jx86.analysis.ControlFlowGraph;
+import jx86.analysis.ControlFlowGraph.Block;
+import jx86.lang.Instruction;
+
+/**
+ * <p>
+ * Retargets branches to their final destination, and removes code which
+ * thereby becomes unreachable. Specifically, a branch to a block which begins
+ * with an unconditional jump is retargeted to the destination of that jump.
+ * Likewise, a conditional branch to a block which begins with a branch on the
+ * same condition is retargeted to the destination of that branch, whilst one
+ * to a block which begins with a branch on the opposite condition is
+ * retargeted to the block which follows it. Branches to the immediately
+ * following block are then removed.
+ * </p>
+ *
+ * <p>
+ * Chains of branches are followed until they reach a block which does not
+ * begin with a suitable branch, or revisit a label already seen (in which case
+ * the chain forms a cycle, and any label within it is an equivalent target).
+ * Branches which have side effects other than transferring control (e.g.
+ * <code>loop</code>) are neither followed nor removed.
+ * </p>
+ *
+ * <p>
+ * A block is considered reachable if it is the first block of the function,
+ * has a global label, has a label which is referenced other than as the
+ * target of a branch (e.g. by <code>call</code> or <code>lea</code>), or is
+ * the successor of a reachable block. Furthermore, a block with a label which
+ * is not referenced anywhere in the original instructions is assumed to be
+ * entered from elsewhere (e.g. from another function, or through a table in
+ * the data section), and is therefore also reachable. Thus, a labelled block
+ * is only removed when every reference to it has been threaded away.
+ * Unreachable blocks are only removed from functions without indirect jumps,
+ * since the targets of these (e.g. the labels of a jump table) are not known.
+ * </p>
+ *
+ * @author David J. Pearce
+ *
+ */
+public class JumpThreading implements Transform {
+
+	public List<Instruction> apply(List<Instruction> instructions) {
+		List<Instruction> result = new ArrayList<Instruction>(instructions);
+		HashSet<String> original = new HashSet<String>();
+		for(Instruction insn : instructions) {
+			addReferences(insn, original, true);
+		}
+		boolean changed = true;
+		while(changed) {
+			ControlFlowGraph cfg = new ControlFlowGraph(result);
+			List<Instruction> threaded = thread(cfg);
+			if(threaded == null) {
+				threaded = removeUnreachable(cfg, original);
+			}
+			changed = threaded != null;
+			if(changed) {
+				result = threaded;
+			}
+		}
+		return result;
+	}
+
+	// ============================================
+	// Threading
+	// ============================================
+
+	/**
+	 * Retarget every branch to its final destination, and remove any branch
+	 * to the immediately following block. This returns <code>null</code> if
+	 * no branch was changed.
+	 *
+	 * @param cfg
+	 * @return
+	 */
+	private static List<Instruction> thread(ControlFlowGraph cfg) {
+		List<Instruction> instructions = cfg.instructions();
+		List<Block> blocks = cfg.blocks();
+		ArrayList<Instruction> result = new ArrayList<Instruction>();
+		boolean changed = false;
+		for(Block block : blocks) {
+			Block next = (block.index + 1) < blocks.size() ? blocks.get(block.index + 1) : null;
+			for(int i=block.start;i!=block.end;++i) {
+				Instruction insn = instructions.get(i);
+				if(ControlFlowGraph.isBranch(insn) && isPure(((Instruction.Addr) insn).operation)) {
+					Instruction.Addr branch = (Instruction.Addr) insn;
+					String target = resolve(cfg, branch.operation, branch.operand);
+					if(next != null && cfg.blockOf(target) == next) {
+						// branch to the next block is redundant
+						changed = true;
+						continue;
+					} else if(!target.equals(branch.operand)) {
+						insn = new Instruction.Addr(branch.operation, target);
+						changed = true;
+					}
+				}
+				result.add(insn);
+			}
+		}
+		return changed ? result : null;
+	}
+
+	/**
+	 * Determine the final destination of a branch with a given operation to a
+	 * given label.
+	 *
+	 * @param cfg
+	 * @param op
+	 * @param label
+	 * @return
+	 */
+	private static String resolve(ControlFlowGraph cfg, Instruction.AddrOp op, String label) {
+		List<Block> blocks = cfg.blocks();
+		HashSet<String> visited = new HashSet<String>();
+		String current = label;
+		while(visited.add(current)) {
+			Block block = cfg.blockOf(current);
+			Instruction first = block == null ? null : firstOf(cfg, block);
+			if(!ControlFlowGraph.isBranch(first)) {
+				break;
+			}
+			Instruction.Addr branch = (Instruction.Addr) first;
+			Instruction.AddrOp inverse = ControlFlowGraph.invert(op);
+			if(branch.operation == Instruction.AddrOp.jmp) {
+				current = branch.operand;
+			} else if(inverse != null && sameCondition(op, branch.operation)) {
+				// branch must be taken, since the flags are unchanged
+				current = branch.operand;
+			} else if(inverse != null && sameCondition(inverse, branch.operation)
+					&& (block.index + 1) < blocks.size()
+					&& cfg.labelOf(blocks.get(block.index + 1)) != null) {
+				// branch cannot be taken, so control falls through
+				current = cfg.labelOf(blocks.get(block.index + 1));
+			} else {
+				break;
+			}
+		}
+		return current;
+	}
+
+	// ============================================
+	// Unreachable Code
+	// ============================================
+
+	/**
+	 * Remove all blocks which are unreachable. Any block with a label not
+	 * referenced in the original instructions is entered from elsewhere, and
+	 * is never removed. This returns <code>null</code> if no block was
+	 * removed.
+	 *
+	 * @param cfg
+	 * @param original
+	 *            labels referenced by the original instructions.
+	 * @return
+	 */
+	private static List<Instruction> removeUnreachable(ControlFlowGraph cfg,
+			HashSet<String> original) {
+		List<Instruction> instructions = cfg.instructions();
+		List<Block> blocks = cfg.blocks();
+		HashSet<String> referenced = new HashSet<String>();
+		for(Instruction insn : instructions) {
+			if(ControlFlowGraph.isIndirectJump(insn)) {
+				// targets are unknown
+				return null;
+			}
+			addReferences(insn, referenced, false);
+		}
+		// Determine the roots
+		boolean[] reachable = new boolean[blocks.size()];
+		ArrayList<Block> worklist = new ArrayList<Block>();
+		for(Block block : blocks) {
+			if(block.index == 0 || isRoot(instructions, block, referenced, original)) {
+				reachable[block.index] = true;
+				worklist.add(block);
+			}
+		}
+		// Propagate reachability
+		while(!worklist.isEmpty()) {
+			Block block = worklist.remove(worklist.size() - 1);
+			for(Block succ : block.successors()) {
+				if(!reachable[succ.index]) {
+					reachable[succ.index] = true;
+					worklist.add(succ);
+				}
+			}
+		}
+		ArrayList<Instruction> result = new ArrayList<Instruction>();
+		boolean changed = false;
+		for(Block block : blocks) {
+			if(reachable[block.index]) {
+				result.addAll(instructions.subList(block.start, block.end));
+			} else {
+				changed = true;
+			}
+		}
+		return changed ? result : null;
+	}
+
+	/**
+	 * Add any labels referenced by a given instruction to a given set. Labels
+	 * referenced only as the target of a branch are included if requested.
+	 *
+	 * @param insn
+	 * @param referenced
+	 * @param branches
+	 */
+	private static void addReferences(Instruction insn, HashSet<String> referenced,
+			boolean branches) {
+		if(insn instanceof Instruction.Addr) {
+			Instruction.Addr a = (Instruction.Addr) insn;
+			if(branches || a.operation == Instruction.AddrOp.call) {
+				referenced.add(a.operand);
+			}
+		} else if(insn instanceof Instruction.AddrReg) {
+			referenced.add(symbolOf(((Instruction.AddrReg) insn).leftOperand));
+		} else if(insn instanceof Instruction.AddrRegReg) {
+			referenced.add(symbolOf(((Instruction.AddrRegReg) insn).leftOperand_1));
+		} else if(insn instanceof Instruction.RegAddrReg) {
+			referenced.add(symbolOf(((Instruction.RegAddrReg) insn).rightOperand_1));
+		} else if(insn instanceof Instruction.AddrInd) {
+			referenced.add(symbolOf(((Instruction.AddrInd) insn).operand));
+		}
+	}
+
+	private static boolean isRoot(List<Instruction> instructions, Block block,
+			HashSet<String> referenced, HashSet<String> original) {
+		for(int i=block.start;i!=block.end;++i) {
+			Instruction insn = instructions.get(i);
+			if(insn instanceof Instruction.Label) {
+				Instruction.Label label = (Instruction.Label) insn;
+				if(label.global || referenced.contains(label.label)
+						|| !original.contains(label.label)) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	// ============================================
+	// Helpers
+	// ============================================
+
+	/**
+	 * Return the first instruction of a given block which is neither a label
+	 * nor a location, or <code>null</code> if there is none.
+	 *
+	 * @param cfg
+	 * @param block
+	 * @return
+	 */
+	private static Instruction firstOf(ControlFlowGraph cfg, Block block) {
+		List<Instruction> instructions = cfg.instructions();
+		for(int i=block.start;i!=block.end;++i) {
+			Instruction insn = instructions.get(i);
+			if(!(insn instanceof Instruction.Label)
+					&& !(insn instanceof Instruction.Location)) {
+				return insn;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Determine whether a branch operation has no effect other than
+	 * (possibly) transferring control.
+	 *
+	 * @param op
+	 * @return
+	 */
+	private static boolean isPure(Instruction.AddrOp op) {
+		return op == Instruction.AddrOp.jmp || ControlFlowGraph.invert(op) != null;
+	}
+
+	/**
+	 * Determine whether two conditional branch operations test the same
+	 * condition (e.g. <code>je</code> and <code>jz</code>).
+	 *
+	 * @param first
+	 * @param second
+	 * @return
+	 */
+	private static boolean sameCondition(Instruction.AddrOp first, Instruction.AddrOp second) {
+		Instruction.AddrOp inverse = ControlFlowGraph.invert(first);
+		return first == second || (inverse != null && inverse == ControlFlowGraph.invert(second));
+	}
+
+	private static String symbolOf(String operand) {
+		int index = operand.indexOf('+');
+		return index < 0 ? operand : operand.substring(0, index);
+	}
+}
@@ -0,0 +1,445 @@
+package jx86.transforms;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import jx86.analysis.ControlFlowGraph;
+import jx86.analysis.DefUse;
+import jx86.lang.Constant;
+import jx86.lang.Instruction;
+import jx86.lang.Register;
+import jx86.lang.Target;
+import jx86.lang.X86File;
+
+/**
+ * <p>
+ * Unrolls counted loops by a given factor. A counted loop is a single block
+ * which branches back to its own label using one of the following forms:
+ * </p>
+ *
+ * <pre>
+ * L: body                L: body                L: body
+ *    dec %r                 loop L                 inc %r
+ *    jnz L                                         cmp $N, %r
+ *                                                  jl L
+ * </pre>
+ *
+ * <p>
+ * For the first two, the counter is decremented to zero. For the third, the
+ * induction register is incremented (or has one added) up to a constant limit
+ * using a signed (<code>jl</code>) or unsigned (<code>jb</code>) comparison.
+ * The loop is rewritten so that, whilst at least <i>factor</i> iterations
+ * remain, the body is executed <i>factor</i> times per branch. The original
+ * loop is retained, under a fresh label, as a remainder loop for any final
+ * iterations. If the body uses the counter, each copy is followed by a
+ * single step; otherwise, the counter is stepped once per unrolled
+ * iteration.
+ * </p>
+ *
+ * <p>
+ * Since the rewritten loop compares the counter on entry, the flags are
+ * overwritten at points where the original loop did not do so. Therefore,
+ * loops are only unrolled if the body sets the flags before reading them, and
+ * the flags are not read after the loop exits. The body must not modify the
+ * counter, nor contain any branches or instructions with unknown effects.
+ * </p>
+ *
+ * <p>
+ * The labels introduced for each loop (i.e. <code>L.rem</code> and
+ * <code>L.exit</code>) must not clash with any other label of the file.
+ * When applied to a whole file, every label of the file is taken into
+ * account. When applied to a single sequence of instructions, only the labels
+ * of that sequence are known, hence any others must be supplied on
+ * construction.
+ * </p>
+ *
+ * @author David J. Pearce
+ *
+ */
+public class LoopUnrolling implements Transform {
+	private final Target target;
+	private final int factor;
+	private final Set<String> reserved;
+
+	/**
+	 * Construct a pass which unrolls loops by a given factor.
+	 *
+	 * @param target
+	 *            Target being compiled for, which determines the counter of
+	 *            <code>loop</code>.
+	 * @param factor
+	 *            Number of copies of the body per unrolled iteration, which
+	 *            must be at least two.
+	 */
+	public LoopUnrolling(Target target, int factor) {
+		this(target, factor, Collections.<String>emptySet());
+	}
+
+	/**
+	 * Construct a pass which unrolls loops by a given factor, and which
+	 * avoids a given set of labels (e.g. those defined elsewhere in the file)
+	 * when introducing new ones.
+	 *
+	 * @param target
+	 *            Target being compiled for, which determines the counter of
+	 *            <code>loop</code>.
+	 * @param factor
+	 *            Number of copies of the body per unrolled iteration, which
+	 *            must be at least two.
+	 * @param reserved
+	 *            Labels which must not be introduced.
+	 */
+	public LoopUnrolling(Target target, int factor, Set<String> reserved) {
+		if(factor < 2) {
+			throw new IllegalArgumentException("invalid unrolling factor: " + factor);
+		}
+		this.target = target;
+		this.factor = factor;
+		this.reserved = reserved;
+	}
+
+	/**
+	 * Unroll loops in every code section of a given file, such that the
+	 * labels introduced are unique within the file.
+	 *
+	 * @param file
+	 * @return
+	 */
+	public X86File apply(X86File file) {
+		HashSet<String> labels = new HashSet<String>(reserved);
+		for(X86File.Section section : file.sections()) {
+			if(section instanceof X86File.Code) {
+				addLabels(((X86File.Code) section).instructions, labels);
+			} else if(section instanceof X86File.Data) {
+				addConstantLabels(((X86File.Data) section).constants, labels);
+			} else if(section instanceof X86File.Bss) {
+				addConstantLabels(((X86File.Bss) section).constants, labels);
+			}
+		}
+		ArrayList<X86File.Section> sections = new ArrayList<X86File.Section>();
+		for(X86File.Section section : file.sections()) {
+			if(section instanceof X86File.Code) {
+				List<Instruction> instructions = ((X86File.Code) section).instructions;
+				sections.add(new X86File.Code(apply(instructions, labels)));
+			} else {
+				sections.add(section);
+			}
+		}
+		return new X86File(sections);
+	}
+
+	public List<Instruction> apply(List<Instruction> instructions) {
+		HashSet<String> labels = new HashSet<String>(reserved);
+		addLabels(instructions, labels);
+		return apply(instructions, labels);
+	}
+
+	/**
+	 * Unroll loops in a sequence of instructions, given every label which is
+	 * already in use. Any labels introduced are added to this set.
+	 *
+	 * @param instructions
+	 * @param labels
+	 * @return
+	 */
+	private List<Instruction> apply(List<Instruction> instructions, HashSet<String> labels) {
+		ArrayList<Instruction> result = new ArrayList<Instruction>();
+		// Start of the current block, in both the input and the result
+		int start = 0;
+		int mark = 0;
+		for(int i=0;i!=instructions.size();++i) {
+			Instruction insn = instructions.get(i);
+			if(insn instanceof Instruction.Label) {
+				result.add(insn);
+				start = i + 1;
+				mark = result.size();
+				continue;
+			} else if(ControlFlowGraph.isTerminator(insn)) {
+				Loop loop = match(instructions, start, i);
+				if(loop != null && flagsDeadAfter(instructions, i + 1)) {
+					// replace the original loop emitted so far
+					while(result.size() > mark) {
+						result.remove(result.size() - 1);
+					}
+					unroll(loop, labels, result);
+				} else {
+					result.add(insn);
+				}
+				start = i + 1;
+				mark = result.size();
+				continue;
+			}
+			result.add(insn);
+		}
+		return result;
+	}
+
+	// ============================================
+	// Loops
+	// ============================================
+
+	/**
+	 * Represents a counted loop, consisting of a body followed by the
+	 * instructions which step the counter and branch back to the start.
+	 *
+	 * @author David J. Pearce
+	 *
+	 */
+	private static final class Loop {
+		public final String label;
+		public final Instruction.AddrOp operation;
+		public final List<Instruction> body;
+		public final List<Instruction> step;
+		public final Register counter;
+		/**
+		 * Limit of an increasing counter, or <code>null</code> for a
+		 * decreasing counter.
+		 */
+		public final Long limit;
+		/**
+		 * Whether an increasing counter is compared as signed.
+		 */
+		public final boolean signed;
+
+		public Loop(String label, Instruction.AddrOp operation, List<Instruction> body,
+				List<Instruction> step, Register counter, Long limit, boolean signed) {
+			this.label = label;
+			this.operation = operation;
+			this.body = body;
+			this.step = step;
+			this.counter = counter;
+			this.limit = limit;
+			this.signed = signed;
+		}
+	}
+
+	/**
+	 * Determine whether the instructions from a given start (just after a
+	 * label) up to a given branch form a counted loop and, if so, return it.
+	 *
+	 * @param instructions
+	 * @param start
+	 * @param end
+	 * @return
+	 */
+	private Loop match(List<Instruction> instructions, int start, int end) {
+		if(!(instructions.get(end) instanceof Instruction.Addr) || start == 0) {
+			return null;
+		}
+		Instruction.Addr branch = (Instruction.Addr) instructions.get(end);
+		if(!isLabel(instructions, start, branch.operand)) {
+			return null;
+		}
+		Instruction.AddrOp inverse = ControlFlowGraph.invert(branch.operation);
+		Loop loop = null;
+		if(branch.operation == Instruction.AddrOp.loop) {
+			Register counter = target.arch == Target.Arch.X86_64 ? Register.RCX : Register.ECX;
+			loop = loop(instructions, start, end, 0, counter, null, false);
+		} else if(inverse == Instruction.AddrOp.je && end - 1 >= start
+				&& isStep(instructions.get(end - 1), Instruction.RegOp.dec)) {
+			Register counter = ((Instruction.Reg) instructions.get(end - 1)).operand;
+			loop = loop(instructions, start, end, 1, counter, null, false);
+		} else if((inverse == Instruction.AddrOp.jge || inverse == Instruction.AddrOp.jae)
+				&& end - 2 >= start && instructions.get(end - 1) instanceof Instruction.ImmReg
+				&& isStep(instructions.get(end - 2), Instruction.RegOp.inc)) {
+			Instruction.ImmReg cmp = (Instruction.ImmReg) instructions.get(end - 1);
+			Register counter = counterOf(instructions.get(end - 2));
+			boolean signed = inverse == Instruction.AddrOp.jge;
+			long bound = cmp.leftOperand - factor + 1;
+			if(cmp.operation == Instruction.ImmRegOp.cmp && cmp.rightOperand == counter
+					&& (signed ? bound >= Integer.MIN_VALUE : bound >= 0)) {
+				loop = loop(instructions, start, end, 2, counter, cmp.leftOperand, signed);
+			}
+		}
+		if(loop != null && loop.counter.width() != Register.Width.Long
+				&& loop.counter.width() != Register.Width.Quad) {
+			// bounds may not be representable
+			return null;
+		}
+		return loop;
+	}
+
+	private static Loop loop(List<Instruction> instructions, int start, int end, int steps,
+			Register counter, Long limit, boolean signed) {
+		Instruction.Addr branch = (Instruction.Addr) instructions.get(end);
+		List<Instruction> body = instructions.subList(start, end - steps);
+		List<Instruction> step = instructions.subList(end - steps, end);
+		boolean flags = false;
+		for(Instruction insn : body) {
+			if(insn instanceof Instruction.Location) {
+				continue;
+			} else if(insn instanceof Instruction.Label || ControlFlowGraph.isTerminator(insn)
+					|| ControlFlowGraph.isIndirectJump(insn)) {
+				return null;
+			}
+			DefUse du = DefUse.of(insn);
+			if(du.opaque || du.defines(counter) || (!flags && du.readsFlags)) {
+				return null;
+			}
+			flags |= du.writesFlags;
+		}
+		return new Loop(branch.operand, branch.operation, body, step, counter, limit, signed);
+	}
+
+	/**
+	 * Append the unrolled form of a given loop to a sequence of instructions.
+	 * The labels preceding the loop have already been appended.
+	 *
+	 * @param loop
+	 * @param labels
+	 * @param result
+	 */
+	private void unroll(Loop loop, HashSet<String> labels, List<Instruction> result) {
+		String remainder = fresh(loop.label + ".rem", labels);
+		String exit = fresh(loop.label + ".exit", labels);
+		Register counter = loop.counter;
+		boolean usesCounter = false;
+		for(Instruction insn : loop.body) {
+			usesCounter |= DefUse.of(insn).uses(counter);
+		}
+		// Check enough iterations remain
+		if(loop.limit == null) {
+			result.add(new Instruction.ImmReg(Instruction.ImmRegOp.cmp, factor, counter));
+			result.add(new Instruction.Addr(Instruction.AddrOp.jb, remainder));
+		} else {
+			long bound = loop.limit - factor + 1;
+			result.add(new Instruction.ImmReg(Instruction.ImmRegOp.cmp, bound, counter));
+			result.add(new Instruction.Addr(loop.signed ? Instruction.AddrOp.jge
+					: Instruction.AddrOp.jae, remainder));
+		}
+		// Unrolled body
+		for(int i=0;i!=factor;++i) {
+			result.addAll(loop.body);
+			if(usesCounter && loop.limit == null) {
+				result.add(new Instruction.Reg(Instruction.RegOp.dec, counter));
+			} else if(usesCounter) {
+				result.add(loop.step.get(0));
+			}
+		}
+		if(loop.limit == null) {
+			if(!usesCounter) {
+				result.add(new Instruction.ImmReg(Instruction.ImmRegOp.sub, factor, counter));
+			}
+			result.add(new Instruction.Addr(Instruction.AddrOp.jne, loop.label));
+		} else {
+			if(!usesCounter) {
+				result.add(new Instruction.ImmReg(Instruction.ImmRegOp.add, factor, counter));
+			}
+			result.add(new Instruction.ImmReg(Instruction.ImmRegOp.cmp, loop.limit, counter));
+			result.add(new Instruction.Addr(loop.signed ? Instruction.AddrOp.jl
+					: Instruction.AddrOp.jb, loop.label));
+		}
+		result.add(new Instruction.Addr(Instruction.AddrOp.jmp, exit));
+		// Remainder loop
+		result.add(new Instruction.Label(remainder));
+		result.addAll(loop.body);
+		result.addAll(loop.step);
+		result.add(new Instruction.Addr(loop.operation, remainder));
+		result.add(new Instruction.Label(exit));
+	}
+
+	// ============================================
+	// Helpers
+	// ============================================
+
+	/**
+	 * Determine whether the run of labels immediately preceding a given
+	 * position includes a given label.
+	 *
+	 * @param instructions
+	 * @param start
+	 * @param label
+	 * @return
+	 */
+	private static boolean isLabel(List<Instruction> instructions, int start, String label) {
+		for(int i=start-1;i>=0 && instructions.get(i) instanceof Instruction.Label;--i) {
+			if(((Instruction.Label) instructions.get(i)).label.equals(label)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Determine whether an instruction steps a register by one in a given
+	 * direction.
+	 *
+	 * @param insn
+	 * @param op
+	 * @return
+	 */
+	private static boolean isStep(Instruction insn, Instruction.RegOp op) {
+		if(insn instanceof Instruction.Reg) {
+			return ((Instruction.Reg) insn).operation == op;
+		} else if(insn instanceof Instruction.ImmReg && op == Instruction.RegOp.inc) {
+			Instruction.ImmReg ir = (Instruction.ImmReg) insn;
+			return ir.operation == Instruction.ImmRegOp.add && ir.leftOperand == 1;
+		}
+		return false;
+	}
+
+	private static Register counterOf(Instruction step) {
+		if(step instanceof Instruction.Reg) {
+			return ((Instruction.Reg) step).operand;
+		} else {
+			return ((Instruction.ImmReg) step).rightOperand;
+		}
+	}
+
+	/**
+	 * Determine whether the flags are definitely overwritten, before being
+	 * read, on the path beginning at a given position.
+	 *
+	 * @param instructions
+	 * @param index
+	 * @return
+	 */
+	private static boolean flagsDeadAfter(List<Instruction> instructions, int index) {
+		for(int i=index;i<instructions.size();++i) {
+			Instruction insn = instructions.get(i);
+			if(insn instanceof Instruction.Label || insn instanceof Instruction.Location) {
+				continue;
+			}
+			DefUse du = DefUse.of(insn);
+			if(du.readsFlags || du.opaque) {
+				return false;
+			} else if(du.writesFlags) {
+				return true;
+			} else if(insn instanceof Instruction.Unit
+					&& ((Instruction.Unit) insn).operation == Instruction.UnitOp.ret) {
+				// flags are not preserved across calls
+				return true;
+			} else if(ControlFlowGraph.isTerminator(insn)) {
+				return false;
+			}
+		}
+		return false;
+	}
+
+	private static void addLabels(List<Instruction> instructions, HashSet<String> labels) {
+		for(Instruction insn : instructions) {
+			if(insn instanceof Instruction.Label) {
+				labels.add(((Instruction.Label) insn).label);
+			}
+		}
+	}
+
+	private static void addConstantLabels(List<? extends Constant> constants, HashSet<String> labels) {
+		for(Constant constant : constants) {
+			if(constant.label != null) {
+				labels.add(constant.label);
+			}
+		}
+	}
+
+	private static String fresh(String base, HashSet<String> labels) {
+		String label = base;
+		for(int i=1;!labels.add(label);++i) {
+			label = base + i;
+		}
+		return label;
+	}
+}
@@ -0,0 +1,128 @@
+package jx86.transforms;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import jx86.analysis.Function;
+import jx86.lang.Instruction;
+import jx86.lang.X86File;
+
+/**
+ * Responsible for applying a sequence of transforms to every function in an
+ * x86 file. Since functions are transformed independently of each other, they
+ * are processed concurrently using a pool of worker threads. The transformed
+ * functions are then reassembled in their original order, so that the result
+ * is deterministic regardless of scheduling. Transforms registered with a pass
+ * manager must therefore be safe to apply concurrently.
+ *
+ * @author David J. Pearce
+ *
+ */
+public class PassManager {
+	private final ArrayList<Transform> passes = new ArrayList<Transform>();
+	private final int threads;
+
+	/**
+	 * Construct a pass manager which uses one thread per available processor.
+	 */
+	public PassManager() {
+		this(Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * Construct a pass manager which uses a given number of threads.
+	 *
+	 * @param threads
+	 */
+	public PassManager(int threads) {
+		if(threads < 1) {
+			throw new IllegalArgumentException("invalid number of threads: " + threads);
+		}
+		this.threads = threads;
+	}
+
+	/**
+	 * Register a transform to be applied after all those registered
+	 * previously.
+	 *
+	 * @param pass
+	 */
+	public void add(Transform pass) {
+		passes.add(pass);
+	}
+
+	/**
+	 * Apply all registered transforms, in order, to a single function.
+	 *
+	 * @param function
+	 * @return
+	 */
+	public List<Instruction> apply(List<Instruction> function) {
+		for(Transform pass : passes) {
+			function = pass.apply(function);
+		}
+		return function;
+	}
+
+	/**
+	 * Apply all registered transforms to every function in a given file.
+	 * Sections other than code sections are left unchanged.
+	 *
+	 * @param file
+	 * @return
+	 */
+	public X86File apply(X86File file) {
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try {
+			ArrayList<X86File.Section> sections = new ArrayList<X86File.Section>();
+			for(X86File.Section section : file.sections()) {
+				if(section instanceof X86File.Code) {
+					section = apply((X86File.Code) section, executor);
+				}
+				sections.add(section);
+			}
+			return new X86File(sections);
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	private X86File.Code apply(X86File.Code code, ExecutorService executor) {
+		List<Function> functions = Function.partition(code.instructions);
+		ArrayList<Future<List<Instruction>>> futures = new ArrayList<Future<List<Instruction>>>();
+		for(final Function f : functions) {
+			futures.add(executor.submit(new Callable<List<Instruction>>() {
+				public List<Instruction> call() {
+					return apply(f.instructions);
+				}
+			}));
+		}
+		ArrayList<Function> results = new ArrayList<Function>();
+		for(int i=0;i!=functions.size();++i) {
+			results.add(new Function(functions.get(i).name, get(futures.get(i))));
+		}
+		return new X86File.Code(Function.join(results));
+	}
+
+	private static List<Instruction> get(Future<List<Instruction>> future) {
+		try {
+			return future.get();
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+		} catch(ExecutionException e) {
+			Throwable cause = e.getCause();
+			if(cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			} else if(cause instanceof Error) {
+				throw (Error) cause;
+			}
+			throw new RuntimeException(cause);
+		}
+	}
+}
@@ -0,0 +1,237 @@
+package jx86.transforms;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+
+import jx86.analysis.ControlFlowGraph;
+import jx86.analysis.ControlFlowGraph.Block;
+import jx86.analysis.DefUse;
+import jx86.lang.Instruction;
+import jx86.lang.Register;
+import jx86.lang.Target;
+
+/**
+ * <p>
+ * Moves the saving and restoring of callee-saved registers off an early exit
+ * path of a function. This applies to functions which begin by pushing one or
+ * more callee-saved registers, and whose first block then conditionally
+ * branches to a block which restores those registers and returns. For
+ * example:
+ * </p>
+ *
+ * <pre>
+ * f:  push %rbx           f:  test %rdi, %rdi
+ *     test %rdi, %rdi         je .L1.fast
+ *     je .L1                  push %rbx
+ *     ...                     ...
+ * .L1:                    .L1:
+ *     xor %eax, %eax   ==>    xor %eax, %eax
+ *     pop %rbx                pop %rbx
+ *     ret                     ret
+ *                         .L1.fast:
+ *                             xor %eax, %eax
+ *                             ret
+ * </pre>
+ *
+ * <p>
+ * Here, the pushes are moved after the branch, and the early exit is taken to
+ * a copy of the returning block without the pops. This is only possible when
+ * neither the first block (before its branch) nor the returning block (before
+ * its pops) touches the stack or the saved registers. The original returning
+ * block is retained, since it may be reached from other paths.
+ * </p>
+ *
+ * @author David J. Pearce
+ *
+ */
+public class ShrinkWrapping implements Transform {
+	private static final Register[] CALLEE_SAVED = {
+		Register.RBX, Register.RBP, Register.R12, Register.R13, Register.R14, Register.R15
+	};
+
+	/**
+	 * Construct a pass for a given target, which must be 64-bit.
+	 *
+	 * @param target
+	 */
+	public ShrinkWrapping(Target target) {
+		if(target.arch != Target.Arch.X86_64) {
+			throw new IllegalArgumentException("shrink-wrapping requires a 64-bit target");
+		}
+	}
+
+	public List<Instruction> apply(List<Instruction> instructions) {
+		int n = instructions.size();
+		// Determine the leading labels and pushes
+		int entry = 0;
+		HashSet<String> labels = new HashSet<String>();
+		while(entry < n && instructions.get(entry) instanceof Instruction.Label) {
+			labels.add(((Instruction.Label) instructions.get(entry++)).label);
+		}
+		ArrayList<Register> saved = new ArrayList<Register>();
+		int first = entry;
+		while(first < n && isCalleeSavedPush(instructions.get(first))) {
+			saved.add(((Instruction.Reg) instructions.get(first++)).operand);
+		}
+		// Determine the first block's branch
+		int branch = first;
+		while(branch < n && isIndependent(instructions.get(branch), saved)) {
+			branch = branch + 1;
+		}
+		if(saved.isEmpty() || branch == n || !isConditional(instructions.get(branch))
+				|| isTarget(instructions, labels) || fallsThrough(instructions)) {
+			return new ArrayList<Instruction>(instructions);
+		}
+		// Determine the early exit
+		ControlFlowGraph cfg = new ControlFlowGraph(instructions);
+		String target = ((Instruction.Addr) instructions.get(branch)).operand;
+		Block exit = cfg.blockOf(target);
+		List<Instruction> fast = exit == null ? null : restoreOf(instructions, exit, saved);
+		if(fast == null) {
+			return new ArrayList<Instruction>(instructions);
+		}
+		String label = fresh(target + ".fast", instructions);
+		ArrayList<Instruction> result = new ArrayList<Instruction>();
+		result.addAll(instructions.subList(0, entry));
+		result.addAll(instructions.subList(first, branch));
+		Instruction.Addr b = (Instruction.Addr) instructions.get(branch);
+		result.add(new Instruction.Addr(b.operation, label));
+		result.addAll(instructions.subList(entry, first));
+		result.addAll(instructions.subList(branch + 1, n));
+		result.add(new Instruction.Label(label));
+		result.addAll(fast);
+		return result;
+	}
+
+	// ============================================
+	// Helpers
+	// ============================================
+
+	/**
+	 * Determine the instructions of a given block, excluding its labels and
+	 * the pops which restore a given list of saved registers, provided it
+	 * consists only of instructions independent of them followed by those
+	 * pops and a return. Otherwise, return <code>null</code>.
+	 *
+	 * @param instructions
+	 * @param block
+	 * @param saved
+	 * @return
+	 */
+	private static List<Instruction> restoreOf(List<Instruction> instructions, Block block,
+			List<Register> saved) {
+		int i = block.start;
+		while(i < block.end && instructions.get(i) instanceof Instruction.Label) {
+			i = i + 1;
+		}
+		ArrayList<Instruction> fast = new ArrayList<Instruction>();
+		while(i < block.end && isIndependent(instructions.get(i), saved)) {
+			fast.add(instructions.get(i++));
+		}
+		for(int j=saved.size()-1;j>=0;--j) {
+			if(i == block.end || !isReg(instructions.get(i++), Instruction.RegOp.pop, saved.get(j))) {
+				return null;
+			}
+		}
+		if(i + 1 != block.end || !isReturn(instructions.get(i))) {
+			return null;
+		}
+		fast.add(instructions.get(i));
+		return fast;
+	}
+
+	/**
+	 * Determine whether an instruction within a block is unaffected by the
+	 * stack and a given list of saved registers.
+	 *
+	 * @param insn
+	 * @param saved
+	 * @return
+	 */
+	private static boolean isIndependent(Instruction insn, List<Register> saved) {
+		if(insn instanceof Instruction.Location) {
+			return true;
+		} else if(insn instanceof Instruction.Label || ControlFlowGraph.isTerminator(insn)) {
+			return false;
+		}
+		DefUse du = DefUse.of(insn);
+		if(du.opaque || du.uses(Register.RSP) || du.defines(Register.RSP)) {
+			return false;
+		}
+		for(Register r : saved) {
+			if(du.uses(r) || du.defines(r)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static boolean isCalleeSavedPush(Instruction insn) {
+		if(insn instanceof Instruction.Reg && ((Instruction.Reg) insn).operation == Instruction.RegOp.push) {
+			Register r = ((Instruction.Reg) insn).operand;
+			for(Register c : CALLEE_SAVED) {
+				if(r == c) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	private static boolean isConditional(Instruction insn) {
+		return ControlFlowGraph.isBranch(insn)
+				&& ControlFlowGraph.invert(((Instruction.Addr) insn).operation) != null;
+	}
+
+	/**
+	 * Determine whether any branch targets one of a given set of labels.
+	 *
+	 * @param instructions
+	 * @param labels
+	 * @return
+	 */
+	private static boolean isTarget(List<Instruction> instructions, HashSet<String> labels) {
+		for(Instruction insn : instructions) {
+			if(ControlFlowGraph.isBranch(insn) && labels.contains(((Instruction.Addr) insn).operand)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static boolean fallsThrough(List<Instruction> instructions) {
+		for(int i=instructions.size()-1;i>=0;--i) {
+			Instruction insn = instructions.get(i);
+			if(!(insn instanceof Instruction.Label)
+					&& !(insn instanceof Instruction.Location)) {
+				return ControlFlowGraph.fallsThrough(insn);
+			}
+		}
+		return true;
+	}
+
+	private static boolean isReg(Instruction insn, Instruction.RegOp op, Register register) {
+		return insn instanceof Instruction.Reg && ((Instruction.Reg) insn).operation == op
+				&& ((Instruction.Reg) insn).operand == register;
+	}
+
+	private static boolean isReturn(Instruction insn) {
+		return insn instanceof Instruction.Unit
+				&& ((Instruction.Unit) insn).operation == Instruction.UnitOp.ret;
+	}
+
+	private static String fresh(String base, List<Instruction> instructions) {
+		HashSet<String> labels = new HashSet<String>();
+		for(Instruction insn : instructions) {
+			if(insn instanceof Instruction.Label) {
+				labels.add(((Instruction.Label) insn).label);
+			}
+		}
+		String label = base;
+		for(int i=1;labels.contains(label);++i) {
+			label = base + i;
+		}
+		return label;
+	}
+}
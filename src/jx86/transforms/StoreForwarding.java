@@ -0,0 +1,345 @@
+package jx86.transforms;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import jx86.analysis.ControlFlowGraph;
+import jx86.analysis.DefUse;
+import jx86.lang.Instruction;
+import jx86.lang.Register;
+
+/**
+ * <p>
+ * Removes redundant memory traffic to stack slots (i.e. locations addressed
+ * by a constant offset from <code>%rbp</code> or <code>%rsp</code>) within
+ * each basic block. Specifically:
+ * </p>
+ *
+ * <ul>
+ * <li><b>Store forwarding.</b> A load from a slot whose value is still held
+ * in a register (i.e. because it was stored or loaded earlier in the block) is
+ * replaced by a register move, or removed entirely if the value is already
+ * in the target register. A 32-bit load is always replaced by a move, since it
+ * also clears the upper half of its 64-bit register.</li>
+ * <li><b>Dead-store elimination.</b> A store to a slot is removed if the slot
+ * is overwritten later in the block before being read, or if the slot is
+ * local to the frame (i.e. below <code>%rbp</code>) and the block tears down
+ * the frame (using <code>leave</code>) and returns before it is read.</li>
+ * </ul>
+ *
+ * <p>
+ * The analysis is conservative. Slots are only tracked whilst their base
+ * register is unchanged. Calls, instructions with unknown effects, and loads
+ * or stores through any other register (which may alias a slot whose address
+ * has escaped) invalidate everything known. Accesses which only partially
+ * overlap a slot are treated as aliasing it.
+ * </p>
+ *
+ * @author David J. Pearce
+ *
+ */
+public class StoreForwarding implements Transform {
+
+	public List<Instruction> apply(List<Instruction> instructions) {
+		int n = instructions.size();
+		Instruction[] result = instructions.toArray(new Instruction[n]);
+		boolean[] deleted = new boolean[n];
+		// Slots whose value is known to be held in a register
+		ArrayList<Slot> known = new ArrayList<Slot>();
+		// Stores which have not (yet) been read
+		ArrayList<Slot> pending = new ArrayList<Slot>();
+		boolean left = false;
+		for(int i=0;i!=n;++i) {
+			Instruction insn = instructions.get(i);
+			if(insn instanceof Instruction.Label) {
+				// start of a new block
+				known.clear();
+				pending.clear();
+				left = false;
+				continue;
+			} else if(insn instanceof Instruction.Location) {
+				continue;
+			}
+			Slot load = loadOf(insn, i);
+			Slot store = storeOf(insn, i);
+			DefUse du = DefUse.of(insn);
+			if(load != null) {
+				Slot slot = find(known, load);
+				Register target = load.value;
+				if(slot != null && slot.value == target && target.width() != Register.Width.Long) {
+					// value is already in the target register
+					deleted[i] = true;
+					continue;
+				} else if(slot != null && isEncodable(slot.value, target)) {
+					// a 32-bit move also clears the upper half of the target
+					result[i] = new Instruction.RegReg(Instruction.RegRegOp.mov, slot.value, target);
+				} else {
+					read(pending, load);
+				}
+			} else if(store != null) {
+				if(left) {
+					// slots of the torn down frame cannot be compared against
+					pending.clear();
+				}
+				// stores overwrite any pending store to the same slot
+				Slot previous = find(pending, store);
+				if(previous != null) {
+					deleted[previous.index] = true;
+					pending.remove(previous);
+				}
+				invalidate(known, store);
+			} else if(isLeave(insn)) {
+				// the frame is being torn down, which reads only the saved frame pointer
+				read(pending, new Slot(-1, Register.RBP, 0, 8, null));
+				left = true;
+			} else if(isReturn(insn)) {
+				for(Slot slot : pending) {
+					if(left && slot.base == Register.RBP && slot.offset + slot.size <= 0) {
+						// slot was in the torn down frame
+						deleted[slot.index] = true;
+					}
+				}
+				pending.clear();
+			} else if(du.opaque || du.readsMemory || du.writesMemory) {
+				if(!isGlobalAccess(insn)) {
+					if(du.writesMemory || du.opaque) {
+						known.clear();
+					}
+					if(du.readsMemory || du.opaque) {
+						pending.clear();
+					}
+				}
+			}
+			// Account for registers being overwritten
+			for(Register r : du.defs) {
+				kill(known, r);
+				if(!left || r != Register.RBP) {
+					drop(pending, r);
+				}
+			}
+			if(left && !isLeave(insn) && !isReturn(insn) && du.readsMemory) {
+				// the frame may be read after being torn down
+				pending.clear();
+			}
+			if(store != null && store.base != DefUse.canonical(store.value)) {
+				known.add(store);
+				pending.add(store);
+			} else if(load != null && load.base != DefUse.canonical(load.value)) {
+				known.add(load);
+			}
+			if(ControlFlowGraph.isTerminator(insn)) {
+				// end of block
+				known.clear();
+				pending.clear();
+				left = false;
+			}
+		}
+		ArrayList<Instruction> output = new ArrayList<Instruction>();
+		for(int i=0;i!=n;++i) {
+			if(!deleted[i]) {
+				output.add(result[i]);
+			}
+		}
+		return output;
+	}
+
+	// ============================================
+	// Helpers
+	// ============================================
+
+	/**
+	 * Represents a stack slot of a given size, addressed by an offset from a
+	 * frame register, along with the register holding its value.
+	 *
+	 * @author David J. Pearce
+	 *
+	 */
+	private static final class Slot {
+		public final int index;
+		public final Register base;
+		public final long offset;
+		public final int size;
+		public final Register value;
+
+		public Slot(int index, Register base, long offset, int size, Register value) {
+			this.index = index;
+			this.base = base;
+			this.offset = offset;
+			this.size = size;
+			this.value = value;
+		}
+
+		public boolean matches(Slot slot) {
+			return base == slot.base && offset == slot.offset && size == slot.size
+					&& (value == null || slot.value == null || value.width() == slot.value.width());
+		}
+
+		public boolean overlaps(Slot slot) {
+			return base != slot.base
+					|| (offset < slot.offset + slot.size && slot.offset < offset + size);
+		}
+	}
+
+	private static Slot loadOf(Instruction insn, int index) {
+		if(insn instanceof Instruction.ImmIndReg) {
+			Instruction.ImmIndReg i = (Instruction.ImmIndReg) insn;
+			if(i.operation == Instruction.ImmIndRegOp.mov && isFrame(i.baseOperand)) {
+				return new Slot(index, DefUse.canonical(i.baseOperand), i.immediateOffset,
+						sizeOf(i.targetOperand), i.targetOperand);
+			}
+		}
+		return null;
+	}
+
+	private static Slot storeOf(Instruction insn, int index) {
+		if(insn instanceof Instruction.RegImmInd) {
+			Instruction.RegImmInd i = (Instruction.RegImmInd) insn;
+			if(i.operation == Instruction.RegImmIndOp.mov && isFrame(i.baseOperand)) {
+				return new Slot(index, DefUse.canonical(i.baseOperand), i.immediateOffset,
+						sizeOf(i.sourceOperand), i.sourceOperand);
+			}
+		}
+		return null;
+	}
+
+	private static Slot find(List<Slot> slots, Slot slot) {
+		for(Slot s : slots) {
+			if(s.matches(slot)) {
+				return s;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Mark any pending store which may overlap a given slot as having been
+	 * read.
+	 *
+	 * @param pending
+	 * @param slot
+	 */
+	private static void read(List<Slot> pending, Slot slot) {
+		Iterator<Slot> iterator = pending.iterator();
+		while(iterator.hasNext()) {
+			if(iterator.next().overlaps(slot)) {
+				iterator.remove();
+			}
+		}
+	}
+
+	/**
+	 * Forget the contents of any slot which may overlap a given slot.
+	 *
+	 * @param known
+	 * @param slot
+	 */
+	private static void invalidate(List<Slot> known, Slot slot) {
+		Iterator<Slot> iterator = known.iterator();
+		while(iterator.hasNext()) {
+			if(iterator.next().overlaps(slot)) {
+				iterator.remove();
+			}
+		}
+	}
+
+	/**
+	 * Forget any slot which is addressed using, or whose value is held in, a
+	 * given register.
+	 *
+	 * @param known
+	 * @param register
+	 */
+	private static void kill(List<Slot> known, Register register) {
+		Iterator<Slot> iterator = known.iterator();
+		while(iterator.hasNext()) {
+			Slot slot = iterator.next();
+			if(slot.base == register || DefUse.canonical(slot.value) == register) {
+				iterator.remove();
+			}
+		}
+	}
+
+	/**
+	 * Stop tracking pending stores addressed using a given register, since
+	 * they can no longer be compared against later accesses.
+	 *
+	 * @param pending
+	 * @param register
+	 */
+	private static void drop(List<Slot> pending, Register register) {
+		Iterator<Slot> iterator = pending.iterator();
+		while(iterator.hasNext()) {
+			if(iterator.next().base == register) {
+				iterator.remove();
+			}
+		}
+	}
+
+	private static boolean isFrame(Register register) {
+		Register r = DefUse.canonical(register);
+		return r == Register.RBP || r == Register.RSP;
+	}
+
+	/**
+	 * Determine whether a given instruction accesses only memory which cannot
+	 * alias the stack (i.e. a global addressed relative to <code>%rip</code>).
+	 *
+	 * @param insn
+	 * @return
+	 */
+	private static boolean isGlobalAccess(Instruction insn) {
+		if(insn instanceof Instruction.AddrRegReg) {
+			return ((Instruction.AddrRegReg) insn).leftOperand_2 == Register.RIP;
+		} else if(insn instanceof Instruction.RegAddrReg) {
+			return ((Instruction.RegAddrReg) insn).rightOperand_2 == Register.RIP;
+		}
+		return false;
+	}
+
+	/**
+	 * Determine whether a move between two registers can be encoded. This is
+	 * not the case when one is a high byte register (e.g. <code>%ah</code>)
+	 * and the other requires a REX prefix (e.g. <code>%r8b</code>).
+	 *
+	 * @param from
+	 * @param to
+	 * @return
+	 */
+	private static boolean isEncodable(Register from, Register to) {
+		return !(isHighByte(from) && isExtendedByte(to)) && !(isHighByte(to) && isExtendedByte(from));
+	}
+
+	private static boolean isHighByte(Register register) {
+		return register == Register.AH || register == Register.BH || register == Register.CH
+				|| register == Register.DH;
+	}
+
+	private static boolean isExtendedByte(Register register) {
+		return register.width() == Register.Width.Byte && register.name().startsWith("r");
+	}
+
+	private static boolean isLeave(Instruction insn) {
+		return insn instanceof Instruction.Unit
+				&& ((Instruction.Unit) insn).operation == Instruction.UnitOp.leave;
+	}
+
+	private static boolean isReturn(Instruction insn) {
+		return insn instanceof Instruction.Unit
+				&& ((Instruction.Unit) insn).operation == Instruction.UnitOp.ret;
+	}
+
+	private static int sizeOf(Register register) {
+		switch(register.width()) {
+		case Byte:
+			return 1;
+		case Word:
+			return 2;
+		case Long:
+		case ScalarSingle:
+			return 4;
+		default:
+			return 8;
+		}
+	}
+}
@@ -0,0 +1,501 @@
+package jx86.transforms;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import jx86.analysis.ControlFlowGraph;
+import jx86.analysis.DefUse;
+import jx86.lang.Instruction;
+import jx86.lang.Register;
+
+/**
+ * <p>
+ * Tracks the constant values held in registers within each basic block, and
+ * uses them to simplify instructions. Specifically:
+ * </p>
+ *
+ * <ul>
+ * <li>Register operands holding known constants are replaced with immediates
+ * (e.g. <code>add %rcx,%rax</code> becomes <code>add $3,%rax</code>).</li>
+ * <li>Arithmetic on a register holding a known constant is folded into a
+ * single <code>mov</code> (e.g. <code>mov $2,%rax; add $3,%rax</code> becomes
+ * <code>mov $5,%rax</code>). The original <code>mov</code> is removed when
+ * nothing else reads it.</li>
+ * <li>Multiplication by a power of two becomes a shift, whilst multiplication
+ * by <code>3</code>, <code>5</code> or <code>9</code> becomes an
+ * <code>lea</code>.</li>
+ * <li>Unsigned division (<code>div</code>) by a known constant, where
+ * <code>%rdx</code> is known to be zero, becomes a shift and mask (for powers
+ * of two) or a multiplication by a "magic" reciprocal (otherwise). Both the
+ * quotient and remainder are computed, as for <code>div</code>.</li>
+ * </ul>
+ *
+ * <p>
+ * Since the replacements set the flags differently (or not at all), folding
+ * and strength reduction of multiplication are only applied when the flags
+ * produced are subsequently overwritten before being read. Only 32-bit and
+ * 64-bit registers are considered.
+ * </p>
+ *
+ * @author David J. Pearce
+ *
+ */
+public class StrengthReduction implements Transform {
+	private static final BigInteger TWO_64 = BigInteger.ONE.shiftLeft(64);
+	private static final long MASK_32 = 0xFFFFFFFFL;
+
+	public List<Instruction> apply(List<Instruction> instructions) {
+		ArrayList<Instruction> result = new ArrayList<Instruction>();
+		HashMap<Register,Long> constants = new HashMap<Register,Long>();
+		// Constant moves whose result has not (yet) been read, by position
+		HashMap<Register,Integer> moves = new HashMap<Register,Integer>();
+		for(int i=0;i!=instructions.size();++i) {
+			Instruction insn = instructions.get(i);
+			if(insn instanceof Instruction.Label) {
+				// start of a new block
+				constants.clear();
+				moves.clear();
+				result.add(insn);
+				continue;
+			}
+			List<Instruction> replacement = reduce(insn, constants, instructions, i);
+			boolean folded = replacement.size() == 1 && replacement.get(0) != insn;
+			for(Instruction r : replacement) {
+				update(r, constants);
+				track(r, folded, moves, result);
+				result.add(r);
+			}
+		}
+		// Remove the moves made dead by folding
+		ArrayList<Instruction> output = new ArrayList<Instruction>();
+		for(Instruction insn : result) {
+			if(insn != null) {
+				output.add(insn);
+			}
+		}
+		return output;
+	}
+
+	// ============================================
+	// Reductions
+	// ============================================
+
+	/**
+	 * Reduce the ith instruction of a given sequence, returning the
+	 * instructions which should replace it.
+	 *
+	 * @param insn
+	 * @param constants
+	 * @param instructions
+	 * @param index
+	 * @return
+	 */
+	private static List<Instruction> reduce(Instruction insn, HashMap<Register, Long> constants,
+			List<Instruction> instructions, int index) {
+		ArrayList<Instruction> result = new ArrayList<Instruction>();
+		if(insn instanceof Instruction.RegReg) {
+			insn = immediate((Instruction.RegReg) insn, constants);
+		}
+		if(insn instanceof Instruction.ImmReg) {
+			Instruction.ImmReg i = (Instruction.ImmReg) insn;
+			boolean foldable = i.operation != Instruction.ImmRegOp.mov
+					&& i.operation != Instruction.ImmRegOp.cmp
+					&& (i.operation == Instruction.ImmRegOp.imul || valueOf(i.rightOperand, constants) != null);
+			if(foldable && flagsDead(instructions, index)) {
+				if(fold(i, constants, result)) {
+					return result;
+				} else if(i.operation == Instruction.ImmRegOp.imul
+						&& multiply(i.leftOperand, i.rightOperand, result)) {
+					return result;
+				}
+			}
+		} else if(insn instanceof Instruction.Reg) {
+			Instruction.Reg i = (Instruction.Reg) insn;
+			if(i.operation == Instruction.RegOp.div && divide(i.operand, constants, result)) {
+				return result;
+			}
+		}
+		result.add(insn);
+		return result;
+	}
+
+	/**
+	 * Replace the source operand of a binary instruction with an immediate,
+	 * if it holds a known constant which can be encoded as one.
+	 *
+	 * @param insn
+	 * @param constants
+	 * @return
+	 */
+	private static Instruction immediate(Instruction.RegReg insn, HashMap<Register, Long> constants) {
+		Instruction.ImmRegOp op;
+		switch(insn.operation) {
+		case add:
+			op = Instruction.ImmRegOp.add;
+			break;
+		case sub:
+			op = Instruction.ImmRegOp.sub;
+			break;
+		case and:
+			op = Instruction.ImmRegOp.and;
+			break;
+		case or:
+			op = Instruction.ImmRegOp.or;
+			break;
+		case xor:
+			op = Instruction.ImmRegOp.xor;
+			break;
+		case cmp:
+			op = Instruction.ImmRegOp.cmp;
+			break;
+		case imul:
+			op = Instruction.ImmRegOp.imul;
+			break;
+		default:
+			return insn;
+		}
+		Long value = valueOf(insn.leftOperand, constants);
+		Register.Width width = insn.rightOperand.width();
+		if(value == null || width != insn.leftOperand.width()
+				|| DefUse.canonical(insn.leftOperand) == DefUse.canonical(insn.rightOperand)) {
+			return insn;
+		} else if(width == Register.Width.Long) {
+			return new Instruction.ImmReg(op, (int) value.longValue(), insn.rightOperand);
+		} else if(width == Register.Width.Quad && value == (int) value.longValue()) {
+			return new Instruction.ImmReg(op, value, insn.rightOperand);
+		}
+		return insn;
+	}
+
+	/**
+	 * Fold an operation on a register holding a known constant into a move of
+	 * the result.
+	 *
+	 * @param insn
+	 * @param constants
+	 * @param result
+	 * @return
+	 */
+	private static boolean fold(Instruction.ImmReg insn, HashMap<Register, Long> constants,
+			List<Instruction> result) {
+		Long value = valueOf(insn.rightOperand, constants);
+		if(value == null) {
+			return false;
+		}
+		long a = value;
+		long b = insn.leftOperand;
+		long v;
+		switch(insn.operation) {
+		case add:
+			v = a + b;
+			break;
+		case sub:
+			v = a - b;
+			break;
+		case and:
+			v = a & b;
+			break;
+		case or:
+			v = a | b;
+			break;
+		case xor:
+			v = a ^ b;
+			break;
+		case imul:
+			v = a * b;
+			break;
+		case shl:
+			v = isLong(insn.rightOperand) ? a << (b & 31) : a << b;
+			break;
+		case shr:
+			v = isLong(insn.rightOperand) ? (a & MASK_32) >>> (b & 31) : a >>> b;
+			break;
+		case sar:
+			v = isLong(insn.rightOperand) ? ((int) a) >> (b & 31) : a >> b;
+			break;
+		default:
+			return false;
+		}
+		if(isLong(insn.rightOperand)) {
+			// the immediate of a 32-bit move must be given as a signed value
+			v = (int) v;
+		}
+		result.add(new Instruction.ImmReg(Instruction.ImmRegOp.mov, v, insn.rightOperand));
+		return true;
+	}
+
+	/**
+	 * Reduce a multiplication by a constant into cheaper instructions.
+	 *
+	 * @param k
+	 * @param target
+	 * @param result
+	 * @return
+	 */
+	private static boolean multiply(long k, Register target, List<Instruction> result) {
+		if(k == 0) {
+			result.add(new Instruction.ImmReg(Instruction.ImmRegOp.mov, 0, target));
+		} else if(k == 1) {
+			// nothing to do
+		} else if(k > 0 && Long.bitCount(k) == 1) {
+			result.add(new Instruction.ImmReg(Instruction.ImmRegOp.shl,
+					Long.numberOfTrailingZeros(k), target));
+		} else if((k == 3 || k == 5 || k == 9)
+				&& (target.width() == Register.Width.Quad || target.width() == Register.Width.Long)) {
+			result.add(new Instruction.IndRegImmReg(Instruction.IndRegImmRegOp.lea,
+					target, target, k - 1, target));
+		} else {
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Reduce an unsigned division of <code>%rdx:%rax</code> by a register
+	 * holding a known constant. The resulting sequence leaves the quotient in
+	 * <code>%rax</code> and remainder in <code>%rdx</code>, as for
+	 * <code>div</code>.
+	 *
+	 * @param divisor
+	 * @param constants
+	 * @param result
+	 * @return
+	 */
+	private static boolean divide(Register divisor, HashMap<Register, Long> constants,
+			List<Instruction> result) {
+		Long value = valueOf(divisor, constants);
+		Long high = constants.get(Register.RDX);
+		Register canonical = DefUse.canonical(divisor);
+		if(value == null || high == null || high != 0 || canonical == Register.RAX
+				|| canonical == Register.RDX) {
+			return false;
+		}
+		long d = value;
+		Register.Width width = divisor.width();
+		if(width == Register.Width.Long) {
+			d = d & MASK_32;
+		} else if(width != Register.Width.Quad) {
+			return false;
+		}
+		Register rax = Register.RAX.sibling(width);
+		Register rdx = Register.RDX.sibling(width);
+		if(d > 0 && Long.bitCount(d) == 1 && d <= Integer.MAX_VALUE) {
+			// power of two
+			if(d > 1) {
+				result.add(new Instruction.RegReg(Instruction.RegRegOp.mov, rax, rdx));
+				result.add(new Instruction.ImmReg(Instruction.ImmRegOp.and, d - 1, rdx));
+				result.add(new Instruction.ImmReg(Instruction.ImmRegOp.shr,
+						Long.numberOfTrailingZeros(d), rax));
+			}
+			return true;
+		} else if(width != Register.Width.Quad || d <= 1 || d > Integer.MAX_VALUE) {
+			return false;
+		}
+		long[] magic = magic(d);
+		long shift = magic[1];
+		// quotient = mulhi(n, magic) >> shift (with fixup)
+		result.add(new Instruction.RegReg(Instruction.RegRegOp.mov, Register.RAX, divisor));
+		result.add(new Instruction.ImmReg(Instruction.ImmRegOp.mov, magic[0], Register.RDX));
+		result.add(new Instruction.Reg(Instruction.RegOp.mul, Register.RDX));
+		if(magic[2] == 0) {
+			if(shift > 0) {
+				result.add(new Instruction.ImmReg(Instruction.ImmRegOp.shr, shift, Register.RDX));
+			}
+		} else {
+			result.add(new Instruction.RegReg(Instruction.RegRegOp.mov, divisor, Register.RAX));
+			result.add(new Instruction.RegReg(Instruction.RegRegOp.sub, Register.RDX, Register.RAX));
+			result.add(new Instruction.ImmReg(Instruction.ImmRegOp.shr, 1, Register.RAX));
+			result.add(new Instruction.RegReg(Instruction.RegRegOp.add, Register.RDX, Register.RAX));
+			if(shift > 1) {
+				result.add(new Instruction.ImmReg(Instruction.ImmRegOp.shr, shift - 1, Register.RAX));
+			}
+		}
+		// remainder = n - quotient * d
+		if(magic[2] == 0) {
+			result.add(new Instruction.RegReg(Instruction.RegRegOp.mov, Register.RDX, Register.RAX));
+		} else {
+			result.add(new Instruction.RegReg(Instruction.RegRegOp.mov, Register.RAX, Register.RDX));
+		}
+		result.add(new Instruction.ImmReg(Instruction.ImmRegOp.imul, d, Register.RAX));
+		result.add(new Instruction.RegReg(Instruction.RegRegOp.sub, Register.RAX, divisor));
+		result.add(new Instruction.RegReg(Instruction.RegRegOp.mov, Register.RDX, Register.RAX));
+		result.add(new Instruction.RegReg(Instruction.RegRegOp.mov, divisor, Register.RDX));
+		// finally, restore the divisor
+		result.add(new Instruction.ImmReg(Instruction.ImmRegOp.mov, d, divisor));
+		return true;
+	}
+
+	/**
+	 * Compute the magic number for unsigned 64-bit division by a given
+	 * constant (which is not a power of two), following Granlund and
+	 * Montgomery. This returns the multiplier, the shift and whether or not the
+	 * "add" fixup is required (i.e. because the multiplier would not fit in 64
+	 * bits).
+	 *
+	 * @param d
+	 * @return
+	 */
+	private static long[] magic(long d) {
+		BigInteger divisor = BigInteger.valueOf(d);
+		int l = 64 - Long.numberOfLeadingZeros(d - 1);
+		for(int s=0;s<=l;++s) {
+			BigInteger p = BigInteger.ONE.shiftLeft(64 + s);
+			BigInteger m = p.add(divisor).subtract(BigInteger.ONE).divide(divisor);
+			BigInteger error = m.multiply(divisor).subtract(p);
+			if(m.compareTo(TWO_64) < 0 && error.compareTo(BigInteger.ONE.shiftLeft(s)) <= 0) {
+				return new long[] { m.longValue(), s, 0 };
+			}
+		}
+		BigInteger m = TWO_64.multiply(BigInteger.ONE.shiftLeft(l).subtract(divisor))
+				.divide(divisor).add(BigInteger.ONE);
+		return new long[] { m.longValue(), l, 1 };
+	}
+
+	// ============================================
+	// Helpers
+	// ============================================
+
+	/**
+	 * Update the known constants to reflect the effect of a given
+	 * instruction.
+	 *
+	 * @param insn
+	 * @param constants
+	 */
+	private static void update(Instruction insn, HashMap<Register, Long> constants) {
+		DefUse du = DefUse.of(insn);
+		if(du.opaque) {
+			constants.clear();
+			return;
+		}
+		for(Register r : du.defs) {
+			constants.remove(r);
+		}
+		if(insn instanceof Instruction.ImmReg) {
+			Instruction.ImmReg i = (Instruction.ImmReg) insn;
+			if(i.operation == Instruction.ImmRegOp.mov) {
+				define(i.rightOperand, i.leftOperand, constants);
+			}
+		} else if(insn instanceof Instruction.RegReg) {
+			Instruction.RegReg i = (Instruction.RegReg) insn;
+			if(i.operation == Instruction.RegRegOp.mov
+					&& i.leftOperand.width() == i.rightOperand.width()) {
+				Long value = valueOf(i.leftOperand, constants);
+				if(value != null) {
+					define(i.rightOperand, value, constants);
+				}
+			} else if((i.operation == Instruction.RegRegOp.xor || i.operation == Instruction.RegRegOp.sub)
+					&& i.leftOperand == i.rightOperand) {
+				define(i.rightOperand, 0, constants);
+			}
+		}
+	}
+
+	/**
+	 * Track which constant moves have not yet been read. When an instruction
+	 * which read the result of such a move has been folded into a new move of
+	 * the same register, the earlier move is dead and is removed (i.e.
+	 * replaced with <code>null</code>).
+	 *
+	 * @param insn
+	 *            Instruction about to be added to the result.
+	 * @param folded
+	 *            Whether this instruction replaces one which was folded.
+	 * @param moves
+	 * @param result
+	 */
+	private static void track(Instruction insn, boolean folded, HashMap<Register, Integer> moves,
+			List<Instruction> result) {
+		if(insn instanceof Instruction.ImmReg
+				&& ((Instruction.ImmReg) insn).operation == Instruction.ImmRegOp.mov
+				&& isWhole(((Instruction.ImmReg) insn).rightOperand)) {
+			Register target = DefUse.canonical(((Instruction.ImmReg) insn).rightOperand);
+			Integer previous = moves.get(target);
+			if(folded && previous != null) {
+				result.set(previous, null);
+			}
+			moves.put(target, result.size());
+			return;
+		}
+		DefUse du = DefUse.of(insn);
+		if(du.opaque || ControlFlowGraph.isTerminator(insn)) {
+			// the register may be read after the branch
+			moves.clear();
+			return;
+		}
+		for(Register r : du.uses) {
+			moves.remove(r);
+		}
+		for(Register r : du.defs) {
+			moves.remove(r);
+		}
+	}
+
+	private static void define(Register register, long value, HashMap<Register, Long> constants) {
+		if(register.width() == Register.Width.Quad) {
+			constants.put(register, value);
+		} else if(register.width() == Register.Width.Long) {
+			// 32-bit writes are zero extended
+			constants.put(DefUse.canonical(register), value & MASK_32);
+		}
+	}
+
+	private static Long valueOf(Register register, HashMap<Register, Long> constants) {
+		Register.Width width = register.width();
+		if(width != Register.Width.Quad && width != Register.Width.Long) {
+			return null;
+		}
+		Long value = constants.get(DefUse.canonical(register));
+		if(value != null && width == Register.Width.Long) {
+			value = value & MASK_32;
+		}
+		return value;
+	}
+
+	/**
+	 * Determine whether writing a given register overwrites the whole of its
+	 * family (since 32-bit writes are zero extended).
+	 *
+	 * @param register
+	 * @return
+	 */
+	private static boolean isWhole(Register register) {
+		return register.width() == Register.Width.Quad || register.width() == Register.Width.Long;
+	}
+
+	private static boolean isLong(Register register) {
+		return register.width() == Register.Width.Long;
+	}
+
+	/**
+	 * Determine whether the flags produced by the ith instruction are
+	 * overwritten before being read. This is conservative, and assumes flags
+	 * are live at the end of a block unless it returns.
+	 *
+	 * @param instructions
+	 * @param i
+	 * @return
+	 */
+	private static boolean flagsDead(List<Instruction> instructions, int i) {
+		for(int j=i+1;j<instructions.size();++j) {
+			Instruction insn = instructions.get(j);
+			if(insn instanceof Instruction.Label) {
+				return false;
+			}
+			DefUse du = DefUse.of(insn);
+			if(du.readsFlags || du.opaque) {
+				return false;
+			} else if(du.writesFlags) {
+				return true;
+			} else if(insn instanceof Instruction.Unit
+					&& ((Instruction.Unit) insn).operation == Instruction.UnitOp.ret) {
+				return true;
+			} else if(ControlFlowGraph.isTerminator(insn)) {
+				return false;
+			}
+		}
+		return false;
+	}
+}
@@ -0,0 +1,27 @@
+package jx86.transforms;
+
+import java.util.List;
+
+import jx86.lang.Instruction;
+
+/**
+ * Represents a transformation over a sequence of instructions (e.g. a
+ * function body). Transforms should not modify the given sequence, but instead
+ * return a new sequence. This allows them to be safely applied to different
+ * sequences concurrently.
+ *
+ * @author David J. Pearce
+ *
+ */
+public interface Transform {
+
+	/**
+	 * Apply this transform to a given sequence of instructions.
+	 *
+	 * @param instructions
+	 *            The instruction sequence to transform, which is not
+	 *            modified.
+	 * @return The transformed sequence of instructions.
+	 */
+	public List<Instruction> apply(List<Instruction> instructions);
+}
@@ -0,0 +1,83 @@
+package jx86;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import jx86.emulator.Emulator;
+import jx86.lang.Instruction;
+import jx86.lang.Target;
+import jx86.lang.X86File;
+
+/**
+ * Provides the helpers shared by the tests. Each test is a class whose
+ * <code>main</code> method runs its checks, throwing an
+ * <code>AssertionError</code> on the first failure.
+ *
+ * @author David J. Pearce
+ *
+ */
+public final class Testing {
+
+	public static void check(boolean condition, String message) {
+		if(!condition) {
+			throw new AssertionError(message);
+		}
+	}
+
+	public static void checkEquals(long expected, long actual, String message) {
+		if(expected != actual) {
+			throw new AssertionError(message + ": expected " + expected + ", got " + actual);
+		}
+	}
+
+	/**
+	 * Construct a list of instructions.
+	 *
+	 * @param instructions
+	 * @return
+	 */
+	public static List<Instruction> code(Instruction... instructions) {
+		ArrayList<Instruction> result = new ArrayList<Instruction>();
+		for(Instruction insn : instructions) {
+			result.add(insn);
+		}
+		return result;
+	}
+
+	/**
+	 * Construct an emulator for a file consisting of a single code section.
+	 *
+	 * @param instructions
+	 * @return
+	 */
+	public static Emulator emulator(List<Instruction> instructions) {
+		return new Emulator(new X86File(new X86File.Code(instructions)), Target.LINUX_X86_64);
+	}
+
+	/**
+	 * Determine whether a list of instructions contains one with a given
+	 * operation.
+	 *
+	 * @param instructions
+	 * @param operation
+	 * @return
+	 */
+	public static boolean contains(List<Instruction> instructions, Enum<?> operation) {
+		for(Instruction insn : instructions) {
+			if(operationOf(insn) == operation) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static Object operationOf(Instruction insn) {
+		try {
+			return insn.getClass().getField("operation").get(insn);
+		} catch(NoSuchFieldException e) {
+			return null;
+		} catch(IllegalAccessException e) {
+			return null;
+		}
+	}
+}
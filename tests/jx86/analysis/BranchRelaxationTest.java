@@ -0,0 +1,187 @@
+package jx86.analysis;
+
+import static jx86.Testing.*;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+
+import jx86.lang.Instruction;
+import jx86.lang.Target;
+import jx86.lang.Instruction.*;
+
+/**
+ * Checks the encodings chosen by <code>BranchRelaxation</code>, both for
+ * hand-written sequences at the limits of the short form and for randomly
+ * generated sequences in which relaxing one branch pushes others out of
+ * range.
+ *
+ * @author David J. Pearce
+ *
+ */
+public class BranchRelaxationTest {
+	private static final SizeModel ESTIMATE = new SizeModel(Target.LINUX_X86_64);
+
+	private static final SizeModel EXACT = new SizeModel(Target.LINUX_X86_64) {
+		public boolean isExact() {
+			return true;
+		}
+	};
+
+	public static void main(String[] args) {
+		forward();
+		backward();
+		cascade();
+		encodable();
+		random(ESTIMATE, 1);
+		random(EXACT, 16);
+	}
+
+	/**
+	 * A forward branch is short exactly when it skips at most 127 bytes.
+	 */
+	private static void forward() {
+		for(int k=126;k!=130;++k) {
+			List<Instruction> code = new ArrayList<Instruction>();
+			code.add(new Addr(AddrOp.jne, ".L"));
+			nops(code, k);
+			code.add(new Label(".L"));
+			BranchRelaxation.Layout layout = new BranchRelaxation(ESTIMATE).relax(code);
+			check(layout.isShort(0) == (k <= 127), "forward branch over " + k + " bytes");
+			checkEquals(k <= 127 ? 2 : 6, layout.sizeOf(0), "size of forward branch over " + k + " bytes");
+			checkEquals(layout.sizeOf(0) + k, layout.offsetOf(".L"), "offset of label");
+		}
+	}
+
+	/**
+	 * A backward branch is short exactly when its displacement, which
+	 * includes the branch itself, is at least -128.
+	 */
+	private static void backward() {
+		for(int k=124;k!=128;++k) {
+			List<Instruction> code = new ArrayList<Instruction>();
+			code.add(new Label(".L"));
+			nops(code, k);
+			code.add(new Addr(AddrOp.jmp, ".L"));
+			BranchRelaxation.Layout layout = new BranchRelaxation(ESTIMATE).relax(code);
+			check(layout.isShort(k + 1) == (k <= 126), "backward branch over " + k + " bytes");
+			checkEquals(k <= 126 ? 2 : 5, layout.sizeOf(k + 1), "size of backward branch over " + k + " bytes");
+		}
+	}
+
+	/**
+	 * Relaxing a later branch pushes an earlier one, which was initially in
+	 * range, out of range.
+	 */
+	private static void cascade() {
+		List<Instruction> code = new ArrayList<Instruction>();
+		code.add(new Addr(AddrOp.jne, ".L1"));
+		nops(code, 125);
+		code.add(new Addr(AddrOp.jne, ".L2"));
+		code.add(new Label(".L1"));
+		nops(code, 128);
+		code.add(new Label(".L2"));
+		BranchRelaxation.Layout layout = new BranchRelaxation(ESTIMATE).relax(code);
+		check(!layout.isShort(126), "second branch is short");
+		check(!layout.isShort(0), "first branch is short");
+		checkEquals(6 + 125 + 6 + 128, layout.size(), "size of sequence");
+	}
+
+	/**
+	 * Branches on the count register are only encodable in the form
+	 * supported by the target.
+	 */
+	private static void encodable() {
+		List<Instruction> code = new ArrayList<Instruction>();
+		code.add(new Addr(AddrOp.jcxz, ".L"));
+		code.add(new Label(".L"));
+		try {
+			new BranchRelaxation(ESTIMATE).relax(code);
+			check(false, "jcxz encoded on x86_64");
+		} catch(IllegalArgumentException e) {
+			// expected
+		}
+		checkEquals(3, new BranchRelaxation(new SizeModel(Target.LINUX_X86_32)).relax(code).size(),
+				"size of jcxz on x86");
+		code.set(0, new Addr(AddrOp.jrcxz, ".L"));
+		checkEquals(2, new BranchRelaxation(ESTIMATE).relax(code).size(), "size of jrcxz on x86_64");
+		code.set(0, new Addr(AddrOp.jecxz, ".L"));
+		checkEquals(3, new BranchRelaxation(ESTIMATE).relax(code).size(), "size of jecxz on x86_64");
+	}
+
+	/**
+	 * Relax randomly generated sequences of branches, checking that every
+	 * short branch reaches its target and that the offsets are consistent
+	 * with the sizes. For the estimating model (where padding is fixed), every
+	 * near branch must also be unable to reach its target in its short form.
+	 *
+	 * @param model
+	 * @param alignment
+	 *            Maximum alignment of the labels generated.
+	 */
+	private static void random(SizeModel model, int alignment) {
+		Random random = new Random(26);
+		for(int r=0;r!=200;++r) {
+			List<Instruction> code = new ArrayList<Instruction>();
+			int labels = 5 + random.nextInt(40);
+			for(int i=0;i!=labels;++i) {
+				int align = 1 << random.nextInt(Integer.numberOfTrailingZeros(alignment) + 1);
+				code.add(new Label(".L" + i, align, false));
+				int m = random.nextInt(6);
+				for(int j=0;j!=m;++j) {
+					if(random.nextBoolean()) {
+						nops(code, random.nextInt(40));
+					} else {
+						AddrOp op = random.nextBoolean() ? AddrOp.jmp : AddrOp.jne;
+						code.add(new Addr(op, ".L" + random.nextInt(labels)));
+					}
+				}
+			}
+			checkLayout(code, model, new BranchRelaxation(model).relax(code));
+		}
+	}
+
+	private static void checkLayout(List<Instruction> code, SizeModel model, BranchRelaxation.Layout layout) {
+		HashMap<String,Integer> labels = new HashMap<String,Integer>();
+		int offset = 0;
+		for(int i=0;i!=code.size();++i) {
+			Instruction insn = code.get(i);
+			if(insn instanceof Label) {
+				Label label = (Label) insn;
+				labels.put(label.label, i);
+				if(label.alignment > 1) {
+					int remainder = offset % label.alignment;
+					offset += model.isExact() ? (remainder == 0 ? 0 : label.alignment - remainder)
+							: label.alignment - 1;
+				}
+			}
+			checkEquals(offset, layout.offsetOf(i), "offset of instruction " + i);
+			offset += layout.sizeOf(i);
+		}
+		checkEquals(offset, layout.size(), "size of sequence");
+		for(int i=0;i!=code.size();++i) {
+			Instruction insn = code.get(i);
+			if(insn instanceof Addr) {
+				Addr branch = (Addr) insn;
+				long target = layout.offsetOf(labels.get(branch.operand));
+				long end = layout.offsetOf(i) + layout.sizeOf(i);
+				if(layout.isShort(i)) {
+					long displacement = target - end;
+					check(displacement >= -128 && displacement <= 127, "short branch out of range: " + i);
+				} else if(!model.isExact()) {
+					// displacement of the branch had it been short
+					int shrink = layout.sizeOf(i) - model.shortBranchSize(branch.operation);
+					long displacement = target > layout.offsetOf(i) ? target - end : target - (end - shrink);
+					check(displacement < -128 || displacement > 127, "near branch in range: " + i);
+				}
+			}
+		}
+	}
+
+	private static void nops(List<Instruction> code, int count) {
+		for(int i=0;i!=count;++i) {
+			code.add(new Unit(UnitOp.nop));
+		}
+	}
+}
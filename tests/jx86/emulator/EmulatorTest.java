@@ -0,0 +1,473 @@
+package jx86.emulator;
+
+import static jx86.Testing.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import jx86.lang.Constant;
+import jx86.lang.Instruction;
+import jx86.lang.Register;
+import jx86.lang.Target;
+import jx86.lang.X86File;
+import jx86.lang.Instruction.*;
+import jx86.transforms.BlockCounters;
+import jx86.transforms.ConstantPool;
+
+/**
+ * Checks the <code>Emulator</code> against hand-written functions, against
+ * the code produced by other passes, and against results obtained by running
+ * randomly generated functions natively.
+ *
+ * @author David J. Pearce
+ *
+ */
+public class EmulatorTest {
+
+	public static void main(String[] args) {
+		functions();
+		cdecl();
+		constantOffsets();
+		constantOffsetsEncoded();
+		ripRelative();
+		blockCounters();
+		nativeResults();
+	}
+
+	// ============================================
+	// Hand-written functions
+	// ============================================
+
+	private static void functions() {
+		List<Instruction> code = code(
+				// sum of a quad array
+				new Label("sum", 16, true),
+				new RegReg(RegRegOp.xor, Register.EAX, Register.EAX),
+				new AddrRegReg(AddrRegRegOp.lea, "arr", Register.RDX),
+				new Label(".L"),
+				new ImmIndReg(ImmIndRegOp.mov, 0, Register.RDX, Register.RCX),
+				new RegReg(RegRegOp.add, Register.RCX, Register.RAX),
+				new ImmReg(ImmRegOp.add, 8, Register.RDX),
+				new Reg(RegOp.dec, Register.RDI),
+				new Addr(AddrOp.jnz, ".L"),
+				new Unit(UnitOp.ret),
+				// quotient of twice a by b, with the remainder in memory
+				new Label("div", 16, true),
+				new Reg(RegOp.push, Register.RBX),
+				new RegReg(RegRegOp.mov, Register.RSI, Register.RBX),
+				new Addr(AddrOp.call, "twice"),
+				new Unit(UnitOp.cqto),
+				new Reg(RegOp.idiv, Register.RBX),
+				new RegAddrReg(RegAddrRegOp.mov, Register.RDX, "rem"),
+				new Reg(RegOp.pop, Register.RBX),
+				new Unit(UnitOp.ret),
+				new Label("twice", 16, true),
+				new IndRegImmReg(IndRegImmRegOp.lea, Register.RDI, Register.RDI, 1, Register.RAX),
+				new Unit(UnitOp.ret),
+				// x * y + x
+				new Label("fp", 16, true),
+				new RegReg(RegRegOp.mov, Register.XMM0, Register.XMM2),
+				new RegReg(RegRegOp.mul, Register.XMM1, Register.XMM0),
+				new RegReg(RegRegOp.add, Register.XMM2, Register.XMM0),
+				new Unit(UnitOp.ret),
+				// unsigned maximum
+				new Label("umax", 16, true),
+				new RegReg(RegRegOp.mov, Register.RDI, Register.RAX),
+				new RegReg(RegRegOp.cmp, Register.RSI, Register.RDI),
+				new Addr(AddrOp.jae, ".U"),
+				new RegReg(RegRegOp.mov, Register.RSI, Register.RAX),
+				new Label(".U"),
+				new Unit(UnitOp.ret),
+				// call to an external function
+				new Label("ext", 16, true),
+				new Addr(AddrOp.call, "length"),
+				new ImmReg(ImmRegOp.shl, 2, Register.RAX),
+				new Unit(UnitOp.ret),
+				new Label("spin", 16, true),
+				new Label(".S"),
+				new Addr(AddrOp.jmp, ".S"));
+		ArrayList<Constant> data = new ArrayList<Constant>();
+		data.add(new Constant.QuadArray("arr", 8, false, new long[] { 1, 2, 3, 4, 5 }));
+		data.add(new Constant.Quad("rem", 8, true, 0));
+		Emulator emulator = new Emulator(new X86File(new X86File.Code(code),
+				new X86File.Data(data)), Target.LINUX_X86_64);
+		checkEquals(15, emulator.call("sum", 5), "sum");
+		checkEquals(-7, emulator.call("div", -7, 2), "div");
+		checkEquals(0, emulator.memory().read(emulator.addressOf("rem"), 8), "rem");
+		checkEquals(-4, emulator.call("div", -7, 3), "div");
+		checkEquals(-2, emulator.memory().read(emulator.addressOf("rem"), 8), "rem");
+		emulator.setDouble(Register.XMM0, 3.0);
+		emulator.setDouble(Register.XMM1, 4.5);
+		emulator.call("fp");
+		check(emulator.getDouble(Register.XMM0) == 16.5, "fp");
+		checkEquals(-1, emulator.call("umax", -1, 5), "umax");
+		checkEquals(5, emulator.call("umax", 3, 5), "umax");
+		emulator.define("length", new Emulator.Native() {
+			public void call(Emulator m) {
+				m.set(Register.RAX, 5);
+			}
+		});
+		checkEquals(20, emulator.call("ext"), "ext");
+		emulator.setBudget(1000);
+		checkFault(emulator, "spin");
+		checkFault(emulator, "div", 1, 0);
+	}
+
+	/**
+	 * A 32-bit function, which takes its arguments on the stack and
+	 * addresses data absolutely.
+	 */
+	private static void cdecl() {
+		List<Instruction> code = code(
+				new Label("f", 16, true),
+				new Reg(RegOp.push, Register.EBP),
+				new RegReg(RegRegOp.mov, Register.ESP, Register.EBP),
+				new ImmIndReg(ImmIndRegOp.mov, 8, Register.EBP, Register.EAX),
+				new AddrRegReg(AddrRegRegOp.sub, "k", Register.EIP, Register.EAX),
+				new ImmIndReg(ImmIndRegOp.mov, 12, Register.EBP, Register.ECX),
+				new RegReg(RegRegOp.imul, Register.ECX, Register.EAX),
+				new Unit(UnitOp.leave),
+				new Unit(UnitOp.ret));
+		ArrayList<Constant> data = new ArrayList<Constant>();
+		data.add(new Constant.Long("k", 4, false, 1));
+		Emulator emulator = new Emulator(new X86File(new X86File.Code(code),
+				new X86File.Data(data)), Target.LINUX_X86_32);
+		checkEquals(-27, (int) emulator.call("f", 10, -3), "cdecl");
+		// the caller pops the arguments
+		long sp = emulator.get(Register.ESP);
+		checkEquals(10, emulator.memory().read(sp, 4), "first argument");
+		checkEquals(-3, (int) emulator.memory().read(sp + 4, 4), "second argument");
+	}
+
+	// ============================================
+	// Code from other passes
+	// ============================================
+
+	/**
+	 * A string shared as the suffix of another is referenced by an offset
+	 * from the label of that other.
+	 */
+	private static void constantOffsets() {
+		ConstantPool pool = new ConstantPool();
+		ArrayList<Constant> data = new ArrayList<Constant>();
+		data.add(new Constant.String("hello", "hello world"));
+		data.add(new Constant.String("world", "world"));
+		pool.add(new X86File.Data(data));
+		X86File.Data pooled = pool.toData();
+		X86File.Code code = pool.rewrite(new X86File.Code(code(
+				new Label("f", 16, true),
+				new RegReg(RegRegOp.xor, Register.EAX, Register.EAX),
+				new AddrRegReg(AddrRegRegOp.mov, "world", Register.AL),
+				new Unit(UnitOp.ret))));
+		check(pool.resolve("world").startsWith("hello+"), "suffix not shared");
+		Emulator emulator = new Emulator(new X86File(code, pooled), Target.LINUX_X86_64);
+		checkEquals('w', emulator.call("f"), "shared suffix");
+		checkEquals(emulator.addressOf("hello") + 6, emulator.addressOf(pool.resolve("world")),
+				"offset label");
+	}
+
+	/**
+	 * Offsets of shared suffixes are measured in encoded bytes, and a suffix
+	 * is never found part way through an encoded character.
+	 */
+	private static void constantOffsetsEncoded() {
+		ConstantPool pool = new ConstantPool();
+		ArrayList<Constant> data = new ArrayList<Constant>();
+		data.add(new Constant.String("greeting", "h\u00e9llo w\u00f6rld"));
+		data.add(new Constant.String("world", "w\u00f6rld"));
+		data.add(new Constant.String("smile", "a\ud83d\ude00"));
+		data.add(new Constant.String("low", "\ude00"));
+		pool.add(new X86File.Data(data));
+		X86File.Data pooled = pool.toData();
+		X86File.Code code = pool.rewrite(new X86File.Code(code(
+				new Label("f", 16, true),
+				new RegReg(RegRegOp.xor, Register.EAX, Register.EAX),
+				new AddrRegReg(AddrRegRegOp.mov, "world", Register.AL),
+				new Unit(UnitOp.ret))));
+		checkEquals(3, pooled.constants.size(), "strings after sharing");
+		check(pool.resolve("world").equals("greeting+7"), "suffix offset: " + pool.resolve("world"));
+		check(pool.resolve("low").equals("low"), "suffix within surrogate pair shared");
+		Emulator emulator = new Emulator(new X86File(code, pooled), Target.LINUX_X86_64);
+		checkEquals('w', emulator.call("f"), "shared encoded suffix");
+		checkEquals(0xC3, emulator.memory().read(emulator.addressOf(pool.resolve("world")) + 1, 1),
+				"encoded suffix");
+	}
+
+	/**
+	 * Globals relative to the instruction pointer can be updated in place,
+	 * and can hold the targets of indirect branches.
+	 */
+	private static void ripRelative() {
+		ArrayList<Constant> data = new ArrayList<Constant>();
+		data.add(new Constant.Quad("total", 5));
+		data.add(new Constant.AddressTable("handlers", new String[] { "g", "h" }));
+		X86File.Code code = new X86File.Code(code(
+				new Label("f", 16, true),
+				new RegAddrReg(RegAddrRegOp.add, Register.RDI, "total"),
+				new RegAddrReg(RegAddrRegOp.cmp, Register.RSI, "total"),
+				new Addr(AddrOp.jl, ".neg"),
+				new AddrInd(AddrIndOp.call, "handlers"),
+				new RegAddrReg(RegAddrRegOp.xor, Register.RAX, "total"),
+				new AddrInd(AddrIndOp.jmp, "handlers+8"),
+				new Label(".neg"),
+				new ImmReg(ImmRegOp.mov, -1, Register.RAX),
+				new Unit(UnitOp.ret),
+				new Label("g"),
+				new AddrRegReg(AddrRegRegOp.mov, "total", Register.RAX),
+				new Unit(UnitOp.ret),
+				new Label("h"),
+				new AddrRegReg(AddrRegRegOp.mov, "total", Register.RAX),
+				new Unit(UnitOp.ret)));
+		Emulator emulator = new Emulator(new X86File(code, new X86File.Data(data)), Target.LINUX_X86_64);
+		// total = 5 + 3 = 8, which g returns, and then 8 ^ 8 = 0
+		checkEquals(0, emulator.call("f", 3, 0), "indirect call and jump");
+		checkEquals(0, emulator.memory().read(emulator.addressOf("total"), 8), "store in place");
+		checkEquals(-1, emulator.call("f", 1, 5), "comparison against memory");
+		checkEquals(1, emulator.memory().read(emulator.addressOf("total"), 8), "comparison is not stored");
+		check(new AddrInd(AddrIndOp.call, "handlers").toString().equals("call *handlers(%rip)"),
+				"indirect branch syntax");
+	}
+
+	private static void blockCounters() {
+		BlockCounters counters = new BlockCounters(Target.LINUX_X86_64, "__counters");
+		BlockCounters.Instrumented instrumented = counters.apply(new X86File(new X86File.Code(code(
+				new Label("f", 16, true),
+				new RegReg(RegRegOp.xor, Register.EAX, Register.EAX),
+				new Label(".L"),
+				new RegReg(RegRegOp.add, Register.RDI, Register.RAX),
+				new Reg(RegOp.dec, Register.RDI),
+				new Addr(AddrOp.jnz, ".L"),
+				new Unit(UnitOp.ret)))));
+		Emulator emulator = new Emulator(instrumented.file, Target.LINUX_X86_64);
+		checkEquals(10, emulator.call("f", 4), "instrumented result");
+		long[] counts = new long[instrumented.size()];
+		for(int i=0;i!=counts.length;++i) {
+			counts[i] = emulator.memory().read(emulator.addressOf("__counters") + 8 * i, 8);
+		}
+		BlockCounters.Profile profile = instrumented.read(counts);
+		checkEquals(1, profile.countOf("f"), "entry count");
+		checkEquals(4, profile.countOf(".L"), "loop count");
+		// counters are not shared between files
+		checkEquals(1, counters.apply(new X86File(new X86File.Code(code(
+				new Label("g", 16, true),
+				new Unit(UnitOp.ret))))).size(), "counters of second file");
+	}
+
+	// ============================================
+	// Native results
+	// ============================================
+
+	private static final Register[] QUADS = {
+		Register.RAX, Register.RCX, Register.RDX, Register.RSI, Register.R8, Register.R9
+	};
+	private static final Register[] LONGS = {
+		Register.EAX, Register.ECX, Register.EDX, Register.ESI, Register.R8D, Register.R9D
+	};
+	private static final Register[] BYTES = {
+		Register.AL, Register.CL, Register.DL, Register.AH, Register.DH, Register.CH
+	};
+	private static final AddrOp[] CONDITIONS = {
+		AddrOp.ja, AddrOp.jae, AddrOp.jb, AddrOp.jbe, AddrOp.je, AddrOp.jne,
+		AddrOp.jg, AddrOp.jge, AddrOp.jl, AddrOp.jle, AddrOp.jo, AddrOp.jno,
+		AddrOp.js, AddrOp.jns, AddrOp.jp, AddrOp.jnp
+	};
+	private static final long[] ARGUMENTS = { 3, -17, 123456789012L };
+
+	/**
+	 * Results of running each generated function natively, for each argument.
+	 */
+	private static final long[][] NATIVE = {
+		{ 9168230866L, 23000169364L, 50540431009L },
+		{ 9676035716L, -1074872820L, 43778033251830596L },
+		{ 4301860732953357192L, -5588280712551065773L, 7409746716174509898L },
+		{ 820860380613310347L, 127221961460292595L, 5374622783360491758L },
+		{ -8011842187L, 16629850739L, -345054692139648428L },
+		{ 22133496069940L, 30902521506617L, -81551965971655112L },
+		{ 3017359934L, -861334120L, 90373340565677051L },
+		{ 382788913933041250L, 6206874396519292662L, 7866716827148049608L },
+		{ 34539115157L, 19548101721L, 27003822567L },
+		{ 473526574794400699L, -4996912920103588188L, 8155890174660521533L },
+		{ 5533603095982605140L, -1347470442002809849L, -271589797331586051L },
+		{ 2256421500L, 1189L, 9516903849L },
+		{ 4174656234L, 10632810875L, -66652459902786441L },
+		{ 12916751144L, 3972238341L, 113158650568210502L },
+		{ -4560788272L, 4625360446L, 2091221476277111207L },
+		{ 11658462502L, 8801901619L, 70999021037594782L },
+		{ 29544161119L, 555400422L, 204009993579496273L },
+		{ -7672753376883285064L, -7759274878183417281L, -7401606273191757474L },
+		{ 2642351324L, 2232401838701L, 4568148279333471523L },
+		{ 11826028711L, 44919694843L, -35772828024087082L },
+		{ 15013911496L, 12945018242L, 31495317349168398L },
+		{ 12454250518L, 9033474029L, 171126925412233152L },
+		{ 6233481353629137519L, 6339520544098491311L, -4342537540604650992L },
+		{ 14481792623L, 11553208771L, 9218004135L },
+		{ 82507060286681L, -3384400299926384187L, -3100907730164204863L },
+		{ 3212623008L, 3872524366L, -37534073728277560L },
+		{ 11412157730L, 18479132902L, -267287141673804468L },
+		{ 3061868112L, 1224743289L, 118098592L },
+		{ 9052257153L, 5980277402L, 274876924010423898L },
+		{ 2630212314L, 10252777977L, -243765912802235215L },
+		{ -5409071303533211631L, -3993777119781602146L, 3054718426439481977L },
+		{ 5502862543L, 5241478408L, 5449640948L },
+		{ 335329888239724806L, 327278936662120199L, -3961940201403930857L },
+		{ 14580987148L, 1461509562746L, -6628514419182547688L },
+		{ 557902183804908L, -140986139361828820L, -1236905524271804642L },
+		{ -322590963830291646L, -309729514349564397L, -8896708805441015200L },
+		{ 3090388206810375951L, 3094643436559291500L, -2527634699876004033L },
+		{ 542703259659306224L, 659865828283716211L, 2871493322656654844L },
+		{ 987139803L, 2072513446L, -58086913232790265L },
+		{ -30754003071176867L, -32728253443146666L, -7147188629135267769L }
+	};
+
+	/**
+	 * Run randomly generated functions, and compare their results with those
+	 * obtained by assembling and running the same functions natively.
+	 */
+	private static void nativeResults() {
+		Random random = new Random(50);
+		List<Instruction> code = new ArrayList<Instruction>();
+		for(int i=0;i!=NATIVE.length;++i) {
+			code.addAll(generate("r" + i, random));
+		}
+		Emulator emulator = new Emulator(new X86File(new X86File.Code(code)), Target.LINUX_X86_64);
+		for(int i=0;i!=NATIVE.length;++i) {
+			for(int j=0;j!=ARGUMENTS.length;++j) {
+				checkEquals(NATIVE[i][j], emulator.call("r" + i, ARGUMENTS[j]),
+						"r" + i + "(" + ARGUMENTS[j] + ")");
+			}
+		}
+	}
+
+	/**
+	 * Generate a function mixing arithmetic of each width with branches, and
+	 * folding the defined flags into its result.
+	 *
+	 * @param name
+	 * @param random
+	 * @return
+	 */
+	private static List<Instruction> generate(String name, Random random) {
+		ArrayList<Instruction> code = new ArrayList<Instruction>();
+		code.add(new Label(name, 16, true));
+		code.add(new Reg(RegOp.push, Register.RBX));
+		for(Register r : QUADS) {
+			code.add(new RegReg(RegRegOp.mov, Register.RDI, r));
+			code.add(new ImmReg(ImmRegOp.imul, random.nextInt(2000000) - 1000000, r));
+			code.add(new ImmReg(ImmRegOp.xor, random.nextInt(), r));
+		}
+		code.add(new ImmReg(ImmRegOp.mov, 0, Register.RBX));
+		// the flags (CF, PF, ZF, SF and OF) defined by the last instruction
+		int defined = 0x8c5;
+		for(int k=0;k!=25;++k) {
+			int x = random.nextInt(QUADS.length);
+			int y = random.nextInt(QUADS.length);
+			switch(random.nextInt(16)) {
+			case 0:
+				code.add(new RegReg(RegRegOp.add, QUADS[x], QUADS[y]));
+				defined = 0x8c5;
+				break;
+			case 1:
+				code.add(new RegReg(RegRegOp.imul, QUADS[x], QUADS[y]));
+				defined = 0x801;
+				break;
+			case 2:
+				code.add(new RegReg(RegRegOp.sub, LONGS[x], LONGS[y]));
+				defined = 0x8c5;
+				break;
+			case 3: {
+				int count = random.nextInt(64);
+				code.add(new ImmReg(ImmRegOp.shr, count, QUADS[y]));
+				defined = count > 1 ? 0xc5 : count == 1 ? 0x8c5 : defined;
+				break;
+			}
+			case 4:
+				code.add(new RegReg(RegRegOp.cmp, QUADS[x], QUADS[y]));
+				code.add(new RegReg(RegRegOp.adc, QUADS[x], QUADS[y]));
+				defined = 0x8c5;
+				break;
+			case 5: {
+				int count = random.nextInt(32);
+				code.add(new ImmReg(ImmRegOp.sar, count, LONGS[y]));
+				defined = count > 1 ? 0xc5 : count == 1 ? 0x8c5 : defined;
+				break;
+			}
+			case 6:
+				code.add(new RegReg(RegRegOp.add, BYTES[x], BYTES[y]));
+				defined = 0x8c5;
+				break;
+			case 7:
+				code.add(new Reg(RegOp.rcl, QUADS[y]));
+				defined &= 0x801;
+				break;
+			case 8:
+				code.add(new Reg(RegOp.ror, LONGS[y]));
+				defined &= 0x801;
+				break;
+			case 9:
+				code.add(new Reg(RegOp.neg, LONGS[y]));
+				code.add(new RegReg(RegRegOp.adc, QUADS[x], QUADS[y]));
+				defined = 0x8c5;
+				break;
+			case 10:
+				code.add(new Unit(UnitOp.pushf));
+				code.add(new Reg(RegOp.pop, Register.RBX));
+				code.add(new ImmReg(ImmRegOp.and, defined, Register.RBX));
+				code.add(new RegReg(RegRegOp.add, Register.RBX, QUADS[y]));
+				break;
+			case 11:
+				code.add(new RegReg(RegRegOp.xchg, QUADS[x], QUADS[y]));
+				break;
+			case 12:
+				code.add(new Reg(RegOp.inc, BYTES[y]));
+				code.add(new RegReg(RegRegOp.adc, QUADS[x], QUADS[y]));
+				defined = 0x8c5;
+				break;
+			case 13: {
+				String label = "." + name + "_" + k;
+				code.add(new RegReg(RegRegOp.cmp, LONGS[x], LONGS[y]));
+				code.add(new Addr(CONDITIONS[random.nextInt(CONDITIONS.length)], label));
+				code.add(new ImmReg(ImmRegOp.add, 12345, QUADS[y]));
+				code.add(new Label(label));
+				defined = 0x8c5;
+				break;
+			}
+			case 14:
+				code.add(new RegReg(RegRegOp.mov, Register.RDI, Register.RAX));
+				code.add(new Unit(UnitOp.cqto));
+				code.add(new ImmReg(ImmRegOp.or, 1, QUADS[x]));
+				defined = 0x8c5;
+				if(QUADS[x] != Register.RAX && QUADS[x] != Register.RDX) {
+					code.add(new Reg(RegOp.idiv, QUADS[x]));
+					defined = 0;
+				}
+				break;
+			default:
+				code.add(new Reg(RegOp.mul, LONGS[y]));
+				defined = 0x801;
+			}
+		}
+		code.add(new RegReg(RegRegOp.mov, Register.RBX, Register.RAX));
+		for(Register r : QUADS) {
+			if(r != Register.RAX) {
+				code.add(new RegReg(RegRegOp.add, r, Register.RAX));
+			}
+		}
+		code.add(new Reg(RegOp.pop, Register.RBX));
+		code.add(new Unit(UnitOp.ret));
+		return code;
+	}
+
+	// ============================================
+	// Helpers
+	// ============================================
+
+	private static void checkFault(Emulator emulator, String function, long... arguments) {
+		try {
+			emulator.call(function, arguments);
+		} catch(Emulator.Fault e) {
+			return;
+		}
+		throw new AssertionError("expected fault in " + function);
+	}
+}
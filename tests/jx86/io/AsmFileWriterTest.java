@@ -0,0 +1,129 @@
+package jx86.io;
+
+import static jx86.Testing.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+
+import jx86.lang.Constant;
+import jx86.lang.Instruction;
+import jx86.lang.X86File;
+import jx86.lang.Instruction.*;
+
+/**
+ * Checks the text and statistics produced by <code>AsmFileWriter</code>, and
+ * the symbol maps produced by <code>PerfMapWriter</code>.
+ *
+ * @author David J. Pearce
+ *
+ */
+public class AsmFileWriterTest {
+
+	public static void main(String[] args) throws IOException {
+		fileNames();
+		strings();
+		flushed();
+		statistics();
+		perfMaps();
+	}
+
+	/**
+	 * File names are quoted, so that they cannot terminate the directive
+	 * early.
+	 */
+	private static void fileNames() throws IOException {
+		String text = write(new X86File(new X86File.Code(code(
+				new Label("f", 16, true),
+				new Instruction.Location("a \"b\"\\c.w", 1),
+				new Unit(UnitOp.ret)))));
+		check(text.contains("\t.file 1 \"a \\\"b\\\"\\\\c.w\"\n"), "unescaped file name: " + text);
+	}
+
+	/**
+	 * String constants are escaped, such that the assembler emits exactly the
+	 * encoded bytes of the string.
+	 */
+	private static void strings() throws IOException {
+		ArrayList<Constant> data = new ArrayList<Constant>();
+		data.add(new Constant.String("s", "a\"b\\c\n\u00e9"));
+		String text = write(new X86File(new X86File.Data(data)));
+		check(text.contains("\t.asciz \"a\\\"b\\\\c\\n\\303\\251\"\n"), "unescaped string: " + text);
+	}
+
+	/**
+	 * A file is written in full, even if the writer is not closed.
+	 */
+	private static void flushed() throws IOException {
+		File file = File.createTempFile("jx86", ".s");
+		try {
+			AsmFileWriter writer = new AsmFileWriter(file);
+			writer.write(new X86File(new X86File.Code(code(
+					new Label("f", 16, true),
+					new Unit(UnitOp.ret)))));
+			checkEquals(write(new X86File(new X86File.Code(code(
+					new Label("f", 16, true),
+					new Unit(UnitOp.ret))))).length(), file.length(), "bytes in file");
+			writer.close();
+		} finally {
+			file.delete();
+		}
+	}
+
+	/**
+	 * Figures are kept for each section written, as well as for each kind.
+	 */
+	private static void statistics() throws IOException {
+		ArrayList<Constant> data = new ArrayList<Constant>();
+		data.add(new Constant.Quad("x", 1));
+		data.add(new Constant.Quad("y", 2));
+		X86File file = new X86File(
+				new X86File.Code(code(new Label("f", 16, true), new Unit(UnitOp.ret))),
+				new X86File.Data(data),
+				new X86File.Code(code(new Label("g", 16, true), new Unit(UnitOp.nop),
+						new Unit(UnitOp.ret))));
+		ByteArrayOutputStream bout = new ByteArrayOutputStream();
+		AsmFileWriter writer = new AsmFileWriter(bout);
+		WriterStatistics statistics = new WriterStatistics();
+		writer.setStatistics(statistics);
+		writer.write(file);
+		checkEquals(3, statistics.getSectionCount(), "sections");
+		checkEquals(2, statistics.getSectionCount(X86File.Code.class), "code sections");
+		check(statistics.getSectionKind(1) == X86File.Data.class, "kind of second section");
+		checkEquals(2, statistics.getSectionInstructions(0), "instructions of first section");
+		checkEquals(2, statistics.getSectionConstants(1), "constants of second section");
+		checkEquals(3, statistics.getSectionInstructions(2), "instructions of third section");
+		long bytes = 0;
+		for(int i=0;i!=statistics.getSectionCount();++i) {
+			bytes += statistics.getSectionBytes(i);
+		}
+		checkEquals(bout.size(), bytes, "bytes of all sections");
+		checkEquals(statistics.getBytesWritten(), bytes, "bytes of all kinds");
+	}
+
+	/**
+	 * Each symbol extends up to the next, or to the end of the block.
+	 */
+	private static void perfMaps() {
+		LinkedHashMap<String,Long> offsets = new LinkedHashMap<String,Long>();
+		offsets.put("g", 0x30L);
+		offsets.put("f", 0L);
+		ByteArrayOutputStream bout = new ByteArrayOutputStream();
+		PerfMapWriter writer = new PerfMapWriter(bout);
+		writer.write(offsets, 0x45, 0x1000);
+		writer.write("h", 0x2000, 0x10);
+		writer.close();
+		String expected = "1000 30 f\n1030 15 g\n2000 10 h\n";
+		check(bout.toString().equals(expected), "incorrect perf map: " + bout);
+	}
+
+	private static String write(X86File file) throws IOException {
+		ByteArrayOutputStream bout = new ByteArrayOutputStream();
+		AsmFileWriter writer = new AsmFileWriter(bout);
+		writer.write(file);
+		writer.close();
+		return bout.toString("UTF-8");
+	}
+}
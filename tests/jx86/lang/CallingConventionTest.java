@@ -0,0 +1,127 @@
+package jx86.lang;
+
+import static jx86.Testing.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import jx86.analysis.Liveness;
+import jx86.emulator.Emulator;
+import jx86.lang.Instruction.*;
+
+/**
+ * Checks that the call sequences generated by <code>CallingConvention</code>
+ * preserve every live caller-saved register, other than those holding the
+ * callee's results.
+ *
+ * @author David J. Pearce
+ *
+ */
+public class CallingConventionTest {
+
+	public static void main(String[] args) {
+		unusedReturnRegisters();
+		usedReturnRegisters();
+		invalidResult();
+		liveAcross();
+	}
+
+	/**
+	 * Return registers which the callee does not use are preserved.
+	 */
+	private static void unusedReturnRegisters() {
+		List<Instruction> code = callSequence(Collections.singletonList(Register.RAX));
+		Emulator emulator = run(code);
+		checkEquals(5, emulator.get(Register.RAX), "result");
+		checkEquals(1, emulator.get(Register.RDI), "rdi");
+		checkEquals(2, emulator.get(Register.RDX), "rdx");
+		check(emulator.getDouble(Register.XMM1) == 1.5, "xmm1");
+		check(emulator.getDouble(Register.XMM2) == 2.5, "xmm2");
+	}
+
+	/**
+	 * Return registers used by the callee hold its results afterwards.
+	 */
+	private static void usedReturnRegisters() {
+		List<Instruction> code = callSequence(Arrays.asList(Register.RAX, Register.RDX));
+		Emulator emulator = run(code);
+		checkEquals(5, emulator.get(Register.RAX), "result");
+		checkEquals(-1, emulator.get(Register.RDX), "second result");
+		checkEquals(1, emulator.get(Register.RDI), "rdi");
+		check(emulator.getDouble(Register.XMM1) == 1.5, "xmm1");
+		check(emulator.getDouble(Register.XMM2) == 2.5, "xmm2");
+	}
+
+	private static void invalidResult() {
+		try {
+			CallingConvention.SYSTEM_V.call("g", Collections.<Register>emptyList(),
+					Collections.singletonList(Register.RDI));
+		} catch(IllegalArgumentException e) {
+			return;
+		}
+		throw new AssertionError("expected rejection of non-return register");
+	}
+
+	private static void liveAcross() {
+		List<Instruction> code = code(
+				new Label("f", 1, true),
+				new Addr(AddrOp.call, "g"),
+				new RegReg(RegRegOp.add, Register.RDI, Register.RAX),
+				new RegReg(RegRegOp.add, Register.RDX, Register.RAX),
+				new RegReg(RegRegOp.add, Register.XMM1, Register.XMM0),
+				new Unit(UnitOp.ret));
+		Liveness liveness = new Liveness(code);
+		List<Register> results = Collections.singletonList(Register.EAX);
+		check(liveness.liveAcross(1, CallingConvention.SYSTEM_V, results).containsAll(
+				Arrays.asList(Register.RDI, Register.RDX, Register.XMM1)), "live across");
+		check(!liveness.liveAcross(1, CallingConvention.SYSTEM_V, results).contains(Register.RAX),
+				"result live across");
+	}
+
+	// ============================================
+	// Helpers
+	// ============================================
+
+	/**
+	 * Construct a function which calls <code>g</code>, preserving
+	 * <code>%rdi</code>, <code>%rdx</code>, <code>%xmm1</code> and
+	 * <code>%xmm2</code>.
+	 *
+	 * @param results
+	 * @return
+	 */
+	private static List<Instruction> callSequence(List<Register> results) {
+		ArrayList<Instruction> code = new ArrayList<Instruction>();
+		code.add(new Label("f", 1, true));
+		code.addAll(CallingConvention.SYSTEM_V.call("g", Arrays.asList(Register.RDI,
+				Register.RDX, Register.XMM1, Register.XMM2), results));
+		code.add(new Unit(UnitOp.ret));
+		return code;
+	}
+
+	/**
+	 * Run a given function, where <code>g</code> clobbers every caller-saved
+	 * register and returns 5 and -1.
+	 *
+	 * @param code
+	 * @return
+	 */
+	private static Emulator run(List<Instruction> code) {
+		Emulator emulator = emulator(code);
+		emulator.define("g", new Emulator.Native() {
+			public void call(Emulator m) {
+				for(Register r : CallingConvention.SYSTEM_V.callerSaved) {
+					m.set(r, 0xdead);
+				}
+				m.set(Register.RAX, 5);
+				m.set(Register.RDX, -1);
+			}
+		});
+		emulator.setDouble(Register.XMM1, 1.5);
+		emulator.setDouble(Register.XMM2, 2.5);
+		emulator.call("f", 1, 0, 2);
+		return emulator;
+	}
+}
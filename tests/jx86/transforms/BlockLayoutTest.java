@@ -0,0 +1,78 @@
+package jx86.transforms;
+
+import static jx86.Testing.*;
+
+import java.util.HashMap;
+import java.util.List;
+
+import jx86.analysis.Function;
+import jx86.emulator.Emulator;
+import jx86.lang.Instruction;
+import jx86.lang.Register;
+import jx86.lang.Instruction.*;
+
+/**
+ * Checks that <code>BlockLayout</code> reorders blocks only within their
+ * function, and that the reordered code computes the same results.
+ *
+ * @author David J. Pearce
+ *
+ */
+public class BlockLayoutTest {
+
+	public static void main(String[] args) {
+		functions();
+	}
+
+	/**
+	 * The cold block of the first function stays within it, even though the
+	 * blocks of the second function are hotter.
+	 */
+	private static void functions() {
+		List<Instruction> original = code(
+				new Label("f", 1, true),
+				new ImmReg(ImmRegOp.cmp, 0, Register.RDI),
+				new Addr(AddrOp.je, ".f_zero"),
+				new ImmReg(ImmRegOp.mov, 1, Register.RAX),
+				new Unit(UnitOp.ret),
+				new Label(".f_zero"),
+				new ImmReg(ImmRegOp.mov, 2, Register.RAX),
+				new Unit(UnitOp.ret),
+				new Label("g", 1, true),
+				new ImmReg(ImmRegOp.cmp, 0, Register.RDI),
+				new Addr(AddrOp.jne, ".g_nonzero"),
+				new ImmReg(ImmRegOp.mov, 3, Register.RAX),
+				new Unit(UnitOp.ret),
+				new Label(".g_nonzero"),
+				new ImmReg(ImmRegOp.mov, 4, Register.RAX),
+				new Unit(UnitOp.ret));
+		HashMap<String,Long> frequencies = new HashMap<String,Long>();
+		frequencies.put("f", 10L);
+		frequencies.put(".f_zero", 10L);
+		frequencies.put("g", 1000L);
+		frequencies.put(".g_nonzero", 1000L);
+		List<Instruction> code = new BlockLayout(frequencies).apply(original);
+		List<Function> functions = Function.partition(code);
+		checkEquals(2, functions.size(), "functions after layout");
+		check("f".equals(functions.get(0).name) && "g".equals(functions.get(1).name),
+				"order of functions");
+		check(containsMove(functions.get(0).instructions, 1), "cold block moved out of function");
+		check(containsMove(functions.get(1).instructions, 3), "cold block moved out of function");
+		check(code.indexOf(original.get(3)) > code.indexOf(original.get(6)), "cold block not moved");
+		Emulator emulator = emulator(code);
+		checkEquals(2, emulator.call("f", 0), "f(0)");
+		checkEquals(1, emulator.call("f", 5), "f(5)");
+		checkEquals(3, emulator.call("g", 0), "g(0)");
+		checkEquals(4, emulator.call("g", 5), "g(5)");
+	}
+
+	private static boolean containsMove(List<Instruction> instructions, long value) {
+		for(Instruction insn : instructions) {
+			if(insn instanceof ImmReg && ((ImmReg) insn).operation == ImmRegOp.mov
+					&& ((ImmReg) insn).leftOperand == value) {
+				return true;
+			}
+		}
+		return false;
+	}
+}
@@ -0,0 +1,86 @@
+package jx86.transforms;
+
+import static jx86.Testing.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+
+import jx86.emulator.Emulator;
+import jx86.lang.Constant;
+import jx86.lang.Instruction;
+import jx86.lang.Register;
+import jx86.lang.Target;
+import jx86.lang.X86File;
+import jx86.lang.Instruction.*;
+
+/**
+ * Checks that <code>FramePointerOmission</code> rewrites frame accesses, and
+ * leaves functions which dispatch through a <code>JumpTable</code> unchanged.
+ *
+ * @author David J. Pearce
+ *
+ */
+public class FramePointerOmissionTest {
+
+	public static void main(String[] args) {
+		omitted();
+		jumpTable();
+	}
+
+	private static void omitted() {
+		List<Instruction> code = new FramePointerOmission(Target.LINUX_X86_64).apply(code(
+				new Label("f", 16, true),
+				new Reg(RegOp.push, Register.RBP),
+				new RegReg(RegRegOp.mov, Register.RSP, Register.RBP),
+				new ImmReg(ImmRegOp.sub, 16, Register.RSP),
+				new RegImmInd(RegImmIndOp.mov, Register.RDI, -8, Register.RBP),
+				new ImmReg(ImmRegOp.mov, 0, Register.RDI),
+				new ImmIndReg(ImmIndRegOp.mov, -8, Register.RBP, Register.RAX),
+				new Unit(UnitOp.leave),
+				new Unit(UnitOp.ret)));
+		check(!contains(code, RegOp.push), "frame pointer not omitted");
+		checkEquals(42, emulator(code).call("f", 42), "omitted frame");
+	}
+
+	private static void jumpTable() {
+		TreeMap<Long,String> cases = new TreeMap<Long,String>();
+		cases.put(0L, ".A");
+		cases.put(1L, ".B");
+		JumpTable table = JumpTable.build("table", cases, ".D", Register.RAX, Register.RDX);
+		ArrayList<Instruction> function = new ArrayList<Instruction>();
+		function.addAll(code(
+				new Label("f", 16, true),
+				new Reg(RegOp.push, Register.RBP),
+				new RegReg(RegRegOp.mov, Register.RSP, Register.RBP),
+				new ImmReg(ImmRegOp.sub, 16, Register.RSP),
+				new RegImmInd(RegImmIndOp.mov, Register.RDI, -8, Register.RBP),
+				new RegReg(RegRegOp.mov, Register.RDI, Register.RAX)));
+		function.addAll(table.dispatch);
+		function.addAll(code(
+				new Label(".A"),
+				new ImmIndReg(ImmIndRegOp.mov, -8, Register.RBP, Register.RAX),
+				new ImmReg(ImmRegOp.add, 10, Register.RAX),
+				new Unit(UnitOp.leave),
+				new Unit(UnitOp.ret),
+				new Label(".B"),
+				new ImmIndReg(ImmIndRegOp.mov, -8, Register.RBP, Register.RAX),
+				new ImmReg(ImmRegOp.add, 20, Register.RAX),
+				new Unit(UnitOp.leave),
+				new Unit(UnitOp.ret),
+				new Label(".D"),
+				new ImmReg(ImmRegOp.mov, -1, Register.RAX),
+				new Unit(UnitOp.leave),
+				new Unit(UnitOp.ret)));
+		List<Instruction> code = new FramePointerOmission(Target.LINUX_X86_64).apply(function);
+		checkEquals(function.size(), code.size(), "instructions");
+		check(contains(code, RegOp.push), "frame pointer omitted");
+		ArrayList<Constant> data = new ArrayList<Constant>();
+		data.add(table.table);
+		Emulator emulator = new Emulator(new X86File(new X86File.Code(code),
+				new X86File.Data(data)), Target.LINUX_X86_64);
+		checkEquals(10, emulator.call("f", 0), "case 0");
+		checkEquals(21, emulator.call("f", 1), "case 1");
+		checkEquals(-1, emulator.call("f", 5), "default");
+	}
+}
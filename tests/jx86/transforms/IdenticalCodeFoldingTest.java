@@ -0,0 +1,170 @@
+package jx86.transforms;
+
+import static jx86.Testing.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import jx86.emulator.Emulator;
+import jx86.io.AsmFileWriter;
+import jx86.lang.Constant;
+import jx86.lang.Instruction;
+import jx86.lang.Register;
+import jx86.lang.Target;
+import jx86.lang.X86File;
+import jx86.lang.Instruction.*;
+
+/**
+ * Checks that <code>IdenticalCodeFolding</code> merges only functions which
+ * are truly identical, and that the labels of merged functions remain usable.
+ *
+ * @author David J. Pearce
+ *
+ */
+public class IdenticalCodeFoldingTest {
+
+	public static void main(String[] args) throws IOException {
+		globalAliases();
+		labelRelative();
+		fallThrough();
+	}
+
+	/**
+	 * The global label of a merged function is kept as an alias, which is
+	 * written immediately before the label it stands for.
+	 */
+	private static void globalAliases() throws IOException {
+		X86File file = new IdenticalCodeFolding().apply(new X86File(new X86File.Code(code(
+				new Label("f", 16, true),
+				new ImmReg(ImmRegOp.mov, 7, Register.RAX),
+				new Unit(UnitOp.ret),
+				new Label("g", 1, true),
+				new ImmReg(ImmRegOp.mov, 7, Register.RAX),
+				new Unit(UnitOp.ret),
+				new Label("h", 16, true),
+				new Addr(AddrOp.jmp, "g")))));
+		List<Instruction> code = ((X86File.Code) file.sections().get(0)).instructions;
+		checkEquals(1, count(code, 7), "copies of merged body");
+		check(isAlias(code, "g", "f"), "alias not placed before label");
+		Emulator emulator = new Emulator(file, Target.LINUX_X86_64);
+		checkEquals(7, emulator.call("g"), "call to alias");
+		checkEquals(7, emulator.call("h"), "jump to alias");
+		ByteArrayOutputStream bout = new ByteArrayOutputStream();
+		AsmFileWriter writer = new AsmFileWriter(bout);
+		writer.write(file);
+		writer.close();
+		String text = bout.toString("UTF-8");
+		check(text.contains("\t.globl g\n\t.balign 16\ng:\n\t.globl f\nf:\n"), "alias not emitted: " + text);
+	}
+
+	/**
+	 * Operands at an offset from a label are equal only if both the label and
+	 * the offset correspond.
+	 */
+	private static void labelRelative() {
+		ArrayList<Constant> data = new ArrayList<Constant>();
+		data.add(new Constant.QuadArray("table", new long[] { 1, 2, 3 }));
+		X86File file = new IdenticalCodeFolding().apply(new X86File(new X86File.Code(code(
+				// local labels at the same offset
+				new Label("f", 1, true),
+				new AddrRegReg(AddrRegRegOp.lea, ".Lf+1", Register.RAX),
+				new Unit(UnitOp.ret),
+				new Label(".Lf"),
+				new Unit(UnitOp.ret),
+				new Label("g", 1, true),
+				new AddrRegReg(AddrRegRegOp.lea, ".Lg+1", Register.RAX),
+				new Unit(UnitOp.ret),
+				new Label(".Lg"),
+				new Unit(UnitOp.ret),
+				// local labels at a different (negative) offset
+				new Label("k", 1, true),
+				new AddrRegReg(AddrRegRegOp.lea, ".Lk-1", Register.RAX),
+				new Unit(UnitOp.ret),
+				new Label(".Lk"),
+				new Unit(UnitOp.ret),
+				new Label("m", 1, true),
+				new AddrRegReg(AddrRegRegOp.lea, ".Lm-1", Register.RAX),
+				new Unit(UnitOp.ret),
+				new Label(".Lm"),
+				new Unit(UnitOp.ret),
+				// the same global at different offsets
+				new Label("p", 1, true),
+				new AddrRegReg(AddrRegRegOp.mov, "table+8", Register.RAX),
+				new Unit(UnitOp.ret),
+				new Label("q", 1, true),
+				new AddrRegReg(AddrRegRegOp.mov, "table+16", Register.RAX),
+				new Unit(UnitOp.ret))), new X86File.Data(data)));
+		List<Instruction> code = ((X86File.Code) file.sections().get(0)).instructions;
+		check(isAlias(code, "g", "f"), "functions not merged");
+		check(isAlias(code, ".Lg", ".Lf"), "local labels not merged");
+		check(!isAlias(code, "k", "f") && !isAlias(code, "f", "k"), "different offsets merged");
+		check(isAlias(code, "m", "k"), "negative offsets not merged");
+		check(!isAlias(code, "q", "p") && !isAlias(code, "p", "q"), "different global offsets merged");
+		Emulator emulator = new Emulator(file, Target.LINUX_X86_64);
+		checkEquals(emulator.addressOf(".Lf") + 1, emulator.call("g"), "offset from local label");
+		checkEquals(emulator.addressOf(".Lk") - 1, emulator.call("m"), "negative offset from local label");
+		checkEquals(2, emulator.call("p"), "table+8");
+		checkEquals(3, emulator.call("q"), "table+16");
+	}
+
+	/**
+	 * Functions which fall through to whatever follows them are not merged,
+	 * even when their instructions are identical.
+	 */
+	private static void fallThrough() {
+		X86File file = new IdenticalCodeFolding().apply(new X86File(new X86File.Code(code(
+				new Label("f", 1, true),
+				new ImmReg(ImmRegOp.mov, 1, Register.RAX),
+				new Label("g", 1, true),
+				new ImmReg(ImmRegOp.add, 1, Register.RAX),
+				new Unit(UnitOp.ret),
+				new Label("f2", 1, true),
+				new ImmReg(ImmRegOp.mov, 1, Register.RAX),
+				new Label("h", 1, true),
+				new ImmReg(ImmRegOp.add, 2, Register.RAX),
+				new Unit(UnitOp.ret)))));
+		List<Instruction> code = ((X86File.Code) file.sections().get(0)).instructions;
+		checkEquals(2, count(code, 1), "copies of falling through body");
+		Emulator emulator = new Emulator(file, Target.LINUX_X86_64);
+		checkEquals(2, emulator.call("f"), "f falls through to g");
+		checkEquals(3, emulator.call("f2"), "f2 falls through to h");
+	}
+
+	/**
+	 * Determine whether a given label is placed immediately before another.
+	 *
+	 * @param code
+	 * @param alias
+	 * @param label
+	 * @return
+	 */
+	private static boolean isAlias(List<Instruction> code, String alias, String label) {
+		for(int i=0;i+1<code.size();++i) {
+			if(code.get(i) instanceof Label && ((Label) code.get(i)).label.equals(alias)) {
+				Instruction next = code.get(i + 1);
+				return next instanceof Label && ((Label) next).label.equals(label);
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Count the moves of a given constant into a register.
+	 *
+	 * @param code
+	 * @param value
+	 * @return
+	 */
+	private static int count(List<Instruction> code, long value) {
+		int count = 0;
+		for(Instruction insn : code) {
+			if(insn instanceof ImmReg && ((ImmReg) insn).operation == ImmRegOp.mov
+					&& ((ImmReg) insn).leftOperand == value) {
+				count++;
+			}
+		}
+		return count;
+	}
+}
@@ -0,0 +1,93 @@
+package jx86.transforms;
+
+import static jx86.Testing.*;
+
+import java.util.List;
+
+import jx86.emulator.Emulator;
+import jx86.lang.Instruction;
+import jx86.lang.Register;
+import jx86.lang.Target;
+import jx86.lang.X86File;
+import jx86.lang.Instruction.*;
+
+/**
+ * Checks that <code>Inliner</code> inlines functions which access their stack
+ * arguments, but not those which read their return address.
+ *
+ * @author David J. Pearce
+ *
+ */
+public class InlinerTest {
+
+	public static void main(String[] args) {
+		stackArguments();
+		returnAddress();
+		framedReturnAddress();
+	}
+
+	private static void stackArguments() {
+		X86File file = new X86File(new X86File.Code(code(
+				new Label("g", 16, true),
+				new ImmIndReg(ImmIndRegOp.mov, 8, Register.ESP, Register.EAX),
+				new Reg(RegOp.push, Register.EAX),
+				new ImmIndReg(ImmIndRegOp.mov, 8, Register.ESP, Register.EAX),
+				new Reg(RegOp.push, Register.EAX),
+				new Addr(AddrOp.call, "add"),
+				new ImmReg(ImmRegOp.add, 8, Register.ESP),
+				new Unit(UnitOp.ret),
+				new Label("add", 16, true),
+				new ImmIndReg(ImmIndRegOp.mov, 4, Register.ESP, Register.EAX),
+				new ImmIndReg(ImmIndRegOp.mov, 8, Register.ESP, Register.ECX),
+				new RegReg(RegRegOp.add, Register.ECX, Register.EAX),
+				new Unit(UnitOp.ret))));
+		X86File inlined = new Inliner(Target.LINUX_X86_32, 64).apply(file);
+		check(!contains(codeOf(inlined), AddrOp.call), "stack arguments not inlined");
+		Emulator emulator = new Emulator(inlined, Target.LINUX_X86_32);
+		checkEquals(12, emulator.call("g", 5, 7), "stack arguments");
+	}
+
+	/**
+	 * The thunk used by i386 position-independent code to obtain the
+	 * instruction pointer.
+	 */
+	private static void returnAddress() {
+		X86File file = new X86File(new X86File.Code(code(
+				new Label("f", 16, true),
+				new Reg(RegOp.push, Register.EBX),
+				new Addr(AddrOp.call, "thunk"),
+				new RegReg(RegRegOp.mov, Register.EBX, Register.EAX),
+				new Reg(RegOp.pop, Register.EBX),
+				new Unit(UnitOp.ret),
+				new Label("thunk", 16, true),
+				new ImmIndReg(ImmIndRegOp.mov, 0, Register.ESP, Register.EBX),
+				new Unit(UnitOp.ret))));
+		X86File inlined = new Inliner(Target.LINUX_X86_32, 64).apply(file);
+		check(contains(codeOf(inlined), AddrOp.call), "thunk inlined");
+		long expected = new Emulator(file, Target.LINUX_X86_32).call("f");
+		checkEquals(expected, new Emulator(inlined, Target.LINUX_X86_32).call("f"), "thunk");
+	}
+
+	/**
+	 * A function which reads its return address through the frame pointer.
+	 */
+	private static void framedReturnAddress() {
+		X86File file = new X86File(new X86File.Code(code(
+				new Label("f", 16, true),
+				new Addr(AddrOp.call, "caller"),
+				new Unit(UnitOp.ret),
+				new Label("caller", 16, true),
+				new Reg(RegOp.push, Register.RBP),
+				new RegReg(RegRegOp.mov, Register.RSP, Register.RBP),
+				new ImmReg(ImmRegOp.sub, 16, Register.RSP),
+				new ImmIndReg(ImmIndRegOp.mov, 8, Register.RBP, Register.RAX),
+				new Unit(UnitOp.leave),
+				new Unit(UnitOp.ret))));
+		X86File inlined = new Inliner(Target.LINUX_X86_64, 64).apply(file);
+		check(contains(codeOf(inlined).subList(0, 3), AddrOp.call), "framed return address inlined");
+	}
+
+	private static List<Instruction> codeOf(X86File file) {
+		return ((X86File.Code) file.sections().get(0)).instructions;
+	}
+}
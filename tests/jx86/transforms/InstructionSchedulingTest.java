@@ -0,0 +1,145 @@
+package jx86.transforms;
+
+import static jx86.Testing.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import jx86.analysis.CostModel;
+import jx86.emulator.Emulator;
+import jx86.lang.Instruction;
+import jx86.lang.Register;
+import jx86.lang.Instruction.*;
+
+/**
+ * Checks that <code>InstructionScheduling</code> hides load latency, keeps
+ * compare and branch pairs together, and preserves the result of randomly
+ * generated blocks, which mix arithmetic, flags and accesses to the stack.
+ *
+ * @author David J. Pearce
+ *
+ */
+public class InstructionSchedulingTest {
+	private static final Register[] REGISTERS = {
+		Register.RAX, Register.RCX, Register.RDX, Register.RSI, Register.R8, Register.R9
+	};
+
+	private static final InstructionScheduling SCHEDULER = new InstructionScheduling(CostModel.SKYLAKE);
+
+	public static void main(String[] args) {
+		loadLatency();
+		fusion();
+		differential();
+	}
+
+	/**
+	 * The second of two independent loads is issued before the first load is
+	 * used.
+	 */
+	private static void loadLatency() {
+		List<Instruction> block = code(
+				new Label("f", 16, true),
+				new RegReg(RegRegOp.xor, Register.EAX, Register.EAX),
+				new ImmIndReg(ImmIndRegOp.mov, 0, Register.RSP, Register.RCX),
+				new RegReg(RegRegOp.add, Register.RCX, Register.RAX),
+				new ImmIndReg(ImmIndRegOp.mov, 8, Register.RSP, Register.RDX),
+				new RegReg(RegRegOp.add, Register.RDX, Register.RAX),
+				new Unit(UnitOp.ret));
+		List<Instruction> scheduled = SCHEDULER.apply(block);
+		check(scheduled.indexOf(block.get(4)) < scheduled.indexOf(block.get(3)),
+				"second load not hoisted: " + scheduled);
+	}
+
+	/**
+	 * A comparison stays immediately before the branch using it, even though
+	 * it could otherwise be issued first.
+	 */
+	private static void fusion() {
+		List<Instruction> block = code(
+				new Label("f", 16, true),
+				new RegReg(RegRegOp.mov, Register.RDI, Register.RAX),
+				new ImmReg(ImmRegOp.imul, 3, Register.RAX),
+				new RegReg(RegRegOp.mov, Register.RSI, Register.RDX),
+				new RegReg(RegRegOp.cmp, Register.RSI, Register.RDI),
+				new Addr(AddrOp.jl, ".L"),
+				new RegReg(RegRegOp.mov, Register.RDX, Register.RAX),
+				new Label(".L"),
+				new Unit(UnitOp.ret));
+		List<Instruction> scheduled = SCHEDULER.apply(block);
+		int branch = scheduled.indexOf(block.get(5));
+		checkEquals(5, branch, "branch moved");
+		check(scheduled.get(branch - 1) == block.get(4), "comparison separated from branch: " + scheduled);
+		checkEquals(3, emulator(scheduled).call("f", 1, 2), "taken");
+		checkEquals(1, emulator(scheduled).call("f", 2, 1), "not taken");
+	}
+
+	/**
+	 * Random blocks compute the same result before and after scheduling.
+	 */
+	private static void differential() {
+		Random random = new Random(49);
+		for(int i=0;i!=2000;++i) {
+			List<Instruction> block = generate(random);
+			List<Instruction> scheduled = SCHEDULER.apply(block);
+			checkEquals(block.size(), scheduled.size(), "instructions");
+			long seed = random.nextLong();
+			checkEquals(run(block, seed), run(scheduled, seed), "block " + i + ": " + scheduled);
+		}
+	}
+
+	private static List<Instruction> generate(Random random) {
+		ArrayList<Instruction> block = new ArrayList<Instruction>();
+		block.add(new Label("f", 16, true));
+		block.add(new ImmReg(ImmRegOp.sub, 64, Register.RSP));
+		for(int k=0;k!=20;++k) {
+			Register x = REGISTERS[random.nextInt(REGISTERS.length)];
+			Register y = REGISTERS[random.nextInt(REGISTERS.length)];
+			switch(random.nextInt(9)) {
+			case 0:
+				block.add(new RegReg(RegRegOp.add, x, y));
+				break;
+			case 1:
+				block.add(new ImmReg(ImmRegOp.imul, random.nextInt(100) - 50, y));
+				break;
+			case 2:
+				block.add(new RegImmInd(RegImmIndOp.mov, x, 8 * random.nextInt(8), Register.RSP));
+				break;
+			case 3:
+				block.add(new ImmIndReg(ImmIndRegOp.mov, 8 * random.nextInt(8), Register.RSP, y));
+				break;
+			case 4:
+				block.add(new RegReg(RegRegOp.cmp, x, y));
+				block.add(new RegReg(RegRegOp.adc, x, y));
+				break;
+			case 5:
+				block.add(new ImmReg(ImmRegOp.sar, random.nextInt(64), y));
+				break;
+			case 6:
+				block.add(new RegReg(RegRegOp.sub, x, y));
+				break;
+			case 7:
+				block.add(new ImmReg(ImmRegOp.xor, random.nextInt(1000), y));
+				break;
+			default:
+				block.add(new Reg(RegOp.neg, y));
+			}
+		}
+		for(Register r : REGISTERS) {
+			block.add(new RegReg(RegRegOp.add, r, Register.RDI));
+		}
+		block.add(new ImmReg(ImmRegOp.add, 64, Register.RSP));
+		block.add(new RegReg(RegRegOp.mov, Register.RDI, Register.RAX));
+		block.add(new Unit(UnitOp.ret));
+		return block;
+	}
+
+	private static long run(List<Instruction> block, long seed) {
+		Emulator emulator = emulator(block);
+		Random random = new Random(seed);
+		for(Register r : REGISTERS) {
+			emulator.set(r, random.nextLong());
+		}
+		return emulator.call("f", random.nextLong());
+	}
+}
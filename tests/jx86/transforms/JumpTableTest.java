@@ -0,0 +1,101 @@
+package jx86.transforms;
+
+import static jx86.Testing.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+
+import jx86.emulator.Emulator;
+import jx86.lang.Constant;
+import jx86.lang.Instruction;
+import jx86.lang.Register;
+import jx86.lang.Target;
+import jx86.lang.X86File;
+import jx86.lang.Instruction.*;
+
+/**
+ * Checks that a <code>JumpTable</code> dispatches every value to the right
+ * target, and is refused for sparse cases.
+ *
+ * @author David J. Pearce
+ *
+ */
+public class JumpTableTest {
+
+	public static void main(String[] args) {
+		dispatch();
+		sparse();
+	}
+
+	/**
+	 * Values within the range of the cases, in gaps between them, and on
+	 * either side of them all reach the expected label.
+	 */
+	private static void dispatch() {
+		TreeMap<Long,String> cases = new TreeMap<Long,String>();
+		cases.put(-2L, ".A");
+		cases.put(0L, ".B");
+		cases.put(3L, ".C");
+		cases.put(4L, ".B");
+		JumpTable table = JumpTable.build("table", cases, ".D", Register.RDI, Register.RDX);
+		ArrayList<Instruction> function = new ArrayList<Instruction>();
+		function.add(new Label("f", 16, true));
+		function.addAll(table.dispatch);
+		function.addAll(code(
+				new Label(".A"),
+				new ImmReg(ImmRegOp.mov, 10, Register.RAX),
+				new Unit(UnitOp.ret),
+				new Label(".B"),
+				new ImmReg(ImmRegOp.mov, 20, Register.RAX),
+				new Unit(UnitOp.ret),
+				new Label(".C"),
+				new ImmReg(ImmRegOp.mov, 30, Register.RAX),
+				new Unit(UnitOp.ret),
+				new Label(".D"),
+				new ImmReg(ImmRegOp.mov, -1, Register.RAX),
+				new Unit(UnitOp.ret)));
+		ArrayList<Constant> data = new ArrayList<Constant>();
+		data.add(table.table);
+		Emulator emulator = new Emulator(new X86File(new X86File.Code(function),
+				new X86File.Data(data)), Target.LINUX_X86_64);
+		long[] values = { Long.MIN_VALUE, -3, -2, -1, 0, 1, 2, 3, 4, 5, Long.MAX_VALUE };
+		long[] expected = { -1, -1, 10, -1, 20, -1, -1, 30, 20, -1, -1 };
+		for(int i=0;i!=values.length;++i) {
+			checkEquals(expected[i], emulator.call("f", values[i]), "dispatch of " + values[i]);
+		}
+	}
+
+	/**
+	 * Cases spread too thinly, including ranges which overflow, are refused.
+	 */
+	private static void sparse() {
+		TreeMap<Long,String> cases = new TreeMap<Long,String>();
+		cases.put(0L, ".A");
+		cases.put(2000000000L, ".B");
+		checkRefused(cases);
+		cases.clear();
+		cases.put(Long.MIN_VALUE, ".A");
+		cases.put(Long.MAX_VALUE, ".B");
+		checkRefused(cases);
+		cases.clear();
+		for(long i=0;i!=4;++i) {
+			cases.put(6 * i, ".A");
+		}
+		checkRefused(cases);
+		cases.put(1L, ".B");
+		check(JumpTable.isDense(cases), "dense cases refused");
+		checkEquals(19, JumpTable.build("table", cases, ".D", Register.RDI, Register.RDX).table.targets.length,
+				"table entries");
+	}
+
+	private static void checkRefused(TreeMap<Long,String> cases) {
+		check(!JumpTable.isDense(cases), "sparse cases accepted: " + cases);
+		try {
+			JumpTable.build("table", cases, ".D", Register.RDI, Register.RDX);
+		} catch(IllegalArgumentException e) {
+			return;
+		}
+		throw new AssertionError("sparse jump table built: " + cases);
+	}
+}
@@ -0,0 +1,91 @@
+package jx86.transforms;
+
+import static jx86.Testing.*;
+
+import java.util.List;
+
+import jx86.emulator.Emulator;
+import jx86.lang.Instruction;
+import jx86.lang.Register;
+import jx86.lang.Target;
+import jx86.lang.X86File;
+import jx86.lang.Instruction.*;
+
+/**
+ * Checks that <code>JumpThreading</code> removes only those blocks whose
+ * references have all been threaded away.
+ *
+ * @author David J. Pearce
+ *
+ */
+public class JumpThreadingTest {
+
+	public static void main(String[] args) {
+		localFunction();
+		unreferencedLabel();
+		threadedAway();
+	}
+
+	/**
+	 * A non-global function is partitioned into the preceding global
+	 * function, but is called from elsewhere.
+	 */
+	private static void localFunction() {
+		PassManager manager = new PassManager(1);
+		manager.add(new JumpThreading());
+		X86File file = manager.apply(new X86File(new X86File.Code(code(
+				new Label("f", 1, true),
+				new Addr(AddrOp.call, "helper"),
+				new Unit(UnitOp.ret),
+				new Label("g", 1, true),
+				new ImmReg(ImmRegOp.mov, 1, Register.RAX),
+				new Unit(UnitOp.ret),
+				new Label("helper"),
+				new ImmReg(ImmRegOp.mov, 7, Register.RAX),
+				new Unit(UnitOp.ret)))));
+		Emulator emulator = new Emulator(file, Target.LINUX_X86_64);
+		checkEquals(7, emulator.call("f"), "call to local function");
+	}
+
+	/**
+	 * A label which is never referenced by the function (e.g. one used only
+	 * by a table in the data section) is entered from elsewhere.
+	 */
+	private static void unreferencedLabel() {
+		List<Instruction> code = new JumpThreading().apply(code(
+				new Label("f", 1, true),
+				new ImmReg(ImmRegOp.mov, 1, Register.RAX),
+				new Unit(UnitOp.ret),
+				new Label("target"),
+				new ImmReg(ImmRegOp.mov, 3, Register.RAX),
+				new Unit(UnitOp.ret)));
+		check(hasLabel(code, "target"), "unreferenced label removed");
+		checkEquals(6, code.size(), "instructions");
+	}
+
+	/**
+	 * A block whose only reference is threaded away is removed.
+	 */
+	private static void threadedAway() {
+		List<Instruction> code = new JumpThreading().apply(code(
+				new Label("f", 1, true),
+				new Addr(AddrOp.jmp, "L2"),
+				new Label("L1"),
+				new ImmReg(ImmRegOp.mov, 1, Register.RAX),
+				new Unit(UnitOp.ret),
+				new Label("L2"),
+				new Addr(AddrOp.jmp, "L1")));
+		check(!hasLabel(code, "L2"), "threaded block not removed");
+		check(!contains(code, AddrOp.jmp), "branch not threaded");
+		checkEquals(1, emulator(code).call("f"), "threaded result");
+	}
+
+	private static boolean hasLabel(List<Instruction> code, String label) {
+		for(Instruction insn : code) {
+			if(insn instanceof Label && ((Label) insn).label.equals(label)) {
+				return true;
+			}
+		}
+		return false;
+	}
+}
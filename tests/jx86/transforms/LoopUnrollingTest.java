@@ -0,0 +1,224 @@
+package jx86.transforms;
+
+import static jx86.Testing.*;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import jx86.emulator.Emulator;
+import jx86.lang.Instruction;
+import jx86.lang.Register;
+import jx86.lang.Target;
+import jx86.lang.X86File;
+import jx86.lang.Instruction.*;
+
+/**
+ * Checks that <code>LoopUnrolling</code> preserves the results of each form of
+ * counted loop, for trip counts below, at and above the unrolling factor.
+ *
+ * @author David J. Pearce
+ *
+ */
+public class LoopUnrollingTest {
+	private static final int FACTOR = 4;
+
+	private static final LoopUnrolling UNROLLING = new LoopUnrolling(Target.LINUX_X86_64, FACTOR);
+
+	public static void main(String[] args) {
+		decrement();
+		loop();
+		increment();
+		zeroTrip();
+		labels();
+	}
+
+	/**
+	 * A counter decremented to zero by <code>dec</code> and <code>jnz</code>.
+	 */
+	private static void decrement() {
+		for(boolean usesCounter : new boolean[] { false, true }) {
+			List<Instruction> code = code(
+					new Label("f", 1, true),
+					new RegReg(RegRegOp.mov, Register.EDI, Register.ECX),
+					new RegReg(RegRegOp.xor, Register.EAX, Register.EAX),
+					new Label(".L"),
+					usesCounter ? new RegReg(RegRegOp.add, Register.ECX, Register.EAX)
+							: new ImmReg(ImmRegOp.add, 3, Register.EAX),
+					new Reg(RegOp.dec, Register.ECX),
+					new Addr(AddrOp.jnz, ".L"),
+					new Unit(UnitOp.ret));
+			compare(code, true, 1, 2 * FACTOR + 1, "dec/jnz");
+		}
+	}
+
+	/**
+	 * A counter decremented to zero by <code>loop</code>.
+	 */
+	private static void loop() {
+		for(boolean usesCounter : new boolean[] { false, true }) {
+			List<Instruction> code = code(
+					new Label("f", 1, true),
+					new RegReg(RegRegOp.mov, Register.RDI, Register.RCX),
+					new RegReg(RegRegOp.xor, Register.EAX, Register.EAX),
+					new Label(".L"),
+					usesCounter ? new RegReg(RegRegOp.add, Register.RCX, Register.RAX)
+							: new ImmReg(ImmRegOp.add, 3, Register.RAX),
+					new Addr(AddrOp.loop, ".L"),
+					new Unit(UnitOp.ret));
+			compare(code, true, 1, 2 * FACTOR + 1, "loop");
+		}
+	}
+
+	/**
+	 * A counter incremented up to a constant limit, compared as signed or
+	 * unsigned. The limit is fixed by the code, so each trip count requires
+	 * a separate function. An unsigned loop whose limit is below the factor
+	 * cannot be unrolled, since its entry check would compare against a
+	 * negative bound.
+	 */
+	private static void increment() {
+		for(AddrOp op : new AddrOp[] { AddrOp.jl, AddrOp.jb }) {
+			for(boolean usesCounter : new boolean[] { false, true }) {
+				for(int n=0;n<=2*FACTOR+1;++n) {
+					List<Instruction> code = code(
+							new Label("f", 1, true),
+							new RegReg(RegRegOp.xor, Register.ECX, Register.ECX),
+							new RegReg(RegRegOp.xor, Register.EAX, Register.EAX),
+							new Label(".L"),
+							usesCounter ? new RegReg(RegRegOp.add, Register.ECX, Register.EAX)
+									: new ImmReg(ImmRegOp.add, 3, Register.EAX),
+							usesCounter ? new Reg(RegOp.inc, Register.ECX)
+									: new ImmReg(ImmRegOp.add, 1, Register.ECX),
+							new ImmReg(ImmRegOp.cmp, n, Register.ECX),
+							new Addr(op, ".L"),
+							new Unit(UnitOp.ret));
+					boolean unrollable = op == AddrOp.jl || n >= FACTOR - 1;
+					compare(code, unrollable, 0, 0, "inc/cmp/" + op + " up to " + n);
+				}
+			}
+		}
+	}
+
+	/**
+	 * A <code>dec/jnz</code> loop entered with a zero counter wraps around,
+	 * rather than exiting, both before and after unrolling.
+	 */
+	private static void zeroTrip() {
+		List<Instruction> original = code(
+				new Label("f", 1, true),
+				new RegReg(RegRegOp.mov, Register.EDI, Register.ECX),
+				new RegReg(RegRegOp.xor, Register.EAX, Register.EAX),
+				new Label(".L"),
+				new ImmReg(ImmRegOp.add, 3, Register.EAX),
+				new Reg(RegOp.dec, Register.ECX),
+				new Addr(AddrOp.jnz, ".L"),
+				new Unit(UnitOp.ret));
+		List<Instruction> unrolled = UNROLLING.apply(original);
+		check(isUnrolled(unrolled), "dec/jnz not unrolled");
+		for(List<Instruction> code : Arrays.asList(original, unrolled)) {
+			Emulator emulator = emulator(code);
+			emulator.setBudget(10000);
+			try {
+				emulator.call("f", 0);
+				check(false, "zero trip loop exited");
+			} catch(Emulator.Fault e) {
+				// expected
+			}
+			check(emulator.get(Register.ECX) > 0xFFFF0000L, "counter did not wrap around");
+			check(emulator.get(Register.EAX) > 3 * 1000, "loop did not keep iterating");
+		}
+	}
+
+	/**
+	 * The labels introduced do not clash with those of other functions.
+	 */
+	private static void labels() {
+		X86File file = UNROLLING.apply(new X86File(new X86File.Code(code(
+				new Label("f", 1, true),
+				new RegReg(RegRegOp.mov, Register.EDI, Register.ECX),
+				new RegReg(RegRegOp.xor, Register.EAX, Register.EAX),
+				new Label(".L"),
+				new ImmReg(ImmRegOp.add, 3, Register.EAX),
+				new Reg(RegOp.dec, Register.ECX),
+				new Addr(AddrOp.jnz, ".L"),
+				new Unit(UnitOp.ret),
+				new Label("g", 1, true),
+				new Addr(AddrOp.jmp, ".L.rem"),
+				new Label(".L.rem"),
+				new ImmReg(ImmRegOp.mov, 5, Register.RAX),
+				new Addr(AddrOp.jmp, ".L.exit"),
+				new Label(".L.exit"),
+				new Unit(UnitOp.ret)))));
+		List<Instruction> instructions = ((X86File.Code) file.sections().get(0)).instructions;
+		checkEquals(1, count(instructions, ".L.rem"), "copies of existing label");
+		checkEquals(1, count(instructions, ".L.rem1"), "remainder label");
+		Emulator emulator = new Emulator(file, Target.LINUX_X86_64);
+		checkEquals(3 * 7, emulator.call("f", 7), "unrolled loop");
+		checkEquals(5, emulator.call("g"), "other function");
+		// labels of other functions can also be supplied directly
+		List<Instruction> code = new LoopUnrolling(Target.LINUX_X86_64, FACTOR,
+				Collections.singleton(".L.rem")).apply(code(
+						new Label("f", 1, true),
+						new RegReg(RegRegOp.mov, Register.EDI, Register.ECX),
+						new Label(".L"),
+						new Reg(RegOp.dec, Register.ECX),
+						new Addr(AddrOp.jnz, ".L"),
+						new Unit(UnitOp.ret)));
+		check(isUnrolled(code), "loop not unrolled");
+		checkEquals(0, count(code, ".L.rem"), "reserved label introduced");
+	}
+
+	// ============================================
+	// Helpers
+	// ============================================
+
+	/**
+	 * Check whether a given function is unrolled, and that the transformed
+	 * function returns the same result as the original for each argument in a given
+	 * range.
+	 *
+	 * @param original
+	 * @param unrollable
+	 *            Whether the function is expected to be unrolled.
+	 * @param min
+	 * @param max
+	 * @param description
+	 */
+	private static void compare(List<Instruction> original, boolean unrollable, long min, long max,
+			String description) {
+		List<Instruction> unrolled = UNROLLING.apply(original);
+		check(isUnrolled(unrolled) == unrollable, description + (unrollable ? " not unrolled" : " unrolled"));
+		Emulator before = emulator(original);
+		Emulator after = emulator(unrolled);
+		for(long n=min;n<=max;++n) {
+			checkEquals(before.call("f", n), after.call("f", n), description + " with count " + n);
+		}
+	}
+
+	/**
+	 * Count the labels with a given name.
+	 *
+	 * @param code
+	 * @param label
+	 * @return
+	 */
+	private static int count(List<Instruction> code, String label) {
+		int count = 0;
+		for(Instruction insn : code) {
+			if(insn instanceof Label && ((Label) insn).label.equals(label)) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	private static boolean isUnrolled(List<Instruction> code) {
+		for(Instruction insn : code) {
+			if(insn instanceof Label && ((Label) insn).label.contains(".rem")) {
+				return true;
+			}
+		}
+		return false;
+	}
+}
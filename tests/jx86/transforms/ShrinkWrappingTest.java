@@ -0,0 +1,86 @@
+package jx86.transforms;
+
+import static jx86.Testing.*;
+
+import java.util.List;
+
+import jx86.emulator.Emulator;
+import jx86.lang.Instruction;
+import jx86.lang.Register;
+import jx86.lang.Target;
+import jx86.lang.Instruction.*;
+
+/**
+ * Checks that <code>ShrinkWrapping</code> preserves the results of both the
+ * early exit and the remaining path, along with the callee-saved registers.
+ *
+ * @author David J. Pearce
+ *
+ */
+public class ShrinkWrappingTest {
+	private static final long RBX = 0x1111222233334444L;
+	private static final long R12 = 0x5555666677778888L;
+
+	public static void main(String[] args) {
+		paths();
+	}
+
+	/**
+	 * A function with an early exit when its argument is zero, which uses two
+	 * callee-saved registers otherwise.
+	 */
+	private static void paths() {
+		List<Instruction> original = code(
+				new Label("f", 16, true),
+				new Reg(RegOp.push, Register.RBX),
+				new Reg(RegOp.push, Register.R12),
+				new ImmReg(ImmRegOp.cmp, 0, Register.RDI),
+				new Addr(AddrOp.je, ".L1"),
+				new RegReg(RegRegOp.mov, Register.RDI, Register.RBX),
+				new RegReg(RegRegOp.mov, Register.RDI, Register.R12),
+				new RegReg(RegRegOp.add, Register.R12, Register.RBX),
+				new RegReg(RegRegOp.mov, Register.RBX, Register.RAX),
+				new Reg(RegOp.pop, Register.R12),
+				new Reg(RegOp.pop, Register.RBX),
+				new Unit(UnitOp.ret),
+				new Label(".L1"),
+				new ImmReg(ImmRegOp.mov, -1, Register.RAX),
+				new Reg(RegOp.pop, Register.R12),
+				new Reg(RegOp.pop, Register.RBX),
+				new Unit(UnitOp.ret));
+		List<Instruction> code = new ShrinkWrapping(Target.LINUX_X86_64).apply(original);
+		check(!(code.get(1) instanceof Reg), "pushes not moved: " + code);
+		check(hasLabel(code, ".L1.fast"), "no early exit: " + code);
+		Emulator before = emulator(original);
+		Emulator after = emulator(code);
+		for(long x : new long[] { 0, 5, -3 }) {
+			String path = x == 0 ? "fast path" : "slow path";
+			checkEquals(call(before, x), call(after, x), path + " result");
+			checkEquals(RBX, after.get(Register.RBX), path + " %rbx");
+			checkEquals(R12, after.get(Register.R12), path + " %r12");
+			checkEquals(before.get(Register.RSP), after.get(Register.RSP), path + " %rsp");
+		}
+	}
+
+	/**
+	 * Call the function with known values in the callee-saved registers.
+	 *
+	 * @param emulator
+	 * @param x
+	 * @return
+	 */
+	private static long call(Emulator emulator, long x) {
+		emulator.set(Register.RBX, RBX);
+		emulator.set(Register.R12, R12);
+		return emulator.call("f", x);
+	}
+
+	private static boolean hasLabel(List<Instruction> code, String label) {
+		for(Instruction insn : code) {
+			if(insn instanceof Label && ((Label) insn).label.equals(label)) {
+				return true;
+			}
+		}
+		return false;
+	}
+}
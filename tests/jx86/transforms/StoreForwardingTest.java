@@ -0,0 +1,139 @@
+package jx86.transforms;
+
+import static jx86.Testing.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import jx86.emulator.Emulator;
+import jx86.lang.Instruction;
+import jx86.lang.Register;
+import jx86.lang.Instruction.*;
+
+/**
+ * Checks the loads and stores removed by <code>StoreForwarding</code>, by
+ * executing the code before and after.
+ *
+ * @author David J. Pearce
+ *
+ */
+public class StoreForwardingTest {
+
+	public static void main(String[] args) {
+		forwarding();
+		reloadLong();
+		reloadHighByte();
+		deadStores();
+		callBarrier();
+		escapedAddress();
+	}
+
+	/**
+	 * A reload into another register becomes a move.
+	 */
+	private static void forwarding() {
+		List<Instruction> code = apply(
+				new RegImmInd(RegImmIndOp.mov, Register.RDI, -8, Register.RBP),
+				new ImmIndReg(ImmIndRegOp.mov, -8, Register.RBP, Register.RAX),
+				new ImmIndReg(ImmIndRegOp.mov, -8, Register.RBP, Register.RDI),
+				new RegReg(RegRegOp.add, Register.RDI, Register.RAX));
+		check(!contains(code, ImmIndRegOp.mov), "reload not forwarded");
+		checkEquals(84, emulator(code).call("f", 42), "forwarded");
+	}
+
+	/**
+	 * A 32-bit reload clears the upper half of the target.
+	 */
+	private static void reloadLong() {
+		List<Instruction> code = apply(
+				new RegReg(RegRegOp.mov, Register.RDI, Register.RAX),
+				new RegImmInd(RegImmIndOp.mov, Register.EAX, -8, Register.RBP),
+				new ImmIndReg(ImmIndRegOp.mov, -8, Register.RBP, Register.EAX));
+		checkEquals(5, emulator(code).call("f", 0x100000005L), "zero extended reload");
+	}
+
+	/**
+	 * A reload into another byte of the same register family.
+	 */
+	private static void reloadHighByte() {
+		List<Instruction> code = apply(
+				new RegReg(RegRegOp.mov, Register.RDI, Register.RAX),
+				new RegImmInd(RegImmIndOp.mov, Register.AH, -1, Register.RBP),
+				new ImmIndReg(ImmIndRegOp.mov, -1, Register.RBP, Register.AL));
+		checkEquals(0x1212, emulator(code).call("f", 0x1234), "high byte reload");
+	}
+
+	private static void deadStores() {
+		List<Instruction> code = apply(
+				new RegImmInd(RegImmIndOp.mov, Register.RSI, -8, Register.RBP),
+				new RegImmInd(RegImmIndOp.mov, Register.RDI, -8, Register.RBP),
+				new RegImmInd(RegImmIndOp.mov, Register.RSI, -16, Register.RBP),
+				new RegReg(RegRegOp.mov, Register.RDI, Register.RAX));
+		checkEquals(0, count(code, RegImmIndOp.mov), "dead stores");
+		checkEquals(7, emulator(code).call("f", 7, 9), "dead stores");
+	}
+
+	/**
+	 * A call may write a slot whose address has escaped.
+	 */
+	private static void callBarrier() {
+		List<Instruction> code = apply(
+				new ImmReg(ImmRegOp.sub, 16, Register.RSP),
+				new RegImmInd(RegImmIndOp.mov, Register.RDI, -8, Register.RBP),
+				new ImmIndReg(ImmIndRegOp.lea, -8, Register.RBP, Register.RDI),
+				new Addr(AddrOp.call, "g"),
+				new ImmIndReg(ImmIndRegOp.mov, -8, Register.RBP, Register.RAX));
+		check(contains(code, ImmIndRegOp.mov), "load forwarded across call");
+		Emulator emulator = emulator(code);
+		emulator.define("g", new Emulator.Native() {
+			public void call(Emulator m) {
+				m.memory().write(m.get(Register.RDI), 8, 99);
+			}
+		});
+		checkEquals(99, emulator.call("f", 1), "call barrier");
+	}
+
+	/**
+	 * A store through another register may write a slot.
+	 */
+	private static void escapedAddress() {
+		List<Instruction> code = apply(
+				new ImmIndReg(ImmIndRegOp.lea, -8, Register.RBP, Register.RCX),
+				new RegImmInd(RegImmIndOp.mov, Register.RDI, -8, Register.RBP),
+				new RegImmInd(RegImmIndOp.mov, Register.RSI, 0, Register.RCX),
+				new ImmIndReg(ImmIndRegOp.mov, -8, Register.RBP, Register.RAX));
+		check(contains(code, ImmIndRegOp.mov), "load forwarded past aliasing store");
+		checkEquals(5, emulator(code).call("f", 1, 5), "escaped address");
+	}
+
+	// ============================================
+	// Helpers
+	// ============================================
+
+	/**
+	 * Apply the pass to a function with a frame, consisting of a given body.
+	 *
+	 * @param body
+	 * @return
+	 */
+	private static List<Instruction> apply(Instruction... body) {
+		ArrayList<Instruction> code = new ArrayList<Instruction>();
+		code.add(new Label("f", 16, true));
+		code.add(new Reg(RegOp.push, Register.RBP));
+		code.add(new RegReg(RegRegOp.mov, Register.RSP, Register.RBP));
+		code.addAll(code(body));
+		code.add(new Unit(UnitOp.leave));
+		code.add(new Unit(UnitOp.ret));
+		return new StoreForwarding().apply(code);
+	}
+
+	private static int count(List<Instruction> code, Enum<?> operation) {
+		int count = 0;
+		for(Instruction insn : code) {
+			if(contains(code(insn), operation)) {
+				count++;
+			}
+		}
+		return count;
+	}
+}
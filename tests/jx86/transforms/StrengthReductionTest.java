@@ -0,0 +1,151 @@
+package jx86.transforms;
+
+import static jx86.Testing.*;
+
+import java.math.BigInteger;
+import java.util.List;
+import java.util.Random;
+
+import jx86.emulator.Emulator;
+import jx86.lang.Instruction;
+import jx86.lang.Register;
+import jx86.lang.Instruction.*;
+
+/**
+ * Checks the folding, multiplication and division reductions of
+ * <code>StrengthReduction</code>, by executing the reduced code.
+ *
+ * @author David J. Pearce
+ *
+ */
+public class StrengthReductionTest {
+	private static final long[] DIVISORS = {
+		1, 2, 3, 5, 6, 7, 10, 16, 25, 60, 641, 1000, 65536, 1000003, Integer.MAX_VALUE
+	};
+
+	public static void main(String[] args) {
+		foldLongNegative();
+		foldLongZeroExtended();
+		foldChain();
+		foldChainRead();
+		multiplyLong();
+		divide();
+	}
+
+	/**
+	 * A 32-bit fold whose result does not fit a signed immediate.
+	 */
+	private static void foldLongNegative() {
+		List<Instruction> code = new StrengthReduction().apply(code(
+				new Label("f", 1, true),
+				new ImmReg(ImmRegOp.mov, -1, Register.EAX),
+				new ImmReg(ImmRegOp.add, 0, Register.EAX),
+				new Unit(UnitOp.ret)));
+		checkEquals(0xFFFFFFFFL, emulator(code).call("f"), "fold of movl $-1; addl $0");
+	}
+
+	private static void foldLongZeroExtended() {
+		List<Instruction> code = new StrengthReduction().apply(code(
+				new Label("f", 1, true),
+				new ImmReg(ImmRegOp.mov, Integer.MAX_VALUE, Register.ECX),
+				new ImmReg(ImmRegOp.add, 1, Register.ECX),
+				new RegReg(RegRegOp.mov, Register.RCX, Register.RAX),
+				new ImmReg(ImmRegOp.add, 1, Register.RAX),
+				new Unit(UnitOp.ret)));
+		checkEquals(0x80000001L, emulator(code).call("f"), "fold of 32-bit overflow");
+	}
+
+	/**
+	 * A chain of operations on a constant leaves a single move.
+	 */
+	private static void foldChain() {
+		List<Instruction> code = new StrengthReduction().apply(code(
+				new Label("f", 1, true),
+				new ImmReg(ImmRegOp.mov, 2, Register.RAX),
+				new ImmReg(ImmRegOp.add, 3, Register.RAX),
+				new ImmReg(ImmRegOp.sub, 1, Register.EAX),
+				new Unit(UnitOp.ret)));
+		checkEquals(3, code.size(), "instructions after folding");
+		checkEquals(4, emulator(code).call("f"), "fold of chain");
+	}
+
+	/**
+	 * A move whose result is read by another instruction is kept.
+	 */
+	private static void foldChainRead() {
+		List<Instruction> code = new StrengthReduction().apply(code(
+				new Label("f", 1, true),
+				new ImmReg(ImmRegOp.mov, 2, Register.RCX),
+				new ImmIndReg(ImmIndRegOp.lea, 1, Register.RCX, Register.RAX),
+				new ImmReg(ImmRegOp.add, 3, Register.RCX),
+				new RegReg(RegRegOp.imul, Register.RCX, Register.RAX),
+				new Unit(UnitOp.ret)));
+		checkEquals(15, emulator(code).call("f"), "fold after read");
+	}
+
+	/**
+	 * Multiplication of a 32-bit register by 3, 5 or 9 uses an lea.
+	 */
+	private static void multiplyLong() {
+		for(long k : new long[] { 3, 5, 9 }) {
+			List<Instruction> code = new StrengthReduction().apply(code(
+					new Label("f", 1, true),
+					new RegReg(RegRegOp.mov, Register.EDI, Register.EAX),
+					new ImmReg(ImmRegOp.imul, k, Register.EAX),
+					new Unit(UnitOp.ret)));
+			check(contains(code, IndRegImmRegOp.lea), "multiplication by " + k + " not reduced");
+			Emulator emulator = emulator(code);
+			checkEquals(7 * k, emulator.call("f", 7), "7 * " + k);
+			checkEquals((0x80000001L * k) & 0xFFFFFFFFL, emulator.call("f", 0x80000001L),
+					"0x80000001 * " + k);
+		}
+	}
+
+	/**
+	 * Unsigned division by a constant, compared against the expected quotient
+	 * and remainder for a range of dividends.
+	 */
+	private static void divide() {
+		Random random = new Random(41);
+		for(long d : DIVISORS) {
+			List<Instruction> code = new StrengthReduction().apply(code(
+					new Label("f", 1, true),
+					new RegReg(RegRegOp.mov, Register.RDI, Register.RAX),
+					new RegReg(RegRegOp.xor, Register.EDX, Register.EDX),
+					new ImmReg(ImmRegOp.mov, d, Register.RCX),
+					new Reg(RegOp.div, Register.RCX),
+					new Unit(UnitOp.ret)));
+			check(!contains(code, RegOp.div), "division by " + d + " not reduced");
+			Emulator emulator = emulator(code);
+			BigInteger divisor = BigInteger.valueOf(d);
+			for(int i=0;i!=20000;++i) {
+				long n = dividend(random, i);
+				BigInteger[] qr = unsigned(n).divideAndRemainder(divisor);
+				long q = emulator.call("f", n);
+				checkEquals(qr[0].longValue(), q, n + " / " + d);
+				checkEquals(qr[1].longValue(), emulator.get(Register.RDX), n + " % " + d);
+				checkEquals(d, emulator.get(Register.RCX), "divisor restored");
+			}
+		}
+	}
+
+	private static long dividend(Random random, int i) {
+		switch(i) {
+		case 0:
+			return 0;
+		case 1:
+			return -1;
+		case 2:
+			return Long.MAX_VALUE;
+		case 3:
+			return Long.MIN_VALUE;
+		default:
+			return (i & 1) == 0 ? random.nextLong() : random.nextInt(1 << 20);
+		}
+	}
+
+	private static BigInteger unsigned(long value) {
+		BigInteger result = BigInteger.valueOf(value);
+		return value < 0 ? result.add(BigInteger.ONE.shiftLeft(64)) : result;
+	}
+}